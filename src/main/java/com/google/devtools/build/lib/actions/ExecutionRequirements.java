@@ -144,6 +144,12 @@ public class ExecutionRequirements {
   public static final ImmutableMap<String, String> WORKER_MODE_ENABLED =
       ImmutableMap.of(SUPPORTS_WORKERS, "1");
 
+  /**
+   * If an action's persistent worker can handle several requests at the same time, telling them
+   * apart by their request id.
+   */
+  public static final String SUPPORTS_MULTIPLEX_WORKERS = "supports-multiplex-workers";
+
   /**
    * Whether we should disable remote caching of an action. This can be set to force a rerun of an
    * action even if there is a cache entry for it.
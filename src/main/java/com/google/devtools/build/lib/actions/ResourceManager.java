@@ -142,6 +142,10 @@ public class ResourceManager {
   // Used local test count. Corresponds to the local test count definition in the ResourceSet class.
   private int usedLocalTestCount;
 
+  // Amount of RAM in MB that is held by processes that outlive single actions, like persistent
+  // workers, and is therefore not available to actions.
+  private double reservedRam;
+
   // Specifies how much of the RAM in staticResources we should allow to be used.
   public static final int DEFAULT_RAM_UTILIZATION_PERCENTAGE = 67;
   private int ramUtilizationPercentage = DEFAULT_RAM_UTILIZATION_PERCENTAGE;
@@ -185,6 +189,25 @@ public class ResourceManager {
     processWaitingThreads();
   }
 
+  /**
+   * Sets how much RAM in MB is held by processes that outlive single actions, like persistent
+   * workers. This amount is not available to actions. Note that it does not prevent a single
+   * action from running while no other action holds any RAM.
+   */
+  public synchronized void setReservedMemoryMb(double memoryMb) {
+    Preconditions.checkArgument(memoryMb >= 0, "memoryMb must not be negative");
+    boolean released = memoryMb < reservedRam;
+    reservedRam = memoryMb;
+    if (released) {
+      processWaitingThreads();
+    }
+  }
+
+  /** Returns the amount of RAM in MB set by {@link #setReservedMemoryMb}. */
+  public synchronized double getReservedMemoryMb() {
+    return reservedRam;
+  }
+
   /**
    * Specify how much of the available RAM we should allow to be used.
    */
@@ -388,7 +411,7 @@ public class ResourceManager {
     int localTestCount = resources.getLocalTestCount();
 
     double availableCpu = availableResources.getCpuUsage();
-    double availableRam = availableResources.getMemoryMb();
+    double availableRam = availableResources.getMemoryMb() - reservedRam;
     double availableIo = availableResources.getIoUsage();
     int availableLocalTestCount = availableResources.getLocalTestCount();
 
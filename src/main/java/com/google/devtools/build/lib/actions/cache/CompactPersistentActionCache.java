@@ -360,7 +360,7 @@ public class CompactPersistentActionCache implements ActionCache {
   /**
    * @return action data encoded as a byte[] array.
    */
-  private static byte[] encode(StringIndexer indexer, ActionCache.Entry entry) {
+  static byte[] encode(StringIndexer indexer, ActionCache.Entry entry) {
     Preconditions.checkState(!entry.isCorrupted());
 
     try {
@@ -408,9 +408,15 @@ public class CompactPersistentActionCache implements ActionCache {
    * dependency checker.
    */
   private static ActionCache.Entry decode(StringIndexer indexer, byte[] data) throws IOException {
-    try {
-      ByteBuffer source = ByteBuffer.wrap(data);
+    return decode(indexer, ByteBuffer.wrap(data));
+  }
 
+  /**
+   * Creates new action cache entry from the remaining bytes of the given buffer, which must hold
+   * exactly one encoded entry.
+   */
+  static ActionCache.Entry decode(StringIndexer indexer, ByteBuffer source) throws IOException {
+    try {
       byte[] actionKeyBytes = new byte[VarInt.getVarInt(source)];
       source.get(actionKeyBytes);
       String actionKey = new String(actionKeyBytes, ISO_8859_1);
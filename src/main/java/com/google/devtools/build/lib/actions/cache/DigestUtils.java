@@ -34,6 +34,7 @@ import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
+import javax.annotation.Nullable;
 
 /**
  * Utility class for getting md5 digests of files.
@@ -64,18 +65,18 @@ public class DigestUtils {
    * <p>The cache keys are derived from many properties of the file metadata in an attempt to be
    * able to detect most file changes.
    */
-  private static class CacheKey {
+  static class CacheKey {
     /** Path to the file. */
-    private final PathFragment path;
+    final PathFragment path;
 
     /** File system identifier of the file (typically the inode number). */
-    private final long nodeId;
+    final long nodeId;
 
     /** Last modification time of the file. */
-    private final long modifiedTime;
+    final long modifiedTime;
 
     /** Size of the file. */
-    private final long size;
+    final long size;
 
     /**
      * Constructs a new cache key.
@@ -128,6 +129,13 @@ public class DigestUtils {
    */
   private static volatile Cache<CacheKey, byte[]> globalCache = null;
 
+  /**
+   * Persistent cache of files to their digests, consulted when {@link #globalCache} misses.
+   *
+   * <p>This is null when the persistent cache is disabled.
+   */
+  private static volatile PersistentDigestCache persistentCache = null;
+
   /** Private constructor to prevent instantiation of utility class. */
   private DigestUtils() {}
 
@@ -187,6 +195,22 @@ public class DigestUtils {
     return cache.stats();
   }
 
+  /**
+   * Enables or disables the persistent cache of file digests, which backs the in-memory cache
+   * configured with {@link #configureCache(long)} and outlives the server.
+   *
+   * @param cache the cache to use, or null to disable the persistent cache
+   */
+  public static void configurePersistentCache(@Nullable PersistentDigestCache cache) {
+    persistentCache = cache;
+  }
+
+  /** Returns the persistent cache of file digests, or null if it is disabled. */
+  @Nullable
+  public static PersistentDigestCache getPersistentCache() {
+    return persistentCache;
+  }
+
   /**
    * Enable or disable multi-threaded digesting even for large files.
    */
@@ -219,10 +243,19 @@ public class DigestUtils {
     // At this point, either we could not get a fast digest or the fast digest we got is corrupt.
     // Attempt a cache lookup if the cache is enabled and return the cached digest if found.
     Cache<CacheKey, byte[]> cache = globalCache;
+    PersistentDigestCache diskCache = persistentCache;
     CacheKey key = null;
-    if (cache != null && digest == null) {
+    if ((cache != null || diskCache != null) && digest == null) {
       key = new CacheKey(path, path.stat());
-      digest = cache.getIfPresent(key);
+      if (cache != null) {
+        digest = cache.getIfPresent(key);
+      }
+      if (digest == null && diskCache != null) {
+        digest = diskCache.get(key);
+        if (digest != null && cache != null) {
+          cache.put(key, digest);
+        }
+      }
     }
     if (digest != null) {
       return digest;
@@ -246,13 +279,18 @@ public class DigestUtils {
         digest,
         "We should have gotten a digest for %s at this point but we still don't have one",
         path);
-    if (cache != null) {
+    if (cache != null || diskCache != null) {
       Preconditions.checkNotNull(
           key,
           "We should have computed a cache key earlier for %s because the cache is enabled and we"
               + " did not get a fast digest for this file, but we don't have a key here",
           path);
-      cache.put(key, digest);
+      if (cache != null) {
+        cache.put(key, digest);
+      }
+      if (diskCache != null) {
+        diskCache.put(key, digest);
+      }
     }
     return digest;
   }
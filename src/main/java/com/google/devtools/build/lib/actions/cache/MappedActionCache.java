@@ -0,0 +1,711 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions.cache;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.devtools.build.lib.actions.cache.Protos.ActionCacheStatistics;
+import com.google.devtools.build.lib.actions.cache.Protos.ActionCacheStatistics.MissReason;
+import com.google.devtools.build.lib.clock.Clock;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.UnixGlob;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An implementation of the ActionCache interface that keeps the encoded cache entries in
+ * memory-mapped, append-only segment files instead of on the Java heap.
+ *
+ * <p>Entries are encoded exactly like in {@link CompactPersistentActionCache}, and file names are
+ * interned through a {@link PersistentStringIndexer}. Each {@link #put} or {@link #remove} appends
+ * a record to the active segment; the location of the latest record of each key is kept in an
+ * off-heap open-addressing hash table which is split into independently locked stripes. Lookups
+ * decode the entry directly from the mapped segment.
+ *
+ * <p>{@link #save} syncs the segments and atomically commits the end of the log in a small header
+ * file; records written after the last commit are ignored when the cache is loaded again. Each save
+ * also compacts at most one sealed segment with a high fraction of overwritten or removed records,
+ * by re-appending its live records and deleting the segment file. The cache is therefore never
+ * fully materialized on the heap, neither while loading nor while saving.
+ *
+ * <p>The cache files must be on a local file system that supports memory mapping.
+ */
+@ThreadSafe
+public class MappedActionCache implements ActionCache {
+  private static final int VERSION = 1;
+  private static final long MAGIC = 0x626c617a654d4143L;
+
+  private static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+  private static final int STRIPE_COUNT = 16;
+  private static final int INITIAL_STRIPE_CAPACITY = 1024;
+
+  /** Size of the record header, consisting of the key index plus one and the data length. */
+  private static final int RECORD_HEADER_SIZE = 8;
+  /** Data length of a record that marks the removal of a key. */
+  private static final int REMOVED = -1;
+
+  /** Sealed segments with less than this fraction of live data are compacted on save. */
+  private static final double COMPACTION_THRESHOLD = 0.5;
+
+  private static final long NO_ADDRESS = -1;
+
+  /** A memory-mapped segment file of the log. */
+  private static final class Segment {
+    final int id;
+    final Path path;
+    final MappedByteBuffer buffer;
+    final AtomicLong liveBytes = new AtomicLong();
+
+    Segment(int id, Path path, int size) throws IOException {
+      this.id = id;
+      this.path = path;
+      // The mapping stays valid after the file is closed.
+      try (RandomAccessFile file = new RandomAccessFile(path.getPathFile(), "rw")) {
+        this.buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+      }
+    }
+
+    int getKey(int offset) {
+      return buffer.getInt(offset) - 1;
+    }
+
+    int getLength(int offset) {
+      return buffer.getInt(offset + 4);
+    }
+
+    ByteBuffer getData(int offset) {
+      ByteBuffer data = buffer.duplicate();
+      data.position(offset + RECORD_HEADER_SIZE);
+      data.limit(offset + RECORD_HEADER_SIZE + getLength(offset));
+      return data.slice();
+    }
+
+    void write(int offset, int key, byte[] data) {
+      ByteBuffer target = buffer.duplicate();
+      target.position(offset + RECORD_HEADER_SIZE);
+      target.put(data);
+      buffer.putInt(offset + 4, data.length);
+      buffer.putInt(offset, key + 1);
+    }
+
+    void writeRemoval(int offset, int key) {
+      buffer.putInt(offset + 4, REMOVED);
+      buffer.putInt(offset, key + 1);
+    }
+  }
+
+  /**
+   * One stripe of the index: an open-addressing hash table with linear probing that maps key
+   * indices to record addresses. Each slot consists of two longs, the key index plus one (zero
+   * marks an empty slot) and the address. The table is allocated outside of the Java heap.
+   */
+  private static final class Stripe {
+    private LongBuffer table;
+    private int capacity;
+    private int size;
+
+    Stripe() {
+      allocate(INITIAL_STRIPE_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+      this.capacity = capacity;
+      this.table = ByteBuffer.allocateDirect(capacity * 16).asLongBuffer();
+      this.size = 0;
+    }
+
+    private int slotFor(int key) {
+      int slot = hash(key) & (capacity - 1);
+      while (true) {
+        long storedKey = table.get(2 * slot);
+        if (storedKey == 0 || storedKey == key + 1L) {
+          return slot;
+        }
+        slot = (slot + 1) & (capacity - 1);
+      }
+    }
+
+    long get(int key) {
+      int slot = slotFor(key);
+      return table.get(2 * slot) == 0 ? NO_ADDRESS : table.get(2 * slot + 1);
+    }
+
+    /** Returns the previous address of the key, or {@link #NO_ADDRESS}. */
+    long put(int key, long address) {
+      int slot = slotFor(key);
+      if (table.get(2 * slot) != 0) {
+        long previous = table.get(2 * slot + 1);
+        table.put(2 * slot + 1, address);
+        return previous;
+      }
+      table.put(2 * slot, key + 1L);
+      table.put(2 * slot + 1, address);
+      if (++size * 4 > capacity * 3) {
+        resize();
+      }
+      return NO_ADDRESS;
+    }
+
+    /** Returns the previous address of the key, or {@link #NO_ADDRESS}. */
+    long remove(int key) {
+      int slot = slotFor(key);
+      if (table.get(2 * slot) == 0) {
+        return NO_ADDRESS;
+      }
+      long previous = table.get(2 * slot + 1);
+      // Backward-shift deletion keeps probe sequences intact without tombstones.
+      int hole = slot;
+      int next = (slot + 1) & (capacity - 1);
+      while (table.get(2 * next) != 0) {
+        int home = hash((int) (table.get(2 * next) - 1)) & (capacity - 1);
+        if (((next - home) & (capacity - 1)) >= ((next - hole) & (capacity - 1))) {
+          table.put(2 * hole, table.get(2 * next));
+          table.put(2 * hole + 1, table.get(2 * next + 1));
+          hole = next;
+        }
+        next = (next + 1) & (capacity - 1);
+      }
+      table.put(2 * hole, 0);
+      table.put(2 * hole + 1, 0);
+      size--;
+      return previous;
+    }
+
+    private void resize() {
+      LongBuffer oldTable = table;
+      int oldCapacity = capacity;
+      allocate(oldCapacity * 2);
+      for (int i = 0; i < oldCapacity; i++) {
+        long storedKey = oldTable.get(2 * i);
+        if (storedKey != 0) {
+          put((int) (storedKey - 1), oldTable.get(2 * i + 1));
+        }
+      }
+    }
+
+    void clear() {
+      allocate(INITIAL_STRIPE_CAPACITY);
+    }
+
+    void forEach(Map<Integer, Long> result) {
+      for (int i = 0; i < capacity; i++) {
+        long storedKey = table.get(2 * i);
+        if (storedKey != 0) {
+          result.put((int) (storedKey - 1), table.get(2 * i + 1));
+        }
+      }
+    }
+  }
+
+  private final Path cacheRoot;
+  private final int segmentSize;
+  private final PersistentStringIndexer indexer;
+  private final Stripe[] stripes = new Stripe[STRIPE_COUNT];
+  private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+
+  /** Held for reading while records are appended, and for writing while the log is committed. */
+  private final ReadWriteLock commitLock = new ReentrantReadWriteLock();
+
+  // Guarded by this.
+  private Segment activeSegment;
+  private int activeEnd;
+
+  private final AtomicInteger hits = new AtomicInteger();
+  private final Map<MissReason, AtomicInteger> misses = new EnumMap<>(MissReason.class);
+
+  public MappedActionCache(Path cacheRoot, Clock clock) throws IOException {
+    this(cacheRoot, clock, DEFAULT_SEGMENT_SIZE);
+  }
+
+  @VisibleForTesting
+  MappedActionCache(Path cacheRoot, Clock clock, int segmentSize) throws IOException {
+    this.cacheRoot = cacheRoot;
+    this.segmentSize = segmentSize;
+    for (int i = 0; i < STRIPE_COUNT; i++) {
+      stripes[i] = new Stripe();
+    }
+    try {
+      indexer =
+          PersistentStringIndexer.newPersistentStringIndexer(
+              cacheRoot.getChild("mapped_filename_index_v" + VERSION + ".blaze"), clock);
+    } catch (IOException e) {
+      renameCorruptedFiles(cacheRoot);
+      throw new IOException("Failed to load filename index data", e);
+    }
+    try {
+      load();
+    } catch (IOException e) {
+      renameCorruptedFiles(cacheRoot);
+      throw new IOException("Failed to load action cache data", e);
+    }
+
+    for (MissReason reason : MissReason.values()) {
+      if (reason == MissReason.UNRECOGNIZED) {
+        // The presence of this enum value is a protobuf artifact and confuses our metrics
+        // externalization code below. Just skip it.
+        continue;
+      }
+      misses.put(reason, new AtomicInteger(0));
+    }
+  }
+
+  /**
+   * Rename corrupted files so they could be analyzed later. This would also ensure that next
+   * initialization attempt will create empty cache.
+   */
+  private static void renameCorruptedFiles(Path cacheRoot) {
+    try {
+      for (Path path :
+          UnixGlob.forPath(cacheRoot).addPattern("mapped_*_v" + VERSION + ".*").glob()) {
+        path.renameTo(path.getParentDirectory().getChild(path.getBaseName() + ".bad"));
+      }
+    } catch (IOException e) {
+      // do nothing
+    }
+  }
+
+  @VisibleForTesting
+  static Path headerFile(Path cacheRoot) {
+    return cacheRoot.getChild("mapped_action_cache_v" + VERSION + ".header");
+  }
+
+  private Path segmentFile(int id) {
+    return cacheRoot.getChild("mapped_action_cache_v" + VERSION + "." + id);
+  }
+
+  private void load() throws IOException {
+    Path header = headerFile(cacheRoot);
+    int committedSegment = -1;
+    int committedEnd = 0;
+    if (header.exists()) {
+      try (DataInputStream in = new DataInputStream(header.getInputStream())) {
+        if (in.readLong() != MAGIC) {
+          throw new IOException("Invalid action cache header");
+        }
+        committedSegment = in.readInt();
+        committedEnd = in.readInt();
+        int indexerSize = in.readInt();
+        if (indexerSize > indexer.size()) {
+          throw new IOException(
+              String.format(
+                  "Validation mismatch: validation entry %d is too large compared to index size %d",
+                  indexerSize, indexer.size()));
+        }
+      }
+    }
+    String prefix = segmentFile(0).getBaseName();
+    prefix = prefix.substring(0, prefix.length() - 1);
+    for (Path path : cacheRoot.getDirectoryEntries()) {
+      String name = path.getBaseName();
+      if (!name.startsWith(prefix) || path.equals(header)) {
+        continue;
+      }
+      int id;
+      try {
+        id = Integer.parseInt(name.substring(prefix.length()));
+      } catch (NumberFormatException e) {
+        continue;
+      }
+      if (id > committedSegment) {
+        // Never committed.
+        path.delete();
+      } else {
+        segments.put(id, new Segment(id, path, segmentSize));
+      }
+    }
+    for (Segment segment : segments.values()) {
+      int end = segment.id == committedSegment ? committedEnd : segmentSize;
+      int offset = 0;
+      while (offset + RECORD_HEADER_SIZE <= end) {
+        int key = segment.getKey(offset);
+        if (key < 0) {
+          // Unused remainder of the segment, or the end marker of a sealed segment.
+          break;
+        }
+        int length = segment.getLength(offset);
+        long address = address(segment.id, offset);
+        if (length == REMOVED) {
+          release(stripeFor(key).remove(key));
+          offset += RECORD_HEADER_SIZE;
+        } else {
+          if (length < 0 || offset + RECORD_HEADER_SIZE + length > end) {
+            throw new IOException("Corrupted record in " + segment.path + " at offset " + offset);
+          }
+          release(stripeFor(key).put(key, address));
+          segment.liveBytes.addAndGet(RECORD_HEADER_SIZE + length);
+          offset += RECORD_HEADER_SIZE + length;
+        }
+      }
+    }
+    if (committedSegment >= 0) {
+      activeSegment = segments.get(committedSegment);
+      activeEnd = committedEnd;
+    }
+    if (activeSegment == null) {
+      activeSegment = newSegment(committedSegment + 1);
+      activeEnd = 0;
+    }
+  }
+
+  private Segment newSegment(int id) throws IOException {
+    Segment segment = new Segment(id, segmentFile(id), segmentSize);
+    segments.put(id, segment);
+    return segment;
+  }
+
+  private static long address(int segmentId, int offset) {
+    return ((long) segmentId << 32) | offset;
+  }
+
+  private static int hash(int key) {
+    int h = key * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  private Stripe stripeFor(int key) {
+    return stripes[(hash(key) >>> 28) & (STRIPE_COUNT - 1)];
+  }
+
+  /** Accounts for the record at the given address being overwritten or removed. */
+  private void release(long address) {
+    if (address == NO_ADDRESS) {
+      return;
+    }
+    Segment segment = segments.get((int) (address >>> 32));
+    if (segment != null) {
+      int offset = (int) address;
+      segment.liveBytes.addAndGet(-(RECORD_HEADER_SIZE + segment.getLength(offset)));
+    }
+  }
+
+  /** Reserves space for a record of the given size and returns its address. */
+  private synchronized long reserve(int size) {
+    Preconditions.checkArgument(
+        size <= segmentSize, "Action cache record of %s bytes is too large", size);
+    if (activeEnd + size > segmentSize) {
+      // Seal the segment with an end marker. After a crash, the records written past the committed
+      // end may still follow, and would otherwise be loaded with the sealed segment.
+      if (activeEnd + RECORD_HEADER_SIZE <= segmentSize) {
+        activeSegment.buffer.putInt(activeEnd, 0);
+      }
+      try {
+        activeSegment = newSegment(activeSegment.id + 1);
+      } catch (IOException e) {
+        throw new IllegalStateException("Failed to create action cache segment", e);
+      }
+      activeEnd = 0;
+    }
+    long address = address(activeSegment.id, activeEnd);
+    activeEnd += size;
+    return address;
+  }
+
+  private Segment segmentAt(long address) {
+    return segments.get((int) (address >>> 32));
+  }
+
+  @Override
+  public ActionCache.Entry get(String key) {
+    int index = indexer.getIndex(key);
+    if (index < 0) {
+      return null;
+    }
+    Stripe stripe = stripeFor(index);
+    long address;
+    synchronized (stripe) {
+      address = stripe.get(index);
+    }
+    if (address == NO_ADDRESS) {
+      return null;
+    }
+    // Segments that are compacted away concurrently stay mapped until they are garbage collected.
+    Segment segment = segmentAt(address);
+    if (segment == null) {
+      return get(key);
+    }
+    try {
+      return CompactPersistentActionCache.decode(indexer, segment.getData((int) address));
+    } catch (IOException e) {
+      // return entry marked as corrupted.
+      return ActionCache.Entry.CORRUPTED;
+    }
+  }
+
+  @Override
+  public void put(String key, ActionCache.Entry entry) {
+    // Encode record. Note that both methods may create new mappings in the indexer.
+    int index = indexer.getOrCreateIndex(key);
+    byte[] content = CompactPersistentActionCache.encode(indexer, entry);
+    Stripe stripe = stripeFor(index);
+    commitLock.readLock().lock();
+    try {
+      synchronized (stripe) {
+        long address = reserve(RECORD_HEADER_SIZE + content.length);
+        Segment segment = segmentAt(address);
+        segment.write((int) address, index, content);
+        segment.liveBytes.addAndGet(RECORD_HEADER_SIZE + content.length);
+        release(stripe.put(index, address));
+      }
+    } finally {
+      commitLock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public void remove(String key) {
+    int index = indexer.getIndex(key);
+    if (index < 0) {
+      return;
+    }
+    Stripe stripe = stripeFor(index);
+    commitLock.readLock().lock();
+    try {
+      synchronized (stripe) {
+        if (stripe.get(index) == NO_ADDRESS) {
+          return;
+        }
+        long address = reserve(RECORD_HEADER_SIZE);
+        segmentAt(address).writeRemoval((int) address, index);
+        release(stripe.remove(index));
+      }
+    } finally {
+      commitLock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public long save() throws IOException {
+    commitLock.writeLock().lock();
+    try {
+      long indexSize = indexer.save();
+      Segment compacted = compactOneSegment();
+      for (Segment segment : segments.values()) {
+        segment.buffer.force();
+      }
+      int committedSegment;
+      int committedEnd;
+      synchronized (this) {
+        committedSegment = activeSegment.id;
+        committedEnd = activeEnd;
+      }
+      writeHeader(committedSegment, committedEnd);
+      // Only delete the compacted segment once its live records are committed elsewhere.
+      if (compacted != null) {
+        compacted.path.delete();
+      }
+      return indexSize + (long) segments.size() * segmentSize;
+    } finally {
+      commitLock.writeLock().unlock();
+    }
+  }
+
+  private void writeHeader(int committedSegment, int committedEnd) throws IOException {
+    Path header = headerFile(cacheRoot);
+    Path temp = header.getParentDirectory().getChild(header.getBaseName() + ".tmp");
+    try (OutputStream out = temp.getOutputStream();
+        DataOutputStream data = new DataOutputStream(out)) {
+      data.writeLong(MAGIC);
+      data.writeInt(committedSegment);
+      data.writeInt(committedEnd);
+      data.writeInt(indexer.size());
+    }
+    temp.renameTo(header);
+  }
+
+  /**
+   * Moves the live records of the sealed segment with the lowest fraction of live data to the end
+   * of the log, if that fraction is below {@link #COMPACTION_THRESHOLD}. Must be called with the
+   * commit lock held for writing. Returns the segment, which the caller must delete after the next
+   * commit, or null if no segment was compacted.
+   */
+  private Segment compactOneSegment() {
+    Segment active;
+    synchronized (this) {
+      active = activeSegment;
+    }
+    Segment candidate = null;
+    for (Segment segment : segments.values()) {
+      if (segment == active) {
+        continue;
+      }
+      if (candidate == null || segment.liveBytes.get() < candidate.liveBytes.get()) {
+        candidate = segment;
+      }
+    }
+    if (candidate == null || candidate.liveBytes.get() >= segmentSize * COMPACTION_THRESHOLD) {
+      return null;
+    }
+    // Removal records must be kept unless there is no older segment they could apply to.
+    boolean isOldest = candidate.id == segments.firstKey();
+    int offset = 0;
+    while (offset + RECORD_HEADER_SIZE <= segmentSize) {
+      int key = candidate.getKey(offset);
+      if (key < 0) {
+        break;
+      }
+      int length = candidate.getLength(offset);
+      Stripe stripe = stripeFor(key);
+      synchronized (stripe) {
+        if (length == REMOVED) {
+          if (!isOldest && stripe.get(key) == NO_ADDRESS) {
+            long address = reserve(RECORD_HEADER_SIZE);
+            segmentAt(address).writeRemoval((int) address, key);
+          }
+        } else if (stripe.get(key) == address(candidate.id, offset)) {
+          byte[] data = new byte[length];
+          candidate.getData(offset).get(data);
+          long address = reserve(RECORD_HEADER_SIZE + length);
+          Segment segment = segmentAt(address);
+          segment.write((int) address, key, data);
+          segment.liveBytes.addAndGet(RECORD_HEADER_SIZE + length);
+          stripe.put(key, address);
+        }
+      }
+      offset += RECORD_HEADER_SIZE + (length == REMOVED ? 0 : length);
+    }
+    segments.remove(candidate.id);
+    return candidate;
+  }
+
+  /** Clears the in-memory state of the cache. The cache must not be used afterwards. */
+  @Override
+  public void clear() {
+    commitLock.writeLock().lock();
+    try {
+      indexer.clear();
+      for (Stripe stripe : stripes) {
+        synchronized (stripe) {
+          stripe.clear();
+        }
+      }
+      segments.clear();
+    } finally {
+      commitLock.writeLock().unlock();
+    }
+  }
+
+  /** Returns a snapshot of the index, mapping key indices to record addresses. */
+  private Map<Integer, Long> snapshot() {
+    Map<Integer, Long> result = new ConcurrentSkipListMap<>();
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        stripe.forEach(result);
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    Map<Integer, Long> snapshot = snapshot();
+    StringBuilder builder = new StringBuilder();
+    builder.append("Action cache (" + snapshot.size() + " records):\n");
+    int size = snapshot.size() > 1000 ? 10 : snapshot.size();
+    int ct = 0;
+    for (Map.Entry<Integer, Long> entry : snapshot.entrySet()) {
+      builder
+          .append("-> ")
+          .append(indexer.getStringForIndex(entry.getKey()))
+          .append("\n")
+          .append(describe(entry.getValue()));
+      if (++ct > size) {
+        builder.append("...");
+        break;
+      }
+    }
+    return builder.toString();
+  }
+
+  private String describe(long address) {
+    Segment segment = segmentAt(address);
+    if (segment == null) {
+      return "  (compacted)\n";
+    }
+    ByteBuffer data = segment.getData((int) address);
+    String content;
+    try {
+      content = CompactPersistentActionCache.decode(indexer, data.duplicate()).toString();
+    } catch (IOException e) {
+      content = e + "\n";
+    }
+    return content + "  packed_len = " + data.remaining() + "\n";
+  }
+
+  /** Dumps action cache content. */
+  @Override
+  public void dump(PrintStream out) {
+    Map<Integer, Long> snapshot = snapshot();
+    out.println("String indexer content:\n");
+    out.println(indexer);
+    out.println("Action cache (" + snapshot.size() + " records):\n");
+    for (Map.Entry<Integer, Long> entry : snapshot.entrySet()) {
+      out.println(
+          entry.getKey()
+              + ", "
+              + indexer.getStringForIndex(entry.getKey())
+              + ":\n"
+              + describe(entry.getValue()));
+    }
+  }
+
+  @Override
+  public void accountHit() {
+    hits.incrementAndGet();
+  }
+
+  @Override
+  public void accountMiss(MissReason reason) {
+    AtomicInteger counter = misses.get(reason);
+    Preconditions.checkNotNull(counter, "Miss reason %s was not registered in the misses map "
+        + "during cache construction", reason);
+    counter.incrementAndGet();
+  }
+
+  @Override
+  public void mergeIntoActionCacheStatistics(ActionCacheStatistics.Builder builder) {
+    builder.setHits(hits.get());
+
+    int totalMisses = 0;
+    for (Map.Entry<MissReason, AtomicInteger> entry : misses.entrySet()) {
+      int count = entry.getValue().get();
+      builder.addMissDetailsBuilder().setReason(entry.getKey()).setCount(count);
+      totalMisses += count;
+    }
+    builder.setMisses(totalMisses);
+  }
+
+  @Override
+  public void resetStatistics() {
+    hits.set(0);
+    for (Map.Entry<MissReason, AtomicInteger> entry : misses.entrySet()) {
+      entry.getValue().set(0);
+    }
+  }
+}
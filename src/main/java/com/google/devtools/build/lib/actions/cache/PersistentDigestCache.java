@@ -0,0 +1,253 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions.cache;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.CacheStats;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import javax.annotation.Nullable;
+
+/**
+ * A fixed-size cache of file digests in a memory-mapped file, so that digests computed by one
+ * server survive until the next one.
+ *
+ * <p>Entries are keyed on the same properties as the in-memory cache of {@link DigestUtils}: the
+ * path, the node id, the modification time and the size of the file. A lookup only succeeds if all
+ * of them match the current stat data of the file, so entries of files that changed while no server
+ * was running are never returned. The path is stored as a 128-bit hash.
+ *
+ * <p>The file is an array of buckets of {@link #SLOTS_PER_BUCKET} slots each. A key can only be
+ * stored in the bucket selected by its path hash, and a full bucket evicts one of its slots. Each
+ * slot carries a checksum of its contents, so slots that were only partially written when a server
+ * died are treated as empty. Opening the cache only maps the file; pages are read on first access.
+ *
+ * <p>The cache file must be on a local file system that supports memory mapping.
+ */
+@ThreadSafe
+public class PersistentDigestCache {
+  private static final long MAGIC = 0x626c617a65444331L;
+  private static final int VERSION = 1;
+
+  private static final int HEADER_SIZE = 64;
+  private static final int MAX_DIGEST_LENGTH = 32;
+
+  /**
+   * Slot layout: checksum (int, zero for an empty slot), digest length (int), path hash (two
+   * longs), node id, modification time and size (longs), digest.
+   */
+  private static final int SLOT_SIZE = 48 + MAX_DIGEST_LENGTH;
+
+  private static final int SLOTS_PER_BUCKET = 8;
+  private static final int BUCKET_SIZE = SLOT_SIZE * SLOTS_PER_BUCKET;
+  private static final int STRIPE_COUNT = 64;
+
+  private static final HashFunction PATH_HASH = Hashing.murmur3_128();
+
+  private final Path file;
+  private final MappedByteBuffer buffer;
+  private final int bucketMask;
+  private final int digestLength;
+  private final Object[] locks = new Object[STRIPE_COUNT];
+
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+  private final AtomicLong evictionCount = new AtomicLong();
+
+  /**
+   * Opens the cache file, or creates it if it does not exist or was created for a different
+   * capacity or digest function.
+   *
+   * @param file the cache file
+   * @param maximumSize the approximate number of digests to keep
+   * @param digestLength the length in bytes of the digests of the current digest function
+   * @throws IOException if the file cannot be created or mapped
+   */
+  public PersistentDigestCache(Path file, long maximumSize, int digestLength) throws IOException {
+    Preconditions.checkArgument(maximumSize > 0, maximumSize);
+    Preconditions.checkArgument(
+        digestLength > 0 && digestLength <= MAX_DIGEST_LENGTH, "Unsupported digest length");
+    this.file = file;
+    this.digestLength = digestLength;
+    // Keep buckets half full on average, and stay below the 2GB limit of a single mapping.
+    long buckets = Long.highestOneBit(Math.max(1, 2 * maximumSize / SLOTS_PER_BUCKET - 1)) << 1;
+    buckets =
+        Math.min(buckets, Integer.highestOneBit((Integer.MAX_VALUE - HEADER_SIZE) / BUCKET_SIZE));
+    this.bucketMask = (int) buckets - 1;
+    for (int i = 0; i < STRIPE_COUNT; i++) {
+      locks[i] = new Object();
+    }
+
+    long fileSize = HEADER_SIZE + buckets * BUCKET_SIZE;
+    // The mapping stays valid after the file is closed.
+    try (RandomAccessFile raf = new RandomAccessFile(file.getPathFile(), "rw")) {
+      boolean valid = raf.length() == fileSize;
+      MappedByteBuffer mapped =
+          raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+      valid =
+          valid
+              && mapped.getLong(0) == MAGIC
+              && mapped.getInt(8) == VERSION
+              && mapped.getInt(12) == digestLength
+              && mapped.getLong(16) == buckets;
+      if (!valid) {
+        // Start over with an empty table. Setting the length zero-fills the file.
+        raf.setLength(0);
+        raf.setLength(fileSize);
+        mapped = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+        mapped.putLong(16, buckets);
+        mapped.putInt(12, digestLength);
+        mapped.putInt(8, VERSION);
+        mapped.putLong(0, MAGIC);
+      }
+      this.buffer = mapped;
+    }
+  }
+
+  /** Returns the cached digest for the given key, or null if there is none. */
+  @Nullable
+  byte[] get(DigestUtils.CacheKey key) {
+    HashCode pathHash = hashPath(key);
+    long hash1 = pathHash.asLong();
+    long hash2 = hash2(pathHash);
+    int bucket = (int) hash1 & bucketMask;
+    byte[] slot = new byte[SLOT_SIZE];
+    synchronized (locks[bucket % STRIPE_COUNT]) {
+      for (int i = 0; i < SLOTS_PER_BUCKET; i++) {
+        if (readSlot(slotOffset(bucket, i), slot)) {
+          ByteBuffer entry = ByteBuffer.wrap(slot);
+          if (entry.getLong(8) == hash1
+              && entry.getLong(16) == hash2
+              && entry.getLong(24) == key.nodeId
+              && entry.getLong(32) == key.modifiedTime
+              && entry.getLong(40) == key.size
+              && entry.getInt(4) == digestLength) {
+            hitCount.incrementAndGet();
+            byte[] digest = new byte[digestLength];
+            System.arraycopy(slot, 48, digest, 0, digestLength);
+            return digest;
+          }
+        }
+      }
+    }
+    missCount.incrementAndGet();
+    return null;
+  }
+
+  /** Stores the digest for the given key, replacing any entry for the same path. */
+  void put(DigestUtils.CacheKey key, byte[] digest) {
+    if (digest.length != digestLength) {
+      return;
+    }
+    HashCode pathHash = hashPath(key);
+    long hash1 = pathHash.asLong();
+    long hash2 = hash2(pathHash);
+    int bucket = (int) hash1 & bucketMask;
+
+    ByteBuffer entry = ByteBuffer.allocate(SLOT_SIZE);
+    entry.putInt(4, digestLength);
+    entry.putLong(8, hash1);
+    entry.putLong(16, hash2);
+    entry.putLong(24, key.nodeId);
+    entry.putLong(32, key.modifiedTime);
+    entry.putLong(40, key.size);
+    System.arraycopy(digest, 0, entry.array(), 48, digestLength);
+    entry.putInt(0, checksum(entry.array()));
+
+    byte[] slot = new byte[SLOT_SIZE];
+    synchronized (locks[bucket % STRIPE_COUNT]) {
+      int target = -1;
+      for (int i = 0; i < SLOTS_PER_BUCKET; i++) {
+        if (!readSlot(slotOffset(bucket, i), slot)) {
+          if (target < 0) {
+            target = i;
+          }
+        } else {
+          ByteBuffer existing = ByteBuffer.wrap(slot);
+          if (existing.getLong(8) == hash1 && existing.getLong(16) == hash2) {
+            // An older digest of the same path.
+            target = i;
+            break;
+          }
+        }
+      }
+      if (target < 0) {
+        // Spread evictions over the bucket using bits of the hash that did not pick the bucket.
+        target = (int) ((hash2 ^ evictionCount.getAndIncrement()) & (SLOTS_PER_BUCKET - 1));
+      }
+      writeSlot(slotOffset(bucket, target), entry.array());
+    }
+  }
+
+  /** Returns a snapshot of the hit, miss and eviction counts of this cache. */
+  public CacheStats getStats() {
+    return new CacheStats(hitCount.get(), missCount.get(), 0, 0, 0, evictionCount.get());
+  }
+
+  /** Writes all changes to the file. Changes are kept by the OS even if the server dies. */
+  public void close() {
+    buffer.force();
+  }
+
+  @Override
+  public String toString() {
+    return "PersistentDigestCache(" + file + ")";
+  }
+
+  private static HashCode hashPath(DigestUtils.CacheKey key) {
+    return PATH_HASH.hashString(key.path.getPathString(), StandardCharsets.UTF_8);
+  }
+
+  private static long hash2(HashCode pathHash) {
+    return ByteBuffer.wrap(pathHash.asBytes()).getLong(8);
+  }
+
+  private static long slotOffset(int bucket, int slot) {
+    return HEADER_SIZE + (long) bucket * BUCKET_SIZE + (long) slot * SLOT_SIZE;
+  }
+
+  /** Copies a slot into {@code slot} and returns whether it holds a complete entry. */
+  private boolean readSlot(long offset, byte[] slot) {
+    ByteBuffer source = buffer.duplicate();
+    source.position((int) offset);
+    source.get(slot);
+    int stored = ByteBuffer.wrap(slot).getInt(0);
+    return stored != 0 && stored == checksum(slot);
+  }
+
+  private void writeSlot(long offset, byte[] slot) {
+    ByteBuffer target = buffer.duplicate();
+    target.position((int) offset);
+    target.put(slot);
+  }
+
+  /** Returns a non-zero checksum of everything but the checksum field of a slot. */
+  private static int checksum(byte[] slot) {
+    CRC32 crc = new CRC32();
+    crc.update(slot, 4, SLOT_SIZE - 4);
+    int value = (int) crc.getValue();
+    return value == 0 ? 1 : value;
+  }
+}
@@ -40,9 +40,12 @@ import com.google.devtools.build.lib.runtime.SynchronizedOutputStream;
 import com.google.devtools.build.lib.util.AbruptExitException;
 import com.google.devtools.build.lib.util.ExitCode;
 import com.google.devtools.build.lib.util.io.OutErr;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.common.options.OptionsBase;
 import com.google.devtools.common.options.OptionsProvider;
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.Set;
 import java.util.logging.Logger;
 import javax.annotation.Nullable;
@@ -63,6 +66,9 @@ public abstract class BuildEventServiceModule<T extends BuildEventServiceOptions
 
   private Set<BuildEventTransport> transports = ImmutableSet.of();
 
+  /** The directory to spill build events to that have not been uploaded yet. */
+  @Nullable private Path spillDirectory;
+
   @Override
   public Iterable<Class<? extends OptionsBase>> getCommandOptions(Command command) {
     return ImmutableList.of(optionsClass(), AuthAndTLSOptions.class, BuildEventStreamOptions.class);
@@ -76,6 +82,7 @@ public abstract class BuildEventServiceModule<T extends BuildEventServiceOptions
     if (!whitelistedCommands().contains(commandEnvironment.getCommandName())) {
       return;
     }
+    this.spillDirectory = commandEnvironment.getOutputBase().getRelative("bes_spill");
 
     BuildEventStreamer streamer =
         tryCreateStreamer(
@@ -230,12 +237,23 @@ public abstract class BuildEventServiceModule<T extends BuildEventServiceOptions
               pathConverter,
               commandLineReporter,
               besOptions.projectId,
-              keywords(besOptions));
+              keywords(besOptions),
+              besOptions.besMaxBufferedMb * 1024L * 1024L,
+              besOptions.besMaxSpilledMb * 1024L * 1024L,
+              spillDirectory());
       logger.fine("BuildEventServiceTransport was created successfully");
       return besTransport;
     }
   }
 
+  private java.nio.file.Path spillDirectory() throws IOException {
+    if (spillDirectory == null) {
+      return Paths.get(System.getProperty("java.io.tmpdir"));
+    }
+    FileSystemUtils.createDirectoryAndParents(spillDirectory);
+    return spillDirectory.getPathFile().toPath();
+  }
+
   @Override
   public void blazeShutdown() {
     for (BuildEventTransport transport : transports) {
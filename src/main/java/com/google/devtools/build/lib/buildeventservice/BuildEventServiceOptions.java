@@ -92,4 +92,28 @@ public class BuildEventServiceOptions extends OptionsBase {
             + "Defaults to none."
   )
   public List<String> besKeywords;
+
+  @Option(
+    name = "experimental_bes_max_buffered_mb",
+    defaultValue = "64",
+    documentationCategory = OptionDocumentationCategory.LOGGING,
+    effectTags = {OptionEffectTag.AFFECTS_OUTPUTS},
+    help =
+        "Specifies how many megabytes of build events that have not been acknowledged by the BES "
+            + "backend are kept in memory. Further events are spilled to disk."
+  )
+  public int besMaxBufferedMb;
+
+  @Option(
+    name = "experimental_bes_max_spilled_mb",
+    defaultValue = "1024",
+    documentationCategory = OptionDocumentationCategory.LOGGING,
+    effectTags = {OptionEffectTag.AFFECTS_OUTPUTS},
+    help =
+        "Specifies how many megabytes of build events that have not been acknowledged by the BES "
+            + "backend may be spilled to disk. Once both this and "
+            + "--experimental_bes_max_buffered_mb are exhausted, the build waits for the BES "
+            + "backend to catch up. If 0, events are never spilled to disk."
+  )
+  public int besMaxSpilledMb;
 }
@@ -57,15 +57,11 @@ import com.google.devtools.build.v1.PublishLifecycleEventRequest;
 import com.google.protobuf.Any;
 import io.grpc.Status;
 import java.time.Duration;
-import java.util.Deque;
 import java.util.Set;
-import java.util.concurrent.BlockingDeque;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
@@ -85,6 +81,8 @@ public class BuildEventServiceTransport implements BuildEventTransport {
   private static final Duration PUBLISH_EVENT_STREAM_FINISHED_TIMEOUT = Duration.ofSeconds(30);
   /** Max wait time between isStreamActive checks of the PublishBuildToolEventStream RPC. */
   private static final int STREAMING_RPC_POLL_IN_SECS = 1;
+  /** Max number of events that are taken from the upload queue at once. */
+  private static final int MAX_EVENTS_PER_BATCH = 100;
 
   private final ListeningExecutorService uploaderExecutorService;
   private final Duration uploadTimeout;
@@ -96,10 +94,17 @@ public class BuildEventServiceTransport implements BuildEventTransport {
   private final EventHandler commandLineReporter;
   private final PathConverter pathConverter;
   private final Sleeper sleeper;
-  /** Contains all pendingAck events that might be retried in case of failures. */
-  private ConcurrentLinkedDeque<PublishBuildToolEventStreamRequest> pendingAck;
-  /** Contains all events should be sent ordered by sequence number. */
-  private final BlockingDeque<PublishBuildToolEventStreamRequest> pendingSend;
+  /**
+   * Contains all events that have not been acknowledged yet, ordered by sequence number, including
+   * those that might be retried in case of failures.
+   */
+  private final BuildEventServiceUploadQueue uploadQueue;
+  /**
+   * Held while assigning a sequence number to an event and adding it to {@link #uploadQueue}, which
+   * may block. It is separate from the lock of this object so that {@link #closeNow()} is not
+   * blocked by it.
+   */
+  private final Object sendLock = new Object();
   /** Holds the result status of the BuildEventStreamProtos BuildFinished event. */
   private Result invocationResult;
   /** Used to block until all events have been uploaded. */
@@ -133,10 +138,13 @@ public class BuildEventServiceTransport implements BuildEventTransport {
       PathConverter pathConverter,
       EventHandler commandLineReporter,
       @Nullable String projectId,
-      Set<String> keywords) {
+      Set<String> keywords,
+      long maxBufferedBytes,
+      long maxSpilledBytes,
+      java.nio.file.Path spillDirectory) {
     this(besClient, uploadTimeout, bestEffortUpload, publishLifecycleEvents, buildRequestId,
         invocationId, command, moduleEnvironment, clock, pathConverter, commandLineReporter,
-        projectId, keywords, new JavaSleeper());
+        projectId, keywords, maxBufferedBytes, maxSpilledBytes, spillDirectory, new JavaSleeper());
   }
 
   @VisibleForTesting
@@ -154,6 +162,9 @@ public class BuildEventServiceTransport implements BuildEventTransport {
       EventHandler commandLineReporter,
       @Nullable String projectId,
       Set<String> keywords,
+      long maxBufferedBytes,
+      long maxSpilledBytes,
+      java.nio.file.Path spillDirectory,
       Sleeper sleeper) {
     this.besClient = besClient;
     this.besProtoUtil = new BuildEventServiceProtoUtil(
@@ -161,8 +172,8 @@ public class BuildEventServiceTransport implements BuildEventTransport {
     this.publishLifecycleEvents = publishLifecycleEvents;
     this.moduleEnvironment = moduleEnvironment;
     this.commandLineReporter = commandLineReporter;
-    this.pendingAck = new ConcurrentLinkedDeque<>();
-    this.pendingSend = new LinkedBlockingDeque<>();
+    this.uploadQueue =
+        new BuildEventServiceUploadQueue(maxBufferedBytes, maxSpilledBytes, spillDirectory);
     // Setting the thread count to 2 instead of 1 is a hack, but necessary as publishEventStream
     // blocks one thread permanently and thus we can't do any other work on the executor. A proper
     // fix would be to remove the spinning loop from publishEventStream and instead implement the
@@ -216,7 +227,9 @@ public class BuildEventServiceTransport implements BuildEventTransport {
     uploaderExecutorService.execute(
         () -> {
           try {
-            sendOrderedBuildEvent(besProtoUtil.streamFinished());
+            synchronized (sendLock) {
+              sendOrderedBuildEvent(besProtoUtil.streamFinished());
+            }
 
             if (errorsReported) {
               // If we encountered errors before and have already reported them, then we should
@@ -262,6 +275,8 @@ public class BuildEventServiceTransport implements BuildEventTransport {
   }
 
   private void cancelUpload() {
+    // Releases any thread that is blocked adding an event.
+    uploadQueue.close();
     if (!uploaderExecutorService.isShutdown()) {
       logger.log(Level.INFO, "Forcefully closing the build event service transport.");
       // This will interrupt the thread doing the BES upload.
@@ -285,28 +300,29 @@ public class BuildEventServiceTransport implements BuildEventTransport {
   }
 
   @Override
-  public synchronized void sendBuildEvent(BuildEvent event, final ArtifactGroupNamer namer) {
-    BuildEventStreamProtos.BuildEvent eventProto = event.asStreamProto(
-        new BuildEventConverters() {
-          @Override
-          public PathConverter pathConverter() {
-            return pathConverter;
-          }
-          @Override
-          public ArtifactGroupNamer artifactGroupNamer() {
-            return namer;
-          }
-        });
-    if (PayloadCase.FINISHED.equals(eventProto.getPayloadCase())) {
-      BuildFinished finished = eventProto.getFinished();
-      if (finished.hasExitCode() && finished.getExitCode().getCode() == 0) {
-        invocationResult = COMMAND_SUCCEEDED;
-      } else {
-        invocationResult = COMMAND_FAILED;
+  public void sendBuildEvent(BuildEvent event, final ArtifactGroupNamer namer) {
+    synchronized (sendLock) {
+      BuildEventStreamProtos.BuildEvent eventProto = event.asStreamProto(
+          new BuildEventConverters() {
+            @Override
+            public PathConverter pathConverter() {
+              return pathConverter;
+            }
+            @Override
+            public ArtifactGroupNamer artifactGroupNamer() {
+              return namer;
+            }
+          });
+      if (PayloadCase.FINISHED.equals(eventProto.getPayloadCase())) {
+        BuildFinished finished = eventProto.getFinished();
+        setInvocationResult(
+            finished.hasExitCode() && finished.getExitCode().getCode() == 0
+                ? COMMAND_SUCCEEDED
+                : COMMAND_FAILED);
       }
-    }
 
-    sendOrderedBuildEvent(besProtoUtil.bazelEvent(Any.pack(eventProto)));
+      sendOrderedBuildEvent(besProtoUtil.bazelEvent(Any.pack(eventProto)));
+    }
   }
 
   private String errorMessageFromException(Throwable t) {
@@ -360,17 +376,23 @@ public class BuildEventServiceTransport implements BuildEventTransport {
     }
   }
 
-  private synchronized void sendOrderedBuildEvent(
-      PublishBuildToolEventStreamRequest serialisedEvent) {
-    if (uploadComplete != null && uploadComplete.isDone()) {
-      maybeReportUploadError();
-      return;
+  /** Must be called while holding {@link #sendLock}, to keep the events in order. */
+  private void sendOrderedBuildEvent(PublishBuildToolEventStreamRequest serialisedEvent) {
+    synchronized (this) {
+      if (uploadComplete != null && uploadComplete.isDone()) {
+        maybeReportUploadError();
+        return;
+      }
+      if (uploadComplete == null) {
+        uploadComplete = uploaderExecutorService.submit(new BuildEventServiceUpload());
+      }
     }
+    // Outside of the lock of this object, as this blocks while the upload queue is full.
+    uploadQueue.add(serialisedEvent);
+  }
 
-    pendingSend.add(serialisedEvent);
-    if (uploadComplete == null) {
-      uploadComplete = uploaderExecutorService.submit(new BuildEventServiceUpload());
-    }
+  private synchronized void setInvocationResult(Result result) {
+    invocationResult = result;
   }
 
   private synchronized Result getInvocationResult() {
@@ -394,6 +416,8 @@ public class BuildEventServiceTransport implements BuildEventTransport {
           publishBuildFinishedEvent(result);
         }
       } finally {
+        // Events that are added from now on would never be sent.
+        uploadQueue.close();
         besClient.shutdown();
       }
       return null;
@@ -451,42 +475,37 @@ public class BuildEventServiceTransport implements BuildEventTransport {
 
   /**
    * Used as method reference, responsible for the entire Streaming RPC. Safe to retry. This method
-   * carries over the state between consecutive calls (pendingAck messages will be added to the head
-   * of the pendingSend queue), but that is intended behavior.
+   * carries over the state between consecutive calls (unacked events are sent again before any
+   * other events), but that is intended behavior.
    */
   private void publishEventStream() throws Exception {
-    // Reschedule unacked messages if required, keeping its original order.
-    PublishBuildToolEventStreamRequest unacked;
-    while ((unacked = pendingAck.pollLast()) != null) {
-      pendingSend.addFirst(unacked);
-    }
-    pendingAck = new ConcurrentLinkedDeque<>();
-    publishEventStream(pendingAck, pendingSend, besClient);
+    // Reschedule unacked messages if required, keeping its original order, and ignore ACKs of
+    // previous streams from now on.
+    int generation = uploadQueue.rewind();
+    publishEventStream(generation, besClient);
   }
 
   /** Method responsible for a single Streaming RPC. */
-  private void publishEventStream(
-      final ConcurrentLinkedDeque<PublishBuildToolEventStreamRequest> pendingAck,
-      final BlockingDeque<PublishBuildToolEventStreamRequest> pendingSend,
-      final BuildEventServiceClient besClient)
+  private void publishEventStream(int generation, final BuildEventServiceClient besClient)
       throws Exception {
-    ListenableFuture<Status> streamDone = besClient
-        .openStream(ackCallback(pendingAck, besClient));
+    ListenableFuture<Status> streamDone =
+        besClient.openStream(ackCallback(generation, besClient));
     try {
-      @Nullable PublishBuildToolEventStreamRequest event;
+      boolean lastEventSent = false;
       do {
-        event = pendingSend.pollFirst(STREAMING_RPC_POLL_IN_SECS, TimeUnit.SECONDS);
-        if (event != null) {
-          pendingAck.add(event);
+        for (PublishBuildToolEventStreamRequest event :
+            uploadQueue.takeUnsent(
+                MAX_EVENTS_PER_BATCH, STREAMING_RPC_POLL_IN_SECS, TimeUnit.SECONDS)) {
           besClient.sendOverStream(event);
+          lastEventSent = isLastEvent(event);
         }
         checkState(besClient.isStreamActive(), "Stream was closed prematurely.");
-      } while (!isLastEvent(event));
+      } while (!lastEventSent);
       logger.log(
           Level.INFO,
           String.format(
               "Will end publishEventStream() isLastEvent: %s isStreamActive: %s",
-              isLastEvent(event), besClient.isStreamActive()));
+              lastEventSent, besClient.isStreamActive()));
     } catch (InterruptedException e) {
       // By convention the interrupted flag should have been cleared,
       // but just to be sure clear it.
@@ -526,31 +545,32 @@ public class BuildEventServiceTransport implements BuildEventTransport {
     }
   }
 
-  private static boolean isLastEvent(@Nullable PublishBuildToolEventStreamRequest event) {
+  static boolean isLastEvent(@Nullable PublishBuildToolEventStreamRequest event) {
     return event != null
         && event.getOrderedBuildEvent().getEvent().getEventCase() == COMPONENT_STREAM_FINISHED;
   }
 
   @SuppressWarnings("NonAtomicVolatileUpdate")
   private Function<PublishBuildToolEventStreamResponse, Void> ackCallback(
-      final Deque<PublishBuildToolEventStreamRequest> pendingAck,
-      final BuildEventServiceClient besClient) {
+      final int generation, final BuildEventServiceClient besClient) {
     return ack -> {
-      long pendingSeq =
-          pendingAck.isEmpty()
-              ? -1
-              : pendingAck.peekFirst().getOrderedBuildEvent().getSequenceNumber();
       long ackSeq = ack.getSequenceNumber();
-      if (pendingSeq != ackSeq) {
-        besClient.abortStream(
-            Status.INTERNAL.augmentDescription(
-                format("Expected ACK %s but was %s.", pendingSeq, ackSeq)));
-        return null;
-      }
-      PublishBuildToolEventStreamRequest event = pendingAck.removeFirst();
-      if (isLastEvent(event)) {
-        logger.log(Level.INFO, "Last ACK received.");
-        besClient.closeStream();
+      switch (uploadQueue.acknowledge(generation, ackSeq)) {
+        case STALE:
+          return null;
+        case UNEXPECTED:
+          besClient.abortStream(
+              Status.INTERNAL.augmentDescription(
+                  format(
+                      "Expected ACK %s but was %s.",
+                      uploadQueue.firstUnacknowledgedSequenceNumber(), ackSeq)));
+          return null;
+        case LAST:
+          logger.log(Level.INFO, "Last ACK received.");
+          besClient.closeStream();
+          break;
+        case ACKNOWLEDGED:
+          break;
       }
       acksReceivedSinceLastRetry++;
       return null;
@@ -0,0 +1,501 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.buildeventservice;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.v1.PublishBuildToolEventStreamRequest;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * The events of a build event service upload that have not been acknowledged by the server yet, in
+ * the order in which they have to be sent.
+ *
+ * <p>Events are kept in memory up to a limit. Events beyond it are spilled to files on disk, which
+ * are split into segments so that a segment can be deleted as soon as all of its events have been
+ * acknowledged. Once the disk limit is reached as well, {@link #add} blocks until the server has
+ * acknowledged enough events, which slows down the build instead of letting a slow server exhaust
+ * the memory of the Bazel server.
+ *
+ * <p>Events that have been taken for sending stay in the queue until they are acknowledged, so that
+ * they can be sent again on a new stream after {@link #rewind}. The bytes of events that have been
+ * sent but not acknowledged are limited to the memory limit as well, as the RPC layer keeps its own
+ * copy of them until they are written to the network.
+ *
+ * <p>The spill files are created, written, read and deleted without holding the monitor of the
+ * queue, so that a slow disk does not block the acknowledgements of the server.
+ */
+@ThreadSafe
+final class BuildEventServiceUploadQueue {
+  private static final Logger logger =
+      Logger.getLogger(BuildEventServiceUploadQueue.class.getName());
+
+  /** The maximum size of a spill file. */
+  private static final long MAX_SEGMENT_SIZE = 64L * 1024 * 1024;
+
+  /** The outcome of {@link #acknowledge}. */
+  enum Acknowledgement {
+    /** The acknowledgement belongs to a stream that has been replaced, and was ignored. */
+    STALE,
+    /** The acknowledgement is not for the first unacknowledged event, and was ignored. */
+    UNEXPECTED,
+    /** The first unacknowledged event was removed. */
+    ACKNOWLEDGED,
+    /** The first unacknowledged event was removed, and it was the last event of the stream. */
+    LAST
+  }
+
+  /** An event in the queue. Its request is either in memory or in a segment. */
+  private static final class Entry {
+    final long sequenceNumber;
+    final boolean last;
+    final int size;
+    @Nullable final PublishBuildToolEventStreamRequest request;
+    @Nullable final Segment segment;
+    final long offset;
+
+    Entry(PublishBuildToolEventStreamRequest request, int size) {
+      this.sequenceNumber = request.getOrderedBuildEvent().getSequenceNumber();
+      this.last = BuildEventServiceTransport.isLastEvent(request);
+      this.size = size;
+      this.request = request;
+      this.segment = null;
+      this.offset = 0;
+    }
+
+    Entry(PublishBuildToolEventStreamRequest request, int size, Segment segment, long offset) {
+      this.sequenceNumber = request.getOrderedBuildEvent().getSequenceNumber();
+      this.last = BuildEventServiceTransport.isLastEvent(request);
+      this.size = size;
+      this.request = null;
+      this.segment = segment;
+      this.offset = offset;
+    }
+  }
+
+  /**
+   * A spill file. It is deleted when it is closed. The bookkeeping is guarded by the monitor of the
+   * queue, the channel is not.
+   */
+  private static final class Segment {
+    final FileChannel channel;
+    long size;
+    /** The events in the segment, including one that is still being written. */
+    int liveEntries;
+    boolean closed;
+
+    Segment(FileChannel channel) {
+      this.channel = channel;
+    }
+  }
+
+  private final long maxMemoryBytes;
+  private final long maxDiskBytes;
+  private final long maxSegmentSize;
+  private final Path spillDirectory;
+
+  /**
+   * Held by {@link #add} throughout, so that events are queued in the order in which they are
+   * added even though their spill files are written without holding the monitor.
+   */
+  private final Object addLock = new Object();
+
+  @GuardedBy("this")
+  private final Deque<Entry> sent = new ArrayDeque<>();
+
+  @GuardedBy("this")
+  private final Deque<Entry> unsent = new ArrayDeque<>();
+
+  /** The segment that spilled events are appended to. */
+  @GuardedBy("this")
+  @Nullable
+  private Segment currentSegment;
+
+  @GuardedBy("this")
+  private long memoryBytes;
+
+  @GuardedBy("this")
+  private long diskBytes;
+
+  @GuardedBy("this")
+  private long sentBytes;
+
+  /** Incremented by {@link #rewind}, so that late acknowledgements of old streams are ignored. */
+  @GuardedBy("this")
+  private int generation;
+
+  @GuardedBy("this")
+  private boolean closed;
+
+  /**
+   * @param maxMemoryBytes the number of bytes of events to keep in memory
+   * @param maxDiskBytes the number of bytes of events to spill to disk. If zero, events are never
+   *     spilled
+   * @param spillDirectory the directory to create the spill files in
+   */
+  BuildEventServiceUploadQueue(long maxMemoryBytes, long maxDiskBytes, Path spillDirectory) {
+    checkArgument(maxMemoryBytes > 0, "maxMemoryBytes must be positive");
+    checkArgument(maxDiskBytes >= 0, "maxDiskBytes must not be negative");
+    this.maxMemoryBytes = maxMemoryBytes;
+    this.maxDiskBytes = maxDiskBytes;
+    this.maxSegmentSize = Math.min(MAX_SEGMENT_SIZE, Math.max(1, maxDiskBytes / 4));
+    this.spillDirectory = spillDirectory;
+  }
+
+  /**
+   * Appends an event to the queue, blocking while both the memory and the disk limit are reached.
+   * An event is always accepted if the queue is empty, no matter its size.
+   *
+   * <p>If the calling thread is interrupted while waiting, the event is added regardless and the
+   * interrupt status is restored, as the server would reject a stream with a missing event. Events
+   * added after {@link #close} are dropped.
+   */
+  void add(PublishBuildToolEventStreamRequest request) {
+    synchronized (addLock) {
+      int size = request.getSerializedSize();
+      boolean interrupted = false;
+      List<Segment> segmentsToClose = new ArrayList<>();
+      try {
+        Segment segment;
+        long offset = 0;
+        synchronized (this) {
+          while (!closed && !fitsInMemory(size) && !fitsOnDisk(size) && !isEmpty()) {
+            try {
+              wait();
+            } catch (InterruptedException e) {
+              interrupted = true;
+              break;
+            }
+          }
+          if (closed) {
+            return;
+          }
+          if (fitsInMemory(size) || !fitsOnDisk(size)) {
+            enqueue(new Entry(request, size));
+            return;
+          }
+          diskBytes += size;
+          segment = currentSegment;
+          if (segment != null && segment.size + size > maxSegmentSize) {
+            // The segment is closed once its events have been acknowledged.
+            currentSegment = null;
+            segment = null;
+          }
+          if (segment != null) {
+            offset = reserve(segment, size);
+          }
+        }
+
+        Entry entry = null;
+        try {
+          if (segment == null) {
+            segment = createSegment(size);
+          }
+          write(request, segment, offset);
+          entry = new Entry(request, size, segment, offset);
+        } catch (IOException e) {
+          logger.log(Level.WARNING, "Failed to spill build event to disk", e);
+        }
+
+        synchronized (this) {
+          if (entry == null) {
+            if (segment != null) {
+              releaseFromSegment(segment, segmentsToClose);
+            } else {
+              diskBytes -= size;
+            }
+            entry = new Entry(request, size);
+          }
+          // Events added after close() are dropped, and their spill files were closed by it.
+          if (!closed) {
+            enqueue(entry);
+          }
+        }
+      } finally {
+        closeSegments(segmentsToClose);
+        if (interrupted) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+  }
+
+  /**
+   * Takes up to {@code maxEvents} events that have not been sent yet, in order. Waits for up to the
+   * given time if there are none, or if too many bytes have been sent but not acknowledged yet.
+   * Returns an empty list if the wait timed out.
+   */
+  List<PublishBuildToolEventStreamRequest> takeUnsent(int maxEvents, long timeout, TimeUnit unit)
+      throws IOException, InterruptedException {
+    checkArgument(maxEvents > 0);
+    List<Entry> entries = new ArrayList<>();
+    synchronized (this) {
+      long deadline = System.nanoTime() + unit.toNanos(timeout);
+      long remaining = unit.toNanos(timeout);
+      while (!closed && !canSendNext() && remaining > 0) {
+        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        remaining = deadline - System.nanoTime();
+      }
+      while (!closed && entries.size() < maxEvents && canSendNext()) {
+        Entry entry = unsent.removeFirst();
+        sent.addLast(entry);
+        sentBytes += entry.size;
+        entries.add(entry);
+      }
+    }
+    // The events cannot be acknowledged before they are sent, so their segments stay open unless
+    // the queue is closed.
+    List<PublishBuildToolEventStreamRequest> batch = new ArrayList<>(entries.size());
+    for (Entry entry : entries) {
+      batch.add(read(entry));
+    }
+    return batch;
+  }
+
+  /**
+   * Returns the sequence number of the first event that has been sent but not acknowledged yet, or
+   * -1 if there is none.
+   */
+  synchronized long firstUnacknowledgedSequenceNumber() {
+    Entry entry = sent.peekFirst();
+    return entry != null ? entry.sequenceNumber : -1;
+  }
+
+  /**
+   * Removes the first event that has been sent but not acknowledged yet, if the acknowledgement
+   * with the given sequence number is for it and was received on the stream of the given
+   * generation.
+   */
+  Acknowledgement acknowledge(int streamGeneration, long sequenceNumber) {
+    List<Segment> segmentsToClose = new ArrayList<>();
+    Acknowledgement result;
+    synchronized (this) {
+      if (streamGeneration != generation) {
+        // The stream has been replaced by a new one, which sends the unacked events again.
+        return Acknowledgement.STALE;
+      }
+      Entry entry = sent.peekFirst();
+      if (entry == null || entry.sequenceNumber != sequenceNumber) {
+        return Acknowledgement.UNEXPECTED;
+      }
+      sent.removeFirst();
+      sentBytes -= entry.size;
+      release(entry, segmentsToClose);
+      notifyAll();
+      result = entry.last ? Acknowledgement.LAST : Acknowledgement.ACKNOWLEDGED;
+    }
+    closeSegments(segmentsToClose);
+    return result;
+  }
+
+  /**
+   * Makes all events that have been sent but not acknowledged available to be sent again on a new
+   * stream, and returns the generation of that stream.
+   */
+  synchronized int rewind() {
+    Entry entry;
+    while ((entry = sent.pollLast()) != null) {
+      unsent.addFirst(entry);
+    }
+    sentBytes = 0;
+    notifyAll();
+    return ++generation;
+  }
+
+  /** Drops all events, deletes the spill files and releases all threads blocked in {@link #add}. */
+  void close() {
+    List<Segment> segmentsToClose = new ArrayList<>();
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      for (Entry entry : sent) {
+        release(entry, segmentsToClose);
+      }
+      for (Entry entry : unsent) {
+        release(entry, segmentsToClose);
+      }
+      sent.clear();
+      unsent.clear();
+      sentBytes = 0;
+      if (currentSegment != null) {
+        markClosed(currentSegment, segmentsToClose);
+        currentSegment = null;
+      }
+      notifyAll();
+    }
+    closeSegments(segmentsToClose);
+  }
+
+  @VisibleForTesting
+  synchronized long getMemoryBytes() {
+    return memoryBytes;
+  }
+
+  @VisibleForTesting
+  synchronized long getDiskBytes() {
+    return diskBytes;
+  }
+
+  @GuardedBy("this")
+  private boolean isEmpty() {
+    return sent.isEmpty() && unsent.isEmpty();
+  }
+
+  @GuardedBy("this")
+  private boolean fitsInMemory(int size) {
+    return memoryBytes + size <= maxMemoryBytes;
+  }
+
+  @GuardedBy("this")
+  private boolean fitsOnDisk(int size) {
+    return maxDiskBytes > 0 && diskBytes + size <= maxDiskBytes;
+  }
+
+  @GuardedBy("this")
+  private boolean canSendNext() {
+    Entry next = unsent.peekFirst();
+    return next != null && (sent.isEmpty() || sentBytes + next.size <= maxMemoryBytes);
+  }
+
+  @GuardedBy("this")
+  private void enqueue(Entry entry) {
+    if (entry.segment == null) {
+      memoryBytes += entry.size;
+    }
+    unsent.addLast(entry);
+    notifyAll();
+  }
+
+  /**
+   * Reserves space for an event of the given size at the end of the given segment, which keeps the
+   * segment open until the event is released, and returns its offset.
+   */
+  @GuardedBy("this")
+  private long reserve(Segment segment, int size) {
+    long offset = segment.size;
+    segment.size += size;
+    segment.liveEntries++;
+    return offset;
+  }
+
+  /**
+   * Creates a new spill file, makes it the current segment and reserves space for an event of the
+   * given size at its start.
+   */
+  private Segment createSegment(int size) throws IOException {
+    Path file = Files.createTempFile(spillDirectory, "bes-", ".spill");
+    Segment segment =
+        new Segment(
+            FileChannel.open(
+                file,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE));
+    synchronized (this) {
+      if (!closed) {
+        currentSegment = segment;
+        reserve(segment, size);
+        return segment;
+      }
+    }
+    segment.channel.close();
+    throw new IOException("Build event upload queue was closed");
+  }
+
+  private static void write(
+      PublishBuildToolEventStreamRequest request, Segment segment, long offset)
+      throws IOException {
+    ByteBuffer data = ByteBuffer.wrap(request.toByteArray());
+    while (data.hasRemaining()) {
+      segment.channel.write(data, offset + data.position());
+    }
+  }
+
+  /** Reads the given event, from its spill file if it was spilled. */
+  private static PublishBuildToolEventStreamRequest read(Entry entry) throws IOException {
+    if (entry.request != null) {
+      return entry.request;
+    }
+    ByteBuffer data = ByteBuffer.allocate(entry.size);
+    while (data.hasRemaining()) {
+      if (entry.segment.channel.read(data, entry.offset + data.position()) < 0) {
+        throw new IOException("Unexpected end of build event spill file");
+      }
+    }
+    data.flip();
+    return PublishBuildToolEventStreamRequest.parseFrom(data);
+  }
+
+  @GuardedBy("this")
+  private void release(Entry entry, List<Segment> segmentsToClose) {
+    if (entry.segment == null) {
+      memoryBytes -= entry.size;
+    } else {
+      releaseFromSegment(entry.segment, segmentsToClose);
+    }
+  }
+
+  @GuardedBy("this")
+  private void releaseFromSegment(Segment segment, List<Segment> segmentsToClose) {
+    segment.liveEntries--;
+    if (segment.liveEntries == 0) {
+      // All events that were written to the segment have been acknowledged.
+      markClosed(segment, segmentsToClose);
+      if (segment == currentSegment) {
+        currentSegment = null;
+      }
+    }
+  }
+
+  /** Stops accounting for the given segment. The caller must close it after leaving the monitor. */
+  @GuardedBy("this")
+  private void markClosed(Segment segment, List<Segment> segmentsToClose) {
+    if (segment.closed) {
+      return;
+    }
+    segment.closed = true;
+    diskBytes -= segment.size;
+    segmentsToClose.add(segment);
+  }
+
+  private static void closeSegments(List<Segment> segments) {
+    for (Segment segment : segments) {
+      try {
+        segment.channel.close();
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Failed to delete build event spill file", e);
+      }
+    }
+  }
+}
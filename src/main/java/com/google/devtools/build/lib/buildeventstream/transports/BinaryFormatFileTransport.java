@@ -14,19 +14,12 @@
 
 package com.google.devtools.build.lib.buildeventstream.transports;
 
-import static com.google.common.base.Preconditions.checkNotNull;
-
-import com.google.devtools.build.lib.buildeventstream.ArtifactGroupNamer;
 import com.google.devtools.build.lib.buildeventstream.BuildEvent;
-import com.google.devtools.build.lib.buildeventstream.BuildEventConverters;
 import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos;
 import com.google.devtools.build.lib.buildeventstream.BuildEventTransport;
 import com.google.devtools.build.lib.buildeventstream.PathConverter;
-import java.io.ByteArrayOutputStream;
+import com.google.protobuf.CodedOutputStream;
 import java.io.IOException;
-import java.util.concurrent.Future;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 
 /**
  * A simple {@link BuildEventTransport} that writes a varint delimited binary representation of
@@ -34,47 +27,30 @@ import java.util.logging.Logger;
  */
 public final class BinaryFormatFileTransport extends FileTransport {
 
-  private static final Logger logger = Logger.getLogger(BinaryFormatFileTransport.class.getName());
-
-  private static final int MAX_VARINT_BYTES = 9;
-  private final PathConverter pathConverter;
-
   BinaryFormatFileTransport(String path, PathConverter pathConverter) {
-    super(path);
-    this.pathConverter = pathConverter;
+    // Binary serialization is cheaper than handing the event to another thread.
+    super(path, pathConverter, 0);
+  }
+
+  BinaryFormatFileTransport(String path, PathConverter pathConverter, int serializerThreads) {
+    super(path, pathConverter, serializerThreads);
   }
 
   @Override
   public String name() {
     return this.getClass().getSimpleName();
   }
-  
-  @Override
-  public synchronized void sendBuildEvent(BuildEvent event, final ArtifactGroupNamer namer) {
-    BuildEventConverters converters =
-        new BuildEventConverters() {
-          @Override
-          public PathConverter pathConverter() {
-            return pathConverter;
-          }
-          @Override
-          public ArtifactGroupNamer artifactGroupNamer() {
-            return namer;
-          }
-        };
-    checkNotNull(event);
-    BuildEventStreamProtos.BuildEvent protoEvent = event.asStreamProto(converters);
 
-    int maxSerializedSize = MAX_VARINT_BYTES + protoEvent.getSerializedSize();
-    ByteArrayOutputStream out = new ByteArrayOutputStream(maxSerializedSize);
-
-    try {
-      protoEvent.writeDelimitedTo(out);
-      writeData(out.toByteArray());
-    } catch (IOException e) {
-      logger.log(Level.SEVERE, e.getMessage(), e);
-      @SuppressWarnings({"unused", "nullness"})
-      Future<?> possiblyIgnoredError = close();
-    }
+  @Override
+  byte[] serializeEvent(BuildEventStreamProtos.BuildEvent protoEvent) throws IOException {
+    // The same framing as writeDelimitedTo, but serialized straight into an array of the exact
+    // size.
+    int size = protoEvent.getSerializedSize();
+    byte[] data = new byte[CodedOutputStream.computeUInt32SizeNoTag(size) + size];
+    CodedOutputStream out = CodedOutputStream.newInstance(data);
+    out.writeUInt32NoTag(size);
+    protoEvent.writeTo(out);
+    out.checkNoSpaceLeft();
+    return data;
   }
 }
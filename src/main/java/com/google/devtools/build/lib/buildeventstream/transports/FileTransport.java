@@ -15,61 +15,124 @@
 package com.google.devtools.build.lib.buildeventstream.transports;
 
 import static com.google.common.base.Preconditions.checkNotNull;
-import static com.google.common.base.Preconditions.checkState;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.devtools.build.lib.buildeventstream.ArtifactGroupNamer;
+import com.google.devtools.build.lib.buildeventstream.BuildEvent;
+import com.google.devtools.build.lib.buildeventstream.BuildEventConverters;
+import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos;
 import com.google.devtools.build.lib.buildeventstream.BuildEventTransport;
+import com.google.devtools.build.lib.buildeventstream.PathConverter;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.AsynchronousFileChannel;
-import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.annotation.concurrent.GuardedBy;
 
 /**
  * Non-blocking file transport.
  *
- * <p>Implementors of this class need to implement {@code #sendBuildEvent(BuildEvent)} which
- * serializes the build event and writes it to file using {@link #writeData(byte[])}.
+ * <p>Implementors of this class need to implement {@link #serializeEvent} which returns the bytes
+ * that represent a build event in the file.
  */
 abstract class FileTransport implements BuildEventTransport {
 
   /**
-   * We use an {@link AsynchronousFileChannel} to perform non-blocking writes to a file. It get's
-   * tricky when it comes to {@link #close()}, as we may only complete the returned future when all
-   * writes have completed (succeeded or failed). Thus, we use a field {@link #outstandingWrites} to
-   * keep track of the number of writes that have not completed yet. It's simply incremented before
-   * a new write and decremented after a write has completed. When it's {@code 0} it's safe to
-   * complete the close future.
+   * Events are converted to their protocol buffer representation on the calling thread, and then
+   * serialized on a pool of threads, as serialization, in particular to text formats, can be
+   * expensive for large builds. A single writer thread takes the serialized events from a queue in
+   * the order in which they were sent, so the order of the events in the file is the one of the
+   * calls to {@link #sendBuildEvent}. The writer collects consecutive events in a reused buffer and
+   * only writes it out once it is full or the queue is empty.
+   *
+   * <p>{@link #close()} hands the closing of the file to the writer thread, so that the returned
+   * future is only completed after all events sent before have been written (or failed to).
    */
   private static final Logger logger = Logger.getLogger(FileTransport.class.getName());
 
+  /** The size of the buffer in which consecutive events are collected before being written. */
+  @VisibleForTesting static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
   @VisibleForTesting
-  final AsynchronousFileChannel ch;
-  private final WriteCompletionHandler completionHandler = new WriteCompletionHandler();
-  // The offset in the file to begin the next write at.
-  private long writeOffset;
-  // Number of writes that haven't completed yet.
-  private long outstandingWrites;
+  final FileChannel ch;
+  private final PathConverter pathConverter;
+  private final ListeningExecutorService serializer;
+  private final ExecutorService writer;
+
+  // Events that have been sent but not yet taken up by the writer thread, in order.
+  @GuardedBy("this")
+  private final Deque<ListenableFuture<byte[]>> pendingWrites = new ArrayDeque<>();
+  // Whether the writer thread has been asked to drain pendingWrites and hasn't finished yet.
+  @GuardedBy("this")
+  private boolean writerScheduled;
+
+  // Only accessed by the writer thread.
+  private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+  // Set by the writer thread once a write has failed.
+  private boolean failed;
+
   // The future returned by close()
+  @GuardedBy("this")
   private SettableFuture<Void> closeFuture;
 
-  FileTransport(String path) {
+  FileTransport(String path, PathConverter pathConverter) {
+    this(path, pathConverter, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * @param serializerThreads the number of threads to serialize events on. If zero, events are
+   *     serialized on the calling thread
+   */
+  FileTransport(String path, PathConverter pathConverter, int serializerThreads) {
     try {
-      ch = AsynchronousFileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
+      ch = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
           StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
+    this.pathConverter = pathConverter;
+    this.serializer =
+        serializerThreads > 0
+            ? MoreExecutors.listeningDecorator(
+                Executors.newFixedThreadPool(
+                    serializerThreads,
+                    new ThreadFactoryBuilder()
+                        .setNameFormat("build-event-file-serializer-%d")
+                        .setDaemon(true)
+                        .build()))
+            : MoreExecutors.newDirectExecutorService();
+    this.writer =
+        Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder()
+                .setNameFormat("build-event-file-writer-%d")
+                .setDaemon(true)
+                .build());
   }
 
-  synchronized void writeData(byte[] data) {
-    checkNotNull(data);
+  /**
+   * Returns the bytes that represent the given event in the file, including any framing. May be
+   * called concurrently for different events.
+   */
+  abstract byte[] serializeEvent(BuildEventStreamProtos.BuildEvent protoEvent) throws IOException;
+
+  @Override
+  public synchronized void sendBuildEvent(BuildEvent event, final ArtifactGroupNamer namer) {
+    checkNotNull(event);
     if (!ch.isOpen()) {
       @SuppressWarnings({"unused", "nullness"})
       Future<?> possiblyIgnoredError = close();
@@ -79,11 +142,24 @@ abstract class FileTransport implements BuildEventTransport {
       return;
     }
 
-    outstandingWrites++;
+    BuildEventConverters converters =
+        new BuildEventConverters() {
+          @Override
+          public PathConverter pathConverter() {
+            return pathConverter;
+          }
 
-    ch.write(ByteBuffer.wrap(data), writeOffset, null, completionHandler);
-
-    writeOffset += data.length;
+          @Override
+          public ArtifactGroupNamer artifactGroupNamer() {
+            return namer;
+          }
+        };
+    BuildEventStreamProtos.BuildEvent protoEvent = event.asStreamProto(converters);
+    pendingWrites.add(serializer.submit(() -> serializeEvent(protoEvent)));
+    if (!writerScheduled) {
+      writerScheduled = true;
+      writer.execute(this::drainPendingWrites);
+    }
   }
 
   @Override
@@ -91,24 +167,11 @@ abstract class FileTransport implements BuildEventTransport {
     if (closing()) {
       return closeFuture;
     }
-    closeFuture = SettableFuture.create();
-
-    if (writesComplete()) {
-      doClose();
-    }
-
-    return closeFuture;
-  }
-
-  private void doClose() {
-    try {
-      ch.force(true);
-      ch.close();
-    } catch (IOException e) {
-      logger.log(Level.SEVERE, e.getMessage(), e);
-    } finally {
-      closeFuture.set(null);
-    }
+    SettableFuture<Void> future = SettableFuture.create();
+    closeFuture = future;
+    writer.execute(() -> doClose(future));
+    writer.shutdown();
+    return future;
   }
 
   @Override
@@ -117,43 +180,92 @@ abstract class FileTransport implements BuildEventTransport {
     close();
   }
 
+  @GuardedBy("this")
   private boolean closing() {
     return closeFuture != null;
   }
 
-  private boolean writesComplete() {
-    return outstandingWrites == 0;
-  }
-
-  /**
-   * Handler that's notified when a write completes.
-   */
-  private final class WriteCompletionHandler implements CompletionHandler<Integer, Void> {
-
-    @Override
-    public void completed(Integer result, Void attachment) {
-      countWriteAndTryClose();
-    }
-
-    @Override
-    public void failed(Throwable exc, Void attachment) {
-      logger.log(Level.SEVERE, exc.getMessage(), exc);
-      countWriteAndTryClose();
+  /** Runs on the writer thread. */
+  private void drainPendingWrites() {
+    try {
+      while (true) {
+        ListenableFuture<byte[]> serialized;
+        synchronized (this) {
+          serialized = pendingWrites.poll();
+          if (serialized == null) {
+            writerScheduled = false;
+            break;
+          }
+        }
+        if (!serialized.isDone()) {
+          // Don't hold back what has been collected while waiting for the serializer.
+          flush();
+        }
+        write(serialized);
+      }
+      flush();
+    } catch (IOException e) {
+      logger.log(Level.SEVERE, e.getMessage(), e);
+      failed = true;
       // There is no point in trying to continue. Close the transport.
       @SuppressWarnings({"unused", "nullness"})
       Future<?> possiblyIgnoredError = close();
     }
+  }
 
-    private void countWriteAndTryClose() {
-      synchronized (FileTransport.this) {
-        checkState(outstandingWrites > 0);
-
-        outstandingWrites--;
+  private void write(ListenableFuture<byte[]> serialized) throws IOException {
+    byte[] data;
+    try {
+      data = Uninterruptibles.getUninterruptibly(serialized);
+    } catch (ExecutionException e) {
+      logger.log(Level.SEVERE, e.getCause().getMessage(), e.getCause());
+      return;
+    }
+    if (failed) {
+      return;
+    }
+    if (data.length > writeBuffer.remaining()) {
+      flush();
+    }
+    if (data.length > writeBuffer.capacity()) {
+      writeFully(ByteBuffer.wrap(data));
+    } else {
+      writeBuffer.put(data);
+    }
+  }
 
-        if (closing() && writesComplete()) {
-          doClose();
-        }
+  /** Runs on the writer thread after all writes. */
+  private void doClose(SettableFuture<Void> future) {
+    try {
+      if (!failed) {
+        flush();
+      }
+      ch.force(true);
+    } catch (IOException e) {
+      logger.log(Level.SEVERE, e.getMessage(), e);
+    } finally {
+      try {
+        ch.close();
+      } catch (IOException e) {
+        logger.log(Level.SEVERE, e.getMessage(), e);
       }
+      serializer.shutdown();
+      future.set(null);
+    }
+  }
+
+  private void flush() throws IOException {
+    writeBuffer.flip();
+    try {
+      writeFully(writeBuffer);
+    } finally {
+      writeBuffer.clear();
+    }
+  }
+
+  private void writeFully(ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      ch.write(buffer);
     }
   }
 }
@@ -14,12 +14,9 @@
 
 package com.google.devtools.build.lib.buildeventstream.transports;
 
-import com.google.devtools.build.lib.buildeventstream.ArtifactGroupNamer;
-import com.google.devtools.build.lib.buildeventstream.BuildEvent;
-import com.google.devtools.build.lib.buildeventstream.BuildEventConverters;
+import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos;
 import com.google.devtools.build.lib.buildeventstream.BuildEventTransport;
 import com.google.devtools.build.lib.buildeventstream.PathConverter;
-import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.util.JsonFormat;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
@@ -27,14 +24,21 @@ import java.nio.charset.StandardCharsets;
 /**
  * A simple {@link BuildEventTransport} that writes the JSON representation of the protocol-buffer
  * representation of the events to a file.
+ *
+ * <p>Each event is written on a line of its own, as the JSON representation never contains
+ * newlines.
  */
 public final class JsonFormatFileTransport extends FileTransport {
 
-  private final PathConverter pathConverter;
+  private static final JsonFormat.Printer PRINTER =
+      JsonFormat.printer().omittingInsignificantWhitespace();
 
   JsonFormatFileTransport(String path, PathConverter pathConverter) throws IOException {
-    super(path);
-    this.pathConverter = pathConverter;
+    super(path, pathConverter);
+  }
+
+  JsonFormatFileTransport(String path, PathConverter pathConverter, int serializerThreads) {
+    super(path, pathConverter, serializerThreads);
   }
 
   @Override
@@ -43,32 +47,18 @@ public final class JsonFormatFileTransport extends FileTransport {
   }
 
   @Override
-  public synchronized void sendBuildEvent(BuildEvent event, final ArtifactGroupNamer namer) {
-    BuildEventConverters converters =
-        new BuildEventConverters() {
-          @Override
-          public PathConverter pathConverter() {
-            return pathConverter;
-          }
-
-          @Override
-          public ArtifactGroupNamer artifactGroupNamer() {
-            return namer;
-          }
-        };
-    String protoJsonRepresentation;
+  byte[] serializeEvent(BuildEventStreamProtos.BuildEvent protoEvent) {
+    StringBuilder protoJsonRepresentation = new StringBuilder();
     try {
-      protoJsonRepresentation =
-          JsonFormat.printer()
-                  .omittingInsignificantWhitespace()
-                  .print(event.asStreamProto(converters))
-              + "\n";
-    } catch (InvalidProtocolBufferException e) {
+      PRINTER.appendTo(protoEvent, protoJsonRepresentation);
+    } catch (IOException e) {
       // We don't expect any unknown Any fields in our protocol buffer. Nevertheless, handle
       // the exception gracefully and, at least, return valid JSON with an id field.
-      protoJsonRepresentation =
-          "{\"id\" : \"unknown\", \"exception\" : \"InvalidProtocolBufferException\"}\n";
+      protoJsonRepresentation.setLength(0);
+      protoJsonRepresentation.append(
+          "{\"id\" : \"unknown\", \"exception\" : \"InvalidProtocolBufferException\"}");
     }
-    writeData(protoJsonRepresentation.getBytes(StandardCharsets.UTF_8));
+    protoJsonRepresentation.append('\n');
+    return protoJsonRepresentation.toString().getBytes(StandardCharsets.UTF_8);
   }
 }
@@ -14,9 +14,7 @@
 
 package com.google.devtools.build.lib.buildeventstream.transports;
 
-import com.google.devtools.build.lib.buildeventstream.ArtifactGroupNamer;
-import com.google.devtools.build.lib.buildeventstream.BuildEvent;
-import com.google.devtools.build.lib.buildeventstream.BuildEventConverters;
+import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos;
 import com.google.devtools.build.lib.buildeventstream.BuildEventTransport;
 import com.google.devtools.build.lib.buildeventstream.PathConverter;
 import com.google.protobuf.TextFormat;
@@ -31,11 +29,12 @@ import java.nio.charset.StandardCharsets;
  */
 public final class TextFormatFileTransport extends FileTransport {
 
-  private final PathConverter pathConverter;
-
   TextFormatFileTransport(String path, PathConverter pathConverter) throws IOException {
-    super(path);
-    this.pathConverter = pathConverter;
+    super(path, pathConverter);
+  }
+
+  TextFormatFileTransport(String path, PathConverter pathConverter, int serializerThreads) {
+    super(path, pathConverter, serializerThreads);
   }
 
   @Override
@@ -44,21 +43,10 @@ public final class TextFormatFileTransport extends FileTransport {
   }
 
   @Override
-  public synchronized void sendBuildEvent(BuildEvent event, final ArtifactGroupNamer namer) {
-    BuildEventConverters converters =
-        new BuildEventConverters() {
-          @Override
-          public PathConverter pathConverter() {
-            return pathConverter;
-          }
-
-          @Override
-          public ArtifactGroupNamer artifactGroupNamer() {
-            return namer;
-          }
-        };
-    String protoTextRepresentation = TextFormat.printToString(event.asStreamProto(converters));
-    String line = "event {\n" + protoTextRepresentation + "}\n\n";
-    writeData(line.getBytes(StandardCharsets.UTF_8));
+  byte[] serializeEvent(BuildEventStreamProtos.BuildEvent protoEvent) throws IOException {
+    StringBuilder line = new StringBuilder("event {\n");
+    TextFormat.print(protoEvent, line);
+    line.append("}\n\n");
+    return line.toString().getBytes(StandardCharsets.UTF_8);
   }
 }
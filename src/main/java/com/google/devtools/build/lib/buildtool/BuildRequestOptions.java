@@ -404,6 +404,23 @@ public class BuildRequestOptions extends OptionsBase {
   )
   public boolean useActionCache;
 
+  @Option(
+    name = "experimental_mapped_action_cache",
+    defaultValue = "false",
+    documentationCategory = OptionDocumentationCategory.BUILD_TIME_OPTIMIZATION,
+    effectTags = {
+      OptionEffectTag.BAZEL_INTERNAL_CONFIGURATION,
+      OptionEffectTag.HOST_MACHINE_RESOURCE_OPTIMIZATIONS
+    },
+    help =
+        "If true, the action cache is stored in memory-mapped files outside of the Java heap "
+            + "instead of being loaded into memory. The two formats are stored in separate files: "
+            + "switching this flag starts from the action cache last saved in the other format, or "
+            + "from an empty one, which may cause a full rebuild. The files of the format not in "
+            + "use are left on disk unused."
+  )
+  public boolean mappedActionCache;
+
   @Option(
     name = "keep_incrementality_data",
     defaultValue = "true",
@@ -417,6 +434,19 @@ public class BuildRequestOptions extends OptionsBase {
   )
   public boolean keepIncrementalityData;
 
+  @Option(
+    name = "experimental_compact_skyframe_edges",
+    defaultValue = "false",
+    documentationCategory = OptionDocumentationCategory.BUILD_TIME_OPTIMIZATION,
+    effectTags = {OptionEffectTag.LOSES_INCREMENTAL_STATE},
+    metadataTags = {OptionMetadataTag.EXPERIMENTAL},
+    help =
+        "If true, the dependency edges of evaluated Skyframe nodes are stored as integer ids, "
+            + "which saves memory at some cost to incremental invalidation. Changing this option "
+            + "discards the Skyframe graph."
+  )
+  public boolean compactSkyframeEdges;
+
   /** Converter for jobs: [0, MAX_JOBS] or "auto". */
   public static class JobsConverter extends RangeConverter {
     /**
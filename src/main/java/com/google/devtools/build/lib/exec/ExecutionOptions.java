@@ -292,6 +292,19 @@ public class ExecutionOptions extends OptionsBase {
   )
   public long cacheSizeForComputedFileDigests;
 
+  @Option(
+    name = "experimental_persistent_file_digest_cache",
+    defaultValue = "false",
+    documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
+    effectTags = {OptionEffectTag.UNKNOWN},
+    help =
+        "If true and --cache_computed_file_digests is greater than 0, computed file digests are "
+            + "also kept in a memory-mapped file in the output base, so that they survive server "
+            + "restarts. The file holds about as many digests as --cache_computed_file_digests, "
+            + "and its hit and miss counts are reported at the end of each build."
+  )
+  public boolean persistentFileDigestCache;
+
   @Option(
     name = "experimental_enable_critical_path_profiling",
     defaultValue = "true",
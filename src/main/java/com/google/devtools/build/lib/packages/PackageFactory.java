@@ -1412,9 +1412,7 @@ public final class PackageFactory {
     }
 
     Globber globber = createLegacyGlobber(buildFile.getParentDirectory(), packageId, locator);
-    ParserInputSource input =
-        ParserInputSource.create(
-            FileSystemUtils.convertFromLatin1(buildFileBytes), buildFile.asFragment());
+    ParserInputSource input = ParserInputSource.create(buildFileBytes, buildFile.asFragment());
 
     Package result =
         createPackage(
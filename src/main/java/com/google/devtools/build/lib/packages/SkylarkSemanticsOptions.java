@@ -59,6 +59,18 @@ public class SkylarkSemanticsOptions extends OptionsBase implements Serializable
 
   // <== Add new options here in alphabetic order ==>
 
+  @Option(
+    name = "experimental_skylark_local_slots",
+    defaultValue = "false",
+    category = "experimental",
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.LOADING_AND_ANALYSIS},
+    help =
+        "If set to true, the local variables of Skylark functions are resolved to slots when the "
+            + "function is defined, and are stored in an array instead of a map while it runs."
+  )
+  public boolean experimentalSkylarkLocalSlots;
+
   @Option(
     name = "incompatible_bzl_disallow_load_after_statement",
     defaultValue = "false",
@@ -236,6 +248,7 @@ public class SkylarkSemanticsOptions extends OptionsBase implements Serializable
   public SkylarkSemantics toSkylarkSemantics() {
     return SkylarkSemantics.builder()
         // <== Add new options here in alphabetic order ==>
+        .experimentalSkylarkLocalSlots(experimentalSkylarkLocalSlots)
         .incompatibleBzlDisallowLoadAfterStatement(incompatibleBzlDisallowLoadAfterStatement)
         .incompatibleCheckedArithmetic(incompatibleCheckedArithmetic)
         .incompatibleComprehensionVariablesDoNotLeak(incompatibleComprehensionVariablesDoNotLeak)
@@ -148,6 +148,18 @@ public class PackageCacheOptions extends OptionsBase {
   )
   public int maxDirectoriesToEagerlyVisitInGlobbing;
 
+  @Option(
+    name = "experimental_persistent_ast_cache",
+    defaultValue = "false",
+    documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
+    effectTags = {OptionEffectTag.LOADING_AND_ANALYSIS},
+    help =
+        "If enabled, the syntax trees of BUILD and .bzl files are kept in a content-addressed "
+            + "cache in the output base, so that files which did not change are not parsed and "
+            + "validated again after a server restart."
+  )
+  public boolean persistentAstCache;
+
   @Option(
     name = "fetch",
     defaultValue = "true",
@@ -19,32 +19,41 @@ import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.MapMaker;
 import com.google.devtools.build.lib.clock.Clock;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadCompatible;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
 import com.google.devtools.build.lib.profiler.PredicateBasedStatRecorder.RecorderAndPredicate;
 import com.google.devtools.build.lib.profiler.StatRecorder.VfsHeuristics;
 import com.google.devtools.build.lib.util.VarInt;
+import com.google.gson.stream.JsonWriter;
 import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.IdentityHashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.PriorityQueue;
 import java.util.Queue;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Blaze internal profiler. Provides facility to report various Blaze tasks and store them
@@ -52,8 +61,13 @@ import java.util.zip.DeflaterOutputStream;
  *
  * <p>Implemented as singleton so any caller should use Profiler.instance() to obtain reference.
  *
- * <p>Internally, profiler uses two data structures - ThreadLocal task stack to track nested tasks
- * and single ConcurrentLinkedQueue to gather all completed tasks.
+ * <p>Internally, profiler uses two per-thread data structures - a ThreadLocal task stack to track
+ * nested tasks and a bounded, lock-free ring buffer to gather completed tasks. The buffers are
+ * drained to the output stream periodically, and by the recording thread itself whenever its
+ * buffer is full, so the profiler never holds more than a fixed number of tasks per thread.
+ *
+ * <p>Tasks are written either in the binary format described below, which is read by {@code
+ * analyze-profile}, or in the Chrome trace event JSON format (see {@link Format}).
  *
  * <p>Also, due to the nature of the provided functionality (instrumentation of all Blaze
  * components), build.lib.profiler package will be used by almost every other Blaze package, so
@@ -134,6 +148,22 @@ public final class Profiler {
   // separate thread every SAVE_DELAY ms.
   private static final int SAVE_DELAY = 2000; // ms
 
+  // Number of completed tasks each thread may hold before it writes them out itself. Must be a
+  // power of two.
+  private static final int TASK_BUFFER_SIZE = 1 << 12;
+
+  /** File formats the profiler can write. */
+  public enum Format {
+    /** The binary format described above, read by {@code analyze-profile}. */
+    BINARY_BAZEL_FORMAT,
+    /**
+     * A gzip-compressed JSON array of Chrome trace events, which can be loaded into
+     * chrome://tracing. The events are written incrementally, and the array is closed when the
+     * profiler stops.
+     */
+    JSON_TRACE_FILE_FORMAT
+  }
+
   /**
    * The profiler (a static singleton instance). Inactive by default.
    */
@@ -188,6 +218,7 @@ public final class Profiler {
   @ThreadCompatible
   private final class TaskData {
     final long threadId;
+    final String threadName;
     final long startTime;
     long duration = 0L;
     final int id;
@@ -200,6 +231,7 @@ public final class Profiler {
     TaskData(long startTime, TaskData parent,
              ProfilerTask eventType, Object object) {
       threadId = Thread.currentThread().getId();
+      threadName = Thread.currentThread().getName();
       counts = null;
       durations = null;
       id = taskId.incrementAndGet();
@@ -296,7 +328,12 @@ public final class Profiler {
    */
   @ThreadCompatible
   private static final class ObjectDescriber {
-    private Map<Object, Integer> descMap = new IdentityHashMap<>(2000);
+    // Weakly keyed by identity, so that the profiler does not keep every described object alive
+    // until the end of the build. An index is never assigned twice within a profile, and an
+    // object keeps its index for as long as it is alive, which analyze-profile relies on to
+    // relate the tasks of one action.
+    private final Map<Object, Integer> descMap =
+        new MapMaker().initialCapacity(2000).weakKeys().makeMap();
     private int indexCounter = 0;
 
     ObjectDescriber() { }
@@ -328,6 +365,219 @@ public final class Profiler {
     }
   }
 
+  /**
+   * Single-producer, single-consumer ring buffer of completed tasks. The producer is the thread
+   * that owns the buffer; the consumer is whichever thread holds the Profiler lock in {@link
+   * #save}.
+   */
+  @ThreadSafe
+  private static final class TaskBuffer {
+    private final Thread owner = Thread.currentThread();
+    private final TaskData[] slots = new TaskData[TASK_BUFFER_SIZE];
+    // Index of the next slot to read. Only written by the consumer.
+    private final AtomicLong head = new AtomicLong();
+    // Index of the next slot to write. Only written by the producer.
+    private final AtomicLong tail = new AtomicLong();
+
+    /** Adds a task, or returns false if the buffer is full. Only called by the owner thread. */
+    boolean offer(TaskData data) {
+      long currentTail = tail.get();
+      if (currentTail - head.get() == slots.length) {
+        return false;
+      }
+      slots[(int) currentTail & (slots.length - 1)] = data;
+      tail.lazySet(currentTail + 1);
+      return true;
+    }
+
+    /** Removes the oldest task, or returns null if the buffer is empty. */
+    TaskData poll() {
+      long currentHead = head.get();
+      if (currentHead == tail.get()) {
+        return null;
+      }
+      int index = (int) currentHead & (slots.length - 1);
+      TaskData data = slots[index];
+      slots[index] = null;
+      head.lazySet(currentHead + 1);
+      return data;
+    }
+
+    boolean isAbandoned() {
+      return !owner.isAlive() && head.get() == tail.get();
+    }
+  }
+
+  /** Creates and registers the task buffer of each thread for one profiling session. */
+  @ThreadSafe
+  private static final class TaskBuffers extends ThreadLocal<TaskBuffer> {
+    private final Queue<TaskBuffer> all = new ConcurrentLinkedQueue<>();
+
+    @Override
+    protected TaskBuffer initialValue() {
+      TaskBuffer buffer = new TaskBuffer();
+      all.add(buffer);
+      return buffer;
+    }
+  }
+
+  /** Writes completed tasks to the profile output stream in one of the {@link Format}s. */
+  private interface TaskWriter {
+    void writeTask(TaskData data) throws IOException;
+
+    void flush() throws IOException;
+
+    /** Writes any trailer and closes the underlying stream. */
+    void close() throws IOException;
+  }
+
+  /** Writes the binary format described in the class comment. */
+  @ThreadCompatible
+  private final class BinaryFormatWriter implements TaskWriter {
+    private final DataOutputStream out;
+    private final ObjectDescriber describer = new ObjectDescriber();
+    // Allocate the sink once to avoid GC
+    private final ByteBuffer sink = ByteBuffer.allocate(1024);
+
+    BinaryFormatWriter(OutputStream stream, String comment) throws IOException {
+      // Wrapping deflater stream in the buffered stream proved to reduce CPU consumption caused by
+      // the save() method. Values for buffer sizes were chosen by running small amount of tests
+      // and identifying point of diminishing returns - but I have not really tried to optimize
+      // them.
+      this.out = new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(
+          stream, new Deflater(Deflater.BEST_SPEED, false), 65536), 262144));
+
+      this.out.writeInt(MAGIC); // magic
+      this.out.writeInt(VERSION); // protocol_version
+      this.out.writeUTF(comment);
+      // ProfileTask.values() method sorts enums using their ordinal() value, so
+      // there there is no need to store ordinal() value for each entry.
+      this.out.writeInt(TASK_COUNT);
+      for (ProfilerTask type : ProfilerTask.values()) {
+        this.out.writeUTF(type.toString());
+      }
+    }
+
+    @Override
+    public void writeTask(TaskData data) throws IOException {
+      sink.clear();
+      VarInt.putVarLong(data.threadId, sink);
+      VarInt.putVarInt(data.id, sink);
+      VarInt.putVarInt(data.parentId, sink);
+      VarInt.putVarLong(data.startTime - profileStartTime, sink);
+      VarInt.putVarLong(data.duration, sink);
+
+      // To save space (and improve performance), convert all description
+      // strings to the canonical object and use a weak identity map to assign
+      // unique numbers for each string.
+      int descIndex = describer.getDescriptionIndex(data.object);
+      VarInt.putVarInt(descIndex + 1, sink); // Add 1 to avoid encoding negative values.
+
+      // Save types using their ordinal() value
+      sink.put((byte) data.type.ordinal());
+
+      // Save aggregated data stats.
+      if (data.counts != null) {
+        for (int i = 0; i < TASK_COUNT; i++) {
+          if (data.counts[i] > 0) {
+            sink.put((byte) i); // aggregated type ordinal value
+            VarInt.putVarInt(data.counts[i], sink);
+            VarInt.putVarLong(data.durations[i], sink);
+          }
+        }
+      }
+
+      out.writeInt(sink.position());
+      out.write(sink.array(), 0, sink.position());
+      if (describer.isUnassigned(descIndex)) {
+        out.writeUTF(describer.getDescription(data.object));
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.writeInt(EOF_MARKER);
+      out.close();
+    }
+  }
+
+  /**
+   * Writes tasks as complete ("X") events of the Chrome trace event format, with times in
+   * microseconds since the start of the profile. Subtask statistics aggregated into a task are
+   * written as its args.
+   */
+  @ThreadCompatible
+  private final class JsonTraceFileWriter implements TaskWriter {
+    private final JsonWriter writer;
+    private final Set<Long> namedThreads = new HashSet<>();
+
+    JsonTraceFileWriter(OutputStream stream, String comment) throws IOException {
+      this.writer =
+          new JsonWriter(
+              new BufferedWriter(
+                  new OutputStreamWriter(
+                      new GZIPOutputStream(stream, 65536), StandardCharsets.UTF_8),
+                  262144));
+      writer.beginArray();
+      writer.beginObject();
+      writer.name("name").value("process_name");
+      writer.name("ph").value("M");
+      writer.name("pid").value(1);
+      writer.name("args").beginObject().name("name").value(comment).endObject();
+      writer.endObject();
+    }
+
+    @Override
+    public void writeTask(TaskData data) throws IOException {
+      if (namedThreads.add(data.threadId)) {
+        writer.beginObject();
+        writer.name("name").value("thread_name");
+        writer.name("ph").value("M");
+        writer.name("pid").value(1);
+        writer.name("tid").value(data.threadId);
+        writer.name("args").beginObject().name("name").value(data.threadName).endObject();
+        writer.endObject();
+      }
+      writer.beginObject();
+      writer.name("name").value(toDescription(data.object));
+      writer.name("cat").value(data.type.description);
+      writer.name("ph").value("X");
+      writer.name("ts").value(TimeUnit.NANOSECONDS.toMicros(data.startTime - profileStartTime));
+      writer.name("dur").value(TimeUnit.NANOSECONDS.toMicros(data.duration));
+      writer.name("pid").value(1);
+      writer.name("tid").value(data.threadId);
+      if (data.counts != null) {
+        writer.name("args").beginObject();
+        for (int i = 0; i < TASK_COUNT; i++) {
+          if (data.counts[i] > 0) {
+            String name = ProfilerTask.values()[i].toString();
+            writer.name(name + " count").value(data.counts[i]);
+            writer.name(name + " us").value(TimeUnit.NANOSECONDS.toMicros(data.durations[i]));
+          }
+        }
+        writer.endObject();
+      }
+      writer.endObject();
+    }
+
+    @Override
+    public void flush() throws IOException {
+      writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      // Closing the array is optional in the trace event format, but keeps the file valid JSON.
+      writer.endArray();
+      writer.close();
+    }
+  }
+
   /**
    * Aggregator class that keeps track of the slowest tasks of the specified type.
    *
@@ -452,11 +702,10 @@ public final class Profiler {
   private AtomicInteger taskId = new AtomicInteger();
 
   private TaskStack taskStack;
-  private Queue<TaskData> taskQueue;
-  private DataOutputStream out;
+  private TaskBuffers taskBuffers;
+  private TaskWriter out;
   private Timer timer;
   private IOException saveException;
-  private ObjectDescriber describer;
   @SuppressWarnings("unchecked")
   private final SlowestTaskAggregator[] slowestTasks =
   new SlowestTaskAggregator[ProfilerTask.values().length];
@@ -527,10 +776,33 @@ public final class Profiler {
   public synchronized void start(ProfiledTaskKinds profiledTaskKinds, OutputStream stream,
       String comment, boolean recordAllDurations, Clock clock, long execStartTimeNanos)
       throws IOException {
+    start(
+        profiledTaskKinds,
+        stream,
+        Format.BINARY_BAZEL_FORMAT,
+        comment,
+        recordAllDurations,
+        clock,
+        execStartTimeNanos);
+  }
+
+  /**
+   * Enable profiling, writing the profile in the given format.
+   *
+   * @see #start(ProfiledTaskKinds, OutputStream, String, boolean, Clock, long)
+   */
+  public synchronized void start(
+      ProfiledTaskKinds profiledTaskKinds,
+      OutputStream stream,
+      Format format,
+      String comment,
+      boolean recordAllDurations,
+      Clock clock,
+      long execStartTimeNanos)
+      throws IOException {
     Preconditions.checkState(!isActive(), "Profiler already active");
     taskStack = new TaskStack();
-    taskQueue = new ConcurrentLinkedQueue<>();
-    describer = new ObjectDescriber();
+    taskBuffers = new TaskBuffers();
 
     this.profiledTaskKinds = profiledTaskKinds;
     this.clock = clock;
@@ -546,21 +818,15 @@ public final class Profiler {
     this.saveException = null;
     if (stream != null) {
       this.timer = new Timer("ProfilerTimer", true);
-      // Wrapping deflater stream in the buffered stream proved to reduce CPU consumption caused by
-      // the save() method. Values for buffer sizes were chosen by running small amount of tests
-      // and identifying point of diminishing returns - but I have not really tried to optimize
-      // them.
-      this.out = new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(
-          stream, new Deflater(Deflater.BEST_SPEED, false), 65536), 262144));
-
-      this.out.writeInt(MAGIC); // magic
-      this.out.writeInt(VERSION); // protocol_version
-      this.out.writeUTF(comment);
-      // ProfileTask.values() method sorts enums using their ordinal() value, so
-      // there there is no need to store ordinal() value for each entry.
-      this.out.writeInt(TASK_COUNT);
-      for (ProfilerTask type : ProfilerTask.values()) {
-        this.out.writeUTF(type.toString());
+      switch (format) {
+        case BINARY_BAZEL_FORMAT:
+          this.out = new BinaryFormatWriter(stream, comment);
+          break;
+        case JSON_TRACE_FILE_FORMAT:
+          this.out = new JsonTraceFileWriter(stream, comment);
+          break;
+        default:
+          throw new IllegalStateException("Unknown profile format: " + format);
       }
 
       // Start save thread
@@ -614,7 +880,6 @@ public final class Profiler {
       throw saveException;
     }
     if (out != null) {
-      out.writeInt(EOF_MARKER);
       out.close();
       out = null;
     }
@@ -632,54 +897,31 @@ public final class Profiler {
   }
 
   /**
-   * Saves all gathered information from taskQueue queue to the file.
-   * Method is invoked internally by the Timer-based thread and at the end of
-   * profiling session.
+   * Saves all gathered information from the task buffers to the file.
+   * Method is invoked internally by the Timer-based thread, by threads whose
+   * buffer is full and at the end of profiling session.
    */
   private synchronized void save() {
-    if (out == null) {
+    if (out == null || taskBuffers == null) {
       return;
     }
     try {
-      // Allocate the sink once to avoid GC
-      ByteBuffer sink = ByteBuffer.allocate(1024);
-      while (!taskQueue.isEmpty()) {
-        sink.clear();
-        TaskData data = taskQueue.poll();
-
-        VarInt.putVarLong(data.threadId, sink);
-        VarInt.putVarInt(data.id, sink);
-        VarInt.putVarInt(data.parentId, sink);
-        VarInt.putVarLong(data.startTime - profileStartTime, sink);
-        VarInt.putVarLong(data.duration, sink);
-
-        // To save space (and improve performance), convert all description
-        // strings to the canonical object and use IdentityHashMap to assign
-        // unique numbers for each string.
-        int descIndex = describer.getDescriptionIndex(data.object);
-        VarInt.putVarInt(descIndex + 1, sink); // Add 1 to avoid encoding negative values.
-
-        // Save types using their ordinal() value
-        sink.put((byte) data.type.ordinal());
-
-        // Save aggregated data stats.
-        if (data.counts != null) {
-          for (int i = 0; i < TASK_COUNT; i++) {
-            if (data.counts[i] > 0) {
-              sink.put((byte) i); // aggregated type ordinal value
-              VarInt.putVarInt(data.counts[i], sink);
-              VarInt.putVarLong(data.durations[i], sink);
-            }
+      Iterator<TaskBuffer> buffers = taskBuffers.all.iterator();
+      while (buffers.hasNext()) {
+        TaskBuffer buffer = buffers.next();
+        // Only drain what is there now, so that a busy thread cannot keep us here forever.
+        for (int i = 0; i < TASK_BUFFER_SIZE; i++) {
+          TaskData data = buffer.poll();
+          if (data == null) {
+            break;
           }
+          out.writeTask(data);
         }
-
-        this.out.writeInt(sink.position());
-        this.out.write(sink.array(), 0, sink.position());
-        if (describer.isUnassigned(descIndex)) {
-          this.out.writeUTF(describer.getDescription(data.object));
+        if (buffer.isAbandoned()) {
+          buffers.remove();
         }
       }
-      this.out.flush();
+      out.flush();
     } catch (IOException e) {
       saveException = e;
       clear();
@@ -691,6 +933,19 @@ public final class Profiler {
     }
   }
 
+  /**
+   * Hands a completed task to the writer. If the calling thread's buffer is full, the thread saves
+   * all buffers itself instead of letting the buffer grow.
+   */
+  private void recordTask(TaskBuffers localBuffers, TaskData data) {
+    TaskBuffer buffer = localBuffers.get();
+    if (!buffer.offer(data)) {
+      save();
+      // Only fails if saving failed and stopped profiling, in which case the task is dropped.
+      buffer.offer(data);
+    }
+  }
+
   private synchronized void clear() {
     initHistograms();
     profileStartTime = 0L;
@@ -699,8 +954,7 @@ public final class Profiler {
       timer = null;
     }
     taskStack = null;
-    taskQueue = null;
-    describer = null;
+    taskBuffers = null;
 
     // Note that slowest task aggregator are not cleared here because clearing happens
     // periodically over the course of a command invocation.
@@ -735,8 +989,8 @@ public final class Profiler {
     tasksHistograms[type.ordinal()].addStat((int) TimeUnit.NANOSECONDS.toMillis(duration), object);
     // Store instance fields as local variables so they are not nulled out from under us by #clear.
     TaskStack localStack = taskStack;
-    Queue<TaskData> localQueue = taskQueue;
-    if (localStack == null || localQueue == null) {
+    TaskBuffers localBuffers = taskBuffers;
+    if (localStack == null || localBuffers == null) {
       // Variables have been nulled out by #clear in between the check the caller made and this
       // point in the code. Probably due to an asynchronous crash.
       logger.severe("Variables null in profiler for " + type + ", probably due to async crash");
@@ -750,7 +1004,7 @@ public final class Profiler {
       TaskData data = localStack.create(startTime, type, object);
       data.duration = duration;
       if (out != null) {
-        localQueue.add(data);
+        recordTask(localBuffers, data);
       }
 
       SlowestTaskAggregator aggregator = slowestTasks[type.ordinal()];
@@ -874,8 +1128,9 @@ public final class Profiler {
         taskStack.peek().aggregateChild(data.type, data.duration);
       }
       boolean shouldRecordTask = wasTaskSlowEnoughToRecord(type, data.duration);
-      if (out != null && (shouldRecordTask || data.counts != null)) {
-        taskQueue.add(data);
+      TaskBuffers localBuffers = taskBuffers;
+      if (out != null && localBuffers != null && (shouldRecordTask || data.counts != null)) {
+        recordTask(localBuffers, data);
       }
 
       if (shouldRecordTask) {
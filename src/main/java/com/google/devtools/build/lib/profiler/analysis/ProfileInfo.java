@@ -54,6 +54,7 @@ import java.util.regex.Pattern;
 import java.util.stream.Stream;
 import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
+import javax.annotation.Nullable;
 
 /**
  * Holds parsed profile file information and provides various ways of
@@ -962,105 +963,189 @@ public class ProfileInfo {
   }
 
   /**
-   * Loads and parses Blaze profile file.
+   * Receives the records of a profile file in the order in which they appear in the file. See
+   * {@link #readProfile}.
+   */
+  public interface RecordHandler {
+    /** Called once, before any other method, with the comment from the file header. */
+    void comment(String comment);
+
+    /**
+     * Called when a description appears in the file for the first time. Descriptions are indexed
+     * in the order in which they appear, and tasks refer to them by that index.
+     */
+    void description(int descIndex, String description);
+
+    /**
+     * Called for every task record. Records are written when tasks complete, so subtasks usually
+     * come before their parents.
+     *
+     * @param stats the encoded aggregated statistics of the task in the remaining bytes, or null if
+     *     the task has none
+     */
+    void task(
+        long threadId,
+        int id,
+        int parentId,
+        long startTime,
+        long durationNanos,
+        ProfilerTask type,
+        int descIndex,
+        @Nullable ByteBuffer stats);
+  }
+
+  /**
+   * Reads a Blaze profile file record by record, without keeping any of them in memory.
    *
    * @param profileFile profile file path
-   *
-   * @return ProfileInfo object with some fields populated (call calculateStats()
-   *         and analyzeRelationships() to populate the remaining fields)
+   * @param handler receives the records of the file
+   * @return false if the file was truncated or corrupted, in which case the handler did not see
+   *     all records, and true otherwise
    * @throws UnsupportedEncodingException if the file format is invalid
    * @throws IOException if the file can't be read
    */
-  public static ProfileInfo loadProfile(Path profileFile)
-      throws IOException {
+  public static boolean readProfile(Path profileFile, RecordHandler handler) throws IOException {
     // It is extremely important to wrap InflaterInputStream using
     // BufferedInputStream because majority of reads would be done using
     // readInt()/readLong() methods and InflaterInputStream is very inefficient
     // in handling small read requests (performance difference with 1MB buffer
     // used below is almost 10x).
-    DataInputStream in = new DataInputStream(
-        new BufferedInputStream(new InflaterInputStream(
-        profileFile.getInputStream(), new Inflater(false), 65536), 1024 * 1024));
-
-    if (in.readInt() != Profiler.MAGIC) {
-      in.close();
-      throw new UnsupportedEncodingException("Invalid profile datafile format");
-    }
-    if (in.readInt() != Profiler.VERSION) {
-      in.close();
-      throw new UnsupportedEncodingException("Incompatible profile datafile version");
-    }
-    String fileComment = in.readUTF();
-
-    // Read list of used record types
-    int typeCount = in.readInt();
-    boolean hasUnknownTypes = false;
-    Set<String> supportedTasks = new HashSet<>();
-    for (ProfilerTask task : ProfilerTask.values()) {
-      supportedTasks.add(task.toString());
-    }
-    List<ProfilerTask> typeList = new ArrayList<>();
-    for (int i = 0; i < typeCount; i++) {
-      String name = in.readUTF();
-      if (supportedTasks.contains(name)) {
-        typeList.add(ProfilerTask.valueOf(name));
-      } else {
-        hasUnknownTypes = true;
-        typeList.add(ProfilerTask.UNKNOWN);
+    try (DataInputStream in =
+        new DataInputStream(
+            new BufferedInputStream(
+                new InflaterInputStream(
+                    profileFile.getInputStream(), new Inflater(false), 65536),
+                1024 * 1024))) {
+      if (in.readInt() != Profiler.MAGIC) {
+        throw new UnsupportedEncodingException("Invalid profile datafile format");
       }
-    }
-
-    ProfileInfo info = new ProfileInfo(fileComment);
-
-    // Read record until we encounter end marker (-1).
-    // TODO(bazel-team): Maybe this still should handle corrupted(truncated) files.
-    try {
-      int size;
-      while ((size = in.readInt()) != Profiler.EOF_MARKER) {
-        byte[] backingArray = new byte[size];
-        in.readFully(backingArray);
-        ByteBuffer buffer = ByteBuffer.wrap(backingArray);
-        long threadId = VarInt.getVarLong(buffer);
-        int id = VarInt.getVarInt(buffer);
-        int parentId = VarInt.getVarInt(buffer);
-        long startTime = VarInt.getVarLong(buffer);
-        long duration = VarInt.getVarLong(buffer);
-        int descIndex = VarInt.getVarInt(buffer) - 1;
-        if (descIndex == -1) {
-          String desc = in.readUTF();
-          descIndex = info.descriptionList.size();
-          info.descriptionList.add(desc);
+      if (in.readInt() != Profiler.VERSION) {
+        throw new UnsupportedEncodingException("Incompatible profile datafile version");
+      }
+      handler.comment(in.readUTF());
+
+      // Read list of used record types
+      int typeCount = in.readInt();
+      boolean hasUnknownTypes = false;
+      Set<String> supportedTasks = new HashSet<>();
+      for (ProfilerTask task : ProfilerTask.values()) {
+        supportedTasks.add(task.toString());
+      }
+      List<ProfilerTask> typeList = new ArrayList<>();
+      for (int i = 0; i < typeCount; i++) {
+        String name = in.readUTF();
+        if (supportedTasks.contains(name)) {
+          typeList.add(ProfilerTask.valueOf(name));
+        } else {
+          hasUnknownTypes = true;
+          typeList.add(ProfilerTask.UNKNOWN);
         }
-        ProfilerTask type = typeList.get(buffer.get());
-        byte[] stats = null;
-        if (buffer.hasRemaining()) {
-          // Copy aggregated stats.
-          int offset = buffer.position();
-          stats = Arrays.copyOfRange(backingArray, offset, size);
-          if (hasUnknownTypes) {
-            while (buffer.hasRemaining()) {
-              byte attrType = buffer.get();
-              if (typeList.get(attrType) == ProfilerTask.UNKNOWN) {
-                // We're dealing with unknown aggregated type - update stats array to
-                // use ProfilerTask.UNKNOWN.ordinal() value.
-                stats[buffer.position() - 1 - offset] = (byte) ProfilerTask.UNKNOWN.ordinal();
+      }
+
+      // Read record until we encounter end marker (-1).
+      // TODO(bazel-team): Maybe this still should handle corrupted(truncated) files.
+      try {
+        int descCount = 0;
+        int size;
+        while ((size = in.readInt()) != Profiler.EOF_MARKER) {
+          byte[] backingArray = new byte[size];
+          in.readFully(backingArray);
+          ByteBuffer buffer = ByteBuffer.wrap(backingArray);
+          long threadId = VarInt.getVarLong(buffer);
+          int id = VarInt.getVarInt(buffer);
+          int parentId = VarInt.getVarInt(buffer);
+          long startTime = VarInt.getVarLong(buffer);
+          long duration = VarInt.getVarLong(buffer);
+          int descIndex = VarInt.getVarInt(buffer) - 1;
+          if (descIndex == -1) {
+            descIndex = descCount++;
+            handler.description(descIndex, in.readUTF());
+          }
+          ProfilerTask type = typeList.get(buffer.get());
+          ByteBuffer stats = null;
+          if (buffer.hasRemaining()) {
+            stats = buffer.slice();
+            if (hasUnknownTypes) {
+              while (buffer.hasRemaining()) {
+                byte attrType = buffer.get();
+                if (typeList.get(attrType) == ProfilerTask.UNKNOWN) {
+                  // We're dealing with unknown aggregated type - update stats array to
+                  // use ProfilerTask.UNKNOWN.ordinal() value.
+                  backingArray[buffer.position() - 1] = (byte) ProfilerTask.UNKNOWN.ordinal();
+                }
+                VarInt.getVarInt(buffer);
+                VarInt.getVarLong(buffer);
               }
-              VarInt.getVarInt(buffer);
-              VarInt.getVarLong(buffer);
             }
           }
+          handler.task(threadId, id, parentId, startTime, duration, type, descIndex, stats);
         }
-        ProfileInfo.Task task =  info.new Task(threadId, id, parentId, startTime, duration, type,
-            descIndex, new CompactStatistics(stats));
-        info.addTask(task);
+      } catch (IOException e) {
+        return false;
       }
-    } catch (IOException e) {
-      info.corruptedOrIncomplete = true;
-    } finally {
-      in.close();
+      return true;
+    }
+  }
+
+  /**
+   * Loads and parses Blaze profile file.
+   *
+   * @param profileFile profile file path
+   *
+   * @return ProfileInfo object with some fields populated (call calculateStats()
+   *         and analyzeRelationships() to populate the remaining fields)
+   * @throws UnsupportedEncodingException if the file format is invalid
+   * @throws IOException if the file can't be read
+   */
+  public static ProfileInfo loadProfile(Path profileFile)
+      throws IOException {
+    ProfileLoader loader = new ProfileLoader();
+    boolean complete = readProfile(profileFile, loader);
+    loader.info.corruptedOrIncomplete = !complete;
+    return loader.info;
+  }
+
+  /** Builds a {@link ProfileInfo} from the records of a profile file. */
+  private static final class ProfileLoader implements RecordHandler {
+    private ProfileInfo info;
+
+    @Override
+    public void comment(String comment) {
+      info = new ProfileInfo(comment);
     }
 
-    return info;
+    @Override
+    public void description(int descIndex, String description) {
+      info.descriptionList.add(description);
+    }
+
+    @Override
+    public void task(
+        long threadId,
+        int id,
+        int parentId,
+        long startTime,
+        long durationNanos,
+        ProfilerTask type,
+        int descIndex,
+        @Nullable ByteBuffer stats) {
+      byte[] statsArray = null;
+      if (stats != null) {
+        // Copy aggregated stats.
+        statsArray = new byte[stats.remaining()];
+        stats.get(statsArray);
+      }
+      info.addTask(
+          info.new Task(
+              threadId,
+              id,
+              parentId,
+              startTime,
+              durationNanos,
+              type,
+              descIndex,
+              new CompactStatistics(statsArray)));
+    }
   }
 
   /**
@@ -0,0 +1,103 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.profiler.output;
+
+import com.google.devtools.build.lib.profiler.ProfilePhase;
+import com.google.devtools.build.lib.profiler.ProfilerTask;
+import com.google.devtools.build.lib.profiler.statistics.PhaseSummaryStatistics;
+import com.google.devtools.build.lib.profiler.statistics.StreamingProfileStatistics;
+import com.google.devtools.build.lib.profiler.statistics.StreamingProfileStatistics.CriticalPathComponent;
+import com.google.devtools.build.lib.profiler.statistics.StreamingProfileStatistics.TaskHistogram;
+import com.google.devtools.build.lib.util.TimeUtilities;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Map;
+
+/** Output {@link StreamingProfileStatistics} in text format. */
+public final class ProfileSummaryText extends TextPrinter {
+
+  private static final String HISTOGRAM_FORMAT = "%-28s %8s %10s %10s %10s %10s %10s %10s";
+
+  private final StreamingProfileStatistics statistics;
+
+  public ProfileSummaryText(PrintStream out, StreamingProfileStatistics statistics) {
+    super(out);
+    this.statistics = statistics;
+  }
+
+  public void print() {
+    printPhaseSummaryStatistics(statistics.getPhaseSummaryStatistics());
+    printCriticalPath(statistics.getCriticalPath());
+    printTaskHistograms(statistics.getTaskHistograms());
+  }
+
+  private void printPhaseSummaryStatistics(PhaseSummaryStatistics phaseSummaryStats) {
+    print("\n=== PHASE SUMMARY INFORMATION ===\n");
+    for (ProfilePhase phase : phaseSummaryStats) {
+      lnPrintf(
+          THREE_COLUMN_FORMAT,
+          "Total " + phase.nick + " phase time",
+          TimeUtilities.prettyTime(phaseSummaryStats.getDurationNanos(phase)),
+          prettyPercentage(phaseSummaryStats.getRelativeDuration(phase)));
+    }
+    lnPrintf(
+        THREE_COLUMN_FORMAT,
+        "Total run time",
+        TimeUtilities.prettyTime(phaseSummaryStats.getTotalDuration()),
+        "100.00%");
+    printLn();
+  }
+
+  private void printCriticalPath(List<CriticalPathComponent> criticalPath) {
+    lnPrint("=== CRITICAL PATH ===\n");
+    if (criticalPath.isEmpty()) {
+      lnPrint("Critical path not available because the build did not log one.");
+      printLn();
+      return;
+    }
+    long totalTime = 0;
+    for (CriticalPathComponent component : criticalPath) {
+      totalTime += component.durationNanos;
+    }
+    lnPrintf("Critical path (%s):", TimeUtilities.prettyTime(totalTime));
+    lnPrintf("%11s %8s   %s", "Time", "Percentage", "Description");
+    for (CriticalPathComponent component : criticalPath) {
+      lnPrintf(
+          "%11s %8s   %s",
+          TimeUtilities.prettyTime(component.durationNanos),
+          prettyPercentage((double) component.durationNanos / totalTime),
+          component.description);
+    }
+    printLn();
+  }
+
+  private void printTaskHistograms(Map<ProfilerTask, TaskHistogram> histograms) {
+    lnPrint("=== TASK DURATIONS ===\n");
+    lnPrintf(HISTOGRAM_FORMAT, "Type", "Count", "Total", "Average", "50%", "90%", "99%", "Max");
+    for (Map.Entry<ProfilerTask, TaskHistogram> entry : histograms.entrySet()) {
+      TaskHistogram histogram = entry.getValue();
+      lnPrintf(
+          HISTOGRAM_FORMAT,
+          entry.getKey().description,
+          histogram.getCount(),
+          TimeUtilities.prettyTime(histogram.getTotalNanos()),
+          TimeUtilities.prettyTime(histogram.getAverageNanos()),
+          TimeUtilities.prettyTime(histogram.getPercentileNanos(50)),
+          TimeUtilities.prettyTime(histogram.getPercentileNanos(90)),
+          TimeUtilities.prettyTime(histogram.getPercentileNanos(99)),
+          TimeUtilities.prettyTime(histogram.getMaxNanos()));
+    }
+    printLn();
+  }
+}
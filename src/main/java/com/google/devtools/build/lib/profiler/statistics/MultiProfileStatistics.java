@@ -13,16 +13,26 @@
 // limitations under the License.
 package com.google.devtools.build.lib.profiler.statistics;
 
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.devtools.build.lib.profiler.ProfilePhase;
 import com.google.devtools.build.lib.profiler.analysis.ProfileInfo;
 import com.google.devtools.build.lib.profiler.analysis.ProfileInfo.InfoListener;
 import com.google.devtools.build.lib.vfs.Path;
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.annotation.Nullable;
 
 /**
  * Builds and aggregates statistics for multiple profile files.
@@ -34,24 +44,68 @@ public final class MultiProfileStatistics implements Iterable<Path> {
   private final SkylarkStatistics skylarkStatistics;
 
   private int missingActionsCount;
-  private boolean generateVfsStatistics;
+  private final boolean generateVfsStatistics;
 
+  /**
+   * Loads the given profile files and aggregates their statistics.
+   *
+   * <p>Up to {@code jobs} files are loaded and analyzed in parallel, each of them fully in memory.
+   * The statistics of the files are still added in the given order, so the result does not depend
+   * on the number of jobs.
+   */
   public MultiProfileStatistics(
       Path workingDirectory,
       String workSpaceName,
       List<String> files,
       InfoListener listener,
-      boolean generateVfsStatistics) {
+      boolean generateVfsStatistics,
+      int jobs) {
     summaryStatistics = new PhaseSummaryStatistics();
     summaryPhaseStatistics = new EnumMap<>(ProfilePhase.class);
     filePhaseStatistics = new HashMap<>();
     skylarkStatistics = new SkylarkStatistics();
     this.generateVfsStatistics = generateVfsStatistics;
-    for (String file : files) {
-      loadProfileFile(workingDirectory, workSpaceName, file, listener);
+    ExecutorService executor =
+        Executors.newFixedThreadPool(
+            Math.max(1, Math.min(jobs, files.size())),
+            new ThreadFactoryBuilder()
+                .setNameFormat("profile-analysis-%d")
+                .setDaemon(true)
+                .build());
+    try {
+      // Only keep a window of files in flight, so that at most 'jobs' loaded profiles wait to be
+      // added at any time.
+      Deque<Future<FileStatistics>> pending = new ArrayDeque<>();
+      Iterator<String> remaining = files.iterator();
+      while (remaining.hasNext() || !pending.isEmpty()) {
+        while (remaining.hasNext() && pending.size() < Math.max(1, jobs)) {
+          String file = remaining.next();
+          pending.add(
+              executor.submit(
+                  () -> loadProfileFile(workingDirectory, workSpaceName, file, listener)));
+        }
+        FileStatistics fileStatistics = Uninterruptibles.getUninterruptibly(pending.remove());
+        if (fileStatistics != null) {
+          addFileStatistics(fileStatistics);
+        }
+      }
+    } catch (ExecutionException e) {
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new IllegalStateException(e.getCause());
+    } finally {
+      executor.shutdownNow();
     }
   }
 
+  public MultiProfileStatistics(
+      Path workingDirectory,
+      String workSpaceName,
+      List<String> files,
+      InfoListener listener,
+      boolean generateVfsStatistics) {
+    this(workingDirectory, workSpaceName, files, listener, generateVfsStatistics, 1);
+  }
+
   public PhaseSummaryStatistics getSummaryStatistics() {
     return summaryStatistics;
   }
@@ -81,10 +135,28 @@ public final class MultiProfileStatistics implements Iterable<Path> {
     return filePhaseStatistics.keySet().iterator();
   }
 
+  /** A loaded profile file and the statistics of its phases. */
+  private static final class FileStatistics {
+    final Path profileFile;
+    final ProfileInfo info;
+    final EnumMap<ProfilePhase, PhaseStatistics> phaseStatistics;
+
+    FileStatistics(
+        Path profileFile,
+        ProfileInfo info,
+        EnumMap<ProfilePhase, PhaseStatistics> phaseStatistics) {
+      this.profileFile = profileFile;
+      this.info = info;
+      this.phaseStatistics = phaseStatistics;
+    }
+  }
+
   /**
-   * Loads a single profile file and adds the statistics to the previously collected ones.
+   * Loads a single profile file and computes the statistics of its phases, or returns null if the
+   * file cannot be loaded. Called concurrently for different files.
    */
-  private void loadProfileFile(
+  @Nullable
+  private FileStatistics loadProfileFile(
       Path workingDirectory, String workSpaceName, String file, InfoListener listener) {
     ProfileInfo info;
     Path profileFile = workingDirectory.getRelative(file);
@@ -93,19 +165,25 @@ public final class MultiProfileStatistics implements Iterable<Path> {
       ProfileInfo.aggregateProfile(info, listener);
     } catch (IOException e) {
       listener.warn("Ignoring file " + file + " - cannot load: " + e.getMessage());
-      return;
+      return null;
     }
 
+    EnumMap<ProfilePhase, PhaseStatistics> fileStatistics = new EnumMap<>(ProfilePhase.class);
+    for (ProfilePhase phase : ProfilePhase.values()) {
+      fileStatistics.put(
+          phase, new PhaseStatistics(phase, info, workSpaceName, generateVfsStatistics));
+    }
+    return new FileStatistics(profileFile, info, fileStatistics);
+  }
+
+  /** Adds the statistics of a single profile file to the previously collected ones. */
+  private void addFileStatistics(FileStatistics file) {
+    ProfileInfo info = file.info;
     summaryStatistics.addProfileInfo(info);
 
-    EnumMap<ProfilePhase, PhaseStatistics> fileStatistics = new EnumMap<>(ProfilePhase.class);
-    filePhaseStatistics.put(profileFile, fileStatistics);
+    filePhaseStatistics.put(file.profileFile, file.phaseStatistics);
 
     for (ProfilePhase phase : ProfilePhase.values()) {
-      PhaseStatistics filePhaseStat =
-          new PhaseStatistics(phase, info, workSpaceName, generateVfsStatistics);
-      fileStatistics.put(phase, filePhaseStat);
-
       PhaseStatistics summaryPhaseStats;
       if (summaryPhaseStatistics.containsKey(phase)) {
         summaryPhaseStats = summaryPhaseStatistics.get(phase);
@@ -113,7 +191,7 @@ public final class MultiProfileStatistics implements Iterable<Path> {
         summaryPhaseStats = new PhaseStatistics(phase, generateVfsStatistics);
         summaryPhaseStatistics.put(phase, summaryPhaseStats);
       }
-      summaryPhaseStats.add(filePhaseStat);
+      summaryPhaseStats.add(file.phaseStatistics.get(phase));
     }
 
     skylarkStatistics.addProfileInfo(info);
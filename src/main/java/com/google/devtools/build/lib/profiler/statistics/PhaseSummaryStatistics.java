@@ -45,13 +45,16 @@ public final class PhaseSummaryStatistics implements Iterable<ProfilePhase> {
     for (ProfilePhase phase : ProfilePhase.values()) {
       ProfileInfo.Task phaseTask = info.getPhaseTask(phase);
       if (phaseTask != null) {
-        long phaseDuration = info.getPhaseDuration(phaseTask);
-        totalDurationNanos += phaseDuration;
-        durations.put(phase, phaseDuration);
+        addPhaseDuration(phase, info.getPhaseDuration(phaseTask));
       }
     }
   }
 
+  void addPhaseDuration(ProfilePhase phase, long phaseDuration) {
+    totalDurationNanos += phaseDuration;
+    durations.put(phase, phaseDuration);
+  }
+
   /**
    * @return whether the given {@link ProfilePhase} was executed
    */
@@ -0,0 +1,270 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.profiler.statistics;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.profiler.ProfilePhase;
+import com.google.devtools.build.lib.profiler.ProfilerTask;
+import com.google.devtools.build.lib.profiler.analysis.ProfileInfo;
+import com.google.devtools.build.lib.profiler.analysis.ProfileInfo.RecordHandler;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import javax.annotation.Nullable;
+
+/**
+ * Computes the phase summary, the critical path and per-task-type duration histograms of a profile
+ * file in a single pass over its records.
+ *
+ * <p>Unlike {@link ProfileInfo#loadProfile}, this does not keep the tasks of the profile in
+ * memory: only phase markers and critical path components are remembered, and all other tasks
+ * are folded into fixed-size histograms as they are read. The only state that grows with the file
+ * is the description table, which is needed to name the critical path components and which holds
+ * each distinct description once.
+ */
+public final class StreamingProfileStatistics implements RecordHandler {
+
+  /**
+   * Distribution of the durations of all tasks of a single {@link ProfilerTask} type. Durations
+   * are counted in buckets of powers of two nanoseconds, so percentiles are exact up to a factor of
+   * two.
+   */
+  public static final class TaskHistogram {
+    private static final int BUCKETS = 64;
+
+    private final long[] buckets = new long[BUCKETS];
+    private long count;
+    private long totalNanos;
+    private long maxNanos;
+
+    void add(long durationNanos) {
+      durationNanos = Math.max(durationNanos, 0);
+      // Bucket i holds durations in [2^(i-1), 2^i), bucket 0 holds zero durations.
+      buckets[BUCKETS - Long.numberOfLeadingZeros(durationNanos)]++;
+      count++;
+      totalNanos += durationNanos;
+      maxNanos = Math.max(maxNanos, durationNanos);
+    }
+
+    /** Adds all durations of another histogram to this one. */
+    public void add(TaskHistogram other) {
+      for (int i = 0; i < BUCKETS; i++) {
+        buckets[i] += other.buckets[i];
+      }
+      count += other.count;
+      totalNanos += other.totalNanos;
+      maxNanos = Math.max(maxNanos, other.maxNanos);
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    public long getTotalNanos() {
+      return totalNanos;
+    }
+
+    public long getMaxNanos() {
+      return maxNanos;
+    }
+
+    public double getAverageNanos() {
+      return count == 0 ? Double.NaN : (double) totalNanos / count;
+    }
+
+    /**
+     * Returns an upper bound for the given percentile of task durations, which is at most twice
+     * the exact value and never more than the longest duration.
+     *
+     * @param percentile a value between 0 and 100
+     */
+    public long getPercentileNanos(double percentile) {
+      long rank = (long) Math.ceil(count * percentile / 100);
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += buckets[i];
+        if (seen >= rank && seen > 0) {
+          return i == 0 ? 0 : Math.min(maxNanos, (1L << i) - 1);
+        }
+      }
+      return 0;
+    }
+  }
+
+  /** An action on the critical path as logged by the build. */
+  public static final class CriticalPathComponent {
+    public final String description;
+    public final long durationNanos;
+
+    CriticalPathComponent(String description, long durationNanos) {
+      this.description = description;
+      this.durationNanos = durationNanos;
+    }
+  }
+
+  /** The few fields of a task that have to be kept until the whole file has been read. */
+  private static final class TaskStub {
+    final int id;
+    final int parentId;
+    final long startTime;
+    final long durationNanos;
+    final int descIndex;
+
+    TaskStub(int id, int parentId, long startTime, long durationNanos, int descIndex) {
+      this.id = id;
+      this.parentId = parentId;
+      this.startTime = startTime;
+      this.durationNanos = durationNanos;
+      this.descIndex = descIndex;
+    }
+  }
+
+  private static final Comparator<TaskStub> BY_ID = Comparator.comparingInt(stub -> stub.id);
+
+  private final EnumMap<ProfilerTask, TaskHistogram> histograms =
+      new EnumMap<>(ProfilerTask.class);
+  private final List<String> descriptions = new ArrayList<>();
+  private final List<TaskStub> phaseTasks = new ArrayList<>();
+  private final List<TaskStub> criticalPathTasks = new ArrayList<>();
+  private final List<TaskStub> criticalPathComponents = new ArrayList<>();
+
+  private String comment;
+  private boolean complete;
+  private int lastRootTaskId = -1;
+  private long lastRootTaskEnd;
+
+  private StreamingProfileStatistics() {}
+
+  /**
+   * Reads the given profile file and computes its statistics.
+   *
+   * @throws java.io.UnsupportedEncodingException if the file format is invalid
+   * @throws IOException if the file can't be read
+   */
+  public static StreamingProfileStatistics analyze(Path profileFile) throws IOException {
+    StreamingProfileStatistics statistics = new StreamingProfileStatistics();
+    statistics.complete = ProfileInfo.readProfile(profileFile, statistics);
+    return statistics;
+  }
+
+  @Override
+  public void comment(String comment) {
+    this.comment = comment;
+  }
+
+  @Override
+  public void description(int descIndex, String description) {
+    descriptions.add(description);
+  }
+
+  @Override
+  public void task(
+      long threadId,
+      int id,
+      int parentId,
+      long startTime,
+      long durationNanos,
+      ProfilerTask type,
+      int descIndex,
+      @Nullable ByteBuffer stats) {
+    TaskHistogram histogram = histograms.get(type);
+    if (histogram == null) {
+      histogram = new TaskHistogram();
+      histograms.put(type, histogram);
+    }
+    histogram.add(durationNanos);
+
+    if (parentId == 0 && id > lastRootTaskId) {
+      lastRootTaskId = id;
+      lastRootTaskEnd = startTime + durationNanos;
+    }
+    if (type == ProfilerTask.PHASE && parentId == 0) {
+      phaseTasks.add(new TaskStub(id, parentId, startTime, durationNanos, descIndex));
+    } else if (type == ProfilerTask.CRITICAL_PATH && parentId == 0) {
+      criticalPathTasks.add(new TaskStub(id, parentId, startTime, durationNanos, descIndex));
+    } else if (type == ProfilerTask.CRITICAL_PATH_COMPONENT) {
+      criticalPathComponents.add(new TaskStub(id, parentId, startTime, durationNanos, descIndex));
+    }
+  }
+
+  /** Returns the comment from the header of the profile file. */
+  public String getComment() {
+    return comment;
+  }
+
+  /** Returns false if the profile file was truncated or corrupted and not all records were read. */
+  public boolean isComplete() {
+    return complete;
+  }
+
+  /**
+   * Returns the durations of the phases of the build, computed the same way as {@link
+   * ProfileInfo#getPhaseDuration}.
+   */
+  public PhaseSummaryStatistics getPhaseSummaryStatistics() {
+    PhaseSummaryStatistics summary = new PhaseSummaryStatistics();
+    phaseTasks.sort(BY_ID);
+    for (int i = 0; i < phaseTasks.size(); i++) {
+      TaskStub phaseTask = phaseTasks.get(i);
+      ProfilePhase phase = getPhase(descriptions.get(phaseTask.descIndex));
+      if (phase == null || summary.contains(phase)) {
+        continue;
+      }
+      long end =
+          i + 1 < phaseTasks.size() ? phaseTasks.get(i + 1).startTime : lastRootTaskEnd;
+      summary.addPhaseDuration(phase, end - phaseTask.startTime);
+    }
+    return summary;
+  }
+
+  /**
+   * Returns the components of the critical path logged by the build in the order in which they
+   * were executed, or an empty list if the profile contains no critical path.
+   */
+  public ImmutableList<CriticalPathComponent> getCriticalPath() {
+    if (criticalPathTasks.isEmpty()) {
+      return ImmutableList.of();
+    }
+    int criticalPathId = criticalPathTasks.stream().min(BY_ID).get().id;
+    criticalPathComponents.sort(BY_ID);
+    ImmutableList.Builder<CriticalPathComponent> result = ImmutableList.builder();
+    for (TaskStub component : criticalPathComponents) {
+      if (component.parentId == criticalPathId) {
+        result.add(
+            new CriticalPathComponent(
+                descriptions.get(component.descIndex), component.durationNanos));
+      }
+    }
+    return result.build();
+  }
+
+  /** Returns the duration histograms of all task types that occur in the profile. */
+  public EnumMap<ProfilerTask, TaskHistogram> getTaskHistograms() {
+    return histograms;
+  }
+
+  @Nullable
+  private static ProfilePhase getPhase(String description) {
+    for (ProfilePhase phase : ProfilePhase.values()) {
+      if (phase.description.equals(description)) {
+        return phase;
+      }
+    }
+    return null;
+  }
+}
@@ -15,14 +15,23 @@ package com.google.devtools.build.lib.query2;
 
 import static com.google.common.collect.ImmutableSet.toImmutableSet;
 
+import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.AsyncCallable;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.cmdline.PackageIdentifier;
 import com.google.devtools.build.lib.cmdline.ResolvedTargets;
 import com.google.devtools.build.lib.cmdline.TargetParsingException;
+import com.google.devtools.build.lib.concurrent.NamedForkJoinPool;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
 import com.google.devtools.build.lib.events.ExtendedEventHandler;
 import com.google.devtools.build.lib.graph.Digraph;
@@ -37,9 +46,12 @@ import com.google.devtools.build.lib.pkgcache.TargetEdgeObserver;
 import com.google.devtools.build.lib.pkgcache.TargetPatternEvaluator;
 import com.google.devtools.build.lib.pkgcache.TargetProvider;
 import com.google.devtools.build.lib.pkgcache.TransitivePackageLoader;
+import com.google.devtools.build.lib.query2.engine.AggregatingQueryExpressionVisitor.ContainsFunctionQueryExpressionVisitor;
+import com.google.devtools.build.lib.query2.engine.AllRdepsFunction;
 import com.google.devtools.build.lib.query2.engine.Callback;
 import com.google.devtools.build.lib.query2.engine.DigraphQueryEvalResult;
 import com.google.devtools.build.lib.query2.engine.MinDepthUniquifier;
+import com.google.devtools.build.lib.query2.engine.OutputFormatterCallback;
 import com.google.devtools.build.lib.query2.engine.QueryEvalResult;
 import com.google.devtools.build.lib.query2.engine.QueryException;
 import com.google.devtools.build.lib.query2.engine.QueryExpression;
@@ -50,31 +62,74 @@ import com.google.devtools.build.lib.query2.engine.QueryUtil.UniquifierImpl;
 import com.google.devtools.build.lib.query2.engine.SkyframeRestartQueryException;
 import com.google.devtools.build.lib.query2.engine.ThreadSafeOutputFormatterCallback;
 import com.google.devtools.build.lib.query2.engine.Uniquifier;
+import com.google.devtools.build.lib.query2.engine.VariableContext;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 
 /**
  * The environment of a Blaze query. Not thread-safe.
+ *
+ * <p>If the query evaluation parallelism level is greater than 1, the subexpressions of a query
+ * are evaluated concurrently on a {@link ForkJoinPool}, and transitive closures are computed with
+ * a fork-join traversal of the target graph. Loading packages, including the transitive closure
+ * of targets, which already uses {@code loadingPhaseThreads}, is still done for one subexpression
+ * at a time. Queries that use {@code allrdeps}, whose result depends on the targets loaded by the
+ * rest of the query, are evaluated sequentially so that their result does not depend on the order
+ * of evaluation.
  */
 public class BlazeQueryEnvironment extends AbstractBlazeQueryEnvironment<Target> {
   private static final int MAX_DEPTH_FULL_SCAN_LIMIT = 20;
-  private final Map<String, Set<Target>> resolvedTargetPatterns = new HashMap<>();
+  /** The number of targets a task of the parallel transitive closure traversal visits. */
+  private static final int TRAVERSAL_BATCH_SIZE = 1000;
+  private static final ImmutableList<String> EVALUATION_ORDER_DEPENDENT_FUNCTIONS =
+      ImmutableList.of(new AllRdepsFunction().getName());
+
+  private final Map<String, Set<Target>> resolvedTargetPatterns = new ConcurrentHashMap<>();
   private final TargetPatternEvaluator targetPatternEvaluator;
   private final TransitivePackageLoader transitivePackageLoader;
   private final TargetProvider targetProvider;
+  /** Guards {@link #graph}, which is built and read concurrently during parallel evaluation. */
+  private final ReadWriteLock graphLock = new ReentrantReadWriteLock();
+  @GuardedBy("graphLock")
   private final Digraph<Target> graph = new Digraph<>();
   private final ErrorPrintingTargetEdgeErrorObserver errorObserver;
+  /**
+   * Serializes package loading during parallel evaluation: the label visitor can only visit one
+   * set of targets at a time, and Skyframe evaluations, which both it and {@link #targetProvider}
+   * may start, cannot run concurrently.
+   */
+  private final Object loadingLock = new Object();
+  @GuardedBy("loadingLock")
   private final LabelVisitor labelVisitor;
+  /**
+   * The labels of all the targets the label visitor visited during this query. Unlike {@link
+   * LabelVisitor#hasVisited}, which only knows about the last visitation, this is not reset when
+   * another subexpression builds its transitive closure concurrently.
+   */
+  private final Set<Label> visitedLabels = Sets.newConcurrentHashSet();
   protected final int loadingPhaseThreads;
+  private final int queryEvaluationParallelismLevel;
+  /** The pool the current query is evaluated on, or null if it is evaluated sequentially. */
+  @Nullable private volatile ForkJoinPool forkJoinPool;
+  @Nullable private volatile ListeningExecutorService executor;
 
   private final BlazeTargetAccessor accessor = new BlazeTargetAccessor(this);
 
@@ -85,6 +140,8 @@ public class BlazeQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
    * @param strictScope if true, fail the whole query if a label goes out of scope.
    * @param loadingPhaseThreads the number of threads to use during loading the packages for the
    *     query.
+   * @param queryEvaluationParallelismLevel the number of threads to evaluate the query on. If 1,
+   *     the query is evaluated on the calling thread.
    * @param labelFilter a predicate that determines if a specific label is allowed to be visited
    *     during query execution. If it returns false, the query execution is stopped with an error
    *     message.
@@ -97,6 +154,7 @@ public class BlazeQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
       boolean keepGoing,
       boolean strictScope,
       int loadingPhaseThreads,
+      int queryEvaluationParallelismLevel,
       Predicate<Label> labelFilter,
       ExtendedEventHandler eventHandler,
       Set<Setting> settings,
@@ -107,6 +165,7 @@ public class BlazeQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
     this.targetProvider = targetProvider;
     this.errorObserver = new ErrorPrintingTargetEdgeErrorObserver(this.eventHandler);
     this.loadingPhaseThreads = loadingPhaseThreads;
+    this.queryEvaluationParallelismLevel = queryEvaluationParallelismLevel;
     this.labelVisitor = new LabelVisitor(targetProvider, dependencyFilter);
   }
 
@@ -121,11 +180,96 @@ public class BlazeQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
       ThreadSafeOutputFormatterCallback<Target> callback)
           throws QueryException, InterruptedException, IOException {
     resolvedTargetPatterns.clear();
-    QueryEvalResult queryEvalResult = super.evaluateQuery(expr, callback);
+    QueryEvalResult queryEvalResult;
+    if (queryEvaluationParallelismLevel > 1
+        && !expr.accept(
+            new ContainsFunctionQueryExpressionVisitor(EVALUATION_ORDER_DEPENDENT_FUNCTIONS))) {
+      forkJoinPool = NamedForkJoinPool.newNamedPool("query", queryEvaluationParallelismLevel);
+      executor = MoreExecutors.listeningDecorator(forkJoinPool);
+      try {
+        queryEvalResult = super.evaluateQuery(expr, callback);
+      } finally {
+        // Make sure no task of a failed evaluation still modifies the graph.
+        executor = null;
+        forkJoinPool.shutdownNow();
+        forkJoinPool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        forkJoinPool = null;
+      }
+    } else {
+      queryEvalResult = super.evaluateQuery(expr, callback);
+    }
     return new DigraphQueryEvalResult<>(
         queryEvalResult.getSuccess(), queryEvalResult.isEmpty(), graph);
   }
 
+  @Override
+  protected void evalTopLevelInternal(
+      QueryExpression expr, OutputFormatterCallback<Target> callback)
+      throws QueryException, InterruptedException {
+    QueryTaskFutureImpl<Void> future =
+        (QueryTaskFutureImpl<Void>) eval(expr, VariableContext.<Target>empty(), callback);
+    try {
+      future.get();
+    } catch (CancellationException e) {
+      throw new InterruptedException();
+    } catch (ExecutionException e) {
+      // Rethrow whatever the failed task threw, including unchecked exceptions such as a
+      // SkyframeRestartQueryException, which GenQuery handles by type.
+      Throwables.propagateIfPossible(
+          e.getCause(), QueryException.class, InterruptedException.class);
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  @ThreadSafe
+  @Override
+  public QueryTaskFuture<Void> eval(
+      QueryExpression expr, VariableContext<Target> context, Callback<Target> callback) {
+    ListeningExecutorService executor = this.executor;
+    if (executor == null) {
+      return super.eval(expr, context, callback);
+    }
+    AsyncCallable<Void> task =
+        () ->
+            (QueryTaskFutureImpl<Void>)
+                BlazeQueryEnvironment.super.eval(expr, context, callback);
+    return QueryTaskFutureImpl.ofDelegate(Futures.submitAsync(task, executor));
+  }
+
+  @Override
+  public <R> QueryTaskFuture<R> executeAsync(QueryTaskCallable<R> callable) {
+    ListeningExecutorService executor = this.executor;
+    if (executor == null) {
+      return super.executeAsync(callable);
+    }
+    return QueryTaskFutureImpl.ofDelegate(executor.submit(callable));
+  }
+
+  @Override
+  public <T1, T2> QueryTaskFuture<T2> transformAsync(
+      QueryTaskFuture<T1> future, Function<T1, QueryTaskFuture<T2>> function) {
+    ListeningExecutorService executor = this.executor;
+    if (executor == null) {
+      return super.transformAsync(future, function);
+    }
+    return QueryTaskFutureImpl.ofDelegate(
+        Futures.transformAsync(
+            (QueryTaskFutureImpl<T1>) future,
+            input -> (QueryTaskFutureImpl<T2>) function.apply(input),
+            executor));
+  }
+
+  @Override
+  public <R> QueryTaskFuture<R> whenAllSucceedCall(
+      Iterable<? extends QueryTaskFuture<?>> futures, QueryTaskCallable<R> callable) {
+    ListeningExecutorService executor = this.executor;
+    if (executor == null) {
+      return super.whenAllSucceedCall(futures, callable);
+    }
+    return QueryTaskFutureImpl.ofDelegate(
+        Futures.whenAllSucceed(cast(futures)).call(callable, executor));
+  }
+
   @Override
   public Collection<Target> getSiblingTargetsInPackage(Target target) {
     Collection<Target> siblings = target.getPackage().getTargets().values();
@@ -217,7 +361,21 @@ public class BlazeQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
   }
 
   private Node<Target> getNode(Target target) {
-    return graph.createNode(target);
+    graphLock.readLock().lock();
+    try {
+      Node<Target> node = graph.getNodeMaybe(target);
+      if (node != null) {
+        return node;
+      }
+    } finally {
+      graphLock.readLock().unlock();
+    }
+    graphLock.writeLock().lock();
+    try {
+      return graph.createNode(target);
+    } finally {
+      graphLock.writeLock().unlock();
+    }
   }
 
   private Collection<Node<Target>> getNodes(Iterable<Target> target) {
@@ -237,7 +395,7 @@ public class BlazeQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
   public Collection<Target> getFwdDeps(Iterable<Target> targets) {
     ThreadSafeMutableSet<Target> result = createThreadSafeMutableSet();
     for (Target target : targets) {
-      result.addAll(getTargetsFromNodes(getNode(target).getSuccessors()));
+      result.addAll(getSuccessors(getNode(target)));
     }
     return result;
   }
@@ -246,18 +404,82 @@ public class BlazeQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
   public Collection<Target> getReverseDeps(Iterable<Target> targets) {
     ThreadSafeMutableSet<Target> result = createThreadSafeMutableSet();
     for (Target target : targets) {
-      result.addAll(getTargetsFromNodes(getNode(target).getPredecessors()));
+      Node<Target> node = getNode(target);
+      graphLock.readLock().lock();
+      try {
+        result.addAll(getTargetsFromNodes(node.getPredecessors()));
+      } finally {
+        graphLock.readLock().unlock();
+      }
     }
     return result;
   }
 
+  private List<Target> getSuccessors(Node<Target> node) {
+    graphLock.readLock().lock();
+    try {
+      List<Target> successors = new ArrayList<>(node.numSuccessors());
+      for (Node<Target> successor : node.getSuccessors()) {
+        successors.add(successor.getLabel());
+      }
+      return successors;
+    } finally {
+      graphLock.readLock().unlock();
+    }
+  }
+
   @Override
   public ThreadSafeMutableSet<Target> getTransitiveClosure(
       ThreadSafeMutableSet<Target> targetNodes) {
     for (Target node : targetNodes) {
       checkBuilt(node);
     }
-    return getTargetsFromNodes(graph.getFwdReachable(getNodes(targetNodes)));
+    ForkJoinPool forkJoinPool = this.forkJoinPool;
+    if (forkJoinPool == null) {
+      Collection<Node<Target>> nodes = getNodes(targetNodes);
+      graphLock.readLock().lock();
+      try {
+        return getTargetsFromNodes(graph.getFwdReachable(nodes));
+      } finally {
+        graphLock.readLock().unlock();
+      }
+    }
+    ThreadSafeMutableSet<Target> result = createThreadSafeMutableSet();
+    Uniquifier<Target> uniquifier = createUniquifier();
+    forkJoinPool.invoke(
+        new TransitiveClosureTask(uniquifier.unique(targetNodes), uniquifier, result));
+    return result;
+  }
+
+  /**
+   * Visits the given targets and, in forked tasks, the targets they depend on that the uniquifier
+   * has not seen yet, adding them all to the result.
+   */
+  private class TransitiveClosureTask extends RecursiveAction {
+    private final List<Target> targets;
+    private final Uniquifier<Target> uniquifier;
+    private final ThreadSafeMutableSet<Target> result;
+
+    private TransitiveClosureTask(
+        List<Target> targets, Uniquifier<Target> uniquifier, ThreadSafeMutableSet<Target> result) {
+      this.targets = targets;
+      this.uniquifier = uniquifier;
+      this.result = result;
+    }
+
+    @Override
+    protected void compute() {
+      List<Target> next = new ArrayList<>();
+      for (Target target : targets) {
+        result.add(target);
+        next.addAll(uniquifier.unique(getSuccessors(getNode(target))));
+      }
+      List<TransitiveClosureTask> subtasks = new ArrayList<>();
+      for (List<Target> batch : Lists.partition(next, TRAVERSAL_BATCH_SIZE)) {
+        subtasks.add(new TransitiveClosureTask(batch, uniquifier, result));
+      }
+      invokeAll(subtasks);
+    }
   }
 
   /**
@@ -273,7 +495,7 @@ public class BlazeQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
    */
   private void checkBuilt(Target targetNode) {
     Preconditions.checkState(
-        labelVisitor.hasVisited(targetNode.getLabel()),
+        visitedLabels.contains(targetNode.getLabel()),
         "getTransitiveClosure(%s) called without prior call to buildTransitiveClosure()",
         targetNode);
   }
@@ -282,20 +504,33 @@ public class BlazeQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
   public void buildTransitiveClosure(QueryExpression caller,
                                      ThreadSafeMutableSet<Target> targetNodes,
                                      int maxDepth) throws QueryException, InterruptedException {
-    preloadTransitiveClosure(targetNodes, maxDepth);
-    labelVisitor.syncWithVisitor(eventHandler, targetNodes, keepGoing,
-        loadingPhaseThreads, maxDepth, errorObserver, new GraphBuildingObserver());
+    boolean hasErrors;
+    // The label visitor loads packages on loadingPhaseThreads threads, but it can only visit one
+    // set of targets at a time.
+    synchronized (loadingLock) {
+      preloadTransitiveClosure(targetNodes, maxDepth);
+      labelVisitor.syncWithVisitor(eventHandler, targetNodes, keepGoing,
+          loadingPhaseThreads, maxDepth, errorObserver, new GraphBuildingObserver());
+      hasErrors = errorObserver.hasErrors();
+    }
 
-    if (errorObserver.hasErrors()) {
+    if (hasErrors) {
       reportBuildFileError(caller, "errors were encountered while computing transitive closure");
     }
   }
 
   @Override
   public Iterable<Target> getNodesOnPath(Target from, Target to) {
+    Node<Target> fromNode = getNode(from);
+    Node<Target> toNode = getNode(to);
     ImmutableList.Builder<Target> builder = ImmutableList.builder();
-    for (Node<Target> node : graph.getShortestPath(getNode(from), getNode(to))) {
-      builder.add(node.getLabel());
+    graphLock.readLock().lock();
+    try {
+      for (Node<Target> node : graph.getShortestPath(fromNode, toNode)) {
+        builder.add(node.getLabel());
+      }
+    } finally {
+      graphLock.readLock().unlock();
     }
     return builder.build();
   }
@@ -304,7 +539,7 @@ public class BlazeQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
   @Override
   public ThreadSafeMutableSet<Target> createThreadSafeMutableSet() {
     return new ThreadSafeMutableKeyExtractorBackedSetImpl<>(
-        TargetKeyExtractor.INSTANCE, Target.class);
+        TargetKeyExtractor.INSTANCE, Target.class, queryEvaluationParallelismLevel);
   }
 
   @Override
@@ -314,12 +549,13 @@ public class BlazeQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
 
   @Override
   public Uniquifier<Target> createUniquifier() {
-    return new UniquifierImpl<>(TargetKeyExtractor.INSTANCE);
+    return new UniquifierImpl<>(TargetKeyExtractor.INSTANCE, queryEvaluationParallelismLevel);
   }
 
   @Override
   public MinDepthUniquifier<Target> createMinDepthUniquifier() {
-    return new MinDepthUniquifierImpl<>(TargetKeyExtractor.INSTANCE, /*concurrencyLevel=*/ 1);
+    return new MinDepthUniquifierImpl<>(
+        TargetKeyExtractor.INSTANCE, queryEvaluationParallelismLevel);
   }
 
   private void preloadTransitiveClosure(ThreadSafeMutableSet<Target> targets, int maxDepth)
@@ -333,15 +569,14 @@ public class BlazeQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
   }
 
   /**
-   * It suffices to synchronize the modifications of this.graph from within the
-   * GraphBuildingObserver, because that's the only concurrent part.
-   * Concurrency is always encapsulated within the evaluation of a single query
-   * operator (e.g. deps(), somepath(), etc).
+   * Adds the targets and edges visited by the label visitor to this.graph. The label visitor
+   * reports them from several threads, and the query may read the graph concurrently if it is
+   * evaluated in parallel, so all modifications are made under the graph lock.
    */
   private class GraphBuildingObserver implements TargetEdgeObserver {
 
     @Override
-    public synchronized void edge(Target from, Attribute attribute, Target to) {
+    public void edge(Target from, Attribute attribute, Target to) {
       Preconditions.checkState(attribute == null ||
           dependencyFilter.apply(((Rule) from), attribute),
           "Disallowed edge from LabelVisitor: %s --> %s", from, to);
@@ -349,8 +584,9 @@ public class BlazeQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
     }
 
     @Override
-    public synchronized void node(Target node) {
-      graph.createNode(node);
+    public void node(Target node) {
+      getNode(node);
+      visitedLabels.add(node.getLabel());
     }
 
     @Override
@@ -360,12 +596,20 @@ public class BlazeQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
   }
 
   private void makeEdge(Target from, Target to) {
-    graph.addEdge(from, to);
+    graphLock.writeLock().lock();
+    try {
+      graph.addEdge(from, to);
+    } finally {
+      graphLock.writeLock().unlock();
+    }
   }
 
   private Target getTargetOrThrow(Label label)
       throws NoSuchThingException, SkyframeRestartQueryException, InterruptedException {
-    Target target = targetProvider.getTarget(eventHandler, label);
+    Target target;
+    synchronized (loadingLock) {
+      target = targetProvider.getTarget(eventHandler, label);
+    }
     if (target == null) {
       throw new SkyframeRestartQueryException();
     }
@@ -43,6 +43,7 @@ public class QueryEnvironmentFactory {
       boolean orderedResults,
       List<String> universeScope,
       int loadingPhaseThreads,
+      int queryEvaluationParallelismLevel,
       Predicate<Label> labelFilter,
       ExtendedEventHandler eventHandler,
       Set<Setting> settings,
@@ -64,8 +65,8 @@ public class QueryEnvironmentFactory {
           blockUniverseEvaluationErrors);
     } else {
       return new BlazeQueryEnvironment(transitivePackageLoader, targetProvider,
-          targetPatternEvaluator, keepGoing, strictScope, loadingPhaseThreads, labelFilter,
-          eventHandler, settings, functions);
+          targetPatternEvaluator, keepGoing, strictScope, loadingPhaseThreads,
+          queryEvaluationParallelismLevel, labelFilter, eventHandler, settings, functions);
     }
   }
 
@@ -0,0 +1,382 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.cmdline.PackageIdentifier;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.events.ExtendedEventHandler;
+import com.google.devtools.build.lib.profiler.AutoProfiler;
+import com.google.devtools.build.lib.skyframe.PackageLookupValue;
+import com.google.devtools.build.lib.skyframe.PackageValue;
+import com.google.devtools.build.lib.skyframe.PrepareDepsOfPatternsFunction;
+import com.google.devtools.build.lib.skyframe.PrepareDepsOfPatternsValue;
+import com.google.devtools.build.lib.skyframe.PrepareDepsOfPatternsValue.TargetPatternSequence;
+import com.google.devtools.build.lib.skyframe.SkyFunctions;
+import com.google.devtools.build.lib.skyframe.TargetEdgeIndex;
+import com.google.devtools.build.lib.skyframe.TransitiveTraversalValue;
+import com.google.devtools.build.skyframe.EvaluationResult;
+import com.google.devtools.build.skyframe.QueryableGraph.Reason;
+import com.google.devtools.build.skyframe.SkyKey;
+import com.google.devtools.build.skyframe.SkyValue;
+import com.google.devtools.build.skyframe.WalkableGraph;
+import com.google.devtools.build.skyframe.WalkableGraph.WalkableGraphFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * A {@link WalkableGraphFactory} that lets a {@link SkyQueryEnvironment} answer queries with the
+ * target edges of a {@link TargetEdgeIndex} instead of loading its universe first.
+ *
+ * <p>The index is only used for universes that it covers (see {@link
+ * TargetEdgeIndex#coversUniverse}), and only if the universe is not loaded already. Otherwise, the
+ * delegate factory loads the universe, and the packages in its transitive closure are recorded as
+ * the universe's coverage, so that the next server can use the index for it.
+ *
+ * <p>When the index is used, the packages whose files have changed since their edges were
+ * recorded are loaded again, and the forward and reverse dependencies of targets are taken from
+ * the index. All other nodes, such as the packages that the targets of the result are taken from,
+ * are evaluated on demand by the delegate. Queries that need reverse dependencies of other nodes,
+ * such as {@code rbuildfiles}, make the graph load the universe on first use.
+ *
+ * <p>The index records every package the server has loaded, so on a cold server the reverse
+ * dependencies of a target may include targets outside of the transitive closure of the universe
+ * scope, and packages that were created after the universe was last recorded are not known until
+ * they are loaded.
+ */
+public final class TargetEdgeIndexGraphFactory implements WalkableGraphFactory {
+  private static final Logger logger =
+      Logger.getLogger(TargetEdgeIndexGraphFactory.class.getName());
+
+  private final WalkableGraphFactory delegate;
+  private final TargetEdgeIndex index;
+
+  public TargetEdgeIndexGraphFactory(WalkableGraphFactory delegate, TargetEdgeIndex index) {
+    this.delegate = delegate;
+    this.index = index;
+  }
+
+  @Override
+  public EvaluationResult<SkyValue> prepareAndGet(
+      Set<SkyKey> roots, int numThreads, ExtendedEventHandler eventHandler)
+      throws InterruptedException {
+    if (roots.size() != 1
+        || !Iterables.getOnlyElement(roots)
+            .functionName()
+            .equals(SkyFunctions.PREPARE_DEPS_OF_PATTERNS)) {
+      return delegate.prepareAndGet(roots, numThreads, eventHandler);
+    }
+    SkyKey universeKey = Iterables.getOnlyElement(roots);
+    String universe = describeUniverse(universeKey);
+    index.awaitPendingUpdates();
+    boolean covered = index.coversUniverse(universe);
+    if (!covered || delegate.isUpToDate(roots)) {
+      EvaluationResult<SkyValue> result = delegate.prepareAndGet(roots, numThreads, eventHandler);
+      if (!covered && result.get(universeKey) != null) {
+        try (AutoProfiler p =
+            AutoProfiler.logged("recording universe in target edge index", logger)) {
+          recordUniverse(universeKey, universe, result.getWalkableGraph());
+        }
+      }
+      return result;
+    }
+    IndexBackedWalkableGraph graph =
+        new IndexBackedWalkableGraph(roots, numThreads, eventHandler);
+    try (AutoProfiler p = AutoProfiler.logged("refreshing target edge index", logger)) {
+      graph.refresh(getStalePackages(numThreads));
+    }
+    return EvaluationResult.<SkyValue>builder()
+        .addResult(
+            universeKey,
+            new PrepareDepsOfPatternsValue(
+                PrepareDepsOfPatternsFunction.getTargetPatternKeys(
+                    PrepareDepsOfPatternsFunction.getSkyKeys(universeKey, eventHandler))))
+        .setWalkableGraph(graph)
+        .build();
+  }
+
+  @Override
+  public boolean isUpToDate(Set<SkyKey> roots) {
+    return delegate.isUpToDate(roots);
+  }
+
+  @Override
+  public SkyKey getUniverseKey(Collection<String> roots, String offset) {
+    return delegate.getUniverseKey(roots, offset);
+  }
+
+  /** Returns a string that identifies the given universe in the index. */
+  private static String describeUniverse(SkyKey universeKey) {
+    TargetPatternSequence sequence = (TargetPatternSequence) universeKey.argument();
+    return sequence.getOffset() + "\n" + Joiner.on('\n').join(sequence.getPatterns());
+  }
+
+  /**
+   * Records the packages in the transitive closure of the loaded universe in the index, as well
+   * as the fact that the index covers the universe.
+   */
+  private void recordUniverse(SkyKey universeKey, String universe, WalkableGraph graph)
+      throws InterruptedException {
+    Set<SkyKey> visited = new HashSet<>();
+    Set<SkyKey> packageKeys = new HashSet<>();
+    List<SkyKey> frontier = ImmutableList.of(universeKey);
+    visited.add(universeKey);
+    while (!frontier.isEmpty()) {
+      List<SkyKey> next = new ArrayList<>();
+      for (Iterable<SkyKey> deps : graph.getDirectDeps(frontier).values()) {
+        for (SkyKey dep : deps) {
+          if (!visited.add(dep)) {
+            continue;
+          }
+          if (dep.functionName().equals(SkyFunctions.PACKAGE)) {
+            // The dependencies of packages are files, not other packages of the universe.
+            packageKeys.add(dep);
+          } else {
+            next.add(dep);
+          }
+        }
+      }
+      frontier = next;
+    }
+    // Packages that do not exist are not part of the universe.
+    Map<SkyKey, SkyValue> packageValues = graph.getSuccessfulValues(packageKeys);
+    // The packages the universe was just loaded with may not be recorded yet.
+    index.awaitPendingUpdates();
+    Set<PackageIdentifier> packageIds = new HashSet<>();
+    for (Map.Entry<SkyKey, SkyValue> entry : packageValues.entrySet()) {
+      PackageIdentifier packageId = (PackageIdentifier) entry.getKey().argument();
+      packageIds.add(packageId);
+      if (!index.contains(packageId)) {
+        index.update(
+            ((PackageValue) entry.getValue()).getPackage(),
+            lookupId -> (PackageLookupValue) graph.getValue(PackageLookupValue.key(lookupId)));
+      }
+    }
+    index.recordUniverse(universe, packageIds);
+  }
+
+  private ImmutableSet<PackageIdentifier> getStalePackages(int numThreads)
+      throws InterruptedException {
+    ExecutorService executor =
+        Executors.newFixedThreadPool(
+            numThreads, new ThreadFactoryBuilder().setNameFormat("target-edge-index %d").build());
+    try {
+      return index.getStalePackages(executor);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * A {@link WalkableGraph} that takes the edges between targets from the index and evaluates all
+   * other nodes on demand.
+   */
+  @ThreadSafe
+  private final class IndexBackedWalkableGraph implements WalkableGraph {
+    private final Set<SkyKey> universeRoots;
+    private final int numThreads;
+    private final ExtendedEventHandler eventHandler;
+
+    /** The graph of the delegate, as of the most recent evaluation. */
+    private volatile WalkableGraph graph;
+
+    @GuardedBy("this")
+    private boolean universeLoaded;
+
+    IndexBackedWalkableGraph(
+        Set<SkyKey> universeRoots, int numThreads, ExtendedEventHandler eventHandler)
+        throws InterruptedException {
+      this.universeRoots = universeRoots;
+      this.numThreads = numThreads;
+      this.eventHandler = eventHandler;
+      evaluate(ImmutableSet.of());
+    }
+
+    /** Loads the given packages again and records their edges in the index. */
+    void refresh(Collection<PackageIdentifier> packages) throws InterruptedException {
+      if (packages.isEmpty()) {
+        return;
+      }
+      List<SkyKey> keys = new ArrayList<>(packages.size());
+      for (PackageIdentifier packageId : packages) {
+        keys.add(PackageValue.key(packageId));
+      }
+      evaluate(keys);
+      Map<SkyKey, SkyValue> values = graph.getSuccessfulValues(keys);
+      for (SkyKey key : keys) {
+        PackageValue value = (PackageValue) values.get(key);
+        if (value != null) {
+          index.update(
+              value.getPackage(),
+              lookupId -> (PackageLookupValue) getValue(PackageLookupValue.key(lookupId)));
+        } else {
+          index.remove((PackageIdentifier) key.argument());
+        }
+      }
+    }
+
+    private synchronized void evaluate(Iterable<SkyKey> keys) throws InterruptedException {
+      // The evaluator does not support concurrent evaluations.
+      graph =
+          delegate
+              .prepareAndGet(ImmutableSet.copyOf(keys), numThreads, eventHandler)
+              .getWalkableGraph();
+    }
+
+    /** Evaluates those of the given keys that are not done in the graph yet. */
+    private void ensureEvaluated(Iterable<SkyKey> keys) throws InterruptedException {
+      List<SkyKey> missing = new ArrayList<>();
+      for (Map.Entry<SkyKey, Exception> entry : graph.getMissingAndExceptions(keys).entrySet()) {
+        if (entry.getValue() == null) {
+          missing.add(entry.getKey());
+        }
+      }
+      if (!missing.isEmpty()) {
+        evaluate(missing);
+      }
+    }
+
+    private synchronized void ensureUniverseLoaded() throws InterruptedException {
+      if (!universeLoaded) {
+        evaluate(universeRoots);
+        universeLoaded = true;
+      }
+    }
+
+    /** Makes sure that the edges of the packages of the given targets are in the index. */
+    private void ensureIndexed(Iterable<Label> labels) throws InterruptedException {
+      Set<PackageIdentifier> missing = new HashSet<>();
+      for (Label label : labels) {
+        if (!index.contains(label.getPackageIdentifier())) {
+          missing.add(label.getPackageIdentifier());
+        }
+      }
+      refresh(missing);
+    }
+
+    @Nullable
+    @Override
+    public SkyValue getValue(SkyKey key) throws InterruptedException {
+      ensureEvaluated(ImmutableList.of(key));
+      return graph.getValue(key);
+    }
+
+    @Override
+    public Map<SkyKey, SkyValue> getSuccessfulValues(Iterable<SkyKey> keys)
+        throws InterruptedException {
+      ensureEvaluated(keys);
+      return graph.getSuccessfulValues(keys);
+    }
+
+    @Override
+    public Map<SkyKey, Exception> getMissingAndExceptions(Iterable<SkyKey> keys)
+        throws InterruptedException {
+      ensureEvaluated(keys);
+      return graph.getMissingAndExceptions(keys);
+    }
+
+    @Nullable
+    @Override
+    public Exception getException(SkyKey key) throws InterruptedException {
+      ensureEvaluated(ImmutableList.of(key));
+      return graph.getException(key);
+    }
+
+    @Override
+    public boolean isCycle(SkyKey key) throws InterruptedException {
+      ensureEvaluated(ImmutableList.of(key));
+      return graph.isCycle(key);
+    }
+
+    @Override
+    public Map<SkyKey, Iterable<SkyKey>> getDirectDeps(Iterable<SkyKey> keys)
+        throws InterruptedException {
+      List<SkyKey> otherKeys = new ArrayList<>();
+      Map<Label, SkyKey> targetKeys = new HashMap<>();
+      partition(keys, targetKeys, otherKeys);
+      ensureIndexed(targetKeys.keySet());
+      ImmutableMap.Builder<SkyKey, Iterable<SkyKey>> result = ImmutableMap.builder();
+      for (Map.Entry<Label, SkyKey> entry : targetKeys.entrySet()) {
+        ImmutableList<Label> deps = index.getDirectDeps(entry.getKey());
+        if (deps != null) {
+          result.put(entry.getValue(), toKeys(deps));
+        }
+      }
+      if (!otherKeys.isEmpty()) {
+        ensureEvaluated(otherKeys);
+        result.putAll(graph.getDirectDeps(otherKeys));
+      }
+      return result.build();
+    }
+
+    @Override
+    public Map<SkyKey, Iterable<SkyKey>> getReverseDeps(Iterable<SkyKey> keys)
+        throws InterruptedException {
+      List<SkyKey> otherKeys = new ArrayList<>();
+      Map<Label, SkyKey> targetKeys = new HashMap<>();
+      partition(keys, targetKeys, otherKeys);
+      ImmutableMap.Builder<SkyKey, Iterable<SkyKey>> result = ImmutableMap.builder();
+      for (Map.Entry<Label, SkyKey> entry : targetKeys.entrySet()) {
+        result.put(entry.getValue(), toKeys(index.getReverseDeps(entry.getKey())));
+      }
+      if (!otherKeys.isEmpty()) {
+        // Only the edges between targets are indexed.
+        ensureUniverseLoaded();
+        result.putAll(graph.getReverseDeps(otherKeys));
+      }
+      return result.build();
+    }
+
+    @Override
+    public Iterable<SkyKey> getCurrentlyAvailableNodes(Iterable<SkyKey> keys, Reason reason) {
+      // Every node can be evaluated on demand.
+      return keys;
+    }
+
+    private void partition(
+        Iterable<SkyKey> keys, Map<Label, SkyKey> targetKeys, List<SkyKey> otherKeys) {
+      for (SkyKey key : keys) {
+        if (key.functionName().equals(Label.TRANSITIVE_TRAVERSAL)) {
+          targetKeys.put((Label) key.argument(), key);
+        } else {
+          otherKeys.add(key);
+        }
+      }
+    }
+
+    private Iterable<SkyKey> toKeys(Collection<Label> labels) {
+      List<SkyKey> keys = new ArrayList<>(labels.size());
+      for (Label label : labels) {
+        keys.add(TransitiveTraversalValue.key(label));
+      }
+      return keys;
+    }
+  }
+}
@@ -135,44 +135,46 @@ public class BinaryOperatorExpression extends QueryExpression {
       final Callback<T> callback) {
     // For each right-hand side operand, intersection cannot be performed in a streaming manner; the
     // entire result of that operand is needed. So, in order to avoid pinning too much in memory at
-    // once, we process each right-hand side operand one at a time and throw away that operand's
-    // result.
-    // TODO(bazel-team): Consider keeping just the name / label of the right-hand side results
-    // instead of the potentially heavy-weight instances of type T. This would let us process all
-    // right-hand side operands in parallel without worrying about memory usage.
-    QueryTaskFuture<ThreadSafeMutableSet<T>> rollingResultFuture =
+    // once, each right-hand side operand only keeps the elements of its result that are also in
+    // the left-hand side operand's result. This lets us evaluate all the right-hand side operands
+    // in parallel once the left-hand side operand is evaluated.
+    QueryTaskFuture<ThreadSafeMutableSet<T>> lhsValueFuture =
         QueryUtil.evalAll(env, context, operands.get(0));
-    for (int i = 1; i < operands.size(); i++) {
-      final int index = i;
-      Function<ThreadSafeMutableSet<T>, QueryTaskFuture<ThreadSafeMutableSet<T>>>
-          evalOperandAndIntersectAsyncFunction =
-              rollingResult -> {
-                final QueryTaskFuture<ThreadSafeMutableSet<T>> rhsOperandValueFuture =
-                    QueryUtil.evalAll(env, context, operands.get(index));
-                return env.whenSucceedsCall(
-                    rhsOperandValueFuture,
-                    new QueryTaskCallable<ThreadSafeMutableSet<T>>() {
-                      @Override
-                      public ThreadSafeMutableSet<T> call()
-                          throws QueryException, InterruptedException {
-                        rollingResult.retainAll(rhsOperandValueFuture.getIfSuccessful());
-                        return rollingResult;
+    Function<ThreadSafeMutableSet<T>, QueryTaskFuture<Void>> intersectAsyncFunction =
+        lhsValue -> {
+          final List<ThreadSafeMutableSet<T>> rhsValuesInLhs =
+              new ArrayList<>(operands.size() - 1);
+          List<QueryTaskFuture<Void>> rhsEvaluatedFutures = new ArrayList<>(operands.size() - 1);
+          for (QueryExpression operand : operands.subList(1, operands.size())) {
+            final ThreadSafeMutableSet<T> rhsValueInLhs = env.createThreadSafeMutableSet();
+            rhsValuesInLhs.add(rhsValueInLhs);
+            Callback<T> filteringCallback =
+                new Callback<T>() {
+                  @Override
+                  public void process(Iterable<T> partialResult) {
+                    for (T target : partialResult) {
+                      if (lhsValue.contains(target)) {
+                        rhsValueInLhs.add(target);
                       }
-                    });
-              };
-      rollingResultFuture =
-          env.transformAsync(rollingResultFuture, evalOperandAndIntersectAsyncFunction);
-    }
-    final QueryTaskFuture<ThreadSafeMutableSet<T>> resultFuture = rollingResultFuture;
-    return env.whenSucceedsCall(
-        resultFuture,
-        new QueryTaskCallable<Void>() {
-          @Override
-          public Void call() throws QueryException, InterruptedException {
-            callback.process(resultFuture.getIfSuccessful());
-            return null;
+                    }
+                  }
+                };
+            rhsEvaluatedFutures.add(env.eval(operand, context, filteringCallback));
           }
-        });
+          return env.whenAllSucceedCall(
+              rhsEvaluatedFutures,
+              new QueryTaskCallable<Void>() {
+                @Override
+                public Void call() throws QueryException, InterruptedException {
+                  for (ThreadSafeMutableSet<T> rhsValueInLhs : rhsValuesInLhs) {
+                    lhsValue.retainAll(rhsValueInLhs);
+                  }
+                  callback.process(lhsValue);
+                  return null;
+                }
+              });
+        };
+    return env.transformAsync(lhsValueFuture, intersectAsyncFunction);
   }
 
   @Override
@@ -0,0 +1,172 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2.output;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.query2.engine.ThreadSafeOutputFormatterCallback;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * A {@link ThreadSafeOutputFormatterCallback} for output formats in which every target is
+ * formatted independently of the others.
+ *
+ * <p>Targets are formatted into bytes without holding any lock, so the threads of a query
+ * environment that reports its results in parallel format them concurrently, and only copying the
+ * bytes to the output is serialized. Batches larger than a chunk, such as the complete result of a
+ * query environment that does not stream, are formatted chunk by chunk on a pool of threads. Only
+ * a bounded number of formatted chunks is held in memory at any time, so the memory used for the
+ * output does not grow with the size of the result.
+ *
+ * <p>The targets of a single batch are written in the order in which they are passed, so the
+ * callback may also be used for ordered output.
+ */
+@ThreadSafe
+abstract class ParallelFormattingOutputFormatterCallback
+    extends ThreadSafeOutputFormatterCallback<Target> {
+
+  /** The number of targets that are formatted as one unit of work. */
+  static final int CHUNK_SIZE = 500;
+
+  protected final OutputStream out;
+  private final int threads;
+
+  @GuardedBy("this")
+  @Nullable
+  private ExecutorService executor;
+
+  @GuardedBy("this")
+  private boolean closed;
+
+  /**
+   * @param out the stream to write the formatted targets to
+   * @param threads the number of threads to format large batches on. If 1, all targets are
+   *     formatted on the thread that reports them
+   */
+  protected ParallelFormattingOutputFormatterCallback(OutputStream out, int threads) {
+    this.out = out;
+    this.threads = threads;
+  }
+
+  protected ParallelFormattingOutputFormatterCallback(OutputStream out) {
+    this(out, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Formats the given targets, in order. Called concurrently from several threads, so it must not
+   * modify any state shared with other calls.
+   */
+  protected abstract byte[] formatChunk(List<Target> targets)
+      throws IOException, InterruptedException;
+
+  /**
+   * Writes a chunk returned by {@link #formatChunk} to {@link #out}. Subclasses may override this
+   * to write a header before the first chunk.
+   */
+  @GuardedBy("this")
+  protected void writeChunk(byte[] formatted) throws IOException {
+    out.write(formatted);
+  }
+
+  @Override
+  public final void processOutput(Iterable<Target> partialResult)
+      throws IOException, InterruptedException {
+    Iterator<List<Target>> chunks = Iterators.partition(partialResult.iterator(), CHUNK_SIZE);
+    if (!chunks.hasNext()) {
+      return;
+    }
+    List<Target> first = chunks.next();
+    if (!chunks.hasNext()) {
+      // Small batches are formatted by the reporting thread, which is one of the threads of the
+      // query environment if it evaluates in parallel.
+      write(formatChunk(first));
+      return;
+    }
+    ExecutorService executor = getExecutor();
+    if (executor == null) {
+      write(formatChunk(first));
+      while (chunks.hasNext()) {
+        write(formatChunk(chunks.next()));
+      }
+      return;
+    }
+    Deque<Future<byte[]>> pending = new ArrayDeque<>();
+    try {
+      pending.addLast(executor.submit(() -> formatChunk(first)));
+      while (chunks.hasNext()) {
+        List<Target> chunk = chunks.next();
+        pending.addLast(executor.submit(() -> formatChunk(chunk)));
+        if (pending.size() > 2 * threads) {
+          write(pending.removeFirst().get());
+        }
+      }
+      while (!pending.isEmpty()) {
+        write(pending.removeFirst().get());
+      }
+    } catch (ExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause(), IOException.class, InterruptedException.class);
+      throw new IllegalStateException(e.getCause());
+    } finally {
+      for (Future<byte[]> future : pending) {
+        future.cancel(true);
+      }
+    }
+  }
+
+  @Override
+  public void close(boolean failFast) throws InterruptedException, IOException {
+    synchronized (this) {
+      closed = true;
+      if (executor != null) {
+        executor.shutdownNow();
+        executor = null;
+      }
+    }
+  }
+
+  private synchronized void write(byte[] formatted) throws IOException {
+    writeChunk(formatted);
+  }
+
+  @Nullable
+  private synchronized ExecutorService getExecutor() {
+    if (threads <= 1 || closed) {
+      return null;
+    }
+    if (executor == null) {
+      executor =
+          Executors.newFixedThreadPool(
+              threads,
+              new ThreadFactoryBuilder()
+                  .setNameFormat("query-output %d")
+                  .setDaemon(true)
+                  .build());
+    }
+    return executor;
+  }
+}
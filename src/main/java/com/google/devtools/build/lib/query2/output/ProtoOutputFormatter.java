@@ -27,6 +27,7 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Maps;
 import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
 import com.google.devtools.build.lib.graph.Digraph;
 import com.google.devtools.build.lib.packages.Attribute;
 import com.google.devtools.build.lib.packages.AttributeFormatter;
@@ -41,22 +42,23 @@ import com.google.devtools.build.lib.packages.Target;
 import com.google.devtools.build.lib.query2.FakeLoadTarget;
 import com.google.devtools.build.lib.query2.engine.OutputFormatterCallback;
 import com.google.devtools.build.lib.query2.engine.QueryEnvironment;
-import com.google.devtools.build.lib.query2.engine.SynchronizedDelegatingOutputFormatterCallback;
 import com.google.devtools.build.lib.query2.engine.ThreadSafeOutputFormatterCallback;
 import com.google.devtools.build.lib.query2.output.AspectResolver.BuildFileDependencyMode;
 import com.google.devtools.build.lib.query2.output.OutputFormatter.AbstractUnorderedFormatter;
 import com.google.devtools.build.lib.query2.output.QueryOptions.OrderOutput;
 import com.google.devtools.build.lib.query2.proto.proto2api.Build;
 import com.google.devtools.build.lib.query2.proto.proto2api.Build.GeneratedFile;
-import com.google.devtools.build.lib.query2.proto.proto2api.Build.QueryResult.Builder;
 import com.google.devtools.build.lib.query2.proto.proto2api.Build.SourceFile;
 import com.google.devtools.build.lib.syntax.Environment;
 import com.google.devtools.build.lib.syntax.Type;
+import com.google.protobuf.CodedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -81,6 +83,12 @@ public class ProtoOutputFormatter extends AbstractUnorderedFormatter {
           Type.INTEGER, Type.STRING, BuildType.LABEL, BuildType.NODEP_LABEL, BuildType.OUTPUT,
           Type.BOOLEAN, BuildType.TRISTATE, BuildType.LICENSE);
 
+  /**
+   * The tag of a {@code target} field with wire type 7, which does not exist. Ends the output of a
+   * failed query.
+   */
+  private static final int FAILED_QUERY_MARKER = (Build.QueryResult.TARGET_FIELD_NUMBER << 3) | 7;
+
   private boolean relativeLocations = false;
   protected boolean includeDefaultValues = true;
 
@@ -103,46 +111,58 @@ public class ProtoOutputFormatter extends AbstractUnorderedFormatter {
   @Override
   public OutputFormatterCallback<Target> createPostFactoStreamCallback(
       final OutputStream out, final QueryOptions options) {
-    return new OutputFormatterCallback<Target>() {
+    return createStreamCallback(out, options);
+  }
 
-      private Builder queryResult;
+  @Override
+  public ThreadSafeOutputFormatterCallback<Target> createStreamCallback(
+      OutputStream out, QueryOptions options, QueryEnvironment<?> env) {
+    return createStreamCallback(out, options);
+  }
 
-      @Override
-      public void start() {
-        queryResult = Build.QueryResult.newBuilder();
-      }
+  @VisibleForTesting
+  public ThreadSafeOutputFormatterCallback<Target> createStreamCallback(
+      OutputStream out, QueryOptions options) {
+    return createStreamCallback(out, Runtime.getRuntime().availableProcessors());
+  }
 
+  /**
+   * Returns a callback that formats each target as a {@code target} field of a {@link
+   * Build.QueryResult}. As the field is repeated, the concatenation of the fields is the same as
+   * the serialization of a {@link Build.QueryResult} containing all the targets.
+   *
+   * <p>The fields are written as soon as they are formatted. Any prefix of them is a valid {@link
+   * Build.QueryResult} too, so if the query fails, the output is ended with a field of an invalid
+   * wire type, which makes parsing it fail instead of yielding a partial result.
+   */
+  @VisibleForTesting
+  ThreadSafeOutputFormatterCallback<Target> createStreamCallback(OutputStream out, int threads) {
+    return new ParallelFormattingOutputFormatterCallback(out, threads) {
       @Override
-      public void processOutput(Iterable<Target> partialResult)
+      protected byte[] formatChunk(List<Target> targets)
           throws IOException, InterruptedException {
-
-        for (Target target : partialResult) {
-          queryResult.addTarget(toTargetProtoBuffer(target));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CodedOutputStream codedOut = CodedOutputStream.newInstance(bytes);
+        for (Target target : targets) {
+          codedOut.writeMessage(
+              Build.QueryResult.TARGET_FIELD_NUMBER, toTargetProtoBuffer(target));
         }
+        codedOut.flush();
+        return bytes.toByteArray();
       }
 
       @Override
-      public void close(boolean failFast) throws IOException {
-        if (!failFast) {
-          queryResult.build().writeTo(out);
+      public void close(boolean failFast) throws InterruptedException, IOException {
+        super.close(failFast);
+        if (failFast) {
+          synchronized (this) {
+            out.write(FAILED_QUERY_MARKER);
+          }
         }
       }
     };
   }
 
-  @Override
-  public ThreadSafeOutputFormatterCallback<Target> createStreamCallback(
-      OutputStream out, QueryOptions options, QueryEnvironment<?> env) {
-    return createStreamCallback(out, options);
-  }
-
-  @VisibleForTesting
-  public ThreadSafeOutputFormatterCallback<Target> createStreamCallback(
-      OutputStream out, QueryOptions options) {
-    return new SynchronizedDelegatingOutputFormatterCallback<>(
-        createPostFactoStreamCallback(out, options));
-  }
-
   private static Iterable<Target> getSortedLabels(Digraph<Target> result) {
     return Iterables.transform(
         result.getTopologicalOrder(new TargetOrdering()), EXTRACT_NODE_LABEL);
@@ -153,7 +173,17 @@ public class ProtoOutputFormatter extends AbstractUnorderedFormatter {
     return options.orderOutput == OrderOutput.FULL ? getSortedLabels(result) : result.getLabels();
   }
 
-  /** Converts a logical {@link Target} object into a {@link Build.Target} protobuffer. */
+  /**
+   * Converts a logical {@link Target} object into a {@link Build.Target} protobuffer.
+   *
+   * <p>Called concurrently by {@link ParallelFormattingOutputFormatterCallback}. This is safe
+   * once {@link #setOptions} has been called: it only reads the options, the target, which is
+   * immutable once its package is loaded, and packages looked up through the {@link
+   * AspectResolver}, whose {@link com.google.devtools.build.lib.pkgcache.PackageProvider} is
+   * thread-safe. Subclasses overriding the hooks below must keep them free of shared mutable
+   * state.
+   */
+  @ThreadSafe
   @VisibleForTesting
   public Build.Target toTargetProtoBuffer(Target target) throws InterruptedException {
     Build.Target.Builder targetPb = Build.Target.newBuilder();
@@ -126,7 +126,9 @@ public class QueryOptions extends OptionsBase {
             + "fully ordered, depending on the output formatter (dependency-ordered for proto, "
             + "minrank, maxrank, and graph, fully ordered for all others). When output is fully "
             + "ordered, nodes that would otherwise be unordered by the output formatter are "
-            + "alphabetized before output."
+            + "alphabetized before output. Unordered output is printed while the query is "
+            + "evaluated, except for the package, minrank, maxrank, and graph formatters, which "
+            + "need the complete result."
   )
   public OrderOutput orderOutput;
 
@@ -152,6 +154,20 @@ public class QueryOptions extends OptionsBase {
   )
   public int loadingPhaseThreads;
 
+  @Option(
+    name = "experimental_query_evaluation_threads",
+    defaultValue = "1",
+    category = "query",
+    documentationCategory = OptionDocumentationCategory.QUERY,
+    effectTags = {OptionEffectTag.EXECUTION},
+    help =
+        "The number of threads to evaluate a query without --universe_scope on. If greater than "
+            + "1, the operands of set operations and the arguments of functions are evaluated in "
+            + "parallel, and transitive closures are computed with a parallel traversal of the "
+            + "target graph. The query result does not depend on this setting."
+  )
+  public int queryEvaluationThreads;
+
   @Option(
     name = "host_deps",
     defaultValue = "true",
@@ -271,6 +287,23 @@ public class QueryOptions extends OptionsBase {
   )
   public List<String> universeScope;
 
+  @Option(
+    name = "experimental_persistent_rdeps_index",
+    defaultValue = "false",
+    category = "query",
+    documentationCategory = OptionDocumentationCategory.QUERY,
+    effectTags = {OptionEffectTag.LOADING_AND_ANALYSIS},
+    help =
+        "If true, queries with --universe_scope take the dependencies and reverse dependencies "
+            + "of targets from an index in the output base that is kept across server restarts, "
+            + "instead of loading the whole universe when the server starts. Only the packages "
+            + "whose BUILD files, .bzl files or source directories changed since they were "
+            + "indexed are loaded again. The reverse dependencies of a target may then include "
+            + "targets outside of the universe that were loaded by earlier commands, and new "
+            + "packages are only found once they are loaded."
+  )
+  public boolean persistentRdepsIndex;
+
   @Option(
     name = "relative_locations",
     defaultValue = "false",
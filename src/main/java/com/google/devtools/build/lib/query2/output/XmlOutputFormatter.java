@@ -13,9 +13,13 @@
 // limitations under the License.
 package com.google.devtools.build.lib.query2.output;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
 import com.google.devtools.build.lib.packages.Attribute;
 import com.google.devtools.build.lib.packages.BuildType;
 import com.google.devtools.build.lib.packages.EnvironmentGroup;
@@ -29,17 +33,19 @@ import com.google.devtools.build.lib.packages.Target;
 import com.google.devtools.build.lib.query2.FakeLoadTarget;
 import com.google.devtools.build.lib.query2.engine.OutputFormatterCallback;
 import com.google.devtools.build.lib.query2.engine.QueryEnvironment;
-import com.google.devtools.build.lib.query2.engine.SynchronizedDelegatingOutputFormatterCallback;
 import com.google.devtools.build.lib.query2.engine.ThreadSafeOutputFormatterCallback;
 import com.google.devtools.build.lib.query2.output.AspectResolver.BuildFileDependencyMode;
 import com.google.devtools.build.lib.query2.output.OutputFormatter.AbstractUnorderedFormatter;
 import com.google.devtools.build.lib.syntax.Type;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.StringWriter;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import javax.annotation.concurrent.GuardedBy;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.OutputKeys;
@@ -65,55 +71,112 @@ class XmlOutputFormatter extends AbstractUnorderedFormatter {
   @Override
   public ThreadSafeOutputFormatterCallback<Target> createStreamCallback(
       OutputStream out, QueryOptions options, QueryEnvironment<?> env) {
-    return new SynchronizedDelegatingOutputFormatterCallback<>(
-        createPostFactoStreamCallback(out, options));
+    return new XmlOutputFormatterCallback(out, Runtime.getRuntime().availableProcessors());
   }
 
   @Override
   public OutputFormatterCallback<Target> createPostFactoStreamCallback(
       final OutputStream out, final QueryOptions options) {
-    return new OutputFormatterCallback<Target>() {
-
-      private Document doc;
-      private Element queryElem;
-
-      @Override
-      public void start() {
-        try {
-          DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-          doc = factory.newDocumentBuilder().newDocument();
-        } catch (ParserConfigurationException e) {
-          // This shouldn't be possible: all the configuration is hard-coded.
-          throw new IllegalStateException("XML output failed", e);
-        }
-        doc.setXmlVersion("1.1");
-        queryElem = doc.createElement("query");
-        queryElem.setAttribute("version", "2");
-        doc.appendChild(queryElem);
+    return new XmlOutputFormatterCallback(out, Runtime.getRuntime().availableProcessors());
+  }
+
+  @VisibleForTesting
+  ThreadSafeOutputFormatterCallback<Target> createStreamCallback(OutputStream out, int threads) {
+    return new XmlOutputFormatterCallback(out, threads);
+  }
+
+  /**
+   * Writes the {@code <query>} element one chunk of targets at a time.
+   *
+   * <p>Every chunk is serialized as a document of its own, whose {@code <query>} element only
+   * contains the elements of the chunk, so that chunks can be serialized in parallel and the
+   * document of the complete result never has to be held in memory. The start and end tags of
+   * these documents are dropped, except for the start tag of the first chunk and the end tag of
+   * the last one, which makes the output the same as the serialization of a single document.
+   *
+   * <p>If the query fails, the end tag is not written, so the partial output is not well-formed
+   * XML and cannot be mistaken for a complete result.
+   */
+  private class XmlOutputFormatterCallback extends ParallelFormattingOutputFormatterCallback {
+    /** The end tag of the {@code <query>} element, and what follows it. */
+    @GuardedBy("this")
+    private String footer;
+
+    private XmlOutputFormatterCallback(OutputStream out, int threads) {
+      super(out, threads);
+    }
+
+    @Override
+    protected byte[] formatChunk(List<Target> targets) throws InterruptedException {
+      Document doc = createDocument();
+      for (Target target : targets) {
+        doc.getDocumentElement().appendChild(createTargetElement(doc, target));
       }
+      return serialize(doc).getBytes(UTF_8);
+    }
 
-      @Override
-      public void processOutput(Iterable<Target> partialResult)
-          throws IOException, InterruptedException {
-        for (Target target : partialResult) {
-          queryElem.appendChild(createTargetElement(doc, target));
-        }
+    @Override
+    @GuardedBy("this")
+    protected void writeChunk(byte[] formatted) throws IOException {
+      String chunk = new String(formatted, UTF_8);
+      int end = chunk.lastIndexOf("</query>");
+      if (footer == null) {
+        footer = chunk.substring(end);
+        out.write(chunk.substring(0, end).getBytes(UTF_8));
+      } else {
+        out.write(chunk.substring(startTagEnd(chunk), end).getBytes(UTF_8));
       }
+    }
 
-      @Override
-      public void close(boolean failFast) throws IOException {
-        if (!failFast) {
-          try {
-            Transformer transformer = TransformerFactory.newInstance().newTransformer();
-            transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-            transformer.transform(new DOMSource(doc), new StreamResult(out));
-          } catch (TransformerFactoryConfigurationError | TransformerException e) {
-            // This shouldn't be possible: all the configuration is hard-coded.
-            throw new IllegalStateException("XML output failed", e);
-          }
+    @Override
+    public void close(boolean failFast) throws InterruptedException, IOException {
+      super.close(failFast);
+      if (!failFast) {
+        synchronized (this) {
+          String end = footer != null ? footer : serialize(createDocument());
+          out.write(end.getBytes(UTF_8));
         }
       }
-    };
+    }
+  }
+
+  /** Returns the position after the {@code <query>} start tag and the line break following it. */
+  private static int startTagEnd(String serialized) {
+    int end = serialized.indexOf('>', serialized.indexOf("<query")) + 1;
+    while (end < serialized.length()
+        && (serialized.charAt(end) == '\r' || serialized.charAt(end) == '\n')) {
+      end++;
+    }
+    return end;
+  }
+
+  private static Document createDocument() {
+    Document doc;
+    try {
+      DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+      doc = factory.newDocumentBuilder().newDocument();
+    } catch (ParserConfigurationException e) {
+      // This shouldn't be possible: all the configuration is hard-coded.
+      throw new IllegalStateException("XML output failed", e);
+    }
+    doc.setXmlVersion("1.1");
+    Element queryElem = doc.createElement("query");
+    queryElem.setAttribute("version", "2");
+    doc.appendChild(queryElem);
+    return doc;
+  }
+
+  private static String serialize(Document doc) {
+    try {
+      Transformer transformer = TransformerFactory.newInstance().newTransformer();
+      transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+      StringWriter writer = new StringWriter();
+      transformer.transform(new DOMSource(doc), new StreamResult(writer));
+      return writer.toString();
+    } catch (TransformerFactoryConfigurationError | TransformerException e) {
+      // This shouldn't be possible: all the configuration is hard-coded.
+      throw new IllegalStateException("XML output failed", e);
+    }
   }
 
   /**
@@ -126,9 +189,18 @@ class XmlOutputFormatter extends AbstractUnorderedFormatter {
    * - 'name' attribute is target's label.
    * - 'location' attribute is consistent with output of --output location.
    * - rule attributes are represented in the DOM structure.
+   *
+   * <p>Called concurrently by {@link ParallelFormattingOutputFormatterCallback}, with a separate
+   * document for every chunk of targets. This is safe once {@link #setOptions} has been called:
+   * apart from the document, it only reads the options, the target, which is immutable once its
+   * package is loaded, and packages looked up through the {@link AspectResolver}, whose {@link
+   * com.google.devtools.build.lib.pkgcache.PackageProvider} is thread-safe.
+   *
    * @throws InterruptedException
    */
-  private Element createTargetElement(Document doc, Target target)
+  @ThreadSafe
+  @VisibleForTesting
+  Element createTargetElement(Document doc, Target target)
       throws InterruptedException {
     Element elem;
     if (target instanceof Rule) {
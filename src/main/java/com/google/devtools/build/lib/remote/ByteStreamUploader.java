@@ -50,6 +50,7 @@ import java.util.UUID;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.Nullable;
@@ -58,6 +59,10 @@ import javax.annotation.concurrent.GuardedBy;
 /**
  * A client implementing the {@code Write} method of the {@code ByteStream} gRPC service.
  *
+ * <p>At most a fixed number of uploads are in flight at any time. Callers that start more uploads
+ * block until earlier ones complete, so that a build producing blobs faster than they can be
+ * uploaded does not queue an unbounded number of calls and open files.
+ *
  * <p>Users must call {@link #shutdown()} before exiting.
  */
 final class ByteStreamUploader {
@@ -70,6 +75,7 @@ final class ByteStreamUploader {
   private final long callTimeoutSecs;
   private final Retrier retrier;
   private final ListeningScheduledExecutorService retryService;
+  private final Semaphore uploadPermits;
 
   private final Object lock = new Object();
 
@@ -101,7 +107,32 @@ final class ByteStreamUploader {
       long callTimeoutSecs,
       Retrier retrier,
       ListeningScheduledExecutorService retryService) {
+    this(
+        instanceName,
+        channel,
+        callCredentials,
+        callTimeoutSecs,
+        retrier,
+        retryService,
+        Integer.MAX_VALUE);
+  }
+
+  /**
+   * Creates a new instance that runs at most {@code maxConcurrentUploads} uploads at a time.
+   *
+   * @see #ByteStreamUploader(String, Channel, CallCredentials, long, Retrier,
+   *     ListeningScheduledExecutorService)
+   */
+  public ByteStreamUploader(
+      @Nullable String instanceName,
+      Channel channel,
+      @Nullable CallCredentials callCredentials,
+      long callTimeoutSecs,
+      Retrier retrier,
+      ListeningScheduledExecutorService retryService,
+      int maxConcurrentUploads) {
     checkArgument(callTimeoutSecs > 0, "callTimeoutSecs must be gt 0.");
+    checkArgument(maxConcurrentUploads > 0, "maxConcurrentUploads must be gt 0.");
 
     this.instanceName = instanceName;
     this.channel = channel;
@@ -109,6 +140,7 @@ final class ByteStreamUploader {
     this.callTimeoutSecs = callTimeoutSecs;
     this.retrier = retrier;
     this.retryService = retryService;
+    this.uploadPermits = new Semaphore(maxConcurrentUploads);
   }
 
   /**
@@ -170,6 +202,34 @@ final class ByteStreamUploader {
     }
   }
 
+  /**
+   * Uploads the manifest of a blob whose chunks have already been uploaded, and asks the server to
+   * reassemble the blob from them. See {@link ContentDefinedChunker} for the protocol.
+   *
+   * <p>A server that does not support chunked blobs stores the manifest as an ordinary blob, so
+   * callers should check that the blob exists afterwards.
+   *
+   * @throws IOException when reading the manifest fails
+   * @throws RetryException when the upload failed after a retry, for example because the server
+   *     no longer has one of the chunks
+   */
+  void uploadChunkedBlob(Digest blobDigest, Chunker manifest)
+      throws IOException, InterruptedException {
+    try {
+      uploadBlobAsync(manifest, blobDigest).get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RetryException) {
+        throw (RetryException) cause;
+      } else {
+        throw Throwables.propagate(cause);
+      }
+    } catch (InterruptedException e) {
+      Thread.interrupted();
+      throw e;
+    }
+  }
+
   /**
    * Cancels all running uploads. The method returns immediately and does NOT wait for the uploads
    * to be cancelled.
@@ -192,27 +252,57 @@ final class ByteStreamUploader {
     }
   }
 
+  /**
+   * Starts uploading a blob, blocking until fewer than the maximum number of uploads are in flight.
+   */
   @VisibleForTesting
   ListenableFuture<Void> uploadBlobAsync(Chunker chunker)
-      throws IOException {
+      throws IOException, InterruptedException {
+    return uploadBlobAsync(chunker, null);
+  }
+
+  private ListenableFuture<Void> uploadBlobAsync(Chunker chunker, @Nullable Digest chunkedBlob)
+      throws IOException, InterruptedException {
     Digest digest = checkNotNull(chunker.digest());
 
     synchronized (lock) {
       checkState(!isShutdown, "Must not call uploadBlobs after shutdown.");
+      ListenableFuture<Void> uploadResult = uploadsInProgress.get(digest);
+      if (uploadResult != null) {
+        return uploadResult;
+      }
+    }
 
+    // Wait for a permit outside of the lock, as completing uploads need it to remove themselves.
+    uploadPermits.acquire();
+    synchronized (lock) {
+      if (isShutdown) {
+        uploadPermits.release();
+        throw new IllegalStateException("Must not call uploadBlobs after shutdown.");
+      }
       ListenableFuture<Void> uploadResult = uploadsInProgress.get(digest);
-      if (uploadResult == null) {
-        uploadResult = SettableFuture.create();
-        uploadResult.addListener(
-            () -> {
-              synchronized (lock) {
-                uploadsInProgress.remove(digest);
-              }
-            },
-            MoreExecutors.directExecutor());
+      if (uploadResult != null) {
+        // Another thread started the same upload while we were waiting.
+        uploadPermits.release();
+        return uploadResult;
+      }
+      uploadResult = SettableFuture.create();
+      uploadResult.addListener(
+          () -> {
+            uploadPermits.release();
+            synchronized (lock) {
+              uploadsInProgress.remove(digest);
+            }
+          },
+          MoreExecutors.directExecutor());
+      // Register the upload first, as it may complete synchronously and remove itself.
+      uploadsInProgress.put(digest, uploadResult);
+      try {
         startAsyncUploadWithRetry(
-            chunker, retrier.newBackoff(), (SettableFuture<Void>) uploadResult);
-        uploadsInProgress.put(digest, uploadResult);
+            chunker, chunkedBlob, retrier.newBackoff(), (SettableFuture<Void>) uploadResult);
+      } catch (RuntimeException | Error e) {
+        // Failing the upload releases its permit and unregisters it.
+        ((SettableFuture<Void>) uploadResult).setException(e);
       }
       return uploadResult;
     }
@@ -227,6 +317,7 @@ final class ByteStreamUploader {
 
   private void startAsyncUploadWithRetry(
       Chunker chunker,
+      @Nullable Digest chunkedBlob,
       Retrier.Backoff backoffTimes,
       SettableFuture<Void> overallUploadResult) {
 
@@ -262,7 +353,7 @@ final class ByteStreamUploader {
                           .wrap(
                               () ->
                                   startAsyncUploadWithRetry(
-                                      chunker, backoffTimes, overallUploadResult)),
+                                      chunker, chunkedBlob, backoffTimes, overallUploadResult)),
                       nextDelayMillis,
                       MILLISECONDS);
               // In case the scheduled execution errors, we need to notify the overallUploadResult.
@@ -292,7 +383,14 @@ final class ByteStreamUploader {
     }
 
     AsyncUpload newUpload =
-        new AsyncUpload(channel, callCredentials, callTimeoutSecs, instanceName, chunker, listener);
+        new AsyncUpload(
+            channel,
+            callCredentials,
+            callTimeoutSecs,
+            instanceName,
+            chunker,
+            chunkedBlob,
+            listener);
     overallUploadResult.addListener(
         () -> {
           if (overallUploadResult.isCancelled()) {
@@ -316,6 +414,7 @@ final class ByteStreamUploader {
     private final long callTimeoutSecs;
     private final String instanceName;
     private final Chunker chunker;
+    @Nullable private final Digest chunkedBlob;
     private final Listener listener;
 
     private ClientCall<WriteRequest, WriteResponse> call;
@@ -326,12 +425,14 @@ final class ByteStreamUploader {
         long callTimeoutSecs,
         String instanceName,
         Chunker chunker,
+        @Nullable Digest chunkedBlob,
         Listener listener) {
       this.channel = channel;
       this.callCredentials = callCredentials;
       this.callTimeoutSecs = callTimeoutSecs;
       this.instanceName = instanceName;
       this.chunker = chunker;
+      this.chunkedBlob = chunkedBlob;
       this.listener = listener;
     }
 
@@ -412,9 +513,14 @@ final class ByteStreamUploader {
 
             private String newResourceName(Digest digest) {
               String resourceName =
-                  format(
-                      "uploads/%s/blobs/%s/%d",
-                      UUID.randomUUID(), digest.getHash(), digest.getSizeBytes());
+                  chunkedBlob == null
+                      ? format(
+                          "uploads/%s/blobs/%s/%d",
+                          UUID.randomUUID(), digest.getHash(), digest.getSizeBytes())
+                      : format(
+                          "uploads/%s/%s",
+                          UUID.randomUUID(),
+                          ContentDefinedChunker.chunkedBlobPath(chunkedBlob, digest));
               if (!Strings.isNullOrEmpty(instanceName)) {
                 resourceName = instanceName + "/" + resourceName;
               }
@@ -137,6 +137,22 @@ public final class Chunker {
     }, Digests.computeDigest(file), chunkSize);
   }
 
+  /**
+   * Creates a chunker for the {@code digest.getSizeBytes()} bytes of the given file that start at
+   * {@code offset}, which are uploaded as a blob of their own.
+   */
+  Chunker(Path file, long offset, Digest digest) throws IOException {
+    this(() -> {
+      try {
+        InputStream in = file.getInputStream();
+        ByteStreams.skipFully(in, offset);
+        return ByteStreams.limit(in, digest.getSizeBytes());
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }, digest, getDefaultChunkSize());
+  }
+
   public Chunker(ActionInput actionInput, MetadataProvider inputCache, Path execRoot) throws
       IOException{
     this(actionInput, inputCache, execRoot, getDefaultChunkSize());
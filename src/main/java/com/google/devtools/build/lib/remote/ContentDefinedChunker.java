@@ -0,0 +1,219 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.remote;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.remoteexecution.v1test.Digest;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Random;
+import javax.annotation.Nullable;
+
+/**
+ * Splits data into chunks whose boundaries depend on the content rather than on the offset, so
+ * that a small edit to a large blob only changes the few chunks around the edit.
+ *
+ * <p>Boundaries are found with a gear rolling hash over the last 64 bytes: after the minimum chunk
+ * size, a position ends a chunk if the top bits of the hash are all zero, and a chunk is cut at the
+ * maximum size if no such position is found. The gear table is derived from a fixed seed, so all
+ * clients agree on the boundaries of the same data.
+ *
+ * <p>Unlike the pieces produced by {@link Chunker}, which are only a means of streaming one blob,
+ * each chunk is a blob of its own. A chunked blob is uploaded by storing its missing chunks in the
+ * CAS and then writing a manifest that lists the digests of all of its chunks to a resource name
+ * of the form {@code [instance/]uploads/<uuid>/chunked-blobs/<hash>/<size>/blobs/<manifest
+ * hash>/<manifest size>}, which asks the server to reassemble the blob. A server that does not know
+ * about chunked blobs stores the manifest as an ordinary blob, which the client can detect by
+ * checking whether the reassembled blob exists afterwards.
+ */
+public final class ContentDefinedChunker {
+
+  /** The average chunk size used for uploads of large outputs. */
+  static final int DEFAULT_AVERAGE_CHUNK_SIZE = 64 * 1024;
+
+  private static final String CHUNKED_BLOBS = "chunked-blobs";
+
+  private static final long[] GEAR = new long[256];
+
+  static {
+    Random random = new Random(0x6275696c64L);
+    for (int i = 0; i < GEAR.length; i++) {
+      GEAR[i] = random.nextLong();
+    }
+  }
+
+  /** A chunk of a blob, given by its offset in the blob and its digest. */
+  public static final class Segment {
+    private final long offset;
+    private final Digest digest;
+
+    Segment(long offset, Digest digest) {
+      this.offset = offset;
+      this.digest = digest;
+    }
+
+    public long getOffset() {
+      return offset;
+    }
+
+    public Digest getDigest() {
+      return digest;
+    }
+  }
+
+  private final int minSize;
+  private final int maxSize;
+  private final long mask;
+
+  /**
+   * Creates a chunker for chunks of about {@code averageSize} bytes. Chunks are at least a quarter
+   * and at most four times that size.
+   *
+   * @param averageSize a power of two of at least 64 bytes
+   */
+  public ContentDefinedChunker(int averageSize) {
+    checkArgument(
+        averageSize >= 64 && Integer.bitCount(averageSize) == 1,
+        "averageSize must be a power of two of at least 64");
+    this.minSize = averageSize / 4;
+    this.maxSize = averageSize * 4;
+    int bits = Integer.numberOfTrailingZeros(averageSize);
+    // Use the top bits, which depend on the last 64 bytes, rather than the most recent ones only.
+    this.mask = -1L << (64 - bits);
+  }
+
+  /** Splits the given stream into chunks and returns them in order. */
+  public ImmutableList<Segment> split(InputStream in) throws IOException {
+    ImmutableList.Builder<Segment> result = ImmutableList.builder();
+    byte[] buffer = new byte[maxSize];
+    int filled = 0;
+    long offset = 0;
+    boolean eof = false;
+    while (true) {
+      if (!eof) {
+        int read = ByteStreams.read(in, buffer, filled, maxSize - filled);
+        filled += read;
+        eof = filled < maxSize;
+      }
+      if (filled == 0) {
+        break;
+      }
+      int length = findBoundary(buffer, filled);
+      result.add(
+          new Segment(
+              offset,
+              Digests.buildDigest(
+                  FileSystem.getDigestFunction()
+                      .getHash()
+                      .hashBytes(buffer, 0, length)
+                      .toString(),
+                  length)));
+      System.arraycopy(buffer, length, buffer, 0, filled - length);
+      filled -= length;
+      offset += length;
+    }
+    return result.build();
+  }
+
+  /** Returns the length of the chunk at the start of the first {@code length} bytes of data. */
+  private int findBoundary(byte[] data, int length) {
+    if (length <= minSize) {
+      return length;
+    }
+    int end = Math.min(length, maxSize);
+    long hash = 0;
+    for (int i = minSize; i < end; i++) {
+      hash = (hash << 1) + GEAR[data[i] & 0xff];
+      if ((hash & mask) == 0) {
+        return i + 1;
+      }
+    }
+    return end;
+  }
+
+  /** Returns the manifest of a blob that consists of the given chunks, in order. */
+  public static byte[] encodeManifest(List<Digest> chunks) {
+    StringBuilder manifest = new StringBuilder();
+    for (Digest chunk : chunks) {
+      manifest.append(chunk.getHash()).append('/').append(chunk.getSizeBytes()).append('\n');
+    }
+    return manifest.toString().getBytes(UTF_8);
+  }
+
+  /**
+   * Parses a manifest written by {@link #encodeManifest}.
+   *
+   * @throws IOException if the manifest is malformed
+   */
+  public static ImmutableList<Digest> decodeManifest(byte[] manifest) throws IOException {
+    ImmutableList.Builder<Digest> chunks = ImmutableList.builder();
+    for (String line : new String(manifest, UTF_8).split("\n")) {
+      if (line.isEmpty()) {
+        continue;
+      }
+      int slash = line.indexOf('/');
+      try {
+        if (slash <= 0) {
+          throw new NumberFormatException();
+        }
+        chunks.add(
+            Digests.buildDigest(
+                line.substring(0, slash), Long.parseLong(line.substring(slash + 1))));
+      } catch (NumberFormatException e) {
+        throw new IOException("Malformed chunk manifest entry: " + line);
+      }
+    }
+    return chunks.build();
+  }
+
+  /**
+   * Returns the part of the upload resource name, following the upload id, that asks the server to
+   * reassemble the blob with the given digest from the given manifest.
+   */
+  static String chunkedBlobPath(Digest blob, Digest manifest) {
+    return String.format(
+        "%s/%s/%d/blobs/%s/%d",
+        CHUNKED_BLOBS,
+        blob.getHash(),
+        blob.getSizeBytes(),
+        manifest.getHash(),
+        manifest.getSizeBytes());
+  }
+
+  /**
+   * Returns the digest of the blob to reassemble if the given upload resource name is that of a
+   * chunk manifest, and null otherwise.
+   */
+  @Nullable
+  public static Digest parseChunkedBlobDigest(String resourceName) {
+    String[] tokens = resourceName.split("/");
+    for (int i = 0; i + 2 < tokens.length; i++) {
+      if (tokens[i].equals(CHUNKED_BLOBS)) {
+        try {
+          return Digests.buildDigest(tokens[i + 1], Long.parseLong(tokens[i + 2]));
+        } catch (NumberFormatException e) {
+          return null;
+        }
+      }
+    }
+    return null;
+  }
+}
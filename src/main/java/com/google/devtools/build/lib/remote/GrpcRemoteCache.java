@@ -19,6 +19,8 @@ import com.google.bytestream.ByteStreamGrpc.ByteStreamBlockingStub;
 import com.google.bytestream.ByteStreamProto.ReadRequest;
 import com.google.bytestream.ByteStreamProto.ReadResponse;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
@@ -29,6 +31,7 @@ import com.google.devtools.build.lib.actions.EnvironmentalExecException;
 import com.google.devtools.build.lib.actions.ExecException;
 import com.google.devtools.build.lib.actions.MetadataProvider;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.remote.ContentDefinedChunker.Segment;
 import com.google.devtools.build.lib.remote.Digests.ActionKey;
 import com.google.devtools.build.lib.remote.TreeNodeRepository.TreeNode;
 import com.google.devtools.build.lib.util.io.FileOutErr;
@@ -53,12 +56,14 @@ import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Executors;
@@ -73,6 +78,24 @@ public class GrpcRemoteCache implements RemoteActionCache {
   private final Retrier retrier;
 
   private final ByteStreamUploader uploader;
+  private final MissingDigestsFinder missingDigestsFinder;
+
+  /** The maximum number of chunk digests to remember in {@link #uploadedChunks}. */
+  private static final int UPLOADED_CHUNKS_INDEX_SIZE = 1 << 20;
+
+  private final ContentDefinedChunker contentDefinedChunker =
+      new ContentDefinedChunker(ContentDefinedChunker.DEFAULT_AVERAGE_CHUNK_SIZE);
+
+  /**
+   * Digests of chunks of large outputs that are known to be in the remote cache, because they were
+   * uploaded or found there before. Used to avoid asking the server about chunks of files that are
+   * uploaded again after an edit.
+   */
+  private final Cache<Digest, Boolean> uploadedChunks =
+      CacheBuilder.newBuilder().maximumSize(UPLOADED_CHUNKS_INDEX_SIZE).build();
+
+  /** Set to false once the server has shown that it does not reassemble chunked blobs. */
+  private volatile boolean chunkedUploadsSupported = true;
 
   private final ListeningScheduledExecutorService retryScheduler =
       MoreExecutors.listeningDecorator(Executors.newScheduledThreadPool(1));
@@ -85,8 +108,20 @@ public class GrpcRemoteCache implements RemoteActionCache {
     this.channel = channel;
     this.retrier = retrier;
 
-    uploader = new ByteStreamUploader(options.remoteInstanceName, channel, credentials,
-        options.remoteTimeout, retrier, retryScheduler);
+    uploader =
+        new ByteStreamUploader(
+            options.remoteInstanceName,
+            channel,
+            credentials,
+            options.remoteTimeout,
+            retrier,
+            retryScheduler,
+            options.experimentalRemoteMaxConcurrentUploads > 0
+                ? options.experimentalRemoteMaxConcurrentUploads
+                : Integer.MAX_VALUE);
+    missingDigestsFinder =
+        new MissingDigestsFinder(
+            this::findMissingBlobs, options.experimentalRemoteFindMissingBlobsBatchWindow);
   }
 
   private ContentAddressableStorageBlockingStub casBlockingStub() {
@@ -120,8 +155,17 @@ public class GrpcRemoteCache implements RemoteActionCache {
     return options.remoteCache != null;
   }
 
+  /**
+   * Returns the digests that are missing from the remote cache. Queries of concurrent actions are
+   * combined, and digests known to be present are not queried again.
+   */
   private ImmutableSet<Digest> getMissingDigests(Iterable<Digest> digests)
       throws IOException, InterruptedException {
+    return missingDigestsFinder.getMissingDigests(digests);
+  }
+
+  private ImmutableSet<Digest> findMissingBlobs(Iterable<Digest> digests)
+      throws IOException, InterruptedException {
     FindMissingBlobsRequest.Builder request =
         FindMissingBlobsRequest.newBuilder()
             .setInstanceName(options.remoteInstanceName)
@@ -144,10 +188,17 @@ public class GrpcRemoteCache implements RemoteActionCache {
       throws IOException, InterruptedException {
     repository.computeMerkleDigests(root);
     Digest commandDigest = Digests.computeDigest(command);
-    // TODO(olaola): avoid querying all the digests, only ask for novel subtrees.
-    ImmutableSet<Digest> missingDigests =
-        getMissingDigests(
-            Iterables.concat(repository.getAllDigests(root), ImmutableList.of(commandDigest)));
+    // Only ask for subtrees that were not uploaded for an earlier action.
+    ImmutableSet<Digest> missingDigests = getMissingInputDigests(repository, root, commandDigest);
+    if (repository.isUploaded(root)
+        && missingDigests.contains(repository.getMerkleDigest(root))) {
+      // The remote cache evicted blobs that were uploaded for an earlier action, so that any of
+      // the subtrees marked as uploaded may be missing, too. Evicted subtrees under a root that
+      // was never uploaded are only noticed by remote execution, which then calls
+      // invalidateUploadedInputs and this method again.
+      invalidateUploadedInputs(repository);
+      missingDigests = getMissingInputDigests(repository, root, commandDigest);
+    }
 
     List<Chunker> toUpload = new ArrayList<>();
     // Only upload data that was missing from the cache.
@@ -155,7 +206,7 @@ public class GrpcRemoteCache implements RemoteActionCache {
     ArrayList<Directory> missingTreeNodes = new ArrayList<>();
     HashSet<Digest> missingTreeDigests = new HashSet<>(missingDigests);
     missingTreeDigests.remove(commandDigest);
-    repository.getDataFromDigests(missingTreeDigests, missingActionInputs, missingTreeNodes);
+    repository.getDataFromDigests(root, missingTreeDigests, missingActionInputs, missingTreeNodes);
 
     if (missingDigests.contains(commandDigest)) {
       toUpload.add(new Chunker(command.toByteArray()));
@@ -171,7 +222,21 @@ public class GrpcRemoteCache implements RemoteActionCache {
         toUpload.add(new Chunker(actionInput, inputFileCache, execRoot));
       }
     }
-    uploader.uploadBlobs(toUpload);
+    uploadBlobs(toUpload);
+    repository.markUploaded(root);
+  }
+
+  @Override
+  public void invalidateUploadedInputs(TreeNodeRepository repository) {
+    repository.invalidateUploaded();
+    missingDigestsFinder.forgetPresent();
+  }
+
+  private ImmutableSet<Digest> getMissingInputDigests(
+      TreeNodeRepository repository, TreeNode root, Digest commandDigest)
+      throws IOException, InterruptedException {
+    return getMissingDigests(
+        Iterables.concat(repository.getDigestsNotUploaded(root), ImmutableList.of(commandDigest)));
   }
 
   /**
@@ -348,16 +413,26 @@ public class GrpcRemoteCache implements RemoteActionCache {
 
     ImmutableSet<Digest> digestsToUpload = getMissingDigests(digestToFile.keySet());
     List<Chunker> filesToUpload = new ArrayList<>();
+    Map<Digest, Path> filesToUploadChunked = new LinkedHashMap<>();
     for (Digest digest : digestsToUpload) {
       Path file = digestToFile.get(digest);
       if (file == null) {
         String message = "FindMissingBlobs call returned an unknown digest: " + digest;
         throw new IOException(message);
       }
-      filesToUpload.add(new Chunker(file));
+      if (shouldUploadChunked(digest)) {
+        filesToUploadChunked.put(digest, file);
+      } else {
+        filesToUpload.add(new Chunker(file));
+      }
+    }
+    for (Map.Entry<Digest, Path> entry : filesToUploadChunked.entrySet()) {
+      if (!uploadChunked(entry.getValue(), entry.getKey())) {
+        filesToUpload.add(new Chunker(entry.getValue()));
+      }
     }
     if (!filesToUpload.isEmpty()) {
-      uploader.uploadBlobs(filesToUpload);
+      uploadBlobs(filesToUpload);
     }
 
     // TODO(olaola): inline small stdout/stderr here.
@@ -371,6 +446,82 @@ public class GrpcRemoteCache implements RemoteActionCache {
     }
   }
 
+  /** Uploads the given blobs and remembers that they are present for later queries. */
+  private void uploadBlobs(List<Chunker> chunkers) throws IOException, InterruptedException {
+    if (chunkers.isEmpty()) {
+      return;
+    }
+    uploader.uploadBlobs(chunkers);
+    List<Digest> uploaded = new ArrayList<>(chunkers.size());
+    for (Chunker chunker : chunkers) {
+      uploaded.add(chunker.digest());
+    }
+    missingDigestsFinder.markPresent(uploaded);
+  }
+
+  private boolean shouldUploadChunked(Digest digest) {
+    return chunkedUploadsSupported
+        && options.experimentalRemoteChunkedUploadThreshold > 0
+        && digest.getSizeBytes() >= options.experimentalRemoteChunkedUploadThreshold;
+  }
+
+  /**
+   * Uploads the chunks of a large file that the remote cache does not have yet, and asks the server
+   * to reassemble the file from its chunks.
+   *
+   * @return false if the server did not store the file, which then has to be uploaded in full
+   */
+  private boolean uploadChunked(Path file, Digest digest)
+      throws IOException, InterruptedException {
+    List<Segment> segments;
+    try (InputStream in = file.getInputStream()) {
+      segments = contentDefinedChunker.split(in);
+    }
+    List<Digest> chunks = new ArrayList<>(segments.size());
+    Map<Digest, Segment> unknownChunks = new LinkedHashMap<>();
+    for (Segment segment : segments) {
+      chunks.add(segment.getDigest());
+      if (uploadedChunks.getIfPresent(segment.getDigest()) == null) {
+        unknownChunks.putIfAbsent(segment.getDigest(), segment);
+      }
+    }
+    List<Chunker> toUpload = new ArrayList<>();
+    for (Digest chunk : getMissingDigests(unknownChunks.keySet())) {
+      Segment segment = unknownChunks.get(chunk);
+      if (segment == null) {
+        throw new IOException("FindMissingBlobs call returned an unknown digest: " + chunk);
+      }
+      toUpload.add(new Chunker(file, segment.getOffset(), chunk));
+    }
+    uploadBlobs(toUpload);
+    for (Digest chunk : unknownChunks.keySet()) {
+      uploadedChunks.put(chunk, Boolean.TRUE);
+    }
+
+    try {
+      uploader.uploadChunkedBlob(
+          digest, new Chunker(ContentDefinedChunker.encodeManifest(chunks)));
+    } catch (RetryException e) {
+      if (e.causedByStatusCode(Status.Code.NOT_FOUND)) {
+        // The server evicted chunks that we believed to be present.
+        uploadedChunks.invalidateAll(chunks);
+        return false;
+      }
+      if (e.causedByStatusCode(Status.Code.INVALID_ARGUMENT)
+          || e.causedByStatusCode(Status.Code.UNIMPLEMENTED)) {
+        chunkedUploadsSupported = false;
+        return false;
+      }
+      throw e;
+    }
+    if (!getMissingDigests(ImmutableList.of(digest)).isEmpty()) {
+      // The server stored the manifest as an ordinary blob rather than reassembling the file.
+      chunkedUploadsSupported = false;
+      return false;
+    }
+    return true;
+  }
+
   /**
    * Put the file contents cache if it is not already in it. No-op if the file is already stored in
    * cache. The given path must be a full absolute path.
@@ -381,7 +532,7 @@ public class GrpcRemoteCache implements RemoteActionCache {
     Digest digest = Digests.computeDigest(file);
     ImmutableSet<Digest> missing = getMissingDigests(ImmutableList.of(digest));
     if (!missing.isEmpty()) {
-      uploader.uploadBlob(new Chunker(file));
+      uploadBlobs(ImmutableList.of(new Chunker(file)));
     }
     return digest;
   }
@@ -397,7 +548,7 @@ public class GrpcRemoteCache implements RemoteActionCache {
     Digest digest = Digests.getDigestFromInputCache(input, inputCache);
     ImmutableSet<Digest> missing = getMissingDigests(ImmutableList.of(digest));
     if (!missing.isEmpty()) {
-      uploader.uploadBlob(new Chunker(input, inputCache, execRoot));
+      uploadBlobs(ImmutableList.of(new Chunker(input, inputCache, execRoot)));
     }
     return digest;
   }
@@ -406,7 +557,7 @@ public class GrpcRemoteCache implements RemoteActionCache {
     Digest digest = Digests.computeDigest(blob);
     ImmutableSet<Digest> missing = getMissingDigests(ImmutableList.of(digest));
     if (!missing.isEmpty()) {
-      uploader.uploadBlob(new Chunker(blob));
+      uploadBlobs(ImmutableList.of(new Chunker(blob)));
     }
     return digest;
   }
@@ -0,0 +1,193 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.remote;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.remoteexecution.v1test.Digest;
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Finds the digests that are missing from a remote cache, combining the queries of concurrent
+ * callers into shared {@code FindMissingBlobs} calls and remembering which digests are present.
+ *
+ * <p>The first caller that finds no open batch opens one and waits for up to the batch window for
+ * other callers to add their digests, then issues the calls for the whole batch. A batch is closed
+ * early once it holds {@link #MAX_DIGESTS_PER_BATCH} digests. If the first caller is interrupted,
+ * the other callers of its batch query again on their own.
+ *
+ * <p>Digests that the server reported as present, or that were uploaded through {@link
+ * #markPresent}, are not queried again. An instance should therefore only live as long as blobs
+ * can be assumed not to be evicted from the remote cache, typically a single build.
+ */
+@ThreadSafe
+final class MissingDigestsFinder {
+
+  /** The call that returns the subset of the given digests that are missing from the cache. */
+  interface FindMissingBlobs {
+    ImmutableSet<Digest> findMissing(Iterable<Digest> digests)
+        throws IOException, InterruptedException;
+  }
+
+  static final int MAX_DIGESTS_PER_BATCH = 10000;
+
+  private static final class Batch {
+    final Set<Digest> digests = new LinkedHashSet<>();
+    final SettableFuture<ImmutableSet<Digest>> missing = SettableFuture.create();
+  }
+
+  private final FindMissingBlobs findMissingBlobs;
+  private final long batchWindowNanos;
+  private final Set<Digest> knownPresent = Sets.newConcurrentHashSet();
+
+  private final Object lock = new Object();
+
+  @GuardedBy("lock")
+  private Batch openBatch;
+
+  /**
+   * @param findMissingBlobs the remote call to batch
+   * @param batchWindowMillis how long the first caller of a batch waits for other callers to join
+   *     it. If zero, queries are not combined and every caller issues its own calls
+   */
+  MissingDigestsFinder(FindMissingBlobs findMissingBlobs, long batchWindowMillis) {
+    checkArgument(batchWindowMillis >= 0, "batchWindowMillis must not be negative");
+    this.findMissingBlobs = findMissingBlobs;
+    this.batchWindowNanos = TimeUnit.MILLISECONDS.toNanos(batchWindowMillis);
+  }
+
+  /** Returns the subset of the given digests that are missing from the remote cache. */
+  ImmutableSet<Digest> getMissingDigests(Iterable<Digest> digests)
+      throws IOException, InterruptedException {
+    Set<Digest> unknown = new LinkedHashSet<>();
+    for (Digest digest : digests) {
+      if (!knownPresent.contains(digest)) {
+        unknown.add(digest);
+      }
+    }
+    if (unknown.isEmpty()) {
+      return ImmutableSet.of();
+    }
+
+    while (true) {
+      Batch batch;
+      boolean leader = false;
+      synchronized (lock) {
+        if (openBatch == null) {
+          batch = new Batch();
+          leader = true;
+          if (batchWindowNanos > 0) {
+            openBatch = batch;
+          }
+        } else {
+          batch = openBatch;
+        }
+        batch.digests.addAll(unknown);
+        if (openBatch == batch && batch.digests.size() >= MAX_DIGESTS_PER_BATCH) {
+          openBatch = null;
+          lock.notifyAll();
+        }
+      }
+
+      if (leader) {
+        try {
+          closeAfterWindow(batch);
+          runBatch(batch);
+        } catch (InterruptedException e) {
+          // The other callers of this batch were not interrupted, let them query again.
+          batch.missing.cancel(false);
+          throw e;
+        }
+      }
+
+      ImmutableSet<Digest> missing;
+      try {
+        missing = batch.missing.get();
+      } catch (CancellationException e) {
+        // The caller that issued the calls for this batch was interrupted.
+        continue;
+      } catch (ExecutionException e) {
+        Throwables.propagateIfPossible(e.getCause(), IOException.class);
+        throw new IOException(e.getCause());
+      }
+      return ImmutableSet.copyOf(Sets.intersection(missing, unknown));
+    }
+  }
+
+  /** Records that the given digests have been uploaded to the remote cache. */
+  void markPresent(Iterable<Digest> digests) {
+    Iterables.addAll(knownPresent, digests);
+  }
+
+  /** Forgets all digests known to be present, e.g. because the remote cache evicted them. */
+  void forgetPresent() {
+    knownPresent.clear();
+  }
+
+  /**
+   * Waits until the given batch is closed, or for up to the batch window. If interrupted, the batch
+   * is closed right away.
+   */
+  private void closeAfterWindow(Batch batch) throws InterruptedException {
+    synchronized (lock) {
+      try {
+        long deadline = System.nanoTime() + batchWindowNanos;
+        long remaining = batchWindowNanos;
+        while (openBatch == batch && remaining > 0) {
+          TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+          remaining = deadline - System.nanoTime();
+        }
+      } finally {
+        if (openBatch == batch) {
+          openBatch = null;
+        }
+      }
+    }
+  }
+
+  private void runBatch(Batch batch) throws InterruptedException {
+    // The batch is closed, so its digests no longer change.
+    try {
+      ImmutableSet.Builder<Digest> missing = ImmutableSet.builder();
+      for (List<Digest> request :
+          Iterables.partition(ImmutableList.copyOf(batch.digests), MAX_DIGESTS_PER_BATCH)) {
+        ImmutableSet<Digest> missingInRequest = findMissingBlobs.findMissing(request);
+        missing.addAll(missingInRequest);
+        for (Digest digest : request) {
+          if (!missingInRequest.contains(digest)) {
+            knownPresent.add(digest);
+          }
+        }
+      }
+      batch.missing.set(missing.build());
+    } catch (IOException | RuntimeException e) {
+      batch.missing.setException(e);
+    }
+  }
+}
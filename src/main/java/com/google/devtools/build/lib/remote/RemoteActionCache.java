@@ -86,6 +86,13 @@ interface RemoteActionCache {
       boolean uploadAction)
       throws IOException, InterruptedException;
 
+  /**
+   * Forgets which inputs are known to be stored remotely, after the remote side reported inputs
+   * missing that were uploaded for an earlier action. The next calls to {@link
+   * #ensureInputsPresent} check all inputs again.
+   */
+  void invalidateUploadedInputs(TreeNodeRepository repository);
+
   /** Release resources associated with the cache. The cache may not be used after calling this. */
   void close();
 }
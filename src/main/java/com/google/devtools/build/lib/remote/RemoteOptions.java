@@ -221,6 +221,60 @@ public final class RemoteOptions extends OptionsBase {
   )
   public PathFragment experimentalLocalDiskCachePath;
 
+  @Option(
+    name = "experimental_local_disk_cache_max_size",
+    defaultValue = "0",
+    category = "remote",
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.UNKNOWN},
+    help =
+        "The maximum size of the local disk cache in bytes. If set to a positive value, the "
+            + "cache is stored in sharded subdirectories and the least recently used entries are "
+            + "evicted in the background once the cache grows beyond this size. The cache "
+            + "directory may be shared by several Bazel servers on the same machine."
+  )
+  public long experimentalLocalDiskCacheMaxSize;
+
+  @Option(
+    name = "experimental_remote_chunked_upload_threshold",
+    defaultValue = "0",
+    category = "remote",
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.UNKNOWN},
+    help =
+        "If set to a positive value, output files of at least this many bytes are split into "
+            + "content-defined chunks when uploading them to a gRPC remote cache, and only the "
+            + "chunks that the cache does not have yet are uploaded. The cache must support "
+            + "reassembling chunked blobs; otherwise, files are uploaded in full."
+  )
+  public long experimentalRemoteChunkedUploadThreshold;
+
+  @Option(
+    name = "experimental_remote_find_missing_blobs_batch_window",
+    defaultValue = "0",
+    category = "remote",
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.UNKNOWN},
+    help =
+        "The time in milliseconds for which queries for missing blobs of concurrently executing "
+            + "actions are collected into a single FindMissingBlobs call to the gRPC remote cache. "
+            + "If 0, every query is sent in its own call."
+  )
+  public long experimentalRemoteFindMissingBlobsBatchWindow;
+
+  @Option(
+    name = "experimental_remote_max_concurrent_uploads",
+    defaultValue = "0",
+    category = "remote",
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.UNKNOWN},
+    help =
+        "The maximum number of concurrent uploads to the gRPC remote cache. Actions that produce "
+            + "more blobs wait until earlier uploads have finished. If 0, the number of "
+            + "concurrent uploads is not limited."
+  )
+  public int experimentalRemoteMaxConcurrentUploads;
+
   public Platform parseRemotePlatformOverride() {
     if (experimentalRemotePlatformOverride != null) {
       Platform.Builder platformBuilder = Platform.newBuilder();
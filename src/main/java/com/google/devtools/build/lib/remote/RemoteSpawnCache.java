@@ -64,6 +64,10 @@ final class RemoteSpawnCache implements SpawnCache {
   // Used to ensure that a warning is reported only once.
   private final AtomicBoolean warningReported = new AtomicBoolean();
 
+  // Shared by the actions of a build, which agree on the digests of all input files.
+  private final TreeNodeRepository.SharedCache treeNodeCache =
+      new TreeNodeRepository.SharedCache();
+
   RemoteSpawnCache(
       Path execRoot,
       RemoteOptions options,
@@ -87,7 +91,7 @@ final class RemoteSpawnCache implements SpawnCache {
       throws InterruptedException, IOException, ExecException {
     // Temporary hack: the TreeNodeRepository should be created and maintained upstream!
     TreeNodeRepository repository =
-        new TreeNodeRepository(execRoot, policy.getActionInputFileCache());
+        new TreeNodeRepository(execRoot, policy.getActionInputFileCache(), treeNodeCache);
     SortedMap<PathFragment, ActionInput> inputMap = policy.getInputMapping();
     TreeNode inputRoot = repository.buildFromActionInputs(inputMap);
     repository.computeMerkleDigests(inputRoot);
@@ -81,6 +81,10 @@ class RemoteSpawnRunner implements SpawnRunner {
   // Used to ensure that a warning is reported only once.
   private final AtomicBoolean warningReported = new AtomicBoolean();
 
+  // Shared by the actions of a build, which agree on the digests of all input files.
+  private final TreeNodeRepository.SharedCache treeNodeCache =
+      new TreeNodeRepository.SharedCache();
+
   RemoteSpawnRunner(
       Path execRoot,
       RemoteOptions options,
@@ -113,7 +117,8 @@ class RemoteSpawnRunner implements SpawnRunner {
     policy.report(ProgressStatus.EXECUTING, "remote");
     // Temporary hack: the TreeNodeRepository should be created and maintained upstream!
     ActionInputFileCache inputFileCache = policy.getActionInputFileCache();
-    TreeNodeRepository repository = new TreeNodeRepository(execRoot, inputFileCache);
+    TreeNodeRepository repository =
+        new TreeNodeRepository(execRoot, inputFileCache, treeNodeCache);
     SortedMap<PathFragment, ActionInput> inputMap = policy.getInputMapping();
     TreeNode inputRoot = repository.buildFromActionInputs(inputMap);
     repository.computeMerkleDigests(inputRoot);
@@ -178,7 +183,8 @@ class RemoteSpawnRunner implements SpawnRunner {
                 .setInstanceName(options.remoteInstanceName)
                 .setAction(action)
                 .setSkipCacheLookup(!acceptCachedResult);
-        ExecuteResponse reply = remoteExecutor.executeRemotely(request.build());
+        ExecuteResponse reply =
+            executeRemotely(request.build(), repository, inputRoot, command);
         result = reply.getResult();
       } catch (IOException e) {
         return execLocallyOrFail(spawn, policy, inputMap, actionKey, uploadLocalResults, e);
@@ -194,6 +200,26 @@ class RemoteSpawnRunner implements SpawnRunner {
     }
   }
 
+  /**
+   * Executes the given request remotely. If the server reports inputs missing, which may have been
+   * uploaded for an earlier action and evicted since, all inputs are checked and uploaded again
+   * and the request is retried once.
+   */
+  private ExecuteResponse executeRemotely(
+      ExecuteRequest request, TreeNodeRepository repository, TreeNode inputRoot, Command command)
+      throws IOException, InterruptedException {
+    try {
+      return remoteExecutor.executeRemotely(request);
+    } catch (RetryException e) {
+      if (!e.causedByStatusCode(Code.FAILED_PRECONDITION)) {
+        throw e;
+      }
+      remoteCache.invalidateUploadedInputs(repository);
+      remoteCache.ensureInputsPresent(repository, execRoot, inputRoot, command);
+      return remoteExecutor.executeRemotely(request);
+    }
+  }
+
   private SpawnResult downloadRemoteResults(ActionResult result, FileOutErr outErr)
       throws ExecException, IOException, InterruptedException {
     remoteCache.download(result, execRoot, outErr);
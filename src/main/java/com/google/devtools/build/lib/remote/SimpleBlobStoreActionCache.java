@@ -75,6 +75,11 @@ public final class SimpleBlobStoreActionCache implements RemoteActionCache {
     }
   }
 
+  @Override
+  public void invalidateUploadedInputs(TreeNodeRepository repository) {
+    // Nothing to do, all inputs are uploaded for every action.
+  }
+
   public void downloadTree(Digest rootDigest, Path rootLocation)
       throws IOException, InterruptedException {
     Directory directory = Directory.parseFrom(downloadBlob(rootDigest));
@@ -16,6 +16,8 @@ package com.google.devtools.build.lib.remote;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
+import com.google.devtools.build.lib.clock.BlazeClock;
+import com.google.devtools.build.lib.remote.blobstore.LruOnDiskBlobStore;
 import com.google.devtools.build.lib.remote.blobstore.OnDiskBlobStore;
 import com.google.devtools.build.lib.remote.blobstore.RestBlobStore;
 import com.google.devtools.build.lib.remote.blobstore.SimpleBlobStore;
@@ -37,8 +39,13 @@ public final class SimpleBlobStoreFactory {
 
   public static SimpleBlobStore createLocalDisk(RemoteOptions options, Path workingDirectory)
       throws IOException {
-    return new OnDiskBlobStore(
-        workingDirectory.getRelative(checkNotNull(options.experimentalLocalDiskCachePath)));
+    Path cacheDir =
+        workingDirectory.getRelative(checkNotNull(options.experimentalLocalDiskCachePath));
+    if (options.experimentalLocalDiskCacheMaxSize > 0) {
+      return new LruOnDiskBlobStore(
+          cacheDir, options.experimentalLocalDiskCacheMaxSize, BlazeClock.instance());
+    }
+    return new OnDiskBlobStore(cacheDir);
   }
 
   public static SimpleBlobStore create(RemoteOptions options, @Nullable Path workingDirectory)
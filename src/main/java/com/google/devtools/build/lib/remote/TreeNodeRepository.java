@@ -21,6 +21,8 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Interner;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Sets;
 import com.google.common.collect.TreeTraverser;
 import com.google.devtools.build.lib.actions.ActionInput;
 import com.google.devtools.build.lib.actions.ActionInputFileCache;
@@ -33,14 +35,15 @@ import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.remoteexecution.v1test.Digest;
 import com.google.devtools.remoteexecution.v1test.Directory;
-import com.google.protobuf.ByteString;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import javax.annotation.Nullable;
@@ -48,6 +51,11 @@ import javax.annotation.Nullable;
 /**
  * A factory and repository for {@link TreeNode} objects. Provides directory structure traversals,
  * computing and caching Merkle hashes on all objects.
+ *
+ * <p>Tree nodes, directory messages and Merkle hashes are kept in a {@link SharedCache}, which
+ * may be shared by the repositories of all actions of a build. Subtrees that several actions have
+ * in common, such as runfiles trees or toolchains, are then interned to the same node, and their
+ * digests are computed only once per build.
  */
 @ThreadSafe
 public final class TreeNodeRepository extends TreeTraverser<TreeNodeRepository.TreeNode> {
@@ -176,23 +184,61 @@ public final class TreeNodeRepository extends TreeTraverser<TreeNodeRepository.T
     }
   }
 
+  /**
+   * Canonical tree nodes and the cached Merkle hashes of directory nodes.
+   *
+   * <p>The digests of directory nodes are derived from the digests of the files in them, so a
+   * cache must only be shared by repositories whose input file caches agree on the digests of all
+   * files, which is the case for the actions of a single build.
+   *
+   * <p>All entries are weakly keyed by the canonical nodes and inputs, so they only live as long as
+   * the tree of some action refers to them.
+   */
+  @ThreadSafe
+  public static final class SharedCache {
+    // Keep only one canonical instance of every TreeNode.
+    private final Interner<TreeNode> interner = BlazeInterners.newWeakInterner();
+    private final Map<TreeNode, Digest> treeNodeDigestCache = newWeakIdentityMap();
+    private final Map<TreeNode, Directory> directoryCache = newWeakIdentityMap();
+    private final Map<VirtualActionInput, Digest> virtualInputDigestCache = newWeakIdentityMap();
+    // Directory nodes whose whole subtree is known to be stored remotely.
+    private final Set<TreeNode> uploadedSubtrees =
+        Collections.newSetFromMap(newWeakIdentityMap());
+
+    private static <K, V> Map<K, V> newWeakIdentityMap() {
+      return new MapMaker().weakKeys().makeMap();
+    }
+  }
+
   private static final TreeNode EMPTY_NODE = new TreeNode(ImmutableList.<TreeNode.ChildEntry>of());
 
-  // Keep only one canonical instance of every TreeNode in the repository.
-  private final Interner<TreeNode> interner = BlazeInterners.newWeakInterner();
   // Merkle hashes are computed and cached by the repository, therefore execRoot must
   // be part of the state.
   private final Path execRoot;
   private final ActionInputFileCache inputFileCache;
-  private final Map<TreeNode, Digest> treeNodeDigestCache = new HashMap<>();
-  private final Map<Digest, TreeNode> digestTreeNodeCache = new HashMap<>();
-  private final Map<TreeNode, Directory> directoryCache = new HashMap<>();
-  private final Map<VirtualActionInput, Digest> virtualInputDigestCache = new HashMap<>();
-  private final Map<Digest, VirtualActionInput> digestVirtualInputCache = new HashMap<>();
+  private final Interner<TreeNode> interner;
+  private final Map<TreeNode, Digest> treeNodeDigestCache;
+  private final Map<TreeNode, Directory> directoryCache;
+  private final Map<VirtualActionInput, Digest> virtualInputDigestCache;
+  private final Set<TreeNode> uploadedSubtrees;
 
   public TreeNodeRepository(Path execRoot, ActionInputFileCache inputFileCache) {
+    this(execRoot, inputFileCache, new SharedCache());
+  }
+
+  /**
+   * Creates a repository that keeps its nodes and Merkle hashes in the given cache, and reuses
+   * those of other repositories that share it.
+   */
+  public TreeNodeRepository(
+      Path execRoot, ActionInputFileCache inputFileCache, SharedCache sharedCache) {
     this.execRoot = execRoot;
     this.inputFileCache = inputFileCache;
+    this.interner = sharedCache.interner;
+    this.treeNodeDigestCache = sharedCache.treeNodeDigestCache;
+    this.directoryCache = sharedCache.directoryCache;
+    this.virtualInputDigestCache = sharedCache.virtualInputDigestCache;
+    this.uploadedSubtrees = sharedCache.uploadedSubtrees;
   }
 
   public ActionInputFileCache getInputFileCache() {
@@ -290,7 +336,7 @@ public final class TreeNodeRepository extends TreeTraverser<TreeNodeRepository.T
     return interner.intern(new TreeNode(entries));
   }
 
-  private synchronized Directory getOrComputeDirectory(TreeNode node) throws IOException {
+  private Directory getOrComputeDirectory(TreeNode node) throws IOException {
     // Assumes all child digests have already been computed!
     Preconditions.checkArgument(!node.isLeaf());
     Directory directory = directoryCache.get(node);
@@ -304,9 +350,6 @@ public final class TreeNodeRepository extends TreeTraverser<TreeNodeRepository.T
             VirtualActionInput virtualInput = (VirtualActionInput) input;
             Digest digest = Digests.computeDigest(virtualInput);
             virtualInputDigestCache.put(virtualInput, digest);
-            // There may be multiple inputs with the same digest. In that case, we don't care which
-            // one we get back from the digestVirtualInputCache later.
-            digestVirtualInputCache.put(digest, virtualInput);
             b.addFilesBuilder()
                 .setName(entry.getSegment())
                 .setDigest(digest)
@@ -323,10 +366,11 @@ public final class TreeNodeRepository extends TreeTraverser<TreeNodeRepository.T
         }
       }
       directory = b.build();
-      directoryCache.put(node, directory);
+      // Another repository may have computed the same directory concurrently, with the same
+      // result. Publish the digest before the directory, which marks the node as done.
       Digest digest = Digests.computeDigest(directory);
       treeNodeDigestCache.put(node, digest);
-      digestTreeNodeCache.put(digest, node);
+      directoryCache.put(node, directory);
     }
     return directory;
   }
@@ -334,11 +378,9 @@ public final class TreeNodeRepository extends TreeTraverser<TreeNodeRepository.T
   // Recursively traverses the tree, expanding and computing Merkle digests for nodes for which
   // they have not yet been computed and cached.
   public void computeMerkleDigests(TreeNode root) throws IOException {
-    synchronized (this) {
-      if (directoryCache.get(root) != null) {
-        // Strong assumption: the cache is valid, i.e. parent present implies children present.
-        return;
-      }
+    if (directoryCache.get(root) != null) {
+      // Strong assumption: the cache is valid, i.e. parent present implies children present.
+      return;
     }
     if (!root.isLeaf()) {
       for (TreeNode child : children(root)) {
@@ -373,6 +415,63 @@ public final class TreeNodeRepository extends TreeTraverser<TreeNodeRepository.T
     return digests.build();
   }
 
+  /**
+   * Returns the precomputed digests for both data and metadata, except those within subtrees below
+   * the root that were marked as uploaded with {@link #markUploaded}. Should only be used after
+   * computeMerkleDigests has been called on one of the node ancestors.
+   */
+  public ImmutableCollection<Digest> getDigestsNotUploaded(TreeNode root) throws IOException {
+    ImmutableSet.Builder<Digest> digests = ImmutableSet.builder();
+    ArrayDeque<TreeNode> toVisit = new ArrayDeque<>();
+    toVisit.push(root);
+    while (!toVisit.isEmpty()) {
+      TreeNode node = toVisit.pop();
+      if (node.isLeaf()) {
+        digests.add(actionInputToDigest(node.getActionInput()));
+        continue;
+      }
+      digests.add(Preconditions.checkNotNull(treeNodeDigestCache.get(node)));
+      for (TreeNode child : children(node)) {
+        if (!uploadedSubtrees.contains(child)) {
+          toVisit.push(child);
+        }
+      }
+    }
+    return digests.build();
+  }
+
+  /**
+   * Records that all data and metadata of the tree below the given node is stored remotely, so
+   * that {@link #getDigestsNotUploaded} can skip it and its subtrees in the trees of other actions.
+   */
+  public void markUploaded(TreeNode root) {
+    ArrayDeque<TreeNode> toVisit = new ArrayDeque<>();
+    toVisit.push(root);
+    while (!toVisit.isEmpty()) {
+      TreeNode node = toVisit.pop();
+      // Subtrees that were marked before don't need to be visited again.
+      if (!node.isLeaf() && uploadedSubtrees.add(node)) {
+        for (TreeNode child : children(node)) {
+          toVisit.push(child);
+        }
+      }
+    }
+  }
+
+  /** Returns whether the tree below the given node was marked as uploaded. */
+  public boolean isUploaded(TreeNode node) {
+    return uploadedSubtrees.contains(node);
+  }
+
+  /**
+   * Forgets all subtrees that were marked as uploaded, after the remote side reported blobs missing
+   * that may have been uploaded for an earlier action. All digests of the next trees are then
+   * checked again.
+   */
+  public void invalidateUploaded() {
+    uploadedSubtrees.clear();
+  }
+
   private Digest actionInputToDigest(ActionInput input) throws IOException {
     if (input instanceof VirtualActionInput) {
       return Preconditions.checkNotNull(virtualInputDigestCache.get(input));
@@ -398,24 +497,29 @@ public final class TreeNodeRepository extends TreeTraverser<TreeNodeRepository.T
   }
 
   /**
-   * Should only be used on digests created by a call to computeMerkleDigests. Looks up ActionInputs
-   * or Directory messages by cached digests and adds them to the lists.
+   * Looks up the ActionInputs and Directory messages of the given digests in the tree below the
+   * root, and adds them to the lists. Should only be used after computeMerkleDigests has been
+   * called on the root, and only with digests of nodes of its tree.
    */
   public void getDataFromDigests(
-      Iterable<Digest> digests, List<ActionInput> actionInputs, List<Directory> nodes) {
-    for (Digest digest : digests) {
-      TreeNode treeNode = digestTreeNodeCache.get(digest);
-      if (treeNode != null) {
-        nodes.add(Preconditions.checkNotNull(directoryCache.get(treeNode)));
-      } else { // If not there, it must be an ActionInput.
-        ByteString hexDigest = ByteString.copyFromUtf8(digest.getHash());
-        ActionInput input = inputFileCache.getInputFromDigest(hexDigest);
-        if (input == null) {
-          // ... or a VirtualActionInput.
-          input = digestVirtualInputCache.get(digest);
+      TreeNode root,
+      Iterable<Digest> digests,
+      List<ActionInput> actionInputs,
+      List<Directory> nodes)
+      throws IOException {
+    Set<Digest> wanted = Sets.newHashSet(digests);
+    for (TreeNode node : descendants(root)) {
+      if (wanted.isEmpty()) {
+        break;
+      }
+      if (node.isLeaf()) {
+        if (wanted.remove(actionInputToDigest(node.getActionInput()))) {
+          actionInputs.add(node.getActionInput());
         }
-        actionInputs.add(Preconditions.checkNotNull(input));
+      } else if (wanted.remove(treeNodeDigestCache.get(node))) {
+        nodes.add(Preconditions.checkNotNull(directoryCache.get(node)));
       }
     }
+    Preconditions.checkArgument(wanted.isEmpty(), "Digests not in the tree: %s", wanted);
   }
 }
@@ -0,0 +1,430 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote.blobstore;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.clock.Clock;
+import com.google.devtools.build.lib.vfs.FileStatus;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A size-bounded on-disk store for the remote action cache.
+ *
+ * <p>Blobs are stored in sharded subdirectories ({@code cas/ab/abcd...} and {@code ac/ab/abcd...})
+ * so that no single directory grows too large. An in-memory index tracks the size and the last
+ * access time of every entry. The index is rebuilt from the file modification times whenever the
+ * store is created, and the modification time of an entry is bumped (at a coarse granularity) when
+ * it is accessed so that the access order survives restarts.
+ *
+ * <p>Once the total size exceeds the configured maximum, entries are evicted in least recently used
+ * order on a background thread until the cache is below a low watermark.
+ *
+ * <p>The cache directory may be shared by several Bazel servers on the same machine. All entries
+ * are written to a temporary file, synced and then atomically renamed into place, so readers never
+ * observe partially written blobs. Before an entry is evicted its modification time is checked
+ * again, so entries recently used by another server are kept, and it is moved aside before it is
+ * deleted, so an entry written again in the meantime is put back. Every lookup checks that the file
+ * still exists, so an entry evicted by another server is reported as a cache miss.
+ */
+public final class LruOnDiskBlobStore implements SimpleBlobStore {
+  private static final Logger logger = Logger.getLogger(LruOnDiskBlobStore.class.getName());
+
+  private static final String CAS_DIR = "cas";
+  private static final String AC_DIR = "ac";
+  private static final String TMP_DIR = "tmp";
+
+  /** The fraction of the maximum size that eviction shrinks the cache to. */
+  private static final double LOW_WATERMARK = 0.9;
+
+  /**
+   * The minimum interval between two updates of the modification time of an entry. Accesses within
+   * this interval are only recorded in memory, which saves a syscall on most cache hits.
+   */
+  private static final long ACCESS_TIME_GRANULARITY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+  /** Temporary files older than this were most likely left behind by a crashed server. */
+  private static final long STALE_TEMP_FILE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+  /** An entry in the in-memory index. */
+  private static final class Entry {
+    final long size;
+    volatile long lastAccessMillis;
+    volatile long lastTouchedMillis;
+
+    Entry(long size, long lastAccessMillis) {
+      this.size = size;
+      this.lastAccessMillis = lastAccessMillis;
+      this.lastTouchedMillis = lastAccessMillis;
+    }
+  }
+
+  private final Path root;
+  private final long maxSizeBytes;
+  private final Clock clock;
+  private final ExecutorService evictionExecutor;
+
+  private final Map<Path, Entry> index = new ConcurrentHashMap<>();
+  private final AtomicLong totalSizeBytes = new AtomicLong();
+  private final AtomicBoolean evictionPending = new AtomicBoolean();
+
+  public LruOnDiskBlobStore(Path root, long maxSizeBytes, Clock clock) throws IOException {
+    this(
+        root,
+        maxSizeBytes,
+        clock,
+        Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder()
+                .setNameFormat("disk-cache-eviction-%d")
+                .setDaemon(true)
+                .build()));
+  }
+
+  @VisibleForTesting
+  LruOnDiskBlobStore(Path root, long maxSizeBytes, Clock clock, ExecutorService evictionExecutor)
+      throws IOException {
+    checkArgument(maxSizeBytes > 0, "maxSizeBytes must be positive: %s", maxSizeBytes);
+    this.root = root;
+    this.maxSizeBytes = maxSizeBytes;
+    this.clock = clock;
+    this.evictionExecutor = evictionExecutor;
+    FileSystemUtils.createDirectoryAndParents(root);
+    root.getChild(CAS_DIR).createDirectory();
+    root.getChild(AC_DIR).createDirectory();
+    root.getChild(TMP_DIR).createDirectory();
+    // Rebuilding the index requires a full scan of the cache directory, so don't block the build.
+    evictionPending.set(true);
+    evictionExecutor.execute(this::rescanAndEvict);
+  }
+
+  @Override
+  public boolean containsKey(String key) throws IOException {
+    return lookup(toPath(CAS_DIR, key)) != null;
+  }
+
+  @Override
+  public boolean get(String key, OutputStream out) throws IOException {
+    return get(toPath(CAS_DIR, key), out);
+  }
+
+  @Override
+  public boolean getActionResult(String key, OutputStream out) throws IOException {
+    return get(toPath(AC_DIR, key), out);
+  }
+
+  @Override
+  public void put(String key, long length, InputStream in) throws IOException {
+    Path target = toPath(CAS_DIR, key);
+    // The CAS is content addressed, so there is no need to overwrite an existing entry.
+    if (lookup(target) != null) {
+      return;
+    }
+    put(target, in);
+  }
+
+  @Override
+  public void putActionResult(String key, byte[] in) throws IOException {
+    put(toPath(AC_DIR, key), new ByteArrayInputStream(in));
+  }
+
+  @Override
+  public void close() {
+    evictionExecutor.shutdownNow();
+  }
+
+  /** Returns the number of bytes currently accounted for in the index. */
+  @VisibleForTesting
+  long getSizeBytes() {
+    return totalSizeBytes.get();
+  }
+
+  private boolean get(Path path, OutputStream out) throws IOException {
+    // Open the file directly instead of checking for existence first. On POSIX systems a file that
+    // is concurrently evicted stays readable through the open stream.
+    InputStream in;
+    try {
+      in = path.getInputStream();
+    } catch (FileNotFoundException e) {
+      forget(path);
+      return false;
+    }
+    try {
+      ByteStreams.copy(in, out);
+    } finally {
+      in.close();
+    }
+    Entry entry = index.get(path);
+    if (entry == null) {
+      // Written by another server since we last scanned the cache.
+      lookup(path);
+    } else {
+      touch(path, entry);
+    }
+    return true;
+  }
+
+  private void put(Path target, InputStream in) throws IOException {
+    // Write a temporary file first, and then rename, to avoid data corruption in case of a crash
+    // and to never expose partially written files to other servers sharing the cache directory.
+    Path temp = newTempFile();
+    long size;
+    try {
+      try (OutputStream out = temp.getOutputStream()) {
+        size = ByteStreams.copy(in, out);
+        // Sync before renaming, as the OS may otherwise reorder the writes and the rename.
+        if (out instanceof FileOutputStream) {
+          ((FileOutputStream) out).getFD().sync();
+        }
+      }
+      target.getParentDirectory().createDirectory();
+      temp.renameTo(target);
+    } catch (IOException e) {
+      temp.delete();
+      throw e;
+    }
+    long now = clock.currentTimeMillis();
+    Entry previous = index.put(target, new Entry(size, now));
+    totalSizeBytes.addAndGet(previous == null ? size : size - previous.size);
+    maybeScheduleEviction();
+  }
+
+  /**
+   * Returns the index entry for the given path, adding it if the entry is not in the index, e.g.
+   * because it was added by another server. Returns null if there is no such file, e.g. because
+   * another server evicted it.
+   */
+  private Entry lookup(Path path) throws IOException {
+    // Read the index before the file system, so that an entry put concurrently is never dropped.
+    Entry entry = index.get(path);
+    FileStatus stat = path.statIfFound();
+    if (stat == null) {
+      if (entry != null && index.remove(path, entry)) {
+        totalSizeBytes.addAndGet(-entry.size);
+      }
+      return null;
+    }
+    if (entry != null) {
+      touch(path, entry);
+      return entry;
+    }
+    entry = new Entry(stat.getSize(), clock.currentTimeMillis());
+    entry.lastTouchedMillis = stat.getLastModifiedTime();
+    if (index.putIfAbsent(path, entry) == null) {
+      totalSizeBytes.addAndGet(entry.size);
+      maybeScheduleEviction();
+    }
+    return entry;
+  }
+
+  /** Records an access of the given entry, in memory and coarsely in the file modification time. */
+  private void touch(Path path, Entry entry) {
+    long now = clock.currentTimeMillis();
+    entry.lastAccessMillis = now;
+    if (now - entry.lastTouchedMillis < ACCESS_TIME_GRANULARITY_MILLIS) {
+      return;
+    }
+    entry.lastTouchedMillis = now;
+    try {
+      path.setLastModifiedTime(now);
+    } catch (FileNotFoundException e) {
+      forget(path);
+    } catch (IOException e) {
+      // The access time is only a hint for eviction.
+      logger.log(Level.FINE, "Failed to update the access time of " + path, e);
+    }
+  }
+
+  private void forget(Path path) {
+    Entry entry = index.remove(path);
+    if (entry != null) {
+      totalSizeBytes.addAndGet(-entry.size);
+    }
+  }
+
+  private void maybeScheduleEviction() {
+    if (totalSizeBytes.get() > maxSizeBytes && evictionPending.compareAndSet(false, true)) {
+      try {
+        evictionExecutor.execute(this::rescanAndEvict);
+      } catch (RuntimeException e) {
+        // The store was closed.
+        evictionPending.set(false);
+      }
+    }
+  }
+
+  private void rescanAndEvict() {
+    try {
+      rescan();
+      if (totalSizeBytes.get() > maxSizeBytes) {
+        evict();
+      }
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to evict entries from the disk cache at " + root, e);
+    } finally {
+      evictionPending.set(false);
+    }
+  }
+
+  /**
+   * Merges the state of the cache directory into the index. This picks up entries added, used or
+   * removed by other servers sharing the cache directory since the last scan.
+   */
+  private void rescan() throws IOException {
+    long now = clock.currentTimeMillis();
+    for (Path tempFile : root.getChild(TMP_DIR).getDirectoryEntries()) {
+      FileStatus stat = tempFile.statIfFound();
+      if (stat != null && now - stat.getLastModifiedTime() > STALE_TEMP_FILE_MILLIS) {
+        tempFile.delete();
+      }
+    }
+    Set<Path> seen = new HashSet<>();
+    for (String dir : new String[] {CAS_DIR, AC_DIR}) {
+      for (Path shard : root.getChild(dir).getDirectoryEntries()) {
+        if (!shard.isDirectory()) {
+          continue;
+        }
+        for (Path file : shard.getDirectoryEntries()) {
+          FileStatus stat = file.statIfFound();
+          if (stat == null || !stat.isFile()) {
+            continue;
+          }
+          Entry entry = index.get(file);
+          long lastModified = stat.getLastModifiedTime();
+          if (entry == null) {
+            entry = new Entry(stat.getSize(), lastModified);
+            if (index.putIfAbsent(file, entry) == null) {
+              totalSizeBytes.addAndGet(entry.size);
+            }
+          } else if (lastModified > entry.lastAccessMillis) {
+            entry.lastAccessMillis = lastModified;
+          }
+          seen.add(file);
+        }
+      }
+    }
+    for (Path path : index.keySet()) {
+      if (!seen.contains(path) && path.statIfFound() == null) {
+        forget(path);
+      }
+    }
+  }
+
+  /** Deletes the least recently used entries until the cache is below the low watermark. */
+  private void evict() {
+    long targetSizeBytes = (long) (maxSizeBytes * LOW_WATERMARK);
+    long startMillis = clock.currentTimeMillis();
+    List<Map.Entry<Path, Entry>> entries = new ArrayList<>(index.entrySet());
+    entries.sort(Comparator.comparingLong(e -> e.getValue().lastAccessMillis));
+    int evicted = 0;
+    for (Map.Entry<Path, Entry> e : entries) {
+      if (totalSizeBytes.get() <= targetSizeBytes || Thread.currentThread().isInterrupted()) {
+        break;
+      }
+      Path path = e.getKey();
+      Entry entry = e.getValue();
+      try {
+        FileStatus stat = path.statIfFound();
+        if (stat != null && stat.getLastModifiedTime() > entry.lastAccessMillis) {
+          // Recently used by another server.
+          entry.lastAccessMillis = stat.getLastModifiedTime();
+          continue;
+        }
+        if (!isUnchangedSince(path, entry, startMillis)) {
+          // Replaced or used since we took the snapshot.
+          continue;
+        }
+        if (stat != null && !deleteUnlessRewritten(path, entry, startMillis)) {
+          continue;
+        }
+        if (index.remove(path, entry)) {
+          totalSizeBytes.addAndGet(-entry.size);
+          evicted++;
+        }
+      } catch (IOException ex) {
+        logger.log(Level.WARNING, "Failed to evict " + path + " from the disk cache", ex);
+      }
+    }
+    logger.info(
+        String.format(
+            "Evicted %d entries from the disk cache at %s, %d bytes remaining",
+            evicted, root, totalSizeBytes.get()));
+  }
+
+  /**
+   * Deletes the file of the given entry, unless this or another server wrote or used it since the
+   * given time. The file is moved aside first, so that a file written right before the deletion is
+   * detected and put back. Returns whether the file is gone.
+   */
+  private boolean deleteUnlessRewritten(Path path, Entry entry, long sinceMillis)
+      throws IOException {
+    Path aside = newTempFile();
+    try {
+      path.renameTo(aside);
+    } catch (FileNotFoundException e) {
+      // Evicted by another server.
+      return true;
+    }
+    if (isUnchangedSince(path, entry, sinceMillis)
+        && aside.stat().getLastModifiedTime() <= entry.lastAccessMillis) {
+      aside.delete();
+      return true;
+    }
+    if (path.exists()) {
+      // Written again after we moved the file aside.
+      aside.delete();
+    } else {
+      aside.renameTo(path);
+    }
+    return false;
+  }
+
+  /** Whether the index still maps the path to the given entry, unused since the given time. */
+  private boolean isUnchangedSince(Path path, Entry entry, long millis) {
+    return index.get(path) == entry && entry.lastAccessMillis <= millis;
+  }
+
+  private Path newTempFile() {
+    return root.getChild(TMP_DIR).getChild(UUID.randomUUID().toString());
+  }
+
+  private Path toPath(String dir, String key) {
+    String shard = key.length() > 2 ? key.substring(0, 2) : key;
+    return root.getChild(dir).getChild(shard).getChild(key);
+  }
+}
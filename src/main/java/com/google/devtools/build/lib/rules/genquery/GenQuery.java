@@ -325,6 +325,7 @@ public class GenQuery implements RuleConfiguredTargetFactory {
                       queryOptions, formatter),
                   /*universeScope=*/ ImmutableList.<String>of(),
                   /*loadingPhaseThreads=*/ 4,
+                  queryOptions.queryEvaluationThreads,
                   labelFilter,
                   getEventHandler(ruleContext),
                   settings,
@@ -22,6 +22,7 @@ import com.google.common.eventbus.EventBus;
 import com.google.common.eventbus.SubscriberExceptionHandler;
 import com.google.devtools.build.lib.actions.cache.ActionCache;
 import com.google.devtools.build.lib.actions.cache.CompactPersistentActionCache;
+import com.google.devtools.build.lib.actions.cache.MappedActionCache;
 import com.google.devtools.build.lib.analysis.BlazeDirectories;
 import com.google.devtools.build.lib.analysis.WorkspaceStatusAction;
 import com.google.devtools.build.lib.analysis.config.BinTools;
@@ -31,6 +32,7 @@ import com.google.devtools.build.lib.profiler.AutoProfiler;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.profiler.memory.AllocationTracker;
 import com.google.devtools.build.lib.skyframe.SkyframeExecutor;
+import com.google.devtools.build.lib.skyframe.TargetEdgeIndex;
 import com.google.devtools.build.lib.util.LoggingUtil;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
@@ -63,6 +65,8 @@ public final class BlazeWorkspace {
   private final SkyframeExecutor skyframeExecutor;
   /** The action cache is loaded lazily on the first build command. */
   private ActionCache actionCache;
+  /** The target edge index is loaded lazily on the first query that uses it. */
+  @Nullable private TargetEdgeIndex targetEdgeIndex;
   /** The execution time range of the previous build command in this server, if any. */
   @Nullable private Range<Long> lastExecutionRange = null;
 
@@ -167,6 +171,11 @@ public final class BlazeWorkspace {
     return getOutputBase().getChild("action_cache");
   }
 
+  /** Returns the directory that indexes kept across servers for queries are stored in. */
+  Path getQueryIndexDirectory() {
+    return getOutputBase().getChild("query_index");
+  }
+
   void recordLastExecutionTime(long commandStartTime) {
     long currentTimeMillis = runtime.getClock().currentTimeMillis();
     lastExecutionRange =
@@ -219,6 +228,17 @@ public final class BlazeWorkspace {
     }
     actionCache = null;
     FileSystemUtils.deleteTree(getCacheDirectory());
+    synchronized (this) {
+      if (targetEdgeIndex != null) {
+        skyframeExecutor.setTargetEdgeIndex(null);
+        targetEdgeIndex.clear();
+      }
+      targetEdgeIndex = null;
+    }
+    FileSystemUtils.deleteTree(getQueryIndexDirectory());
+    // Reopened by the next command that enables it.
+    skyframeExecutor.setPersistentAstCacheEnabled(false);
+    FileSystemUtils.deleteTree(skyframeExecutor.getPersistentAstCacheDirectory());
   }
 
   /**
@@ -227,10 +247,22 @@ public final class BlazeWorkspace {
    * requests, so return value should not be cached.
    */
   public ActionCache getPersistentActionCache(Reporter reporter) throws IOException {
+    return getPersistentActionCache(reporter, actionCache instanceof MappedActionCache);
+  }
+
+  /**
+   * Like {@link #getPersistentActionCache(Reporter)}, but recreates the action cache if it is not
+   * of the requested format.
+   */
+  public ActionCache getPersistentActionCache(Reporter reporter, boolean mapped)
+      throws IOException {
+    if (actionCache != null && (actionCache instanceof MappedActionCache) != mapped) {
+      actionCache = null;
+    }
     if (actionCache == null) {
       try (AutoProfiler p = profiledAndLogged("Loading action cache", ProfilerTask.INFO, logger)) {
         try {
-          actionCache = new CompactPersistentActionCache(getCacheDirectory(), runtime.getClock());
+          actionCache = createActionCache(mapped);
         } catch (IOException e) {
           logger.log(Level.WARNING, "Failed to load action cache: " + e.getMessage(), e);
           LoggingUtil.logToRemote(
@@ -243,13 +275,37 @@ public final class BlazeWorkspace {
                       + getCacheDirectory()
                       + "/*.bad'. "
                       + "Bazel will now reset action cache data, causing a full rebuild"));
-          actionCache = new CompactPersistentActionCache(getCacheDirectory(), runtime.getClock());
+          actionCache = createActionCache(mapped);
         }
       }
     }
     return actionCache;
   }
 
+  /**
+   * Returns the lazily loaded index of the edges between targets. Once loaded, the index is kept
+   * up to date with the packages Skyframe loads for all later commands.
+   */
+  public synchronized TargetEdgeIndex getTargetEdgeIndex() throws IOException {
+    if (targetEdgeIndex == null) {
+      try (AutoProfiler p =
+          profiledAndLogged("Loading target edge index", ProfilerTask.INFO, logger)) {
+        FileSystemUtils.createDirectoryAndParents(getQueryIndexDirectory());
+        targetEdgeIndex =
+            TargetEdgeIndex.load(
+                getQueryIndexDirectory().getChild("target_edges"), runtime.getClock());
+      }
+      skyframeExecutor.setTargetEdgeIndex(targetEdgeIndex);
+    }
+    return targetEdgeIndex;
+  }
+
+  private ActionCache createActionCache(boolean mapped) throws IOException {
+    return mapped
+        ? new MappedActionCache(getCacheDirectory(), runtime.getClock())
+        : new CompactPersistentActionCache(getCacheDirectory(), runtime.getClock());
+  }
+
   /**
    * Generates a README file in the output base directory. This README file
    * contains the name of the workspace directory, so that users can figure out
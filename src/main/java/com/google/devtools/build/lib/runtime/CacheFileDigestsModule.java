@@ -16,10 +16,19 @@ package com.google.devtools.build.lib.runtime;
 
 import com.google.common.base.Preconditions;
 import com.google.common.cache.CacheStats;
+import com.google.common.eventbus.Subscribe;
 import com.google.devtools.build.lib.actions.cache.DigestUtils;
+import com.google.devtools.build.lib.actions.cache.PersistentDigestCache;
 import com.google.devtools.build.lib.buildtool.BuildRequest;
+import com.google.devtools.build.lib.buildtool.buildevent.BuildCompleteEvent;
+import com.google.devtools.build.lib.events.Event;
+import com.google.devtools.build.lib.events.Reporter;
 import com.google.devtools.build.lib.exec.ExecutionOptions;
 import com.google.devtools.build.lib.exec.ExecutorBuilder;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.IOException;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /** Enables the caching of file digests in {@link DigestUtils}. */
@@ -36,6 +45,17 @@ public class CacheFileDigestsModule extends BlazeModule {
    */
   private Long lastKnownCacheSize;
 
+  /** The persistent digest cache, or null if it is disabled. Kept open across commands. */
+  private PersistentDigestCache persistentCache;
+
+  /** The size with which {@link #persistentCache} was opened. */
+  private long persistentCacheSize;
+
+  /** Stats of the persistent cache at the beginning of a command, or null if it is disabled. */
+  private CacheStats persistentStats;
+
+  private Reporter reporter;
+
   public CacheFileDigestsModule() {}
 
   /**
@@ -76,6 +96,63 @@ public class CacheFileDigestsModule extends BlazeModule {
       stats = DigestUtils.getCacheStats();
       logStats("Accumulated cache stats before command", stats);
     }
+
+    configurePersistentCache(env, options);
+    if (persistentCache != null) {
+      persistentStats = persistentCache.getStats();
+      reporter = env.getReporter();
+      env.getEventBus().register(this);
+    }
+  }
+
+  /** Opens, reopens or closes the persistent cache to match the options of this command. */
+  private void configurePersistentCache(CommandEnvironment env, ExecutionOptions options) {
+    boolean enabled =
+        options.persistentFileDigestCache && options.cacheSizeForComputedFileDigests > 0;
+    if (persistentCache != null
+        && (!enabled || options.cacheSizeForComputedFileDigests != persistentCacheSize)) {
+      closePersistentCache();
+    }
+    if (enabled && persistentCache == null) {
+      Path cacheFile = env.getBlazeWorkspace().getOutputBase().getChild("file_digest_cache");
+      try {
+        persistentCache =
+            new PersistentDigestCache(
+                cacheFile,
+                options.cacheSizeForComputedFileDigests,
+                FileSystem.getDigestFunction().getHash().bits() / 8);
+        persistentCacheSize = options.cacheSizeForComputedFileDigests;
+        DigestUtils.configurePersistentCache(persistentCache);
+        logger.info("Opened persistent cache " + cacheFile);
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Failed to open persistent cache " + cacheFile, e);
+        env.getReporter()
+            .handle(
+                Event.warn(
+                    "Failed to open the persistent file digest cache, continuing without it: "
+                        + e.getMessage()));
+      }
+    }
+  }
+
+  private void closePersistentCache() {
+    if (persistentCache != null) {
+      DigestUtils.configurePersistentCache(null);
+      persistentCache.close();
+      persistentCache = null;
+    }
+  }
+
+  @Subscribe
+  public void buildComplete(BuildCompleteEvent event) {
+    if (persistentCache != null && persistentStats != null) {
+      CacheStats commandStats = persistentCache.getStats().minus(persistentStats);
+      reporter.handle(
+          Event.info(
+              String.format(
+                  "Persistent file digest cache: %d hits, %d misses",
+                  commandStats.hitCount(), commandStats.missCount())));
+    }
   }
 
   @Override
@@ -89,5 +166,17 @@ public class CacheFileDigestsModule extends BlazeModule {
       logStats("Cache stats for finished command", newStats.minus(stats));
       stats = null; // Silence stats until next command that uses the executor.
     }
+    if (persistentStats != null) {
+      logStats(
+          "Persistent cache stats for finished command",
+          persistentCache.getStats().minus(persistentStats));
+      persistentStats = null;
+    }
+    reporter = null;
+  }
+
+  @Override
+  public void blazeShutdown() {
+    closePersistentCache();
   }
 }
@@ -13,10 +13,12 @@
 // limitations under the License.
 package com.google.devtools.build.lib.runtime;
 
+import com.google.devtools.build.lib.profiler.Profiler;
 import com.google.devtools.build.lib.runtime.CommandLineEvent.ToolCommandLineEvent;
 import com.google.devtools.build.lib.util.OptionsUtils;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.common.options.Converters;
+import com.google.devtools.common.options.EnumConverter;
 import com.google.devtools.common.options.Option;
 import com.google.devtools.common.options.OptionDocumentationCategory;
 import com.google.devtools.common.options.OptionEffectTag;
@@ -126,6 +128,27 @@ public class CommonCommandOptions extends OptionsBase {
   )
   public PathFragment profilePath;
 
+  /** Converter for {@link #profileFormat}. */
+  public static class ProfileFormatConverter extends EnumConverter<Profiler.Format> {
+    public ProfileFormatConverter() {
+      super(Profiler.Format.class, "profile format");
+    }
+  }
+
+  @Option(
+    name = "experimental_profile_format",
+    defaultValue = "binary_bazel_format",
+    category = "misc",
+    documentationCategory = OptionDocumentationCategory.LOGGING,
+    effectTags = {OptionEffectTag.AFFECTS_OUTPUTS, OptionEffectTag.BAZEL_MONITORING},
+    converter = ProfileFormatConverter.class,
+    help =
+        "Format of the file written by --profile. 'binary_bazel_format' can be read by "
+            + "analyze-profile; 'json_trace_file_format' writes gzip-compressed Chrome trace "
+            + "events that can be loaded into chrome://tracing."
+  )
+  public Profiler.Format profileFormat;
+
   @Option(
     name = "record_full_profiler_data",
     defaultValue = "false",
@@ -25,10 +25,12 @@ import com.google.devtools.build.lib.profiler.analysis.ProfileInfo.InfoListener;
 import com.google.devtools.build.lib.profiler.analysis.ProfileInfo.Task;
 import com.google.devtools.build.lib.profiler.output.HtmlCreator;
 import com.google.devtools.build.lib.profiler.output.PhaseText;
+import com.google.devtools.build.lib.profiler.output.ProfileSummaryText;
 import com.google.devtools.build.lib.profiler.statistics.CriticalPathStatistics;
 import com.google.devtools.build.lib.profiler.statistics.MultiProfileStatistics;
 import com.google.devtools.build.lib.profiler.statistics.PhaseStatistics;
 import com.google.devtools.build.lib.profiler.statistics.PhaseSummaryStatistics;
+import com.google.devtools.build.lib.profiler.statistics.StreamingProfileStatistics;
 import com.google.devtools.build.lib.runtime.BlazeCommand;
 import com.google.devtools.build.lib.runtime.Command;
 import com.google.devtools.build.lib.runtime.CommandEnvironment;
@@ -151,6 +153,31 @@ public final class ProfileCommand implements BlazeCommand {
     )
     public boolean htmlHistograms;
 
+    @Option(
+      name = "jobs",
+      defaultValue = "1",
+      documentationCategory = OptionDocumentationCategory.LOGGING,
+      effectTags = {OptionEffectTag.EXECUTION},
+      help =
+          "The number of profile files that are loaded and analyzed in parallel with --combine."
+              + " Each of them is loaded fully into memory."
+    )
+    public int jobs;
+
+    @Option(
+      name = "summary_only",
+      defaultValue = "false",
+      documentationCategory = OptionDocumentationCategory.LOGGING,
+      effectTags = {OptionEffectTag.AFFECTS_OUTPUTS},
+      help =
+          "If present, only the phase summary, the critical path and the duration histograms of"
+              + " each task type are printed. They are computed in a single pass over each"
+              + " profile file without loading its tasks into memory, which is much faster and"
+              + " uses much less memory for large profiles. Cannot be combined with --html,"
+              + " --combine, --dump or --task_tree."
+    )
+    public boolean summaryOnly;
+
     @Option(
       name = "task_tree",
       defaultValue = "null",
@@ -220,6 +247,13 @@ public final class ProfileCommand implements BlazeCommand {
       opts.vfsStatsLimit = 0;
     }
 
+    if (opts.summaryOnly
+        && (opts.html || opts.combine != null || opts.dumpMode != null || opts.taskTree != null)) {
+      env.getReporter().handle(Event.error(
+          "--summary_only cannot be combined with --html, --combine, --dump or --task_tree"));
+      return ExitCode.COMMAND_LINE_ERROR;
+    }
+
     try (PrintStream out = new PrintStream(env.getReporter().getOutErr().getOutputStream())) {
       env.getReporter().handle(Event.warn(
           null, "This information is intended for consumption by Blaze developers"
@@ -231,7 +265,8 @@ public final class ProfileCommand implements BlazeCommand {
                 env.getWorkspace().getBaseName(),
                 options.getResidue(),
                 getInfoListener(env),
-                opts.vfsStatsLimit > 0);
+                opts.vfsStatsLimit > 0,
+                opts.jobs);
         Path outputFile = env.getWorkingDirectory().getRelative(opts.combine);
         try (PrintStream output =
                 new PrintStream(new BufferedOutputStream(outputFile.getOutputStream()))) {
@@ -257,6 +292,23 @@ public final class ProfileCommand implements BlazeCommand {
                   Event.error(
                       "Failed to write to output file " + outputFile + ":" + e.getMessage()));
         }
+      } else if (opts.summaryOnly) {
+        for (String name : options.getResidue()) {
+          Path profileFile = env.getWorkingDirectory().getRelative(name);
+          try {
+            getInfoListener(env).info("Analyzing " + profileFile.getPathString());
+            StreamingProfileStatistics statistics = StreamingProfileStatistics.analyze(profileFile);
+            if (!statistics.isComplete()) {
+              getInfoListener(env)
+                  .warn("Profile file is incomplete or corrupted - not all records were parsed");
+            }
+            new ProfileSummaryText(out, statistics).print();
+          } catch (IOException e) {
+            env
+                .getReporter()
+                .handle(Event.error("Failed to analyze profile file(s): " + e.getMessage()));
+          }
+        }
       } else {
         for (String name : options.getResidue()) {
           Path profileFile = env.getWorkingDirectory().getRelative(name);
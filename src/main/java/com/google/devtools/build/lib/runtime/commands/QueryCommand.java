@@ -24,6 +24,7 @@ import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.packages.Target;
 import com.google.devtools.build.lib.pkgcache.PackageCacheOptions;
 import com.google.devtools.build.lib.query2.AbstractBlazeQueryEnvironment;
+import com.google.devtools.build.lib.query2.TargetEdgeIndexGraphFactory;
 import com.google.devtools.build.lib.query2.engine.QueryEnvironment.Setting;
 import com.google.devtools.build.lib.query2.engine.QueryEvalResult;
 import com.google.devtools.build.lib.query2.engine.QueryException;
@@ -39,10 +40,12 @@ import com.google.devtools.build.lib.runtime.BlazeCommand;
 import com.google.devtools.build.lib.runtime.BlazeRuntime;
 import com.google.devtools.build.lib.runtime.Command;
 import com.google.devtools.build.lib.runtime.CommandEnvironment;
+import com.google.devtools.build.lib.skyframe.TargetEdgeIndex;
 import com.google.devtools.build.lib.util.AbruptExitException;
 import com.google.devtools.build.lib.util.ExitCode;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.skyframe.WalkableGraph.WalkableGraphFactory;
 import com.google.devtools.common.options.OptionsParser;
 import com.google.devtools.common.options.OptionsProvider;
 import java.io.IOException;
@@ -130,13 +133,26 @@ public final class QueryCommand implements BlazeCommand {
     Set<Setting> settings = queryOptions.toSettings();
     boolean streamResults = QueryOutputUtils.shouldStreamResults(queryOptions, formatter);
     QueryEvalResult result;
+    TargetEdgeIndex targetEdgeIndex = null;
+    WalkableGraphFactory graphFactory = env.getSkyframeExecutor();
+    if (queryOptions.persistentRdepsIndex && !queryOptions.universeScope.isEmpty()) {
+      try {
+        targetEdgeIndex = env.getBlazeWorkspace().getTargetEdgeIndex();
+        graphFactory = new TargetEdgeIndexGraphFactory(graphFactory, targetEdgeIndex);
+      } catch (IOException e) {
+        env.getReporter()
+            .handle(Event.warn("Failed to load the target edge index: " + e.getMessage()));
+      }
+    }
     AbstractBlazeQueryEnvironment<Target> queryEnv =
         newQueryEnvironment(
           env,
+          graphFactory,
           queryOptions.keepGoing,
           !streamResults,
           queryOptions.universeScope,
           queryOptions.loadingPhaseThreads,
+          queryOptions.queryEvaluationThreads,
           settings);
     QueryExpression expr;
     try {
@@ -206,6 +222,18 @@ public final class QueryCommand implements BlazeCommand {
       }
     }
 
+    if (targetEdgeIndex != null) {
+      try {
+        targetEdgeIndex.save();
+      } catch (IOException e) {
+        env.getReporter()
+            .handle(Event.warn("Failed to save the target edge index: " + e.getMessage()));
+      } catch (InterruptedException e) {
+        env.getReporter().handle(Event.error("query interrupted"));
+        return ExitCode.INTERRUPTED;
+      }
+    }
+
     env.getEventBus().post(new NoBuildEvent(env.getCommandName(), env.getCommandStartTime(), true));
     if (!streamResults) {
       disableAnsiCharactersFiltering(env);
@@ -267,11 +295,19 @@ public final class QueryCommand implements BlazeCommand {
   public static AbstractBlazeQueryEnvironment<Target> newQueryEnvironment(CommandEnvironment env,
       boolean keepGoing, boolean orderedResults, List<String> universeScope,
       int loadingPhaseThreads, Set<Setting> settings) {
+    return newQueryEnvironment(env, env.getSkyframeExecutor(), keepGoing, orderedResults,
+        universeScope, loadingPhaseThreads, /*queryEvaluationParallelismLevel=*/ 1, settings);
+  }
+
+  private static AbstractBlazeQueryEnvironment<Target> newQueryEnvironment(CommandEnvironment env,
+      WalkableGraphFactory graphFactory, boolean keepGoing, boolean orderedResults,
+      List<String> universeScope, int loadingPhaseThreads, int queryEvaluationParallelismLevel,
+      Set<Setting> settings) {
     return env.getRuntime()
         .getQueryEnvironmentFactory()
         .create(
             env.getPackageManager().newTransitiveLoader(),
-            env.getSkyframeExecutor(),
+            graphFactory,
             env.getPackageManager(),
             env.newTargetPatternEvaluator(),
             keepGoing,
@@ -279,6 +315,7 @@ public final class QueryCommand implements BlazeCommand {
             orderedResults,
             universeScope,
             loadingPhaseThreads,
+            queryEvaluationParallelismLevel,
             /*labelFilter=*/ ALL_LABELS,
             env.getReporter(),
             settings,
@@ -28,6 +28,8 @@ import com.google.devtools.build.lib.actions.UserExecException;
 import com.google.devtools.build.lib.exec.ExecutionOptions;
 import com.google.devtools.build.lib.exec.SpawnExecException;
 import com.google.devtools.build.lib.exec.SpawnRunner;
+import com.google.devtools.build.lib.profiler.Profiler;
+import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.runtime.CommandEnvironment;
 import com.google.devtools.build.lib.shell.AbnormalTerminationException;
 import com.google.devtools.build.lib.shell.Command;
@@ -41,6 +43,7 @@ import com.google.devtools.build.lib.vfs.PathFragment;
 import java.io.IOException;
 import java.time.Duration;
 import java.util.Map;
+import javax.annotation.Nullable;
 
 /** Abstract common ancestor for sandbox spawn runners implementing the common parts. */
 abstract class AbstractSandboxSpawnRunner implements SpawnRunner {
@@ -54,13 +57,18 @@ abstract class AbstractSandboxSpawnRunner implements SpawnRunner {
   private final SandboxOptions sandboxOptions;
   private final boolean verboseFailures;
   private final ImmutableSet<Path> inaccessiblePaths;
+  private final TreeDeleter treeDeleter;
+  @Nullable private final SandboxPool sandboxPool;
 
-  public AbstractSandboxSpawnRunner(CommandEnvironment cmdEnv, Path sandboxBase) {
+  public AbstractSandboxSpawnRunner(
+      CommandEnvironment cmdEnv, Path sandboxBase, TreeDeleter treeDeleter) {
     this.sandboxBase = sandboxBase;
+    this.treeDeleter = treeDeleter;
     this.sandboxOptions = cmdEnv.getOptions().getOptions(SandboxOptions.class);
     this.verboseFailures = cmdEnv.getOptions().getOptions(ExecutionOptions.class).verboseFailures;
     this.inaccessiblePaths =
         sandboxOptions.getInaccessiblePaths(cmdEnv.getRuntime().getFileSystem());
+    this.sandboxPool = sandboxOptions.reuseSandboxDirectories ? new SandboxPool(sandboxBase) : null;
   }
 
   @Override
@@ -92,7 +100,10 @@ abstract class AbstractSandboxSpawnRunner implements SpawnRunner {
       Duration timeout)
       throws ExecException, IOException, InterruptedException {
     try {
+      long setupStartTime = Profiler.nanoTimeMaybe();
       sandbox.createFileSystem();
+      Profiler.instance()
+          .logSimpleTask(setupStartTime, ProfilerTask.SANDBOX_SETUP, originalSpawn.getMnemonic());
       OutErr outErr = policy.getFileOutErr();
       policy.prefetchInputs();
 
@@ -187,11 +198,21 @@ abstract class AbstractSandboxSpawnRunner implements SpawnRunner {
    * Returns a temporary directory that should be used as the sandbox directory for a single action.
    */
   protected Path getSandboxRoot() throws IOException {
-    return sandboxBase.getRelative(
-        java.nio.file.Files.createTempDirectory(
-                java.nio.file.Paths.get(sandboxBase.getPathString()), "")
-            .getFileName()
-            .toString());
+    return SandboxPool.createSandboxRoot(sandboxBase);
+  }
+
+  /** Returns the deleter for the sandbox directories that are not reused. */
+  protected TreeDeleter getTreeDeleter() {
+    return treeDeleter;
+  }
+
+  /**
+   * Returns the pool of sandbox directories to reuse, or null if every spawn gets a new sandbox
+   * directory.
+   */
+  @Nullable
+  protected SandboxPool getSandboxPool() {
+    return sandboxPool;
   }
 
   /**
@@ -0,0 +1,99 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.sandbox;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * A {@link TreeDeleter} that deletes trees on a fixed number of background threads, so that the
+ * threads running actions do not have to wait for it.
+ *
+ * <p>At most {@code maxPendingDeletions} trees wait to be deleted at any time. Once that many are
+ * pending, further trees are deleted in the calling thread, which keeps the disk space held by
+ * sandboxes bounded when deletion cannot keep up with the actions.
+ *
+ * <p>{@link #shutdown} gives up on the pending deletions after a minute, so that a hung file system
+ * does not hang the command, and logs the trees that are left.
+ */
+final class AsynchronousTreeDeleter implements TreeDeleter {
+  private static final Logger logger = Logger.getLogger(AsynchronousTreeDeleter.class.getName());
+
+  private static final long SHUTDOWN_TIMEOUT_SECONDS = 60;
+
+  private final ThreadPoolExecutor executor;
+  /** The trees that have been passed to {@link #deleteTree} and are not deleted yet. */
+  private final Set<Path> pending = Sets.newConcurrentHashSet();
+
+  AsynchronousTreeDeleter(int threads, int maxPendingDeletions) {
+    checkArgument(threads > 0, "threads must be positive");
+    checkArgument(maxPendingDeletions > 0, "maxPendingDeletions must be positive");
+    this.executor =
+        new ThreadPoolExecutor(
+            threads,
+            threads,
+            0,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(maxPendingDeletions),
+            new ThreadFactoryBuilder()
+                .setNameFormat("sandbox-tree-deleter-%d")
+                .setDaemon(true)
+                .build(),
+            new ThreadPoolExecutor.CallerRunsPolicy());
+  }
+
+  @Override
+  public void deleteTree(Path path) {
+    pending.add(path);
+    executor.execute(
+        () -> {
+          try {
+            FileSystemUtils.deleteTree(path);
+          } catch (IOException e) {
+            // Nothing to do here: the SandboxModule deletes the whole sandbox base after the
+            // command and retries then.
+          } finally {
+            pending.remove(path);
+          }
+        });
+  }
+
+  @Override
+  public void shutdown() {
+    executor.shutdown();
+    boolean terminated = false;
+    try {
+      terminated = executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (!terminated) {
+      // The threads are daemons, so the ones stuck in the file system don't keep the server alive.
+      executor.shutdownNow();
+      logger.warning(
+          String.format(
+              "Gave up waiting for %d sandbox trees to be deleted: %s", pending.size(), pending));
+    }
+  }
+}
@@ -98,10 +98,11 @@ final class DarwinSandboxedSpawnRunner extends AbstractSandboxSpawnRunner {
   DarwinSandboxedSpawnRunner(
       CommandEnvironment cmdEnv,
       Path sandboxBase,
+      TreeDeleter treeDeleter,
       String productName,
       int timeoutGraceSeconds)
       throws IOException {
-    super(cmdEnv, sandboxBase);
+    super(cmdEnv, sandboxBase, treeDeleter);
     this.execRoot = cmdEnv.getExecRoot();
     this.allowNetwork = SandboxHelpers.shouldAllowNetwork(cmdEnv.getOptions());
     this.productName = productName;
@@ -204,7 +205,10 @@ final class DarwinSandboxedSpawnRunner extends AbstractSandboxSpawnRunner {
         environment,
         SandboxHelpers.getInputFiles(spawn, policy, execRoot),
         outputs,
-        writableDirs) {
+        writableDirs,
+        getTreeDeleter(),
+        /*sandboxPool=*/ null,
+        /*mnemonic=*/ null) {
       @Override
       public void createFileSystem() throws IOException {
         super.createFileSystem();
@@ -95,11 +95,12 @@ final class LinuxSandboxedSpawnRunner extends AbstractSandboxSpawnRunner {
   LinuxSandboxedSpawnRunner(
       CommandEnvironment cmdEnv,
       Path sandboxBase,
+      TreeDeleter treeDeleter,
       String productName,
       Path inaccessibleHelperFile,
       Path inaccessibleHelperDir,
       int timeoutGraceSeconds) {
-    super(cmdEnv, sandboxBase);
+    super(cmdEnv, sandboxBase, treeDeleter);
     this.fileSystem = cmdEnv.getRuntime().getFileSystem();
     this.blazeDirs = cmdEnv.getDirectories();
     this.execRoot = cmdEnv.getExecRoot();
@@ -115,8 +116,11 @@ final class LinuxSandboxedSpawnRunner extends AbstractSandboxSpawnRunner {
   @Override
   protected SpawnResult actuallyExec(Spawn spawn, SpawnExecutionPolicy policy)
       throws IOException, ExecException, InterruptedException {
-    // Each invocation of "exec" gets its own sandbox.
-    Path sandboxPath = getSandboxRoot();
+    // Each invocation of "exec" gets its own sandbox, which may have been used by an earlier
+    // invocation with the same mnemonic.
+    SandboxPool sandboxPool = getSandboxPool();
+    Path sandboxPath =
+        sandboxPool != null ? sandboxPool.acquire(spawn.getMnemonic()) : getSandboxRoot();
     Path sandboxExecRoot = sandboxPath.getRelative("execroot").getRelative(execRoot.getBaseName());
 
     // Each sandboxed action runs in its own execroot, so we don't need to make the temp directory's
@@ -147,7 +151,10 @@ final class LinuxSandboxedSpawnRunner extends AbstractSandboxSpawnRunner {
             environment,
             SandboxHelpers.getInputFiles(spawn, policy, execRoot),
             outputs,
-            writableDirs);
+            writableDirs,
+            getTreeDeleter(),
+            sandboxPool,
+            spawn.getMnemonic());
     return runSpawn(spawn, sandbox, policy, execRoot, tmpDir, timeout);
   }
 
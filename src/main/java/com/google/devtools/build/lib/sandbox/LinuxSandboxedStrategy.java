@@ -40,7 +40,11 @@ public final class LinuxSandboxedStrategy extends AbstractSpawnStrategy {
   }
 
   static LinuxSandboxedSpawnRunner create(
-      CommandEnvironment cmdEnv, Path sandboxBase, String productName, int timeoutGraceSeconds)
+      CommandEnvironment cmdEnv,
+      Path sandboxBase,
+      TreeDeleter treeDeleter,
+      String productName,
+      int timeoutGraceSeconds)
       throws IOException {
     Path inaccessibleHelperFile = sandboxBase.getRelative("inaccessibleHelperFile");
     FileSystemUtils.touchFile(inaccessibleHelperFile);
@@ -57,6 +61,7 @@ public final class LinuxSandboxedStrategy extends AbstractSpawnStrategy {
     return new LinuxSandboxedSpawnRunner(
         cmdEnv,
         sandboxBase,
+        treeDeleter,
         productName,
         inaccessibleHelperFile,
         inaccessibleHelperDir,
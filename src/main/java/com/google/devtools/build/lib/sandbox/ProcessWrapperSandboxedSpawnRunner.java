@@ -43,9 +43,10 @@ final class ProcessWrapperSandboxedSpawnRunner extends AbstractSandboxSpawnRunne
   ProcessWrapperSandboxedSpawnRunner(
       CommandEnvironment cmdEnv,
       Path sandboxBase,
+      TreeDeleter treeDeleter,
       String productName,
       int timeoutGraceSeconds) {
-    super(cmdEnv, sandboxBase);
+    super(cmdEnv, sandboxBase, treeDeleter);
     this.execRoot = cmdEnv.getExecRoot();
     this.productName = productName;
     this.timeoutGraceSeconds = timeoutGraceSeconds;
@@ -59,8 +60,11 @@ final class ProcessWrapperSandboxedSpawnRunner extends AbstractSandboxSpawnRunne
   @Override
   protected SpawnResult actuallyExec(Spawn spawn, SpawnExecutionPolicy policy)
       throws ExecException, IOException, InterruptedException {
-    // Each invocation of "exec" gets its own sandbox.
-    Path sandboxPath = getSandboxRoot();
+    // Each invocation of "exec" gets its own sandbox, which may have been used by an earlier
+    // invocation with the same mnemonic.
+    SandboxPool sandboxPool = getSandboxPool();
+    Path sandboxPath =
+        sandboxPool != null ? sandboxPool.acquire(spawn.getMnemonic()) : getSandboxRoot();
     Path sandboxExecRoot = sandboxPath.getRelative("execroot").getRelative(execRoot.getBaseName());
 
     // Each sandboxed action runs in its own execroot, so we don't need to make the temp directory's
@@ -82,7 +86,10 @@ final class ProcessWrapperSandboxedSpawnRunner extends AbstractSandboxSpawnRunne
             environment,
             SandboxHelpers.getInputFiles(spawn, policy, execRoot),
             SandboxHelpers.getOutputFiles(spawn),
-            getWritableDirs(sandboxExecRoot, spawn.getEnvironment(), tmpDir));
+            getWritableDirs(sandboxExecRoot, spawn.getEnvironment(), tmpDir),
+            getTreeDeleter(),
+            sandboxPool,
+            spawn.getMnemonic());
 
     return runSpawn(spawn, sandbox, policy, execRoot, tmpDir, timeout);
   }
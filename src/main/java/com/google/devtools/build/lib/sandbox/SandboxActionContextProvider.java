@@ -42,8 +42,8 @@ final class SandboxActionContextProvider extends ActionContextProvider {
     this.contexts = contexts;
   }
 
-  public static SandboxActionContextProvider create(CommandEnvironment cmdEnv, Path sandboxBase)
-      throws IOException {
+  public static SandboxActionContextProvider create(
+      CommandEnvironment cmdEnv, Path sandboxBase, TreeDeleter treeDeleter) throws IOException {
     ImmutableList.Builder<ActionContext> contexts = ImmutableList.builder();
 
     OptionsProvider options = cmdEnv.getOptions();
@@ -58,7 +58,7 @@ final class SandboxActionContextProvider extends ActionContextProvider {
           withFallback(
               cmdEnv,
               new ProcessWrapperSandboxedSpawnRunner(
-                  cmdEnv, sandboxBase, productName, timeoutGraceSeconds));
+                  cmdEnv, sandboxBase, treeDeleter, productName, timeoutGraceSeconds));
       contexts.add(new ProcessWrapperSandboxedStrategy(spawnRunner));
     }
 
@@ -67,7 +67,8 @@ final class SandboxActionContextProvider extends ActionContextProvider {
       SpawnRunner spawnRunner =
           withFallback(
               cmdEnv,
-              LinuxSandboxedStrategy.create(cmdEnv, sandboxBase, productName, timeoutGraceSeconds));
+              LinuxSandboxedStrategy.create(
+                  cmdEnv, sandboxBase, treeDeleter, productName, timeoutGraceSeconds));
       contexts.add(new LinuxSandboxedStrategy(spawnRunner));
     }
 
@@ -77,7 +78,7 @@ final class SandboxActionContextProvider extends ActionContextProvider {
           withFallback(
               cmdEnv,
               new DarwinSandboxedSpawnRunner(
-                  cmdEnv, sandboxBase, productName, timeoutGraceSeconds));
+                  cmdEnv, sandboxBase, treeDeleter, productName, timeoutGraceSeconds));
       contexts.add(new DarwinSandboxedStrategy(spawnRunner));
     }
 
@@ -32,8 +32,15 @@ import java.io.IOException;
  * This module provides the Sandbox spawn strategy.
  */
 public final class SandboxModule extends BlazeModule {
+  /**
+   * How many sandboxes may wait for each background deletion thread before actions delete their
+   * sandboxes themselves again.
+   */
+  private static final int MAX_PENDING_DELETIONS_PER_THREAD = 16;
+
   private Path sandboxBase;
   private boolean shouldCleanupSandboxBase;
+  private TreeDeleter treeDeleter;
 
   @Override
   public Iterable<Class<? extends OptionsBase>> getCommandOptions(Command command) {
@@ -62,9 +69,17 @@ public final class SandboxModule extends BlazeModule {
     // out the contents of the generated sandbox directories.
     shouldCleanupSandboxBase = !sandboxOptions.sandboxDebug;
 
+    treeDeleter =
+        sandboxOptions.asyncTreeDeleteThreads > 0
+            ? new AsynchronousTreeDeleter(
+                sandboxOptions.asyncTreeDeleteThreads,
+                sandboxOptions.asyncTreeDeleteThreads * MAX_PENDING_DELETIONS_PER_THREAD)
+            : new SynchronousTreeDeleter();
+
     try {
       FileSystemUtils.createDirectoryAndParents(sandboxBase);
-      builder.addActionContextProvider(SandboxActionContextProvider.create(cmdEnv, sandboxBase));
+      builder.addActionContextProvider(
+          SandboxActionContextProvider.create(cmdEnv, sandboxBase, treeDeleter));
     } catch (IOException e) {
       throw new IllegalStateException(e);
     }
@@ -75,6 +90,12 @@ public final class SandboxModule extends BlazeModule {
   public void afterCommand() {
     super.afterCommand();
 
+    if (treeDeleter != null) {
+      // Let pending deletions finish so that they don't race with deleting the sandbox base.
+      treeDeleter.shutdown();
+      treeDeleter = null;
+    }
+
     if (sandboxBase != null) {
       if (shouldCleanupSandboxBase) {
         try {
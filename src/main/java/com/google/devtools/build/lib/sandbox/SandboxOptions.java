@@ -179,6 +179,33 @@ public class SandboxOptions extends OptionsBase {
   )
   public List<ImmutableMap.Entry<String, String>> sandboxAdditionalMounts;
 
+  @Option(
+    name = "experimental_reuse_sandbox_directories",
+    defaultValue = "false",
+    category = "strategy",
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.UNKNOWN},
+    help =
+        "If set to true, the sandbox directories of finished actions are kept and reused by later "
+            + "actions with the same mnemonic, which only need the input symlinks that differ "
+            + "from those of the previous action to be updated. This makes setting up the "
+            + "sandbox of actions with many inputs much cheaper."
+  )
+  public boolean reuseSandboxDirectories;
+
+  @Option(
+    name = "experimental_sandbox_async_tree_delete_threads",
+    defaultValue = "0",
+    category = "strategy",
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.UNKNOWN},
+    help =
+        "If set to a positive value, the sandbox directories of finished actions are deleted "
+            + "by this many background threads instead of by the thread that ran the action. If "
+            + "deletion falls behind, actions delete their sandboxes themselves again."
+  )
+  public int asyncTreeDeleteThreads;
+
   public ImmutableSet<Path> getInaccessiblePaths(FileSystem fs) {
     List<Path> inaccessiblePaths = new ArrayList<>();
     for (String path : sandboxBlockPath) {
@@ -0,0 +1,74 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.sandbox;
+
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Keeps the sandbox directories of finished spawns around so that later spawns with the same
+ * mnemonic can reuse them.
+ *
+ * <p>Spawns with the same mnemonic tend to have largely overlapping inputs, so a reused sandbox
+ * only needs the symlinks that differ from the ones its previous spawn left behind to be updated,
+ * instead of the whole tree being created from scratch. A sandbox directory is only ever handed out
+ * to one spawn at a time, so the number of pooled directories is bounded by the number of spawns
+ * that ran concurrently.
+ */
+@ThreadSafe
+final class SandboxPool {
+  private final Path sandboxBase;
+
+  @GuardedBy("this")
+  private final Map<String, Deque<Path>> idleSandboxes = new HashMap<>();
+
+  SandboxPool(Path sandboxBase) {
+    this.sandboxBase = sandboxBase;
+  }
+
+  /**
+   * Returns a sandbox directory that was last used by a spawn with the given mnemonic, or a new,
+   * empty one if there is none.
+   */
+  Path acquire(String mnemonic) throws IOException {
+    synchronized (this) {
+      Deque<Path> idle = idleSandboxes.get(mnemonic);
+      if (idle != null && !idle.isEmpty()) {
+        return idle.pop();
+      }
+    }
+    return createSandboxRoot(sandboxBase);
+  }
+
+  /** Makes a sandbox directory returned by {@link #acquire} available to later spawns again. */
+  synchronized void release(String mnemonic, Path sandboxPath) {
+    idleSandboxes.computeIfAbsent(mnemonic, k -> new ArrayDeque<>()).push(sandboxPath);
+  }
+
+  /** Creates a new, uniquely named directory below {@code sandboxBase}. */
+  static Path createSandboxRoot(Path sandboxBase) throws IOException {
+    return sandboxBase.getRelative(
+        java.nio.file.Files.createTempDirectory(
+                java.nio.file.Paths.get(sandboxBase.getPathString()), "")
+            .getFileName()
+            .toString());
+  }
+}
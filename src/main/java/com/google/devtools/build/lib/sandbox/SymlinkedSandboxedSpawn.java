@@ -28,10 +28,14 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import javax.annotation.Nullable;
 
 /**
  * Creates an execRoot for a Spawn that contains input files as symlinks to their original
  * destination.
+ *
+ * <p>If the sandbox directory already contains the execRoot of an earlier spawn, only the entries
+ * that differ from the inputs of this spawn are removed or recreated.
  */
 public class SymlinkedSandboxedSpawn implements SandboxedSpawn {
   private final Path sandboxPath;
@@ -41,6 +45,9 @@ public class SymlinkedSandboxedSpawn implements SandboxedSpawn {
   private final Map<PathFragment, Path> inputs;
   private final Collection<PathFragment> outputs;
   private final Set<Path> writableDirs;
+  private final TreeDeleter treeDeleter;
+  @Nullable private final SandboxPool sandboxPool;
+  @Nullable private final String mnemonic;
 
   public SymlinkedSandboxedSpawn(
       Path sandboxPath,
@@ -50,6 +57,35 @@ public class SymlinkedSandboxedSpawn implements SandboxedSpawn {
       Map<PathFragment, Path> inputs,
       Collection<PathFragment> outputs,
       Set<Path> writableDirs) {
+    this(
+        sandboxPath,
+        sandboxExecRoot,
+        arguments,
+        environment,
+        inputs,
+        outputs,
+        writableDirs,
+        new SynchronousTreeDeleter(),
+        /*sandboxPool=*/ null,
+        /*mnemonic=*/ null);
+  }
+
+  /**
+   * Creates a spawn whose sandbox directory is deleted by {@code treeDeleter}. If {@code
+   * sandboxPool} is not null, the sandbox directory was acquired from it for the given mnemonic and
+   * is released to it again instead.
+   */
+  SymlinkedSandboxedSpawn(
+      Path sandboxPath,
+      Path sandboxExecRoot,
+      List<String> arguments,
+      Map<String, String> environment,
+      Map<PathFragment, Path> inputs,
+      Collection<PathFragment> outputs,
+      Set<Path> writableDirs,
+      TreeDeleter treeDeleter,
+      @Nullable SandboxPool sandboxPool,
+      @Nullable String mnemonic) {
     this.sandboxPath = sandboxPath;
     this.sandboxExecRoot = sandboxExecRoot;
     this.arguments = arguments;
@@ -57,6 +93,9 @@ public class SymlinkedSandboxedSpawn implements SandboxedSpawn {
     this.inputs = inputs;
     this.outputs = outputs;
     this.writableDirs = writableDirs;
+    this.treeDeleter = treeDeleter;
+    this.sandboxPool = sandboxPool;
+    this.mnemonic = mnemonic;
   }
 
   @Override
@@ -141,7 +180,12 @@ public class SymlinkedSandboxedSpawn implements SandboxedSpawn {
             && key.readSymbolicLink().equals(entry.getValue().asFragment())) {
           continue;
         }
-        key.delete();
+        if (keyStat.isDirectory()) {
+          // The previous spawn in this sandbox may have created a directory here.
+          FileSystemUtils.deleteTree(key);
+        } else {
+          key.delete();
+        }
       }
       // A null value means that we're supposed to create an empty file as the input.
       if (entry.getValue() != null) {
@@ -196,8 +240,13 @@ public class SymlinkedSandboxedSpawn implements SandboxedSpawn {
 
   @Override
   public void delete() {
+    if (sandboxPool != null) {
+      // The next spawn that gets this sandbox removes whatever it does not need.
+      sandboxPool.release(mnemonic, sandboxPath);
+      return;
+    }
     try {
-      FileSystemUtils.deleteTree(sandboxPath);
+      treeDeleter.deleteTree(sandboxPath);
     } catch (IOException e) {
       // This usually means that the Spawn itself exited, but still has children running that
       // we couldn't wait for, which now block deletion of the sandbox directory. On Linux this
@@ -0,0 +1,35 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.sandbox;
+
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.IOException;
+
+/** Deletes the directory trees of sandboxes that are no longer needed. */
+interface TreeDeleter {
+
+  /**
+   * Deletes the given directory tree.
+   *
+   * <p>Implementations may return before the tree is actually gone, so the caller must not
+   * recreate anything at the same path.
+   */
+  void deleteTree(Path path) throws IOException;
+
+  /**
+   * Waits until all trees passed to {@link #deleteTree} have been deleted, or until the
+   * implementation gives up on them.
+   */
+  void shutdown();
+}
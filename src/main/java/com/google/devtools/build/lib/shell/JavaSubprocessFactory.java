@@ -20,6 +20,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.ProcessBuilder.Redirect;
+import java.lang.reflect.Field;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -70,6 +71,23 @@ public class JavaSubprocessFactory implements SubprocessFactory {
       }
     }
 
+    @Override
+    public long getProcessId() {
+      try {
+        // Process.pid() only exists from Java 9 on.
+        return (Long) Process.class.getMethod("pid").invoke(process);
+      } catch (ReflectiveOperationException e) {
+        // Fall through to the private field of the Java 8 implementation on Unix.
+      }
+      try {
+        Field pid = process.getClass().getDeclaredField("pid");
+        pid.setAccessible(true);
+        return pid.getInt(process);
+      } catch (ReflectiveOperationException | RuntimeException e) {
+        return -1;
+      }
+    }
+
     @Override
     public boolean timedout() {
       return deadlineExceeded.get();
@@ -15,12 +15,14 @@
 package com.google.devtools.build.lib.skyframe;
 
 import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.events.StoredEventHandler;
 import com.google.devtools.build.lib.packages.BuildFileNotFoundException;
 import com.google.devtools.build.lib.packages.RuleClassProvider;
 import com.google.devtools.build.lib.syntax.BuildFileAST;
 import com.google.devtools.build.lib.syntax.Mutability;
 import com.google.devtools.build.lib.syntax.Runtime;
 import com.google.devtools.build.lib.syntax.SkylarkSemantics;
+import com.google.devtools.build.lib.util.Fingerprint;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
@@ -31,6 +33,7 @@ import com.google.devtools.build.skyframe.SkyFunctionException.Transience;
 import com.google.devtools.build.skyframe.SkyKey;
 import com.google.devtools.build.skyframe.SkyValue;
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
 import javax.annotation.Nullable;
 
 /**
@@ -44,9 +47,17 @@ import javax.annotation.Nullable;
 public class ASTFileLookupFunction implements SkyFunction {
 
   private final RuleClassProvider ruleClassProvider;
+  private final AtomicReference<PersistentAstCache> persistentAstCache;
 
   public ASTFileLookupFunction(RuleClassProvider ruleClassProvider) {
+    this(ruleClassProvider, new AtomicReference<>());
+  }
+
+  public ASTFileLookupFunction(
+      RuleClassProvider ruleClassProvider,
+      AtomicReference<PersistentAstCache> persistentAstCache) {
     this.ruleClassProvider = ruleClassProvider;
+    this.persistentAstCache = persistentAstCache;
   }
 
   @Override
@@ -112,7 +123,24 @@ public class ASTFileLookupFunction implements SkyFunction {
     BuildFileAST ast = null;
     Path path = rootedPath.asPath();
     try {
-      long astFileSize = fileValue.getSize();
+      byte[] bytes = FileSystemUtils.readWithKnownFileSize(path, fileValue.getSize());
+      PersistentAstCache cache = persistentAstCache.get();
+      String cacheKey = null;
+      if (cache != null) {
+        // Keyed by the bytes that are parsed on a miss, so that the key always matches the AST.
+        cacheKey =
+            cache.key(
+                path.asFragment(),
+                new Fingerprint().addBytes(bytes).digestAndReset(),
+                skylarkSemantics,
+                "bzl");
+        ast = cache.get(cacheKey);
+        if (ast != null) {
+          return ASTFileLookupValue.withFile(ast);
+        }
+      }
+      // Events are only replayed here, so that the cache can tell whether there were any.
+      StoredEventHandler eventHandler = new StoredEventHandler();
       try (Mutability mutability = Mutability.create("validate")) {
         com.google.devtools.build.lib.syntax.Environment validationEnv =
             ruleClassProvider
@@ -126,12 +154,15 @@ public class ASTFileLookupFunction implements SkyFunction {
                     /*importMap=*/ null)
                 .setupDynamic(Runtime.PKG_NAME, Runtime.NONE)
                 .setupDynamic(Runtime.REPOSITORY_NAME, Runtime.NONE);
-        byte[] bytes = FileSystemUtils.readWithKnownFileSize(path, astFileSize);
         ast =
             BuildFileAST.parseSkylarkFile(
-                bytes, path.getDigest(), path.asFragment(), env.getListener());
-          ast = ast.validate(validationEnv, env.getListener());
-        }
+                bytes, path.getDigest(), path.asFragment(), eventHandler);
+        ast = ast.validate(validationEnv, eventHandler);
+      }
+      eventHandler.replayOn(env.getListener());
+      if (cache != null && eventHandler.isEmpty() && !ast.containsErrors()) {
+        cache.put(cacheKey, ast);
+      }
     } catch (IOException e) {
       throw new ASTLookupFunctionException(new ErrorReadingSkylarkExtensionException(e),
           Transience.TRANSIENT);
@@ -13,25 +13,41 @@
 // limitations under the License.
 package com.google.devtools.build.lib.skyframe;
 
+import com.google.devtools.build.lib.skyframe.ExternalFilesHelper.FileType;
 import com.google.devtools.build.lib.vfs.RootedPath;
+import com.google.devtools.build.lib.vfs.Symlinks;
+import com.google.devtools.build.lib.vfs.UnixGlob;
 import com.google.devtools.build.skyframe.SkyFunction;
 import com.google.devtools.build.skyframe.SkyFunctionException;
 import com.google.devtools.build.skyframe.SkyKey;
 import com.google.devtools.build.skyframe.SkyValue;
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * A {@link SkyFunction} for {@link DirectoryListingStateValue}s.
  *
  * <p>Merely calls DirectoryListingStateValue#create, but also has special handling for
  * directories outside the package roots (see {@link ExternalFilesHelper}).
+ *
+ * <p>Directories under the package roots are listed through the given filesystem calls, which
+ * during a build are the {@link PerBuildSyscallCache} that legacy globbing also uses, so that a
+ * source directory is read at most once per build however it is globbed.
  */
 public class DirectoryListingStateFunction implements SkyFunction {
 
   private final ExternalFilesHelper externalFilesHelper;
+  private final AtomicReference<? extends UnixGlob.FilesystemCalls> syscalls;
 
   public DirectoryListingStateFunction(ExternalFilesHelper externalFilesHelper) {
+    this(externalFilesHelper, UnixGlob.DEFAULT_SYSCALLS_REF);
+  }
+
+  public DirectoryListingStateFunction(
+      ExternalFilesHelper externalFilesHelper,
+      AtomicReference<? extends UnixGlob.FilesystemCalls> syscalls) {
     this.externalFilesHelper = externalFilesHelper;
+    this.syscalls = syscalls;
   }
 
   @Override
@@ -44,7 +60,13 @@ public class DirectoryListingStateFunction implements SkyFunction {
       if (env.valuesMissing()) {
         return null;
       }
-      return DirectoryListingStateValue.create(dirRootedPath);
+      if (externalFilesHelper.getAndNoteFileType(dirRootedPath) != FileType.INTERNAL) {
+        // Directories outside the package roots, such as in the output tree, may change during
+        // the build, so they are always read afresh.
+        return DirectoryListingStateValue.create(dirRootedPath);
+      }
+      return DirectoryListingStateValue.create(
+          syscalls.get().readdir(dirRootedPath.asPath(), Symlinks.NOFOLLOW));
     } catch (ExternalFilesHelper.NonexistentImmutableExternalFileException e) {
       // DirectoryListingStateValue.key assumes the path exists. This exception here is therefore
       // indicative of a programming bug.
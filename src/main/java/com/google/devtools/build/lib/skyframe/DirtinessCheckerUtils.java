@@ -20,13 +20,21 @@ import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.devtools.build.lib.skyframe.ExternalFilesHelper.FileType;
+import com.google.devtools.build.lib.util.Pair;
 import com.google.devtools.build.lib.util.io.TimestampGranularityMonitor;
+import com.google.devtools.build.lib.vfs.BatchStat;
+import com.google.devtools.build.lib.vfs.FileStatusWithDigest;
+import com.google.devtools.build.lib.vfs.FileSystem;
 import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.build.lib.vfs.RootedPath;
 import com.google.devtools.build.skyframe.SkyKey;
 import com.google.devtools.build.skyframe.SkyValue;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.EnumSet;
+import java.util.List;
 import java.util.Set;
 import javax.annotation.Nullable;
 
@@ -53,6 +61,58 @@ public class DirtinessCheckerUtils {
         return null;
       }
     }
+
+    /** Stats the files of all keys in a single call if their file system supports that. */
+    @Override
+    public List<DirtyResult> checkBatch(
+        List<Pair<SkyKey, SkyValue>> keysAndOldValues,
+        @Nullable TimestampGranularityMonitor tsgm) {
+      List<RootedPath> rootedPaths = new ArrayList<>(keysAndOldValues.size());
+      List<PathFragment> paths = new ArrayList<>(keysAndOldValues.size());
+      FileSystem fileSystem = null;
+      for (Pair<SkyKey, SkyValue> keyAndOldValue : keysAndOldValues) {
+        RootedPath rootedPath = (RootedPath) keyAndOldValue.getFirst().argument();
+        Path path = rootedPath.asPath();
+        if (fileSystem == null) {
+          fileSystem = path.getFileSystem();
+        } else if (fileSystem != path.getFileSystem()) {
+          return super.checkBatch(keysAndOldValues, tsgm);
+        }
+        rootedPaths.add(rootedPath);
+        paths.add(path.asFragment());
+      }
+      BatchStat batchStat = fileSystem == null ? null : fileSystem.getBatchStat();
+      if (batchStat == null) {
+        return super.checkBatch(keysAndOldValues, tsgm);
+      }
+      List<FileStatusWithDigest> stats;
+      try {
+        stats = batchStat.batchStat(/*includeDigest=*/ false, /*includeLinks=*/ true, paths);
+      } catch (IOException e) {
+        // Check the files one by one, so that only the ones that fail are dirty.
+        return super.checkBatch(keysAndOldValues, tsgm);
+      } catch (InterruptedException e) {
+        // FilesystemValueChecker handles interrupts.
+        Thread.currentThread().interrupt();
+        return super.checkBatch(keysAndOldValues, tsgm);
+      }
+      List<DirtyResult> results = new ArrayList<>(stats.size());
+      for (int i = 0; i < stats.size(); i++) {
+        FileStatusWithDigest stat = stats.get(i);
+        SkyValue newValue;
+        try {
+          newValue =
+              stat == null
+                  ? FileStateValue.NONEXISTENT_FILE_STATE_NODE
+                  : FileStateValue.createWithStatNoFollow(rootedPaths.get(i), stat, tsgm);
+        } catch (InconsistentFilesystemException | IOException e) {
+          // See createNewValue.
+          newValue = null;
+        }
+        results.add(compare(keysAndOldValues.get(i).getSecond(), newValue));
+      }
+      return results;
+    }
   }
 
   static class DirectoryDirtinessChecker extends SkyValueDirtinessChecker {
@@ -89,6 +149,13 @@ public class DirtinessCheckerUtils {
     public SkyValue createNewValue(SkyKey key, @Nullable TimestampGranularityMonitor tsgm) {
       return checker.createNewValue(key, tsgm);
     }
+
+    @Override
+    public List<DirtyResult> checkBatch(
+        List<Pair<SkyKey, SkyValue>> keysAndOldValues,
+        @Nullable TimestampGranularityMonitor tsgm) {
+      return checker.checkBatch(keysAndOldValues, tsgm);
+    }
   }
 
   static final class MissingDiffDirtinessChecker extends BasicFilesystemDirtinessChecker {
@@ -147,6 +214,31 @@ public class DirtinessCheckerUtils {
       }
       return SkyValueDirtinessChecker.DirtyResult.dirtyWithNewValue(oldValue, newValue);
     }
+
+    @Override
+    public List<DirtyResult> checkBatch(
+        List<Pair<SkyKey, SkyValue>> keysAndOldValues,
+        @Nullable TimestampGranularityMonitor tsgm) {
+      List<DirtyResult> results = new ArrayList<>(super.checkBatch(keysAndOldValues, tsgm));
+      // Adjust the results like check does.
+      for (int i = 0; i < results.size(); i++) {
+        DirtyResult result = results.get(i);
+        if (!result.isDirty()) {
+          continue;
+        }
+        SkyKey key = keysAndOldValues.get(i).getFirst();
+        SkyValue oldValue = result.getOldValue();
+        if (result.getNewValue() == null) {
+          if (oldValue == null) {
+            results.set(i, DirtyResult.notDirty(oldValue));
+          }
+        } else if (externalFilesHelper.getAndNoteFileType((RootedPath) key.argument())
+            == FileType.EXTERNAL_REPO) {
+          results.set(i, DirtyResult.dirty(oldValue));
+        }
+      }
+      return results;
+    }
   }
 
   /** {@link SkyValueDirtinessChecker} that encompasses a union of other dirtiness checkers. */
@@ -183,5 +275,36 @@ public class DirtinessCheckerUtils {
         @Nullable TimestampGranularityMonitor tsgm) {
       return Preconditions.checkNotNull(getChecker(key), key).check(key, oldValue, tsgm);
     }
+
+    /** Checks the keys of each checker in a batch of their own. */
+    @Override
+    public List<DirtyResult> checkBatch(
+        List<Pair<SkyKey, SkyValue>> keysAndOldValues,
+        @Nullable TimestampGranularityMonitor tsgm) {
+      List<SkyValueDirtinessChecker> checkers = new ArrayList<>(keysAndOldValues.size());
+      for (Pair<SkyKey, SkyValue> keyAndOldValue : keysAndOldValues) {
+        SkyKey key = keyAndOldValue.getFirst();
+        checkers.add(Preconditions.checkNotNull(getChecker(key), key));
+      }
+      DirtyResult[] results = new DirtyResult[keysAndOldValues.size()];
+      for (SkyValueDirtinessChecker dirtinessChecker : dirtinessCheckers) {
+        List<Integer> indices = new ArrayList<>();
+        List<Pair<SkyKey, SkyValue>> batch = new ArrayList<>();
+        for (int i = 0; i < results.length; i++) {
+          if (checkers.get(i) == dirtinessChecker) {
+            indices.add(i);
+            batch.add(keysAndOldValues.get(i));
+          }
+        }
+        if (batch.isEmpty()) {
+          continue;
+        }
+        List<DirtyResult> batchResults = dirtinessChecker.checkBatch(batch, tsgm);
+        for (int j = 0; j < indices.size(); j++) {
+          results[indices.get(j)] = batchResults.get(j);
+        }
+      }
+      return Arrays.asList(results);
+    }
   }
 }
@@ -21,6 +21,7 @@ import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Range;
 import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
@@ -45,6 +46,7 @@ import com.google.devtools.build.skyframe.SkyKey;
 import com.google.devtools.build.skyframe.SkyValue;
 import com.google.devtools.build.skyframe.WalkableGraph;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -70,6 +72,7 @@ import javax.annotation.Nullable;
 public class FilesystemValueChecker {
 
   private static final int DIRTINESS_CHECK_THREADS = 200;
+  private static final int MAX_DIRTINESS_CHECK_BATCH_SIZE = 2048;
   private static final Logger logger = Logger.getLogger(FilesystemValueChecker.class.getName());
 
   private static final Predicate<SkyKey> ACTION_FILTER =
@@ -491,24 +494,43 @@ public class FilesystemValueChecker {
           }
         };
     try (AutoProfiler prof = AutoProfiler.create(elapsedTimeReceiver)) {
-      for (final SkyKey key : keys) {
+      List<Pair<SkyKey, SkyValue>> keysAndValues = new ArrayList<>();
+      for (SkyKey key : keys) {
         numKeysScanned.incrementAndGet();
         if (!checker.applies(key)) {
           continue;
         }
-        final SkyValue value = fetcher.get(key);
+        SkyValue value = fetcher.get(key);
         if (!checkMissingValues && value == null) {
           continue;
         }
+        keysAndValues.add(Pair.of(key, value));
+      }
+      // Check the keys in batches, so that checkers can e.g. stat() many files at once, but in
+      // enough batches to keep all threads busy.
+      int batchSize =
+          Math.max(
+              1,
+              Math.min(
+                  MAX_DIRTINESS_CHECK_BATCH_SIZE,
+                  (keysAndValues.size() + DIRTINESS_CHECK_THREADS - 1) / DIRTINESS_CHECK_THREADS));
+      for (final List<Pair<SkyKey, SkyValue>> batch :
+          Lists.partition(keysAndValues, batchSize)) {
         executor.execute(
             wrapper.wrap(
                 new Runnable() {
                   @Override
                   public void run() {
-                    numKeysChecked.incrementAndGet();
-                    DirtyResult result = checker.check(key, value, tsgm);
-                    if (result.isDirty()) {
-                      batchResult.add(key, value, result.getNewValue());
+                    numKeysChecked.addAndGet(batch.size());
+                    List<DirtyResult> results = checker.checkBatch(batch, tsgm);
+                    for (int i = 0; i < batch.size(); i++) {
+                      DirtyResult result = results.get(i);
+                      if (result.isDirty()) {
+                        batchResult.add(
+                            batch.get(i).getFirst(),
+                            batch.get(i).getSecond(),
+                            result.getNewValue());
+                      }
                     }
                   }
                 }));
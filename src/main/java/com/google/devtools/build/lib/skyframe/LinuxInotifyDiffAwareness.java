@@ -0,0 +1,155 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.UnixJniLoader;
+import com.google.devtools.common.options.OptionsClassProvider;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * A {@link DiffAwareness} that uses inotify through JNI to watch the filesystem on Linux, in lieu
+ * of {@link WatchServiceDiffAwareness}.
+ *
+ * <p>Directories are registered in native code, which is much faster than registering them one by
+ * one with a {@link java.nio.file.WatchService}, and events are drained by a background thread.
+ * When the kernel event queue overflows anyway, the watched tree is rescanned for changes since
+ * the previous view instead of discarding the watches and treating everything as modified.
+ */
+public final class LinuxInotifyDiffAwareness extends LocalDiffAwareness {
+
+  private boolean closed;
+
+  // Keep a pointer to a native structure in the JNI code (the thread draining inotify events needs
+  // that structure).
+  private long nativePointer;
+
+  private boolean opened;
+
+  /** Watch changes on the file system under <code>watchRoot</code>. */
+  LinuxInotifyDiffAwareness(String watchRoot) {
+    super(watchRoot);
+  }
+
+  /** Helper function to start the watch of <code>root</code> and its subdirectories. */
+  private native void create(String root) throws IOException;
+
+  /** Run the loop draining inotify events, until {@link #doClose} is called. */
+  private native void run();
+
+  private void init() throws IOException {
+    Preconditions.checkState(!opened);
+    create(watchRootPath.toAbsolutePath().toString());
+    opened = true;
+    Thread thread =
+        new Thread(
+            new Runnable() {
+              @Override
+              public void run() {
+                LinuxInotifyDiffAwareness.this.run();
+              }
+            },
+            "inotify-diff-awareness");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /** Close this watch service, this service should not be used any longer after closing. */
+  @Override
+  public void close() {
+    if (opened && !closed) {
+      closed = true;
+      doClose();
+    }
+  }
+
+  private static final boolean JNI_AVAILABLE;
+
+  /** JNI code stopping the loop and releasing the watches. */
+  private native void doClose();
+
+  /**
+   * JNI code returning the list of absolute paths modified since last call, or throwing if changes
+   * could not be tracked. Reads the events that are still queued first, so that every change made
+   * before the call is included.
+   */
+  private native String[] poll() throws IOException;
+
+  /**
+   * While <code>dropping</code> is true, inotify events are discarded. Setting it to false again
+   * recovers as if the event queue had overflowed.
+   */
+  @VisibleForTesting
+  native void setDroppingEventsForTesting(boolean dropping);
+
+  static {
+    boolean loadJniWorked = false;
+    try {
+      UnixJniLoader.loadJni();
+      loadJniWorked = true;
+    } catch (UnsatisfiedLinkError ignored) {
+      // The bootstrap binary has no JNI code; see MacOSXFsEventsDiffAwareness.
+    }
+    JNI_AVAILABLE = loadJniWorked;
+  }
+
+  /**
+   * Returns whether this diff awareness can be used; otherwise {@link WatchServiceDiffAwareness}
+   * should be.
+   */
+  static boolean isAvailable() {
+    return JNI_AVAILABLE;
+  }
+
+  @Override
+  public View getCurrentView(OptionsClassProvider options)
+      throws BrokenDiffAwarenessException {
+    if (!JNI_AVAILABLE) {
+      return EVERYTHING_MODIFIED;
+    }
+    // See WatchServiceDiffAwareness#getCurrentView for an explanation of this logic.
+    boolean watchFs = options.getOptions(Options.class).watchFS;
+    if (watchFs && !opened) {
+      try {
+        init();
+      } catch (IOException e) {
+        throw new BrokenDiffAwarenessException(
+            "Error encountered with local file system watcher " + e);
+      }
+    } else if (!watchFs && opened) {
+      close();
+      throw new BrokenDiffAwarenessException("Switched off --watchfs again");
+    } else if (!opened) {
+      return EVERYTHING_MODIFIED;
+    }
+    Preconditions.checkState(!closed);
+    String[] modifiedPaths;
+    try {
+      modifiedPaths = poll();
+    } catch (IOException e) {
+      close();
+      throw new BrokenDiffAwarenessException(
+          "Error encountered with local file system watcher " + e);
+    }
+    ImmutableSet.Builder<Path> paths = ImmutableSet.builder();
+    for (String path : modifiedPaths) {
+      paths.add(new File(path).toPath());
+    }
+    return newView(paths.build());
+  }
+}
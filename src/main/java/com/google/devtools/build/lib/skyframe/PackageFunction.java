@@ -56,6 +56,7 @@ import com.google.devtools.build.lib.syntax.ParserInputSource;
 import com.google.devtools.build.lib.syntax.SkylarkImport;
 import com.google.devtools.build.lib.syntax.SkylarkSemantics;
 import com.google.devtools.build.lib.syntax.Statement;
+import com.google.devtools.build.lib.util.Fingerprint;
 import com.google.devtools.build.lib.util.Pair;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
@@ -83,6 +84,7 @@ import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import javax.annotation.Nullable;
 
 /**
@@ -106,6 +108,8 @@ public class PackageFunction implements SkyFunction {
 
   private final ActionOnIOExceptionReadingBuildFile actionOnIOExceptionReadingBuildFile;
 
+  private final AtomicReference<PersistentAstCache> persistentAstCache;
+
   static final PathFragment DEFAULTS_PACKAGE_NAME = PathFragment.create("tools/defaults");
 
   public PackageFunction(
@@ -117,7 +121,8 @@ public class PackageFunction implements SkyFunction {
       AtomicInteger numPackagesLoaded,
       @Nullable SkylarkImportLookupFunction skylarkImportLookupFunctionForInlining,
       @Nullable PackageProgressReceiver packageProgress,
-      ActionOnIOExceptionReadingBuildFile actionOnIOExceptionReadingBuildFile) {
+      ActionOnIOExceptionReadingBuildFile actionOnIOExceptionReadingBuildFile,
+      AtomicReference<PersistentAstCache> persistentAstCache) {
     this.skylarkImportLookupFunctionForInlining = skylarkImportLookupFunctionForInlining;
     // Can be null in tests.
     this.preludeLabel = packageFactory == null
@@ -131,6 +136,30 @@ public class PackageFunction implements SkyFunction {
     this.numPackagesLoaded = numPackagesLoaded;
     this.packageProgress = packageProgress;
     this.actionOnIOExceptionReadingBuildFile = actionOnIOExceptionReadingBuildFile;
+    this.persistentAstCache = persistentAstCache;
+  }
+
+  public PackageFunction(
+      PackageFactory packageFactory,
+      CachingPackageLocator pkgLocator,
+      AtomicBoolean showLoadingProgress,
+      Cache<PackageIdentifier, CacheEntryWithGlobDeps<Package.Builder>> packageFunctionCache,
+      Cache<PackageIdentifier, CacheEntryWithGlobDeps<AstAfterPreprocessing>> astCache,
+      AtomicInteger numPackagesLoaded,
+      @Nullable SkylarkImportLookupFunction skylarkImportLookupFunctionForInlining,
+      @Nullable PackageProgressReceiver packageProgress,
+      ActionOnIOExceptionReadingBuildFile actionOnIOExceptionReadingBuildFile) {
+    this(
+        packageFactory,
+        pkgLocator,
+        showLoadingProgress,
+        packageFunctionCache,
+        astCache,
+        numPackagesLoaded,
+        skylarkImportLookupFunctionForInlining,
+        packageProgress,
+        actionOnIOExceptionReadingBuildFile,
+        /*persistentAstCache=*/ new AtomicReference<>());
   }
 
   @VisibleForTesting
@@ -559,6 +588,13 @@ public class PackageFunction implements SkyFunction {
     List<Statement> preludeStatements =
         astLookupValue.lookupSuccessful()
             ? astLookupValue.getAST().getStatements() : ImmutableList.<Statement>of();
+    // The ASTs of BUILD files include the prelude, so it is part of their persistent cache key.
+    String preludeFingerprint =
+        astLookupValue.lookupSuccessful()
+            ? astLookupValue.getAST().getLocation().getPath()
+                + ":"
+                + astLookupValue.getAST().getContentHashCode()
+            : "";
     CacheEntryWithGlobDeps<Package.Builder> packageBuilderAndGlobDeps =
         loadPackage(
             workspaceName,
@@ -569,6 +605,7 @@ public class PackageFunction implements SkyFunction {
             defaultVisibility,
             skylarkSemantics,
             preludeStatements,
+            preludeFingerprint,
             packageLookupValue.getRoot(),
             env);
     if (packageBuilderAndGlobDeps == null) {
@@ -1192,6 +1229,7 @@ public class PackageFunction implements SkyFunction {
       RuleVisibility defaultVisibility,
       SkylarkSemantics skylarkSemantics,
       List<Statement> preludeStatements,
+      String preludeFingerprint,
       Path packageRoot,
       Environment env)
       throws InterruptedException, PackageFunctionException {
@@ -1215,10 +1253,9 @@ public class PackageFunction implements SkyFunction {
               buildFilePath.getParentDirectory(), packageId, packageLocator);
           SkyframeHybridGlobber skyframeGlobber = new SkyframeHybridGlobber(packageId, packageRoot,
               env, legacyGlobber);
-          ParserInputSource input;
+          byte[] buildFileBytes = null;
           if (replacementContents == null) {
             Preconditions.checkNotNull(buildFileValue, packageId);
-            byte[] buildFileBytes = null;
             try {
               buildFileBytes =
                   buildFileValue.isSpecialFile()
@@ -1237,17 +1274,35 @@ public class PackageFunction implements SkyFunction {
               // If control flow reaches here, we're in territory that is deliberately unsound.
               // See the javadoc for ActionOnIOExceptionReadingBuildFile.
             }
-            input =
-                ParserInputSource.create(
-                    FileSystemUtils.convertFromLatin1(buildFileBytes),
-                    buildFilePath.asFragment());
-          } else {
-            input = ParserInputSource.create(replacementContents, buildFilePath.asFragment());
           }
+          PersistentAstCache persistentCache = persistentAstCache.get();
+          // Only set if the AST may be loaded from or stored in the persistent cache, which is
+          // keyed by the bytes of the file, so that a hit needs no decoding.
+          String persistentCacheKey =
+              persistentCache == null || buildFileBytes == null
+                  ? null
+                  : persistentCache.key(
+                      buildFilePath.asFragment(),
+                      new Fingerprint().addBytes(buildFileBytes).digestAndReset(),
+                      skylarkSemantics,
+                      "BUILD:" + preludeFingerprint);
           StoredEventHandler astParsingEventHandler = new StoredEventHandler();
           BuildFileAST ast =
-              PackageFactory.parseBuildFile(
-                  packageId, input, preludeStatements, astParsingEventHandler);
+              persistentCacheKey == null ? null : persistentCache.get(persistentCacheKey);
+          if (ast == null) {
+            ParserInputSource input =
+                buildFileBytes != null
+                    ? ParserInputSource.create(buildFileBytes, buildFilePath.asFragment())
+                    : ParserInputSource.create(replacementContents, buildFilePath.asFragment());
+            ast =
+                PackageFactory.parseBuildFile(
+                    packageId, input, preludeStatements, astParsingEventHandler);
+            if (persistentCacheKey != null
+                && astParsingEventHandler.isEmpty()
+                && !ast.containsErrors()) {
+              persistentCache.put(persistentCacheKey, ast);
+            }
+          }
           // If no globs were fetched during preprocessing, then there's no need to reuse the
           // legacy globber instance during BUILD file evaluation since the performance argument
           // below does not apply.
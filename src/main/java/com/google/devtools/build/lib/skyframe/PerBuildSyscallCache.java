@@ -23,7 +23,10 @@ import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.Symlinks;
 import com.google.devtools.build.lib.vfs.UnixGlob;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import javax.annotation.Nullable;
 
 /**
  * A per-build cache of filesystem operations for Skyframe invocations of legacy package loading.
@@ -93,15 +96,60 @@ public class PerBuildSyscallCache implements UnixGlob.FilesystemCalls {
     }
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Only listings that do not follow symlinks are read and cached. A listing that follows them
+   * is derived from that by stat'ing the targets of symlinks through this cache, so that Skyframe,
+   * which lists directories without following symlinks, and legacy globbing, which follows them,
+   * share one read of each directory.
+   */
   @Override
   public Collection<Dirent> readdir(Path path, Symlinks symlinks) throws IOException {
     Pair<Collection<Dirent>, IOException> result =
-        readdirCache.getUnchecked(Pair.of(path, symlinks));
+        readdirCache.getUnchecked(Pair.of(path, Symlinks.NOFOLLOW));
     Collection<Dirent> entries = result.getFirst();
-    if (entries != null) {
+    if (entries == null) {
+      throw result.getSecond();
+    }
+    return symlinks == Symlinks.FOLLOW ? followSymlinks(path, entries) : entries;
+  }
+
+  private Collection<Dirent> followSymlinks(Path directory, Collection<Dirent> entries) {
+    if (entries.stream().noneMatch(entry -> entry.getType() == Dirent.Type.SYMLINK)) {
       return entries;
     }
-    throw result.getSecond();
+    List<Dirent> followed = new ArrayList<>(entries.size());
+    for (Dirent entry : entries) {
+      if (entry.getType() != Dirent.Type.SYMLINK) {
+        followed.add(entry);
+        continue;
+      }
+      FileStatus status;
+      try {
+        status = statIfFound(directory.getChild(entry.getName()), Symlinks.FOLLOW);
+      } catch (IOException e) {
+        // E.g. a symlink cycle. Path#readdir reports these as of unknown type too.
+        status = null;
+      }
+      followed.add(new Dirent(entry.getName(), typeOf(status)));
+    }
+    return followed;
+  }
+
+  /** Returns the type of a dirent with the given status, as {@link Path#readdir} does. */
+  private static Dirent.Type typeOf(@Nullable FileStatus status) {
+    if (status == null || status.isSpecialFile()) {
+      return Dirent.Type.UNKNOWN;
+    } else if (status.isFile()) {
+      return Dirent.Type.FILE;
+    } else if (status.isDirectory()) {
+      return Dirent.Type.DIRECTORY;
+    } else if (status.isSymbolicLink()) {
+      return Dirent.Type.SYMLINK;
+    } else {
+      return Dirent.Type.UNKNOWN;
+    }
   }
 
   @Override
@@ -182,7 +230,7 @@ public class PerBuildSyscallCache implements UnixGlob.FilesystemCalls {
 
   /**
    * A {@link CacheLoader} for a cache of readdir calls.
-   * Input: (path, following_symlinks)
+   * Input: (path, Symlinks.NOFOLLOW)
    * Output: A union of (Dirents, IOException).
    */
   private static
@@ -0,0 +1,205 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.syntax.BuildFileAST;
+import com.google.devtools.build.lib.syntax.SkylarkSemantics;
+import com.google.devtools.build.lib.util.Fingerprint;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import javax.annotation.Nullable;
+
+/**
+ * A content-addressed cache of parsed and validated {@link BuildFileAST}s on disk, so that BUILD
+ * and .bzl files that did not change can be loaded after a server restart without lexing, parsing
+ * and validating them again.
+ *
+ * <p>Entries are keyed by everything the AST depends on: the path and digest of the file, the
+ * {@link SkylarkSemantics}, what the file is loaded as and the Blaze binary, which determines both
+ * the builtins the file was validated against and the format of {@link BuildFileAST#serialize}.
+ * Only ASTs that were parsed and validated without any events are stored, so a hit never needs to
+ * replay errors or warnings.
+ *
+ * <p>Each entry is a file holding a CRC32 of its contents followed by the serialized AST. Entries
+ * are written to a temporary file and renamed into place, and are not synced: an entry torn by a
+ * crash fails the checksum and is treated as a miss. Since entries of another binary can never be
+ * hit again, the cache is emptied when it is opened by a binary other than the one that last used
+ * it; otherwise entries are only removed by {@code clean}.
+ */
+@ThreadSafe
+public final class PersistentAstCache {
+
+  private static final Logger logger = Logger.getLogger(PersistentAstCache.class.getName());
+
+  private static final String TMP_DIR = "tmp";
+  // Holds the fingerprint of the binary that last used the cache.
+  private static final String BINARY_FILE = "binary";
+
+  private final Path directory;
+  private final String binaryFingerprint;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * Creates a cache in the given directory, which is created if needed. If the directory holds the
+   * entries of another binary, they are deleted.
+   *
+   * @param binaryFingerprint identifies the Blaze binary, e.g. its install MD5
+   */
+  public PersistentAstCache(Path directory, String binaryFingerprint) throws IOException {
+    this.directory = directory;
+    this.binaryFingerprint = binaryFingerprint;
+    Path binaryFile = directory.getChild(BINARY_FILE);
+    if (directory.exists()
+        && !(binaryFile.exists()
+            && FileSystemUtils.readContent(binaryFile, UTF_8).equals(binaryFingerprint))) {
+      logger.info("Dropping the cached ASTs of another binary in " + directory);
+      FileSystemUtils.deleteTreesBelow(directory);
+    }
+    FileSystemUtils.createDirectoryAndParents(directory.getChild(TMP_DIR));
+    FileSystemUtils.writeContent(binaryFile, UTF_8, binaryFingerprint);
+  }
+
+  public Path getDirectory() {
+    return directory;
+  }
+
+  /**
+   * Returns the key of the AST of a file.
+   *
+   * @param path the path the file was parsed from, which the locations of the AST refer to
+   * @param digest the digest of the contents of the file
+   * @param semantics the semantics the AST was validated with
+   * @param context how the file was parsed, e.g. as a .bzl file, or as a BUILD file together with
+   *     a given prelude
+   */
+  public String key(
+      PathFragment path, byte[] digest, SkylarkSemantics semantics, String context) {
+    return new Fingerprint()
+        .addString(binaryFingerprint)
+        .addPath(path)
+        .addBytes(digest)
+        .addString(semantics.toString())
+        .addString(context)
+        .hexDigestAndReset();
+  }
+
+  /** Returns the AST stored under the given key, or null if there is none. */
+  @Nullable
+  public BuildFileAST get(String key) {
+    Path entry = entryPath(key);
+    byte[] content;
+    try {
+      content = FileSystemUtils.readContent(entry);
+    } catch (FileNotFoundException e) {
+      misses.incrementAndGet();
+      return null;
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to read cached AST " + entry, e);
+      misses.incrementAndGet();
+      return null;
+    }
+    try {
+      if (content.length < Integer.BYTES) {
+        throw new IOException("Truncated entry");
+      }
+      ByteBuffer buffer = ByteBuffer.wrap(content);
+      int checksum = buffer.getInt();
+      CRC32 crc = new CRC32();
+      crc.update(content, Integer.BYTES, content.length - Integer.BYTES);
+      if ((int) crc.getValue() != checksum) {
+        throw new IOException("Checksum mismatch");
+      }
+      byte[] serialized = new byte[content.length - Integer.BYTES];
+      buffer.get(serialized);
+      BuildFileAST ast = BuildFileAST.deserialize(serialized);
+      hits.incrementAndGet();
+      return ast;
+    } catch (IOException e) {
+      logger.log(Level.INFO, "Discarding unreadable cached AST " + entry, e);
+      deleteQuietly(entry);
+      misses.incrementAndGet();
+      return null;
+    }
+  }
+
+  /**
+   * Stores an AST under the given key. Failures are logged and otherwise ignored, since they only
+   * mean that the file will be parsed again.
+   */
+  public void put(String key, BuildFileAST ast) {
+    byte[] serialized;
+    try {
+      serialized = ast.serialize();
+    } catch (NotSerializableException e) {
+      logger.fine("Not caching AST of " + ast.getLocation() + ": " + e.getMessage());
+      return;
+    }
+    CRC32 crc = new CRC32();
+    crc.update(serialized);
+    byte[] content =
+        ByteBuffer.allocate(Integer.BYTES + serialized.length)
+            .putInt((int) crc.getValue())
+            .put(serialized)
+            .array();
+    Path entry = entryPath(key);
+    Path temp = directory.getChild(TMP_DIR).getChild(UUID.randomUUID().toString());
+    try {
+      FileSystemUtils.writeContent(temp, content);
+      entry.getParentDirectory().createDirectory();
+      temp.renameTo(entry);
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to cache AST in " + entry, e);
+      deleteQuietly(temp);
+    }
+  }
+
+  /** Returns the number of lookups that found an AST since this cache was created. */
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  /** Returns the number of lookups that found no AST since this cache was created. */
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  @VisibleForTesting
+  Path entryPath(String key) {
+    // Shard by the first two characters, to keep directories small.
+    return directory.getChild(key.substring(0, 2)).getChild(key);
+  }
+
+  private static void deleteQuietly(Path path) {
+    try {
+      path.delete();
+    } catch (IOException e) {
+      logger.log(Level.FINE, "Failed to delete " + path, e);
+    }
+  }
+}
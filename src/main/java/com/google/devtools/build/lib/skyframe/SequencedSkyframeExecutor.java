@@ -118,6 +118,9 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
    */
   private IncrementalState incrementalState = IncrementalState.NORMAL;
 
+  /** Whether the graph stores edges compactly, see --experimental_compact_skyframe_edges. */
+  private boolean compactEdges = false;
+
   private boolean evaluatorNeedsReset = false;
 
   // This is intentionally not kept in sync with the evaluator: we may reset the evaluator without
@@ -195,6 +198,13 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
     return skyframeExecutor;
   }
 
+  @Override
+  protected EvaluatorSupplier getEvaluatorSupplier() {
+    return compactEdges
+        ? InMemoryMemoizingEvaluator.COMPACT_EDGES_SUPPLIER
+        : super.getEvaluatorSupplier();
+  }
+
   @Override
   protected BuildDriver getBuildDriver() {
     return new SequentialBuildDriver(memoizingEvaluator);
@@ -536,6 +546,12 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
     } else if (incrementalState == IncrementalState.CLEAR_EDGES_AND_ACTIONS) {
       evaluatorNeedsReset = true;
     }
+    // Commands without build options keep the graph they find.
+    if (requestOptions != null && requestOptions.compactSkyframeEdges != compactEdges) {
+      compactEdges = requestOptions.compactSkyframeEdges;
+      logger.info("Set compact Skyframe edges to " + compactEdges);
+      evaluatorNeedsReset = true;
+    }
   }
 
   @Override
@@ -14,9 +14,12 @@
 package com.google.devtools.build.lib.skyframe;
 
 import com.google.common.base.Preconditions;
+import com.google.devtools.build.lib.util.Pair;
 import com.google.devtools.build.lib.util.io.TimestampGranularityMonitor;
 import com.google.devtools.build.skyframe.SkyKey;
 import com.google.devtools.build.skyframe.SkyValue;
+import java.util.ArrayList;
+import java.util.List;
 import javax.annotation.Nullable;
 
 /**
@@ -40,7 +43,13 @@ public abstract class SkyValueDirtinessChecker {
    */
   public DirtyResult check(SkyKey key, @Nullable SkyValue oldValue,
       @Nullable TimestampGranularityMonitor tsgm) {
-    SkyValue newValue = createNewValue(key, tsgm);
+    return compare(oldValue, createNewValue(key, tsgm));
+  }
+
+  /**
+   * Returns the result of {@link #check} given the new value, or null if it could not be created.
+   */
+  static DirtyResult compare(@Nullable SkyValue oldValue, @Nullable SkyValue newValue) {
     if (newValue == null) {
       return DirtyResult.dirty(oldValue);
     }
@@ -49,6 +58,22 @@ public abstract class SkyValueDirtinessChecker {
         : DirtyResult.dirtyWithNewValue(oldValue, newValue);
   }
 
+  /**
+   * Like {@link #check} for each of the given keys, to all of which this checker applies, and
+   * their old values. Returns the results in the same order.
+   *
+   * <p>The default checks the keys one by one. Checkers that can do better for many keys at once,
+   * e.g. by stat()ing all their files in a single call, override this.
+   */
+  public List<DirtyResult> checkBatch(
+      List<Pair<SkyKey, SkyValue>> keysAndOldValues, @Nullable TimestampGranularityMonitor tsgm) {
+    List<DirtyResult> results = new ArrayList<>(keysAndOldValues.size());
+    for (Pair<SkyKey, SkyValue> keyAndOldValue : keysAndOldValues) {
+      results.add(check(keyAndOldValue.getFirst(), keyAndOldValue.getSecond(), tsgm));
+    }
+    return results;
+  }
+
   /** An encapsulation of the result of checking to see if a value is up to date. */
   public static class DirtyResult {
     /**
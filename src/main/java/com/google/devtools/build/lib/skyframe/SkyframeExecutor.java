@@ -143,6 +143,7 @@ import com.google.devtools.build.skyframe.ImmutableDiff;
 import com.google.devtools.build.skyframe.Injectable;
 import com.google.devtools.build.skyframe.MemoizingEvaluator;
 import com.google.devtools.build.skyframe.MemoizingEvaluator.EvaluatorSupplier;
+import com.google.devtools.build.skyframe.NodeEntry;
 import com.google.devtools.build.skyframe.SkyFunction;
 import com.google.devtools.build.skyframe.SkyFunctionName;
 import com.google.devtools.build.skyframe.SkyKey;
@@ -150,6 +151,7 @@ import com.google.devtools.build.skyframe.SkyValue;
 import com.google.devtools.build.skyframe.WalkableGraph.WalkableGraphFactory;
 import com.google.devtools.common.options.OptionsClassProvider;
 import com.google.devtools.common.options.OptionsProvider;
+import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -168,6 +170,7 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.Nullable;
 
@@ -258,6 +261,10 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
   private CompletionReceiver actionExecutionFunction;
   protected SkyframeProgressReceiver progressReceiver;
   private final AtomicReference<CyclesReporter> cyclesReporter = new AtomicReference<>();
+  /** The index that the edges of newly loaded packages are recorded in, if any. */
+  @Nullable private volatile TargetEdgeIndex targetEdgeIndex;
+  /** The cache of syntax trees kept across servers, if enabled by the options of the command. */
+  private final AtomicReference<PersistentAstCache> persistentAstCache = new AtomicReference<>();
 
   protected int modifiedFiles;
   protected int outputDirtyFiles;
@@ -356,7 +363,7 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     map.put(SkyFunctions.ACTION_ENVIRONMENT_VARIABLE, new ActionEnvironmentFunction());
     map.put(SkyFunctions.FILE_STATE, new FileStateFunction(tsgm, externalFilesHelper));
     map.put(SkyFunctions.DIRECTORY_LISTING_STATE,
-        new DirectoryListingStateFunction(externalFilesHelper));
+        new DirectoryListingStateFunction(externalFilesHelper, syscalls));
     map.put(SkyFunctions.FILE_SYMLINK_CYCLE_UNIQUENESS,
         new FileSymlinkCycleUniquenessFunction());
     map.put(SkyFunctions.FILE_SYMLINK_INFINITE_EXPANSION_UNIQUENESS,
@@ -368,7 +375,9 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
         new PackageLookupFunction(
             deletedPackages, crossRepositoryLabelViolationStrategy, buildFilesByPriority));
     map.put(SkyFunctions.CONTAINING_PACKAGE_LOOKUP, new ContainingPackageLookupFunction());
-    map.put(SkyFunctions.AST_FILE_LOOKUP, new ASTFileLookupFunction(ruleClassProvider));
+    map.put(
+        SkyFunctions.AST_FILE_LOOKUP,
+        new ASTFileLookupFunction(ruleClassProvider, persistentAstCache));
     map.put(
         SkyFunctions.SKYLARK_IMPORTS_LOOKUP,
         newSkylarkImportLookupFunction(ruleClassProvider, pkgFactory));
@@ -479,7 +488,8 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
         numPackagesLoaded,
         null,
         packageProgress,
-        actionOnIOExceptionReadingBuildFile);
+        actionOnIOExceptionReadingBuildFile,
+        persistentAstCache);
   }
 
   protected SkyFunction newSkylarkImportLookupFunction(
@@ -596,15 +606,21 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     ImmutableMap<SkyFunctionName, SkyFunction> skyFunctions =
         skyFunctions(pkgFactory, allowedMissingInputs);
     memoizingEvaluator =
-        evaluatorSupplier.create(
-            skyFunctions,
-            evaluatorDiffer(),
-            progressReceiver,
-            emittedEventState,
-            hasIncrementalState());
+        getEvaluatorSupplier()
+            .create(
+                skyFunctions,
+                evaluatorDiffer(),
+                progressReceiver,
+                emittedEventState,
+                hasIncrementalState());
     buildDriver = getBuildDriver();
   }
 
+  /** Returns the supplier of the evaluator that {@link #init} creates. */
+  protected EvaluatorSupplier getEvaluatorSupplier() {
+    return evaluatorSupplier;
+  }
+
   protected SkyframeProgressReceiver newSkyframeProgressReceiver() {
     return new SkyframeProgressReceiver();
   }
@@ -1030,6 +1046,7 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     this.pkgFactory.setGlobbingThreads(packageCacheOptions.globbingThreads);
     this.pkgFactory.setMaxDirectoriesToEagerlyVisitInGlobbing(
         packageCacheOptions.maxDirectoriesToEagerlyVisitInGlobbing);
+    setPersistentAstCacheEnabled(packageCacheOptions.persistentAstCache);
     emittedEventState.clear();
 
     // If the PackageFunction was interrupted, there may be stale entries here.
@@ -1074,6 +1091,43 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     this.skyframeActionExecutor.setClientEnv(clientEnv);
   }
 
+  /**
+   * Returns the directory the syntax trees of BUILD and .bzl files are cached in across servers.
+   */
+  public Path getPersistentAstCacheDirectory() {
+    return directories.getOutputBase().getChild("ast_cache");
+  }
+
+  /**
+   * Opens or drops the cache of syntax trees kept across servers. If the cache cannot be opened,
+   * files are parsed as usual.
+   */
+  public void setPersistentAstCacheEnabled(boolean enabled) {
+    if (!enabled) {
+      persistentAstCache.set(null);
+      return;
+    }
+    if (persistentAstCache.get() != null) {
+      return;
+    }
+    Path directory = getPersistentAstCacheDirectory();
+    try {
+      persistentAstCache.compareAndSet(
+          null,
+          new PersistentAstCache(directory, String.valueOf(directories.getInstallMD5())));
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to open the persistent AST cache in " + directory, e);
+    }
+  }
+
+  /**
+   * Sets the index to record the target edges of every package that is loaded from now on in, or
+   * {@code null} to stop recording them.
+   */
+  public void setTargetEdgeIndex(@Nullable TargetEdgeIndex targetEdgeIndex) {
+    this.targetEdgeIndex = targetEdgeIndex;
+  }
+
   /**
    * Sets the path for action log buffers.
    */
@@ -1686,7 +1740,11 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
       for (Label label : labelsToVisit) {
         valueNames.add(TransitiveTargetKey.of(label));
       }
-      return buildDriver.evaluate(valueNames, keepGoing, parallelThreads, eventHandler);
+      // Query output formatters may look packages up through the package manager while a query
+      // is still loading.
+      synchronized (valueLookupLock) {
+        return buildDriver.evaluate(valueNames, keepGoing, parallelThreads, eventHandler);
+      }
     }
   }
 
@@ -2065,7 +2123,74 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
       if (executionProgressReceiver != null) {
         executionProgressReceiver.evaluated(skyKey, valueSupplier, state);
       }
+      TargetEdgeIndex index = targetEdgeIndex;
+      if (index != null
+          && state == EvaluationState.BUILT
+          && skyKey.functionName().equals(SkyFunctions.PACKAGE)) {
+        recordTargetEdges(index, skyKey, valueSupplier.get());
+      }
+    }
+
+    private void recordTargetEdges(
+        TargetEdgeIndex index, SkyKey packageKey, @Nullable SkyValue value) {
+      PackageIdentifier packageId = (PackageIdentifier) packageKey.argument();
+      if (value == null) {
+        // The package does not exist, or could not be loaded.
+        index.removeLater(packageId);
+        return;
+      }
+      try {
+        // The lookups of the packages of its .bzl files and its globs are done, since the package
+        // depends on them. Only resolving them is cheap enough to do on this Skyframe thread.
+        index.updateLater(
+            ((PackageValue) value).getPackage(),
+            new TargetEdgeIndex.PackageLookups() {
+              @Override
+              public PackageLookupValue get(PackageIdentifier lookupId)
+                  throws InterruptedException {
+                return (PackageLookupValue)
+                    memoizingEvaluator.getExistingValue(PackageLookupValue.key(lookupId));
+              }
+
+              @Override
+              public Collection<Path> getGlobbedDirectories(PackageIdentifier unused)
+                  throws InterruptedException {
+                return getListedDirectories(packageKey);
+              }
+            });
+      } catch (InterruptedException e) {
+        index.removeLater(packageId);
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Returns the directories listed by the globs that the given node depends on, directly or through
+   * other globs.
+   */
+  private Collection<Path> getListedDirectories(SkyKey key) throws InterruptedException {
+    Set<Path> directories = new HashSet<>();
+    Set<SkyKey> visited = new HashSet<>();
+    List<SkyKey> toVisit = new ArrayList<>();
+    toVisit.add(key);
+    while (!toVisit.isEmpty()) {
+      NodeEntry entry =
+          memoizingEvaluator.getExistingEntryForTesting(toVisit.remove(toVisit.size() - 1));
+      if (entry == null || !entry.isDone()) {
+        continue;
+      }
+      for (SkyKey dep : entry.getDirectDeps()) {
+        if (dep.functionName().equals(SkyFunctions.GLOB)) {
+          if (visited.add(dep)) {
+            toVisit.add(dep);
+          }
+        } else if (dep.functionName().equals(SkyFunctions.DIRECTORY_LISTING)) {
+          directories.add(((RootedPath) dep.argument()).asPath());
+        }
+      }
     }
+    return directories;
   }
 
   public int getOutputDirtyFilesAndClear() {
@@ -0,0 +1,595 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.SetMultimap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.clock.Clock;
+import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.cmdline.LabelSyntaxException;
+import com.google.devtools.build.lib.cmdline.PackageIdentifier;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.packages.DependencyFilter;
+import com.google.devtools.build.lib.packages.InputFile;
+import com.google.devtools.build.lib.packages.Package;
+import com.google.devtools.build.lib.packages.Rule;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.util.Fingerprint;
+import com.google.devtools.build.lib.util.PersistentMap;
+import com.google.devtools.build.lib.vfs.FileStatus;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.Symlinks;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * An index of the dependency edges between targets, kept on disk so that it survives server
+ * restarts.
+ *
+ * <p>The edges of a target are the labels that {@link TransitiveTraversalFunction} visits for it,
+ * except that the labels of aspect dependencies are over-approximated with {@link
+ * Rule#getAspectLabelsSuperset}, so that the edges of a package can be computed from the package
+ * alone. The index keeps the edges of every package it has been told about, together with a stamp
+ * of the files the package was loaded from: its BUILD file, the .bzl files it loads, the
+ * directories listed by its globs and the directories containing its source files, whose
+ * modification times change when files are added to or removed from them. {@link
+ * #getStalePackages} compares the stamps with the file system, which is much cheaper than loading
+ * the packages again.
+ *
+ * <p>The index is kept up to date with {@link #updateLater} and {@link #removeLater} as packages
+ * are loaded by Skyframe; the edges and stamps are computed on a background thread, so that
+ * Skyframe threads are not slowed down by them. Changes are appended to a journal, and {@link
+ * #save} compacts it into the index file.
+ *
+ * <p>Since the index records whichever packages were loaded, it also records the universes whose
+ * packages were all recorded at some point, see {@link #recordUniverse}. Only the reverse
+ * dependencies within such a universe can be taken from the index.
+ */
+@ThreadSafe
+public final class TargetEdgeIndex {
+  private static final int VERSION = 0x01;
+  private static final long SAVE_INTERVAL_NS = 3L * 1000 * 1000 * 1000;
+
+  /** The edges of the targets of one package, and the stamp of the files it was loaded from. */
+  @VisibleForTesting
+  static final class PackageEdges {
+    final ImmutableList<String> inputs;
+    final byte[] stamp;
+    /** The direct dependencies of the targets of the package, by target name. */
+    final ImmutableMap<String, ImmutableList<Label>> deps;
+
+    PackageEdges(
+        ImmutableList<String> inputs,
+        byte[] stamp,
+        ImmutableMap<String, ImmutableList<Label>> deps) {
+      this.inputs = inputs;
+      this.stamp = stamp;
+      this.deps = deps;
+    }
+  }
+
+  /** Persists the edges of the packages, by package. */
+  private static final class PackageEdgesMap
+      extends PersistentMap<PackageIdentifier, PackageEdges> {
+    private final Clock clock;
+    private long nextUpdate;
+
+    PackageEdgesMap(Path mapFile, Path journalFile, Clock clock) {
+      super(VERSION, new HashMap<>(), mapFile, journalFile);
+      this.clock = clock;
+      this.nextUpdate = clock.nanoTime();
+    }
+
+    @Override
+    protected boolean updateJournal() {
+      long time = clock.nanoTime();
+      if (time > nextUpdate) {
+        nextUpdate = time + SAVE_INTERVAL_NS;
+        return true;
+      }
+      return false;
+    }
+
+    @Override
+    protected boolean keepJournal() {
+      // Only rewrite the whole index once the journal has grown large compared to it.
+      forceFlush();
+      try {
+        return journalSize() * 10 < cacheSize();
+      } catch (IOException e) {
+        return false;
+      }
+    }
+
+    @Override
+    protected void writeKey(PackageIdentifier key, DataOutputStream out) throws IOException {
+      writePackageIdentifier(key, out);
+    }
+
+    @Override
+    protected PackageIdentifier readKey(DataInputStream in) throws IOException {
+      return readPackageIdentifier(in);
+    }
+
+    @Override
+    protected void writeValue(PackageEdges value, DataOutputStream out) throws IOException {
+      out.writeInt(value.inputs.size());
+      for (String input : value.inputs) {
+        out.writeUTF(input);
+      }
+      out.writeInt(value.stamp.length);
+      out.write(value.stamp);
+      out.writeInt(value.deps.size());
+      for (Map.Entry<String, ImmutableList<Label>> entry : value.deps.entrySet()) {
+        out.writeUTF(entry.getKey());
+        out.writeInt(entry.getValue().size());
+        for (Label dep : entry.getValue()) {
+          out.writeUTF(dep.getCanonicalForm());
+        }
+      }
+    }
+
+    @Override
+    protected PackageEdges readValue(DataInputStream in) throws IOException {
+      ImmutableList.Builder<String> inputs = ImmutableList.builder();
+      for (int i = readCount(in); i > 0; i--) {
+        inputs.add(in.readUTF());
+      }
+      byte[] stamp = new byte[readCount(in)];
+      in.readFully(stamp);
+      ImmutableMap.Builder<String, ImmutableList<Label>> deps = ImmutableMap.builder();
+      for (int i = readCount(in); i > 0; i--) {
+        String name = in.readUTF();
+        ImmutableList.Builder<Label> targetDeps = ImmutableList.builder();
+        for (int j = readCount(in); j > 0; j--) {
+          try {
+            targetDeps.add(Label.parseAbsolute(in.readUTF()));
+          } catch (LabelSyntaxException e) {
+            throw new IOException("Corrupt label in target edge index: " + e.getMessage(), e);
+          }
+        }
+        deps.put(name, targetDeps.build());
+      }
+      return new PackageEdges(inputs.build(), stamp, deps.build());
+    }
+
+  }
+
+  /** Persists the packages of the universes whose edges were all recorded, by universe. */
+  private static final class UniverseMap
+      extends PersistentMap<String, ImmutableSet<PackageIdentifier>> {
+
+    UniverseMap(Path mapFile, Path journalFile) {
+      super(VERSION, new HashMap<>(), mapFile, journalFile);
+    }
+
+    @Override
+    protected void writeKey(String key, DataOutputStream out) throws IOException {
+      out.writeUTF(key);
+    }
+
+    @Override
+    protected String readKey(DataInputStream in) throws IOException {
+      return in.readUTF();
+    }
+
+    @Override
+    protected void writeValue(ImmutableSet<PackageIdentifier> value, DataOutputStream out)
+        throws IOException {
+      out.writeInt(value.size());
+      for (PackageIdentifier packageId : value) {
+        writePackageIdentifier(packageId, out);
+      }
+    }
+
+    @Override
+    protected ImmutableSet<PackageIdentifier> readValue(DataInputStream in) throws IOException {
+      ImmutableSet.Builder<PackageIdentifier> packageIds = ImmutableSet.builder();
+      for (int i = readCount(in); i > 0; i--) {
+        packageIds.add(readPackageIdentifier(in));
+      }
+      return packageIds.build();
+    }
+  }
+
+  /**
+   * Looks up the {@link PackageLookupValue}s that tell which package path entry or external
+   * repository the .bzl files loaded by packages are read from, and the directories that the globs
+   * of packages listed.
+   */
+  public interface PackageLookups {
+    /** Returns the lookup of the given package, or {@code null} if it is not available. */
+    @Nullable
+    PackageLookupValue get(PackageIdentifier packageId) throws InterruptedException;
+
+    /**
+     * Returns the directories listed by the globs of the given package, whose modification times
+     * change when files matching the globs are added or removed.
+     */
+    default Collection<Path> getGlobbedDirectories(PackageIdentifier packageId)
+        throws InterruptedException {
+      return ImmutableList.of();
+    }
+  }
+
+  private static void writePackageIdentifier(PackageIdentifier packageId, DataOutputStream out)
+      throws IOException {
+    out.writeUTF(packageId.getRepository().getName());
+    out.writeUTF(packageId.getPackageFragment().getPathString());
+  }
+
+  private static PackageIdentifier readPackageIdentifier(DataInputStream in) throws IOException {
+    String repository = in.readUTF();
+    String packageName = in.readUTF();
+    try {
+      return PackageIdentifier.create(repository, PathFragment.create(packageName));
+    } catch (LabelSyntaxException e) {
+      throw new IOException("Corrupt package in target edge index: " + e.getMessage(), e);
+    }
+  }
+
+  private static int readCount(DataInputStream in) throws IOException {
+    int count = in.readInt();
+    if (count < 0) {
+      throw new IOException("Corrupt count in target edge index: " + count);
+    }
+    return count;
+  }
+
+  private final FileSystem fileSystem;
+
+  @GuardedBy("this")
+  private final PackageEdgesMap packages;
+
+  @GuardedBy("this")
+  private final UniverseMap universes;
+
+  @GuardedBy("this")
+  private final SetMultimap<Label, Label> reverseDeps = HashMultimap.create();
+
+  /** Computes the edges and stamps of the packages passed to {@link #updateLater}, in order. */
+  private final ExecutorService updateExecutor =
+      Executors.newSingleThreadExecutor(
+          new ThreadFactoryBuilder()
+              .setNameFormat("target-edge-index-update")
+              .setDaemon(true)
+              .build());
+
+  private TargetEdgeIndex(FileSystem fileSystem, PackageEdgesMap packages, UniverseMap universes) {
+    this.fileSystem = fileSystem;
+    this.packages = packages;
+    this.universes = universes;
+    for (Map.Entry<PackageIdentifier, PackageEdges> entry : packages.entrySet()) {
+      addReverseDeps(entry.getKey(), entry.getValue());
+    }
+  }
+
+  /**
+   * Loads the index from the given file. If the file does not exist, the index is empty. If it is
+   * corrupt, the index is empty as well, and the corrupt file is replaced on the next {@link
+   * #save}.
+   */
+  public static TargetEdgeIndex load(Path indexFile, Clock clock) throws IOException {
+    PackageEdgesMap packages =
+        new PackageEdgesMap(
+            indexFile, FileSystemUtils.replaceExtension(indexFile, ".journal"), clock);
+    UniverseMap universes =
+        new UniverseMap(
+            FileSystemUtils.replaceExtension(indexFile, ".universes"),
+            FileSystemUtils.replaceExtension(indexFile, ".universes_journal"));
+    try {
+      packages.load(/*failFast=*/ true);
+      universes.load(/*failFast=*/ true);
+    } catch (IOException e) {
+      packages.clear();
+      universes.clear();
+    }
+    return new TargetEdgeIndex(indexFile.getFileSystem(), packages, universes);
+  }
+
+  /**
+   * Records the edges of the targets of the given package, replacing the ones recorded before.
+   * Packages that contain errors are recorded as well, with the targets they could define. If the
+   * .bzl files that the package loads cannot be resolved with {@code lookups}, the package is
+   * forgotten instead, since changes to them could not be detected.
+   */
+  public void update(Package pkg, PackageLookups lookups) throws InterruptedException {
+    ImmutableList<String> inputs = getInputs(pkg, lookups);
+    if (inputs == null) {
+      remove(pkg.getPackageIdentifier());
+      return;
+    }
+    update(pkg, inputs);
+  }
+
+  private void update(Package pkg, ImmutableList<String> inputs) throws InterruptedException {
+    ImmutableMap.Builder<String, ImmutableList<Label>> deps = ImmutableMap.builder();
+    for (Target target : pkg.getTargets().values()) {
+      deps.put(target.getName(), ImmutableList.copyOf(getEdges(target)));
+    }
+    PackageEdges edges = new PackageEdges(inputs, computeStamp(inputs), deps.build());
+    synchronized (this) {
+      PackageIdentifier packageId = pkg.getPackageIdentifier();
+      removeReverseDeps(packageId, packages.put(packageId, edges));
+      addReverseDeps(packageId, edges);
+    }
+  }
+
+  /**
+   * Like {@link #update}, except that only the .bzl files of the package are resolved by the
+   * calling thread. Its edges and stamp are computed and recorded on a background thread later;
+   * see {@link #awaitPendingUpdates}.
+   */
+  public void updateLater(Package pkg, PackageLookups lookups) throws InterruptedException {
+    ImmutableList<String> inputs = getInputs(pkg, lookups);
+    if (inputs == null) {
+      removeLater(pkg.getPackageIdentifier());
+      return;
+    }
+    submitUpdate(
+        () -> {
+          try {
+            update(pkg, inputs);
+          } catch (InterruptedException e) {
+            // Only shutting down the index interrupts its thread.
+            remove(pkg.getPackageIdentifier());
+          }
+        });
+  }
+
+  /** Forgets the edges of the given package, for example because it does not exist anymore. */
+  public synchronized void remove(PackageIdentifier packageId) {
+    removeReverseDeps(packageId, packages.remove(packageId));
+  }
+
+  /** Like {@link #remove}, but ordered after the pending {@link #updateLater} calls. */
+  public void removeLater(PackageIdentifier packageId) {
+    submitUpdate(() -> remove(packageId));
+  }
+
+  private void submitUpdate(Runnable update) {
+    try {
+      updateExecutor.execute(update);
+    } catch (RejectedExecutionException e) {
+      // The index was cleared.
+    }
+  }
+
+  /** Waits until all changes passed to {@link #updateLater} and {@link #removeLater} are made. */
+  public void awaitPendingUpdates() throws InterruptedException {
+    Future<?> marker;
+    try {
+      marker = updateExecutor.submit(() -> {});
+    } catch (RejectedExecutionException e) {
+      return;
+    }
+    try {
+      marker.get();
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  /**
+   * Records that the edges of all packages in the transitive closure of the given universe are
+   * recorded. {@code universe} is any string that identifies the universe.
+   */
+  public synchronized void recordUniverse(String universe, Set<PackageIdentifier> packageIds) {
+    universes.put(universe, ImmutableSet.copyOf(packageIds));
+  }
+
+  /**
+   * Returns whether the given universe was recorded with {@link #recordUniverse}, and the edges of
+   * all its packages are still recorded. Only then are the reverse dependencies taken from the
+   * index complete within that universe, up to the packages that are stale or new.
+   */
+  public synchronized boolean coversUniverse(String universe) {
+    ImmutableSet<PackageIdentifier> packageIds = universes.get(universe);
+    return packageIds != null && packages.keySet().containsAll(packageIds);
+  }
+
+  /** Returns whether the edges of the given package are recorded. */
+  public synchronized boolean contains(PackageIdentifier packageId) {
+    return packages.containsKey(packageId);
+  }
+
+  /**
+   * Returns the direct dependencies of the given target, or {@code null} if the edges of its
+   * package are not recorded or the package has no such target.
+   */
+  @Nullable
+  public synchronized ImmutableList<Label> getDirectDeps(Label label) {
+    PackageEdges edges = packages.get(label.getPackageIdentifier());
+    return edges == null ? null : edges.deps.get(label.getName());
+  }
+
+  /** Returns the targets that have the given target as a direct dependency. */
+  public synchronized ImmutableSet<Label> getReverseDeps(Label label) {
+    return ImmutableSet.copyOf(reverseDeps.get(label));
+  }
+
+  /**
+   * Returns the recorded packages whose files have changed since their edges were recorded. The
+   * files are checked on the given executor.
+   */
+  public ImmutableSet<PackageIdentifier> getStalePackages(ExecutorService executor)
+      throws InterruptedException {
+    Map<PackageIdentifier, PackageEdges> snapshot;
+    synchronized (this) {
+      snapshot = new HashMap<>(packages);
+    }
+    Set<PackageIdentifier> stale = ConcurrentHashMap.newKeySet();
+    List<Future<?>> futures = new ArrayList<>(snapshot.size());
+    for (Map.Entry<PackageIdentifier, PackageEdges> entry : snapshot.entrySet()) {
+      futures.add(
+          executor.submit(
+              () -> {
+                PackageEdges edges = entry.getValue();
+                if (!Arrays.equals(edges.stamp, computeStamp(edges.inputs))) {
+                  stale.add(entry.getKey());
+                }
+              }));
+    }
+    try {
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    } finally {
+      for (Future<?> future : futures) {
+        future.cancel(true);
+      }
+    }
+    return ImmutableSet.copyOf(stale);
+  }
+
+  /** Writes the changes since the last save to disk, once the pending updates are made. */
+  public long save() throws IOException, InterruptedException {
+    awaitPendingUpdates();
+    synchronized (this) {
+      return packages.save() + universes.save();
+    }
+  }
+
+  /**
+   * Removes all edges from the index, and from disk. Pending and later updates are dropped; the
+   * index must not be used afterwards.
+   */
+  public void clear() {
+    updateExecutor.shutdownNow();
+    synchronized (this) {
+      packages.clear();
+      universes.clear();
+      reverseDeps.clear();
+    }
+  }
+
+  /** Returns the labels of the targets that {@code target} depends on directly. */
+  private static Collection<Label> getEdges(Target target) throws InterruptedException {
+    Collection<Label> deps = TransitiveBaseTraversalFunction.getLabelDeps(target);
+    if (target instanceof Rule) {
+      deps.addAll(
+          ((Rule) target).getAspectLabelsSuperset(DependencyFilter.NO_NODEP_ATTRIBUTES));
+    }
+    return deps;
+  }
+
+  /**
+   * Returns the paths of the files and directories whose changes may change the targets of the
+   * package, in a deterministic order, or {@code null} if the .bzl files it loads cannot be
+   * resolved.
+   */
+  @Nullable
+  private static ImmutableList<String> getInputs(Package pkg, PackageLookups lookups)
+      throws InterruptedException {
+    Set<String> inputs = new TreeSet<>();
+    inputs.add(pkg.getFilename().getPathString());
+    for (Label skylarkFile : pkg.getSkylarkFileDependencies()) {
+      // Resolved like ASTFileLookupFunction does, since the file may be in another repository or
+      // package path entry than the package.
+      PackageLookupValue lookup = lookups.get(skylarkFile.getPackageIdentifier());
+      if (lookup == null || !lookup.packageExists()) {
+        return null;
+      }
+      inputs.add(lookup.getRoot().getRelative(skylarkFile.toPathFragment()).getPathString());
+    }
+    Path packageDirectory = pkg.getPackageDirectory();
+    inputs.add(packageDirectory.getPathString());
+    for (Path dir : lookups.getGlobbedDirectories(pkg.getPackageIdentifier())) {
+      inputs.add(dir.getPathString());
+    }
+    for (Target target : pkg.getTargets().values()) {
+      if (target instanceof InputFile) {
+        for (Path dir = ((InputFile) target).getPath().getParentDirectory();
+            dir != null && dir.startsWith(packageDirectory) && inputs.add(dir.getPathString());
+            dir = dir.getParentDirectory()) {}
+      }
+    }
+    return ImmutableList.copyOf(inputs);
+  }
+
+  private byte[] computeStamp(List<String> inputs) {
+    Fingerprint fingerprint = new Fingerprint();
+    for (String input : inputs) {
+      fingerprint.addString(input);
+      FileStatus status;
+      try {
+        status = fileSystem.getPath(input).statIfFound(Symlinks.FOLLOW);
+      } catch (IOException e) {
+        status = null;
+      }
+      if (status == null) {
+        fingerprint.addBoolean(false);
+        continue;
+      }
+      fingerprint.addBoolean(true);
+      try {
+        fingerprint.addLong(status.getLastModifiedTime());
+        fingerprint.addLong(status.isFile() ? status.getSize() : 0);
+      } catch (IOException e) {
+        fingerprint.addBoolean(false);
+      }
+    }
+    return fingerprint.digestAndReset();
+  }
+
+  @GuardedBy("this")
+  private void addReverseDeps(PackageIdentifier packageId, PackageEdges edges) {
+    for (Map.Entry<String, ImmutableList<Label>> entry : edges.deps.entrySet()) {
+      Label label = Label.createUnvalidated(packageId, entry.getKey());
+      for (Label dep : entry.getValue()) {
+        reverseDeps.put(dep, label);
+      }
+    }
+  }
+
+  @GuardedBy("this")
+  private void removeReverseDeps(PackageIdentifier packageId, @Nullable PackageEdges edges) {
+    if (edges == null) {
+      return;
+    }
+    for (Map.Entry<String, ImmutableList<Label>> entry : edges.deps.entrySet()) {
+      Label label = Label.createUnvalidated(packageId, entry.getKey());
+      for (Label dep : entry.getValue()) {
+        reverseDeps.remove(dep, label);
+      }
+    }
+  }
+}
@@ -202,7 +202,7 @@ abstract class TransitiveBaseTraversalFunction<TProcessedTargets> implements Sky
       throws InterruptedException;
 
   // TODO(bazel-team): Unify this logic with that in LabelVisitor, and possibly DependencyResolver.
-  private static Collection<Label> getLabelDeps(Target target) throws InterruptedException {
+  static Collection<Label> getLabelDeps(Target target) throws InterruptedException {
     if (target instanceof OutputFile) {
       Rule rule = ((OutputFile) target).getGeneratingRule();
       List<Label> visibilityLabels = visitTargetVisibility(target);
@@ -20,11 +20,13 @@ import com.google.common.hash.HashCode;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.EventHandler;
 import com.google.devtools.build.lib.events.Location;
+import com.google.devtools.build.lib.events.NullEventHandler;
 import com.google.devtools.build.lib.syntax.Parser.ParseResult;
 import com.google.devtools.build.lib.syntax.SkylarkImports.SkylarkImportSyntaxException;
 import com.google.devtools.build.lib.util.Pair;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import java.io.IOException;
+import java.io.NotSerializableException;
 import java.util.List;
 import javax.annotation.Nullable;
 
@@ -88,6 +90,28 @@ public class BuildFileAST extends ASTNode {
         skylarkImports.second);
   }
 
+  /**
+   * Recreates an AST from its parts, as read by {@link SyntaxTreeSerializer}. The imports are
+   * computed again from the load statements, if the AST had any.
+   */
+  static BuildFileAST restore(
+      ImmutableList<Statement> statements,
+      boolean containsErrors,
+      @Nullable String contentHashCode,
+      Location location,
+      ImmutableList<Comment> comments,
+      boolean hasImports) {
+    ImmutableList<SkylarkImport> imports = null;
+    if (hasImports) {
+      Pair<Boolean, ImmutableList<SkylarkImport>> skylarkImports =
+          fetchLoads(statements, NullEventHandler.INSTANCE);
+      // The errors were already accounted for in containsErrors when the AST was parsed.
+      imports = skylarkImports.second;
+    }
+    return new BuildFileAST(
+        statements, containsErrors, contentHashCode, location, comments, imports);
+  }
+
   /**
    * Extract a subtree containing only statements from {@code firstStatement} (included) up to
    * {@code lastStatement} excluded.
@@ -402,6 +426,26 @@ public class BuildFileAST extends ASTNode {
     return ast;
   }
 
+  /**
+   * Returns this AST in a compact binary form, from which {@link #deserialize} recreates an equal
+   * AST without lexing or parsing the source again.
+   *
+   * @throws NotSerializableException if the AST was not created by the parser, or uses features
+   *     the binary form does not support, such as {@code #line} directives
+   */
+  public byte[] serialize() throws NotSerializableException {
+    return SyntaxTreeSerializer.serialize(this);
+  }
+
+  /**
+   * Recreates an AST from the result of {@link #serialize}.
+   *
+   * @throws IOException if {@code bytes} is not a serialized AST of this version of Blaze
+   */
+  public static BuildFileAST deserialize(byte[] bytes) throws IOException {
+    return SyntaxTreeSerializer.deserialize(bytes);
+  }
+
   /**
    * Returns a hash code calculated from the string content of the source file of this AST.
    */
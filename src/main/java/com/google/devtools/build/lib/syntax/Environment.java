@@ -124,19 +124,41 @@ public final class Environment implements Freezable {
 
     private final Map<String, Object> bindings;
 
+    /**
+     * If this frame is the lexical frame of a compiled function, the scope that assigns its locals
+     * to {@link #slots}. Bindings of other names, which validated code never creates, go to {@link
+     * #bindings}.
+     */
+    @Nullable private final LocalScope localScope;
+
+    /** The values of the locals of {@link #localScope}, null for unbound ones. */
+    @Nullable private final Object[] slots;
+
     /** Constructs an uninitialized instance; caller must call {@link #initialize} before use. */
     public Frame() {
       this.mutability = null;
       this.parent = null;
       this.label = null;
       this.bindings = new LinkedHashMap<>();
+      this.localScope = null;
+      this.slots = null;
     }
 
     public Frame(Mutability mutability, @Nullable Frame parent, @Nullable Label label) {
+      this(mutability, parent, label, /*localScope=*/ null);
+    }
+
+    private Frame(
+        Mutability mutability,
+        @Nullable Frame parent,
+        @Nullable Label label,
+        @Nullable LocalScope localScope) {
       this.mutability = Preconditions.checkNotNull(mutability);
       this.parent = parent;
       this.label = label;
       this.bindings = new LinkedHashMap<>();
+      this.localScope = localScope;
+      this.slots = localScope == null ? null : new Object[localScope.size()];
     }
 
     public Frame(Mutability mutability) {
@@ -224,9 +246,24 @@ public final class Environment implements Freezable {
      */
     public Map<String, Object> getBindings() {
       checkInitialized();
+      if (localScope != null) {
+        return Collections.unmodifiableMap(collectSlotBindings());
+      }
       return Collections.unmodifiableMap(bindings);
     }
 
+    /** Returns the bound locals of {@link #localScope} followed by the other bindings. */
+    private Map<String, Object> collectSlotBindings() {
+      Map<String, Object> result = new LinkedHashMap<>();
+      for (int i = 0; i < slots.length; i++) {
+        if (slots[i] != null) {
+          result.put(localScope.getName(i), slots[i]);
+        }
+      }
+      result.putAll(bindings);
+      return result;
+    }
+
     /**
      * Returns a map containing all bindings of this {@code Frame} and of its transitive parents,
      * taking into account shadowing precedence.
@@ -245,7 +282,7 @@ public final class Environment implements Freezable {
       if (parent != null) {
         parent.accumulateTransitiveBindings(accumulator);
       }
-      accumulator.putAll(bindings);
+      accumulator.putAll(localScope != null ? collectSlotBindings() : bindings);
     }
 
     /**
@@ -259,6 +296,12 @@ public final class Environment implements Freezable {
      */
     public Object get(String varname) {
       checkInitialized();
+      if (localScope != null) {
+        int slot = localScope.indexOf(varname);
+        if (slot >= 0 && slots[slot] != null) {
+          return slots[slot];
+        }
+      }
       if (bindings.containsKey(varname)) {
         return bindings.get(varname);
       }
@@ -282,6 +325,13 @@ public final class Environment implements Freezable {
         throws MutabilityException {
       checkInitialized();
       Mutability.checkMutable(this, env.mutability());
+      if (localScope != null) {
+        int slot = localScope.indexOf(varname);
+        if (slot >= 0) {
+          slots[slot] = value;
+          return;
+        }
+      }
       bindings.put(varname, value);
     }
 
@@ -292,6 +342,13 @@ public final class Environment implements Freezable {
     void remove(Environment env, String varname) throws MutabilityException {
       checkInitialized();
       Mutability.checkMutable(this, env.mutability());
+      if (localScope != null) {
+        int slot = localScope.indexOf(varname);
+        if (slot >= 0) {
+          slots[slot] = null;
+          return;
+        }
+      }
       bindings.remove(varname);
     }
 
@@ -469,13 +526,28 @@ public final class Environment implements Freezable {
    * @param globals the global Frame that this function closes over from its definition Environment
    */
   void enterScope(BaseFunction function, FuncallExpression caller, Frame globals) {
+    enterScope(function, caller, globals, /*localScope=*/ null);
+  }
+
+  /**
+   * Enters a scope by saving state to a new Continuation
+   * @param function the function whose scope to enter
+   * @param caller the source AST node for the caller
+   * @param globals the global Frame that this function closes over from its definition Environment
+   * @param localScope if the function was compiled, the scope its locals were resolved in
+   */
+  void enterScope(
+      BaseFunction function,
+      FuncallExpression caller,
+      Frame globals,
+      @Nullable LocalScope localScope) {
     continuation =
         new Continuation(
             continuation, function, caller, lexicalFrame, globalFrame, knownGlobalVariables);
     // TODO(bazel-team): What if instead of tracking both the lexical and global frames from the
     // Environment, we instead just tracked the current lexical frame, and made the global frame its
     // parent?
-    lexicalFrame = new Frame(mutability(), null);
+    lexicalFrame = new Frame(mutability(), /*parent=*/ null, /*label=*/ null, localScope);
     globalFrame = globals;
     knownGlobalVariables = new HashSet<>();
   }
@@ -871,6 +943,21 @@ public final class Environment implements Freezable {
     return dynamicValue;
   }
 
+  /**
+   * Looks up a variable that was resolved to the given slot of a compiled function's scope. If the
+   * current lexical frame is not that function's, or the local is unbound, this is the same as
+   * {@link #lookup}.
+   */
+  Object lookupLocal(LocalScope localScope, int slot, String varname) {
+    if (lexicalFrame != null && lexicalFrame.localScope == localScope) {
+      Object value = lexicalFrame.slots[slot];
+      if (value != null) {
+        return value;
+      }
+    }
+    return lookup(varname);
+  }
+
   /**
    * @return true if varname is a known global variable,
    * because it has been read in the context of the current function.
@@ -110,7 +110,8 @@ public class Eval {
             node.getIdentifier().getLocation(),
             FunctionSignature.WithValues.create(sig, defaultValues, /*types=*/ null),
             node.getStatements(),
-            env.getGlobals()));
+            env.getGlobals(),
+            env.getSemantics().experimentalSkylarkLocalSlots() ? node.getLocalScope() : null));
   }
 
   void execIf(IfStatement node) throws EvalException, InterruptedException {
@@ -25,6 +25,7 @@ public final class FunctionDefStatement extends Statement {
   private final FunctionSignature.WithValues<Expression, Expression> signature;
   private final ImmutableList<Statement> statements;
   private final ImmutableList<Parameter<Expression, Expression>> parameters;
+  private volatile LocalScope localScope;
 
   public FunctionDefStatement(Identifier identifier,
       Iterable<Parameter<Expression, Expression>> parameters,
@@ -73,6 +74,24 @@ public final class FunctionDefStatement extends Statement {
     return signature;
   }
 
+  /**
+   * Returns the scope of this function's locals, resolving the identifiers of its body the first
+   * time it is called.
+   */
+  LocalScope getLocalScope() {
+    LocalScope result = localScope;
+    if (result == null) {
+      synchronized (this) {
+        result = localScope;
+        if (result == null) {
+          result = LocalScope.resolve(this);
+          localScope = result;
+        }
+      }
+    }
+    return result;
+  }
+
   @Override
   public void accept(SyntaxTreeVisitor visitor) {
     visitor.visit(this);
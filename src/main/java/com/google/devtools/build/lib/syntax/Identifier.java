@@ -37,10 +37,22 @@ public final class Identifier extends Expression {
 
   private final String name;
 
+  /**
+   * The scope of the function whose local this identifier refers to, if the function was compiled
+   * with {@link LocalScope#resolve}, and the slot of that local.
+   */
+  @Nullable private LocalScope localScope;
+  private int localSlot = -1;
+
   public Identifier(String name) {
     this.name = name;
   }
 
+  void setLocalSlot(LocalScope localScope, int localSlot) {
+    this.localSlot = localSlot;
+    this.localScope = localScope;
+  }
+
   /**
    *  Returns the name of the Identifier.
    */
@@ -73,7 +85,8 @@ public final class Identifier extends Expression {
 
   @Override
   Object doEval(Environment env) throws EvalException {
-    Object value = env.lookup(name);
+    Object value =
+        localScope == null ? env.lookup(name) : env.lookupLocal(localScope, localSlot, name);
     if (value == null) {
       throw createInvalidIdentifierException(env.getVariableNames());
     }
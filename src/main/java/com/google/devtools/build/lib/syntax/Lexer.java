@@ -25,11 +25,13 @@ import com.google.devtools.build.lib.profiler.Profiler;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.util.Pair;
 import com.google.devtools.build.lib.vfs.PathFragment;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Stack;
+import javax.annotation.Nullable;
 
 /**
  * A tokenizer for the BUILD language.
@@ -59,10 +61,16 @@ public final class Lexer {
 
   private final EventHandler eventHandler;
 
-  // Input buffer and position
-  private final char[] buffer;
+  // Input buffer and position. If the input was created from Latin-1 bytes, they are read in
+  // place from 'bytes'; otherwise the characters are read from 'chars'. Exactly one of the two is
+  // non-null.
+  @Nullable private final byte[] bytes;
+  @Nullable private final char[] chars;
+  private final int length;
   private int pos;
 
+  private final NameTable names = new NameTable();
+
   /**
    * The part of the location information that is common to all LexerLocation
    * instances created by this Lexer.  Factored into a separate object so that
@@ -98,9 +106,11 @@ public final class Lexer {
    */
   public Lexer(
       ParserInputSource input, EventHandler eventHandler, LineNumberTable lineNumberTable) {
-    this.buffer = input.getContent();
+    this.bytes = input.getLatin1Content();
+    this.chars = bytes == null ? input.getContent() : null;
+    this.length = bytes != null ? bytes.length : chars.length;
     // Empirical measurements show roughly 1 token per 8 characters in buffer.
-    this.tokens = Lists.newArrayListWithExpectedSize(buffer.length / 8);
+    this.tokens = Lists.newArrayListWithExpectedSize(length / 8);
     this.pos = 0;
     this.eventHandler = eventHandler;
     this.locationInfo = new LocationInfo(input.getPath(), lineNumberTable);
@@ -112,7 +122,7 @@ public final class Lexer {
   }
 
   public Lexer(ParserInputSource input, EventHandler eventHandler) {
-    this(input, eventHandler, LineNumberTable.create(input.getContent(), input.getPath()));
+    this(input, eventHandler, LineNumberTable.create(input));
   }
 
   /**
@@ -157,19 +167,36 @@ public final class Lexer {
   }
 
   Location createLocation(int start, int end) {
-    return new LexerLocation(locationInfo, start, end);
+    return new LexerLocation(locationInfo.lineNumberTable, start, end);
+  }
+
+  /**
+   * Returns a location in the file described by the given table, equal to the one a lexer for that
+   * file would create for the same offsets.
+   */
+  static Location createLocation(LineNumberTable lineNumberTable, int start, int end) {
+    return new LexerLocation(lineNumberTable, start, end);
+  }
+
+  /**
+   * Returns the line number table of the given location if it was created by a lexer, or null
+   * otherwise.
+   */
+  @Nullable
+  static LineNumberTable getLineNumberTable(Location location) {
+    return location instanceof LexerLocation ? ((LexerLocation) location).lineNumberTable : null;
   }
 
   // Don't use an inner class as we don't want to close over the Lexer, only
-  // the LocationInfo.
+  // the LineNumberTable.
   @Immutable
   private static final class LexerLocation extends Location {
 
     private final LineNumberTable lineNumberTable;
 
-    LexerLocation(LocationInfo locationInfo, int start, int end) {
+    LexerLocation(LineNumberTable lineNumberTable, int start, int end) {
       super(start, end);
-      this.lineNumberTable = locationInfo.lineNumberTable;
+      this.lineNumberTable = lineNumberTable;
     }
 
     @Override
@@ -230,8 +257,8 @@ public final class Lexer {
   }
 
   private void newlineInsideExpression() {
-    while (pos < buffer.length) {
-      switch (buffer[pos]) {
+    while (pos < length) {
+      switch (charAt(pos)) {
         case ' ': case '\t': case '\r':
           pos++;
           break;
@@ -248,8 +275,8 @@ public final class Lexer {
 
     // we're in a stmt: suck up space at beginning of next line
     int indentLen = 0;
-    while (pos < buffer.length) {
-      char c = buffer[pos];
+    while (pos < length) {
+      char c = charAt(pos);
       if (c == ' ') {
         indentLen++;
         pos++;
@@ -264,8 +291,8 @@ public final class Lexer {
         pos++;
       } else if (c == '#') { // line containing only indented comment
         int oldPos = pos;
-        while (pos < buffer.length && c != '\n') {
-          c = buffer[pos++];
+        while (pos < length && c != '\n') {
+          c = charAt(pos++);
         }
         addToken(new Token(TokenKind.COMMENT, oldPos, pos - 1, bufferSlice(oldPos, pos - 1)));
         indentLen = 0;
@@ -274,7 +301,7 @@ public final class Lexer {
       }
     }
 
-    if (pos == buffer.length) {
+    if (pos == length) {
       indentLen = 0;
     } // trailing space on last line
 
@@ -322,8 +349,8 @@ public final class Lexer {
     boolean inTriplequote = skipTripleQuote(quot);
     // more expensive second choice that expands escaped into a buffer
     StringBuilder literal = new StringBuilder();
-    while (pos < buffer.length) {
-      char c = buffer[pos];
+    while (pos < length) {
+      char c = charAt(pos);
       pos++;
       switch (c) {
         case '\n':
@@ -336,7 +363,7 @@ public final class Lexer {
             return new Token(TokenKind.STRING, literalStartPos, pos, literal.toString());
           }
         case '\\':
-          if (pos == buffer.length) {
+          if (pos == length) {
             error("unterminated string literal at eof", literalStartPos, pos);
             return new Token(TokenKind.STRING, literalStartPos, pos, literal.toString());
           }
@@ -347,16 +374,16 @@ public final class Lexer {
             if (lookaheadIs(0, '\r') && lookaheadIs(1, '\n')) {
               literal.append("\n");
               pos += 2;
-            } else if (buffer[pos] == '\r' || buffer[pos] == '\n') {
+            } else if (charAt(pos) == '\r' || charAt(pos) == '\n') {
               literal.append("\n");
               pos += 1;
             } else {
-              literal.append(buffer[pos]);
+              literal.append(charAt(pos));
               pos += 1;
             }
             break;
           }
-          c = buffer[pos];
+          c = charAt(pos);
           pos++;
           switch (c) {
             case '\r':
@@ -397,13 +424,13 @@ public final class Lexer {
             case '7':
               { // octal escape
                 int octal = c - '0';
-                if (pos < buffer.length) {
-                  c = buffer[pos];
+                if (pos < length) {
+                  c = charAt(pos);
                   if (c >= '0' && c <= '7') {
                     pos++;
                     octal = (octal << 3) | (c - '0');
-                    if (pos < buffer.length) {
-                      c = buffer[pos];
+                    if (pos < length) {
+                      c = charAt(pos);
                       if (c >= '0' && c <= '7') {
                         pos++;
                         octal = (octal << 3) | (c - '0');
@@ -475,9 +502,10 @@ public final class Lexer {
       return escapedStringLiteral(quot, isRaw);
     }
 
-    // first quick optimistic scan for a simple non-escaped string
-    while (pos < buffer.length) {
-      char c = buffer[pos++];
+    // first quick optimistic scan for a simple non-escaped string, hashing it for the name table
+    int hash = 0;
+    while (pos < length) {
+      char c = charAt(pos++);
       switch (c) {
         case '\n':
           error("unterminated string literal at eol", literalStartPos, pos);
@@ -493,6 +521,10 @@ public final class Lexer {
               // transformed into a single LF.
               pos = contentStartPos;
               return escapedStringLiteral(quot, true);
+            } else if (pos < length) {
+              hash = 31 * (31 * hash + c) + charAt(pos);
+              pos++;
+              continue;
             } else {
               pos++;
               break;
@@ -505,18 +537,19 @@ public final class Lexer {
         case '"':
           if (c == quot) {
             // close-quote, all done.
-            return new Token(
-                TokenKind.STRING, literalStartPos, pos, bufferSlice(contentStartPos, pos - 1));
+            int slot = names.lookup(contentStartPos, pos - 1, hash);
+            return new Token(TokenKind.STRING, literalStartPos, pos, names.getName(slot));
           }
           break;
         default: // fall out
       }
+      hash = 31 * hash + c;
     }
 
     // If the current position is beyond the end of the file, need to move it backwards
     // Possible if the file ends with `r"\` (unterminated raw string literal with a backslash)
-    if (pos > buffer.length) {
-      pos = buffer.length;
+    if (pos > length) {
+      pos = length;
     }
 
     error("unterminated string literal at eof", literalStartPos, pos);
@@ -569,17 +602,10 @@ public final class Lexer {
    */
   private Token identifierOrKeyword() {
     int oldPos = pos - 1;
-    String id = scanIdentifier();
-    TokenKind kind = keywordMap.get(id);
-    return (kind == null)
-        ? new Token(TokenKind.IDENTIFIER, oldPos, pos, id)
-        : new Token(kind, oldPos, pos, null);
-  }
-
-  private String scanIdentifier() {
-    int oldPos = pos - 1;
-    while (pos < buffer.length) {
-      switch (buffer[pos]) {
+    int hash = charAt(oldPos);
+    while (pos < length) {
+      char c = charAt(pos);
+      switch (c) {
         case '_':
         case 'a': case 'b': case 'c': case 'd': case 'e': case 'f':
         case 'g': case 'h': case 'i': case 'j': case 'k': case 'l':
@@ -593,19 +619,27 @@ public final class Lexer {
         case 'Y': case 'Z':
         case '0': case '1': case '2': case '3': case '4': case '5':
         case '6': case '7': case '8': case '9':
+          hash = 31 * hash + c;
           pos++;
           break;
-       default:
-          return bufferSlice(oldPos, pos);
+        default:
+          return identifierOrKeyword(oldPos, hash);
       }
     }
-    return bufferSlice(oldPos, pos);
+    return identifierOrKeyword(oldPos, hash);
   }
 
-  private String scanInteger() {
-    int oldPos = pos - 1;
-    while (pos < buffer.length) {
-      char c = buffer[pos];
+  private Token identifierOrKeyword(int oldPos, int hash) {
+    int slot = names.lookup(oldPos, pos, hash);
+    TokenKind kind = names.getKeyword(slot);
+    return (kind == null)
+        ? new Token(TokenKind.IDENTIFIER, oldPos, pos, names.getName(slot))
+        : new Token(kind, oldPos, pos, null);
+  }
+
+  private void scanInteger() {
+    while (pos < length) {
+      char c = charAt(pos);
       switch (c) {
         case 'X': case 'x': // for hexadecimal prefix
         case 'O': case 'o': // for octal prefix
@@ -623,14 +657,12 @@ public final class Lexer {
           pos++;
           break;
         default:
-          return bufferSlice(oldPos, pos);
+          return;
       }
     }
     // TODO(bazel-team): (2009) to do roundtripping when we evaluate the integer
     // constants, we must save the actual text of the tokens, not just their
     // integer value.
-
-    return bufferSlice(oldPos, pos);
   }
 
   /**
@@ -643,8 +675,21 @@ public final class Lexer {
    */
   private Token integer() {
     int oldPos = pos - 1;
-    String literal = scanInteger();
+    scanInteger();
+
+    // Most literals are small decimal numbers, which are converted without creating a String.
+    if (pos - oldPos < 10 && (charAt(oldPos) != '0' || pos - oldPos == 1)) {
+      int value = 0;
+      int i = oldPos;
+      while (i < pos && charAt(i) >= '0' && charAt(i) <= '9') {
+        value = value * 10 + (charAt(i++) - '0');
+      }
+      if (i == pos) {
+        return new Token(TokenKind.INT, oldPos, pos, value);
+      }
+    }
 
+    String literal = bufferSlice(oldPos, pos);
     final String substring;
     final int radix;
     if (literal.startsWith("0x") || literal.startsWith("0X")) {
@@ -676,11 +721,11 @@ public final class Lexer {
    * @return true if it tokenized an operator
    */
   private boolean tokenizeTwoChars() {
-    if (pos + 2 >= buffer.length) {
+    if (pos + 2 >= length) {
       return false;
     }
-    char c1 = buffer[pos];
-    char c2 = buffer[pos + 1];
+    char c1 = charAt(pos);
+    char c2 = charAt(pos + 1);
     TokenKind tok = null;
     if (c2 == '=') {
       tok = EQUAL_TOKENS.get(c1);
@@ -697,7 +742,7 @@ public final class Lexer {
 
   /** Test if the character at pos+p is c. */
   private boolean lookaheadIs(int p, char c) {
-    return pos + p < buffer.length && buffer[pos + p] == c;
+    return pos + p < length && charAt(pos + p) == c;
   }
 
   /**
@@ -705,12 +750,12 @@ public final class Lexer {
    * the constructor.
    */
   private void tokenize() {
-    while (pos < buffer.length) {
+    while (pos < length) {
       if (tokenizeTwoChars()) {
         pos += 2;
         continue;
       }
-      char c = buffer[pos];
+      char c = charAt(pos);
       pos++;
       switch (c) {
       case '{': {
@@ -827,8 +872,8 @@ public final class Lexer {
       }
       case '#': {
         int oldPos = pos - 1;
-        while (pos < buffer.length) {
-          c = buffer[pos];
+        while (pos < length) {
+          c = charAt(pos);
           if (c == '\n') {
             break;
           } else {
@@ -845,9 +890,9 @@ public final class Lexer {
       }
       default: {
         // detect raw strings, e.g. r"str"
-        if (c == 'r' && pos < buffer.length
-            && (buffer[pos] == '\'' || buffer[pos] == '\"')) {
-          c = buffer[pos];
+        if (c == 'r' && pos < length
+            && (charAt(pos) == '\'' || charAt(pos) == '\"')) {
+          c = charAt(pos);
           pos++;
           addToken(stringLiteral(c, true));
           break;
@@ -900,7 +945,92 @@ public final class Lexer {
    * @return the text at offset start with length end - start
    */
   private String bufferSlice(int start, int end) {
-    return new String(this.buffer, start, end - start);
+    return bytes != null
+        ? new String(bytes, start, end - start, StandardCharsets.ISO_8859_1)
+        : new String(chars, start, end - start);
+  }
+
+  /** Returns the character at the given offset of the input. */
+  private char charAt(int offset) {
+    return bytes != null ? (char) (bytes[offset] & 0xff) : chars[offset];
+  }
+
+  /**
+   * The distinct identifiers and simple string literals of the input. Each one is converted to a
+   * String the first time it is scanned, and later occurrences are looked up by comparing the
+   * input in place, so that they share the String and allocate nothing. Keywords are recognized
+   * from the same table.
+   */
+  private final class NameTable {
+    private String[] entries = new String[64];
+    private TokenKind[] keywords = new TokenKind[64];
+    private int size;
+
+    /**
+     * Returns the slot of the input between the given offsets, creating it if needed.
+     *
+     * @param hash the {@link String#hashCode} of the input between the offsets
+     */
+    int lookup(int start, int end, int hash) {
+      int mask = entries.length - 1;
+      int slot = (hash ^ (hash >>> 16)) & mask;
+      for (String entry = entries[slot]; entry != null; entry = entries[slot]) {
+        if (entry.hashCode() == hash && matches(entry, start, end)) {
+          return slot;
+        }
+        slot = (slot + 1) & mask;
+      }
+      String name = bufferSlice(start, end);
+      entries[slot] = name;
+      keywords[slot] = keywordMap.get(name);
+      if (++size * 2 > entries.length) {
+        grow();
+        return lookup(start, end, hash);
+      }
+      return slot;
+    }
+
+    String getName(int slot) {
+      return entries[slot];
+    }
+
+    /** Returns the kind of the keyword in the given slot, or null if it is not a keyword. */
+    @Nullable
+    TokenKind getKeyword(int slot) {
+      return keywords[slot];
+    }
+
+    private boolean matches(String entry, int start, int end) {
+      if (entry.length() != end - start) {
+        return false;
+      }
+      for (int i = 0; i < entry.length(); i++) {
+        if (entry.charAt(i) != charAt(start + i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private void grow() {
+      String[] oldEntries = entries;
+      TokenKind[] oldKeywords = keywords;
+      entries = new String[oldEntries.length * 2];
+      keywords = new TokenKind[oldEntries.length * 2];
+      int mask = entries.length - 1;
+      for (int i = 0; i < oldEntries.length; i++) {
+        String entry = oldEntries[i];
+        if (entry != null) {
+          int hash = entry.hashCode();
+          int slot = (hash ^ (hash >>> 16)) & mask;
+          while (entries[slot] != null) {
+            slot = (slot + 1) & mask;
+          }
+          entries[slot] = entry;
+          keywords[slot] = oldKeywords[i];
+        }
+      }
+    }
   }
 
 }
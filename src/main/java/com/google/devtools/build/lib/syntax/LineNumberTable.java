@@ -23,6 +23,7 @@ import com.google.devtools.build.lib.util.StringUtilities;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import java.io.Serializable;
 import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -65,6 +66,31 @@ public abstract class LineNumberTable implements Serializable {
         : new Regular(buffer, path);
   }
 
+  /** Creates the table of the given input, reading bytes in place if it has them. */
+  static LineNumberTable create(ParserInputSource input) {
+    byte[] bytes = input.getLatin1Content();
+    if (bytes == null) {
+      return create(input.getContent(), input.getPath());
+    }
+    return containsHashLine(bytes)
+        ? new HashLine(input.getContent(), input.getPath())
+        : new Regular(bytes, input.getPath());
+  }
+
+  private static boolean containsHashLine(byte[] buffer) {
+    byte[] marker = "\n#line ".getBytes(StandardCharsets.ISO_8859_1);
+    outer:
+    for (int i = 0; i <= buffer.length - marker.length; i++) {
+      for (int j = 0; j < marker.length; j++) {
+        if (buffer[i + j] != marker[j]) {
+          continue outer;
+        }
+      }
+      return true;
+    }
+    return false;
+  }
+
   /**
    * Line number table implementation for regular source files.  Records
    * offsets of newlines.
@@ -108,6 +134,46 @@ public abstract class LineNumberTable implements Serializable {
       this.path = path;
     }
 
+    /** Creates the table of a buffer of Latin-1 bytes, without decoding them. */
+    Regular(byte[] buffer, PathFragment path) {
+      int size = 2;
+      for (int i = 0; i < buffer.length; i++) {
+        if (buffer[i] == '\n') {
+          size++;
+        }
+      }
+      linestart = new int[size];
+      // As above, lines 0 and 1 both start at offset 0.
+      int index = 2;
+      for (int i = 0; i < buffer.length; i++) {
+        if (buffer[i] == '\n') {
+          linestart[index++] = i + 1;
+        }
+      }
+      this.bufferLength = buffer.length;
+      this.path = path;
+    }
+
+    /** Creates a table from the fields of another one, as returned by the accessors below. */
+    Regular(int[] linestart, PathFragment path, int bufferLength) {
+      this.linestart = linestart;
+      this.path = path;
+      this.bufferLength = bufferLength;
+    }
+
+    /** Returns the offsets at which each line starts; entries 0 and 1 are both 0. */
+    int[] getLineStarts() {
+      return linestart;
+    }
+
+    PathFragment getPath() {
+      return path;
+    }
+
+    int getBufferLength() {
+      return bufferLength;
+    }
+
     private int getLineAt(int offset) {
       if (offset < 0) {
         throw new IllegalStateException("Illegal position: " + offset);
@@ -0,0 +1,99 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.syntax;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * The local variables of a function, each resolved to a slot index ahead of execution.
+ *
+ * <p>A function's locals are its parameters, in signature order, followed by every name the body
+ * binds: assignment and augmented assignment targets, for loop and comprehension variables. When a
+ * function is compiled, its lexical {@link Environment.Frame} stores these variables in an array
+ * indexed by slot, and the {@link Identifier}s of the body that refer to them are resolved to
+ * their slot, so reading a local is an array access instead of a hash map lookup.
+ *
+ * <p>Resolution does not change semantics: a slot holding no value falls back to the usual global
+ * and dynamic lookup, exactly as a missing lexical binding does.
+ */
+final class LocalScope {
+
+  private final ImmutableList<String> names;
+  private final ImmutableMap<String, Integer> slots;
+
+  private LocalScope(Set<String> names) {
+    this.names = ImmutableList.copyOf(names);
+    ImmutableMap.Builder<String, Integer> slots = ImmutableMap.builder();
+    for (int i = 0; i < this.names.size(); i++) {
+      slots.put(this.names.get(i), i);
+    }
+    this.slots = slots.build();
+  }
+
+  /** Returns the number of slots. */
+  int size() {
+    return names.size();
+  }
+
+  /** Returns the name of the variable in the given slot. */
+  String getName(int slot) {
+    return names.get(slot);
+  }
+
+  /** Returns the slot of the given variable, or -1 if it is not a local of this scope. */
+  int indexOf(String name) {
+    Integer slot = slots.get(name);
+    return slot == null ? -1 : slot;
+  }
+
+  /**
+   * Computes the locals of the given function and resolves the identifiers of its body that refer
+   * to them. Default values of parameters are evaluated in the enclosing scope and are left alone.
+   */
+  static LocalScope resolve(FunctionDefStatement function) {
+    Set<String> names = new LinkedHashSet<>(function.getSignature().getSignature().getNames());
+    new SyntaxTreeVisitor() {
+      @Override
+      public void visit(LValue node) {
+        for (Identifier identifier : node.boundIdentifiers()) {
+          names.add(identifier.getName());
+        }
+      }
+
+      @Override
+      public void visit(FunctionDefStatement node) {
+        // Nested functions are rejected by the parser; only record the binding.
+        names.add(node.getIdentifier().getName());
+      }
+    }.visitBlock(function.getStatements());
+
+    LocalScope scope = new LocalScope(names);
+    new SyntaxTreeVisitor() {
+      @Override
+      public void visit(Identifier node) {
+        int slot = scope.indexOf(node.getName());
+        if (slot >= 0) {
+          node.setLocalSlot(scope, slot);
+        }
+      }
+
+      @Override
+      public void visit(FunctionDefStatement node) {}
+    }.visitBlock(function.getStatements());
+    return scope;
+  }
+}
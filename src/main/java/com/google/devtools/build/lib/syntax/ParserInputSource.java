@@ -14,7 +14,7 @@
 package com.google.devtools.build.lib.syntax;
 
 import com.google.devtools.build.lib.vfs.PathFragment;
-import java.io.IOException;
+import javax.annotation.Nullable;
 
 /**
  * An abstraction for reading input from a file or taking it as a pre-cooked
@@ -35,9 +35,38 @@ public abstract class ParserInputSource {
    */
   public abstract PathFragment getPath();
 
-  public static ParserInputSource create(byte[] bytes, PathFragment path) throws IOException {
-    char[] content = convertFromLatin1(bytes);
-    return create(content, path);
+  /**
+   * Returns the content of the input source as Latin-1 bytes if it was created from bytes, or null
+   * otherwise. The array is not copied and must not be modified.
+   */
+  @Nullable
+  byte[] getLatin1Content() {
+    return null;
+  }
+
+  /**
+   * Create an input source from the given Latin-1 content, and associate path with this source.
+   * The bytes are not copied: the {@link Lexer} reads them in place, and {@link #getContent}
+   * decodes them on each call.
+   */
+  public static ParserInputSource create(final byte[] bytes, final PathFragment path) {
+    return new ParserInputSource() {
+
+      @Override
+      public char[] getContent() {
+        return convertFromLatin1(bytes);
+      }
+
+      @Override
+      byte[] getLatin1Content() {
+        return bytes;
+      }
+
+      @Override
+      public PathFragment getPath() {
+        return path;
+      }
+    };
   }
 
   /**
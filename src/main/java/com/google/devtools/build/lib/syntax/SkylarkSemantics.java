@@ -39,6 +39,7 @@ public abstract class SkylarkSemantics {
       AutoValue_SkylarkSemantics.class;
 
   // <== Add new options here in alphabetic order ==>
+  public abstract boolean experimentalSkylarkLocalSlots();
   public abstract boolean incompatibleBzlDisallowLoadAfterStatement();
   public abstract boolean incompatibleCheckedArithmetic();
   public abstract boolean incompatibleComprehensionVariablesDoNotLeak();
@@ -60,6 +61,7 @@ public abstract class SkylarkSemantics {
 
   public static final SkylarkSemantics DEFAULT_SEMANTICS = builder()
       // <== Add new options here in alphabetic order ==>
+      .experimentalSkylarkLocalSlots(false)
       .incompatibleBzlDisallowLoadAfterStatement(false)
       .incompatibleCheckedArithmetic(true)
       .incompatibleComprehensionVariablesDoNotLeak(true)
@@ -81,6 +83,7 @@ public abstract class SkylarkSemantics {
   public abstract static class Builder {
 
     // <== Add new options here in alphabetic order ==>
+    public abstract Builder experimentalSkylarkLocalSlots(boolean value);
     public abstract Builder incompatibleBzlDisallowLoadAfterStatement(boolean value);
     public abstract Builder incompatibleCheckedArithmetic(boolean value);
     public abstract Builder incompatibleComprehensionVariablesDoNotLeak(boolean value);
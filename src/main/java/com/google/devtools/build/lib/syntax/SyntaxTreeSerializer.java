@@ -0,0 +1,878 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.syntax;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.events.Location;
+import com.google.devtools.build.lib.syntax.DictionaryLiteral.DictionaryEntryLiteral;
+import com.google.devtools.build.lib.syntax.IfStatement.ConditionalStatements;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * A compact binary form of {@link BuildFileAST}s, which can be read back much faster than the
+ * source can be parsed.
+ *
+ * <p>Every node is written as a tag followed by its location and its children. Integers are
+ * written as varints; strings, paths and line number tables are written the first time they
+ * occur and referred to by index afterwards, so that identifiers read back share their name.
+ * Locations are written as offsets into the line number table of the file they come from, and
+ * are equal to the ones the lexer created.
+ *
+ * <p>Only trees made by the parser can be written. In particular, files that use {@code #line}
+ * directives and parameters with types are not supported.
+ */
+final class SyntaxTreeSerializer {
+
+  /** Changes whenever the format changes. */
+  private static final int VERSION = 1;
+
+  // Locations.
+  private static final int NO_LOCATION = 0;
+  private static final int LEXER_LOCATION = 1;
+  private static final int PATH_LOCATION = 2;
+
+  // Expressions.
+  private static final int NULL = 0;
+  private static final int IDENTIFIER = 1;
+  private static final int INTEGER_LITERAL = 2;
+  private static final int STRING_LITERAL = 3;
+  private static final int LIST_LITERAL = 4;
+  private static final int DICTIONARY_LITERAL = 5;
+  private static final int BINARY_OPERATOR = 6;
+  private static final int UNARY_OPERATOR = 7;
+  private static final int CONDITIONAL = 8;
+  private static final int DOT = 9;
+  private static final int FUNCALL = 10;
+  private static final int INDEX = 11;
+  private static final int SLICE = 12;
+  private static final int LIST_COMPREHENSION = 13;
+  private static final int DICT_COMPREHENSION = 14;
+
+  // Statements.
+  private static final int ASSIGNMENT = 1;
+  private static final int AUGMENTED_ASSIGNMENT = 2;
+  private static final int EXPRESSION_STATEMENT = 3;
+  private static final int IF = 4;
+  private static final int CONDITIONAL_STATEMENTS = 5;
+  private static final int FOR = 6;
+  private static final int FLOW = 7;
+  private static final int RETURN = 8;
+  private static final int PASS = 9;
+  private static final int LOAD = 10;
+  private static final int FUNCTION_DEF = 11;
+
+  // Arguments, parameters and comprehension clauses.
+  private static final int POSITIONAL = 1;
+  private static final int KEYWORD = 2;
+  private static final int STAR = 3;
+  private static final int STAR_STAR = 4;
+  private static final int MANDATORY = 5;
+  private static final int OPTIONAL = 6;
+  private static final int FOR_CLAUSE = 1;
+  private static final int IF_CLAUSE = 2;
+
+  private SyntaxTreeSerializer() {}
+
+  /**
+   * Returns the serialized form of the given AST.
+   *
+   * @throws NotSerializableException if the AST contains something the parser does not create
+   */
+  static byte[] serialize(BuildFileAST ast) throws NotSerializableException {
+    Writer writer = new Writer();
+    writer.writeVarInt(VERSION);
+    writer.writeBoolean(ast.containsErrors());
+    writer.writeString(ast.getContentHashCode());
+    writer.writeBoolean(ast.getImports() != null);
+    writer.writeLocation(ast.getLocation());
+    writer.writeStatements(ast.getStatements());
+    writer.writeVarInt(ast.getComments().size());
+    for (Comment comment : ast.getComments()) {
+      writer.writeLocation(comment.getLocation());
+      writer.writeString(comment.getValue());
+    }
+    return writer.out.toByteArray();
+  }
+
+  /**
+   * Reads an AST written by {@link #serialize}.
+   *
+   * @throws IOException if the data is not a serialized AST, or was written in another version of
+   *     the format
+   */
+  static BuildFileAST deserialize(byte[] bytes) throws IOException {
+    Reader reader = new Reader(bytes);
+    try {
+      int version = reader.readVarInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported serialized AST version " + version);
+      }
+      boolean containsErrors = reader.readBoolean();
+      String contentHashCode = reader.readString();
+      boolean hasImports = reader.readBoolean();
+      Location location = reader.readLocation();
+      ImmutableList<Statement> statements = reader.readStatements();
+      int commentCount = reader.readVarInt();
+      ImmutableList.Builder<Comment> comments = ImmutableList.builder();
+      for (int i = 0; i < commentCount; i++) {
+        Location commentLocation = reader.readLocation();
+        comments.add(reader.located(commentLocation, new Comment(reader.readNonNullString())));
+      }
+      if (reader.pos != bytes.length) {
+        throw new IOException("Trailing data after serialized AST");
+      }
+      return BuildFileAST.restore(
+          statements,
+          containsErrors,
+          contentHashCode,
+          location,
+          comments.build(),
+          hasImports);
+    } catch (RuntimeException e) {
+      // Out of bounds reads, or nodes missing where their constructors require them.
+      throw new IOException("Malformed serialized AST", e);
+    }
+  }
+
+  private static final class Writer {
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private final Map<String, Integer> strings = new HashMap<>();
+    private final Map<LineNumberTable, Integer> lineNumberTables = new IdentityHashMap<>();
+
+    void writeVarInt(int value) {
+      while ((value & ~0x7F) != 0) {
+        out.write((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      out.write(value);
+    }
+
+    void writeBoolean(boolean value) {
+      out.write(value ? 1 : 0);
+    }
+
+    /**
+     * Writes 0 for null, the index plus one of a string written before, or the next index plus one
+     * followed by the string itself.
+     */
+    void writeString(@Nullable String value) throws NotSerializableException {
+      if (value == null) {
+        writeVarInt(0);
+        return;
+      }
+      Integer index = strings.get(value);
+      if (index != null) {
+        writeVarInt(index + 1);
+        return;
+      }
+      byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+      if (!new String(utf8, StandardCharsets.UTF_8).equals(value)) {
+        // Unpaired surrogates cannot be encoded.
+        throw new NotSerializableException("String not representable in UTF-8");
+      }
+      strings.put(value, strings.size());
+      writeVarInt(strings.size());
+      writeVarInt(utf8.length);
+      out.write(utf8, 0, utf8.length);
+    }
+
+    void writePath(PathFragment path) throws NotSerializableException {
+      writeString(path.getPathString());
+    }
+
+    void writeLineNumberTable(LineNumberTable table) throws NotSerializableException {
+      Integer index = lineNumberTables.get(table);
+      if (index != null) {
+        writeVarInt(index);
+        return;
+      }
+      if (!(table instanceof LineNumberTable.Regular)) {
+        throw new NotSerializableException(table.getClass().getName());
+      }
+      LineNumberTable.Regular regular = (LineNumberTable.Regular) table;
+      lineNumberTables.put(table, lineNumberTables.size());
+      writeVarInt(lineNumberTables.size() - 1);
+      writePath(regular.getPath());
+      writeVarInt(regular.getBufferLength());
+      int[] lineStarts = regular.getLineStarts();
+      writeVarInt(lineStarts.length);
+      // Line starts are increasing, so their differences are small.
+      int previous = 0;
+      for (int lineStart : lineStarts) {
+        writeVarInt(lineStart - previous);
+        previous = lineStart;
+      }
+    }
+
+    void writeLocation(@Nullable Location location) throws NotSerializableException {
+      if (location == null) {
+        writeVarInt(NO_LOCATION);
+        return;
+      }
+      LineNumberTable table = Lexer.getLineNumberTable(location);
+      if (table != null) {
+        writeVarInt(LEXER_LOCATION);
+        writeLineNumberTable(table);
+        writeVarInt(location.getStartOffset());
+        writeVarInt(location.getEndOffset() - location.getStartOffset());
+      } else if (location.equals(Location.fromPathFragment(location.getPath()))) {
+        writeVarInt(PATH_LOCATION);
+        writePath(location.getPath());
+      } else {
+        throw new NotSerializableException(location.getClass().getName());
+      }
+    }
+
+    void writeStatements(List<? extends Statement> statements) throws NotSerializableException {
+      writeVarInt(statements.size());
+      for (Statement statement : statements) {
+        writeStatement(statement);
+      }
+    }
+
+    void writeStatement(Statement statement) throws NotSerializableException {
+      if (statement instanceof AssignmentStatement) {
+        AssignmentStatement assignment = (AssignmentStatement) statement;
+        writeVarInt(ASSIGNMENT);
+        writeLocation(statement.getLocation());
+        writeLValue(assignment.getLValue());
+        writeExpression(assignment.getExpression());
+      } else if (statement instanceof AugmentedAssignmentStatement) {
+        AugmentedAssignmentStatement assignment = (AugmentedAssignmentStatement) statement;
+        writeVarInt(AUGMENTED_ASSIGNMENT);
+        writeLocation(statement.getLocation());
+        writeVarInt(assignment.getOperator().ordinal());
+        writeLValue(assignment.getLValue());
+        writeExpression(assignment.getExpression());
+      } else if (statement instanceof ExpressionStatement) {
+        writeVarInt(EXPRESSION_STATEMENT);
+        writeLocation(statement.getLocation());
+        writeExpression(((ExpressionStatement) statement).getExpression());
+      } else if (statement instanceof IfStatement) {
+        IfStatement ifStatement = (IfStatement) statement;
+        writeVarInt(IF);
+        writeLocation(statement.getLocation());
+        writeStatements(ifStatement.getThenBlocks());
+        writeStatements(ifStatement.getElseBlock());
+      } else if (statement instanceof ConditionalStatements) {
+        ConditionalStatements conditional = (ConditionalStatements) statement;
+        writeVarInt(CONDITIONAL_STATEMENTS);
+        writeLocation(statement.getLocation());
+        writeExpression(conditional.getCondition());
+        writeStatements(conditional.getStatements());
+      } else if (statement instanceof ForStatement) {
+        ForStatement forStatement = (ForStatement) statement;
+        writeVarInt(FOR);
+        writeLocation(statement.getLocation());
+        writeLValue(forStatement.getVariable());
+        writeExpression(forStatement.getCollection());
+        writeStatements(forStatement.getBlock());
+      } else if (statement instanceof FlowStatement) {
+        writeVarInt(FLOW);
+        writeLocation(statement.getLocation());
+        writeVarInt(((FlowStatement) statement).getKind().ordinal());
+      } else if (statement instanceof ReturnStatement) {
+        writeVarInt(RETURN);
+        writeLocation(statement.getLocation());
+        writeExpression(((ReturnStatement) statement).getReturnExpression());
+      } else if (statement instanceof PassStatement) {
+        writeVarInt(PASS);
+        writeLocation(statement.getLocation());
+      } else if (statement instanceof LoadStatement) {
+        LoadStatement load = (LoadStatement) statement;
+        writeVarInt(LOAD);
+        writeLocation(statement.getLocation());
+        writeExpression(load.getImport());
+        writeVarInt(load.getSymbolMap().size());
+        for (Map.Entry<Identifier, String> symbol : load.getSymbolMap().entrySet()) {
+          writeExpression(symbol.getKey());
+          writeString(symbol.getValue());
+        }
+      } else if (statement instanceof FunctionDefStatement) {
+        FunctionDefStatement def = (FunctionDefStatement) statement;
+        writeVarInt(FUNCTION_DEF);
+        writeLocation(statement.getLocation());
+        writeExpression(def.getIdentifier());
+        writeVarInt(def.getParameters().size());
+        for (Parameter<Expression, Expression> parameter : def.getParameters()) {
+          writeParameter(parameter);
+        }
+        writeStatements(def.getStatements());
+      } else {
+        throw new NotSerializableException(statement.getClass().getName());
+      }
+    }
+
+    void writeParameter(Parameter<Expression, Expression> parameter)
+        throws NotSerializableException {
+      if (parameter.getType() != null) {
+        throw new NotSerializableException("Parameter with a type");
+      }
+      if (parameter.isMandatory()) {
+        writeVarInt(MANDATORY);
+      } else if (parameter.isOptional()) {
+        writeVarInt(OPTIONAL);
+      } else if (parameter.isStar()) {
+        writeVarInt(STAR);
+      } else if (parameter.isStarStar()) {
+        writeVarInt(STAR_STAR);
+      } else {
+        throw new NotSerializableException(parameter.getClass().getName());
+      }
+      writeLocation(parameter.getLocation());
+      writeString(parameter.getName());
+      if (parameter.isOptional()) {
+        writeExpression(parameter.getDefaultValue());
+      }
+    }
+
+    void writeLValue(LValue lvalue) throws NotSerializableException {
+      writeLocation(lvalue.getLocation());
+      writeExpression(lvalue.getExpression());
+    }
+
+    void writeExpressions(List<? extends Expression> expressions) throws NotSerializableException {
+      writeVarInt(expressions.size());
+      for (Expression expression : expressions) {
+        writeExpression(expression);
+      }
+    }
+
+    void writeExpression(@Nullable Expression expression) throws NotSerializableException {
+      if (expression == null) {
+        writeVarInt(NULL);
+        return;
+      }
+      if (expression instanceof Identifier) {
+        writeVarInt(IDENTIFIER);
+        writeLocation(expression.getLocation());
+        writeString(((Identifier) expression).getName());
+      } else if (expression instanceof IntegerLiteral) {
+        writeVarInt(INTEGER_LITERAL);
+        writeLocation(expression.getLocation());
+        // Zig-zag encode, so that negative numbers stay short.
+        int value = ((IntegerLiteral) expression).getValue();
+        writeVarInt((value << 1) ^ (value >> 31));
+      } else if (expression instanceof StringLiteral) {
+        writeVarInt(STRING_LITERAL);
+        writeLocation(expression.getLocation());
+        writeString(((StringLiteral) expression).getValue());
+      } else if (expression instanceof ListLiteral) {
+        ListLiteral list = (ListLiteral) expression;
+        writeVarInt(LIST_LITERAL);
+        writeLocation(expression.getLocation());
+        writeBoolean(list.isTuple());
+        writeExpressions(list.getElements());
+      } else if (expression instanceof DictionaryLiteral) {
+        DictionaryLiteral dict = (DictionaryLiteral) expression;
+        writeVarInt(DICTIONARY_LITERAL);
+        writeLocation(expression.getLocation());
+        writeVarInt(dict.getEntries().size());
+        for (DictionaryEntryLiteral entry : dict.getEntries()) {
+          writeLocation(entry.getLocation());
+          writeExpression(entry.getKey());
+          writeExpression(entry.getValue());
+        }
+      } else if (expression instanceof BinaryOperatorExpression) {
+        BinaryOperatorExpression binary = (BinaryOperatorExpression) expression;
+        writeVarInt(BINARY_OPERATOR);
+        writeLocation(expression.getLocation());
+        writeVarInt(binary.getOperator().ordinal());
+        writeExpression(binary.getLhs());
+        writeExpression(binary.getRhs());
+      } else if (expression instanceof UnaryOperatorExpression) {
+        UnaryOperatorExpression unary = (UnaryOperatorExpression) expression;
+        writeVarInt(UNARY_OPERATOR);
+        writeLocation(expression.getLocation());
+        writeVarInt(unary.getOperator().ordinal());
+        writeExpression(unary.getOperand());
+      } else if (expression instanceof ConditionalExpression) {
+        ConditionalExpression conditional = (ConditionalExpression) expression;
+        writeVarInt(CONDITIONAL);
+        writeLocation(expression.getLocation());
+        writeExpression(conditional.getThenCase());
+        writeExpression(conditional.getCondition());
+        writeExpression(conditional.getElseCase());
+      } else if (expression instanceof DotExpression) {
+        DotExpression dot = (DotExpression) expression;
+        writeVarInt(DOT);
+        writeLocation(expression.getLocation());
+        writeExpression(dot.getObject());
+        writeExpression(dot.getField());
+      } else if (expression instanceof FuncallExpression) {
+        FuncallExpression call = (FuncallExpression) expression;
+        writeVarInt(FUNCALL);
+        writeLocation(expression.getLocation());
+        writeExpression(call.getFunction());
+        writeVarInt(call.getArguments().size());
+        for (Argument.Passed argument : call.getArguments()) {
+          writeArgument(argument);
+        }
+      } else if (expression instanceof IndexExpression) {
+        IndexExpression index = (IndexExpression) expression;
+        writeVarInt(INDEX);
+        writeLocation(expression.getLocation());
+        writeExpression(index.getObject());
+        writeExpression(index.getKey());
+      } else if (expression instanceof SliceExpression) {
+        SliceExpression slice = (SliceExpression) expression;
+        writeVarInt(SLICE);
+        writeLocation(expression.getLocation());
+        writeExpression(slice.getObject());
+        writeExpression(slice.getStart());
+        writeExpression(slice.getEnd());
+        writeExpression(slice.getStep());
+      } else if (expression instanceof ListComprehension) {
+        writeVarInt(LIST_COMPREHENSION);
+        writeLocation(expression.getLocation());
+        writeComprehension((AbstractComprehension) expression);
+      } else if (expression instanceof DictComprehension) {
+        writeVarInt(DICT_COMPREHENSION);
+        writeLocation(expression.getLocation());
+        writeComprehension((AbstractComprehension) expression);
+      } else {
+        throw new NotSerializableException(expression.getClass().getName());
+      }
+    }
+
+    void writeArgument(Argument.Passed argument) throws NotSerializableException {
+      if (argument.isPositional()) {
+        writeVarInt(POSITIONAL);
+      } else if (argument.isKeyword()) {
+        writeVarInt(KEYWORD);
+      } else if (argument.isStar()) {
+        writeVarInt(STAR);
+      } else if (argument.isStarStar()) {
+        writeVarInt(STAR_STAR);
+      } else {
+        throw new NotSerializableException(argument.getClass().getName());
+      }
+      writeLocation(argument.getLocation());
+      if (argument.isKeyword()) {
+        writeString(argument.getName());
+      }
+      writeExpression(argument.getValue());
+    }
+
+    void writeComprehension(AbstractComprehension comprehension) throws NotSerializableException {
+      writeExpressions(comprehension.getOutputExpressions());
+      writeVarInt(comprehension.getClauses().size());
+      for (AbstractComprehension.Clause clause : comprehension.getClauses()) {
+        if (clause.getKind() == AbstractComprehension.Clause.Kind.FOR) {
+          writeVarInt(FOR_CLAUSE);
+          writeLValue(clause.getLValue());
+        } else {
+          writeVarInt(IF_CLAUSE);
+        }
+        writeExpression(clause.getExpression());
+      }
+    }
+  }
+
+  private static final class Reader {
+    private final byte[] bytes;
+    private int pos;
+    private final List<String> strings = new ArrayList<>();
+    private final Map<String, PathFragment> paths = new HashMap<>();
+    private final List<LineNumberTable> lineNumberTables = new ArrayList<>();
+
+    Reader(byte[] bytes) {
+      this.bytes = bytes;
+    }
+
+    int readVarInt() throws IOException {
+      int result = 0;
+      for (int shift = 0; shift < 35; shift += 7) {
+        byte b = bytes[pos++];
+        result |= (b & 0x7F) << shift;
+        if (b >= 0) {
+          return result;
+        }
+      }
+      throw new IOException("Malformed varint");
+    }
+
+    boolean readBoolean() throws IOException {
+      return readVarInt() != 0;
+    }
+
+    @Nullable
+    String readString() throws IOException {
+      int index = readVarInt();
+      if (index == 0) {
+        return null;
+      }
+      if (index <= strings.size()) {
+        return strings.get(index - 1);
+      }
+      if (index != strings.size() + 1) {
+        throw new IOException("Malformed string reference " + index);
+      }
+      int length = readVarInt();
+      String value = new String(bytes, pos, length, StandardCharsets.UTF_8);
+      pos += length;
+      strings.add(value);
+      return value;
+    }
+
+    String readNonNullString() throws IOException {
+      String value = readString();
+      if (value == null) {
+        throw new IOException("Unexpected null string");
+      }
+      return value;
+    }
+
+    PathFragment readPath() throws IOException {
+      return paths.computeIfAbsent(readNonNullString(), PathFragment::create);
+    }
+
+    LineNumberTable readLineNumberTable() throws IOException {
+      int index = readVarInt();
+      if (index < lineNumberTables.size()) {
+        return lineNumberTables.get(index);
+      }
+      if (index != lineNumberTables.size()) {
+        throw new IOException("Malformed line number table reference " + index);
+      }
+      PathFragment path = readPath();
+      int bufferLength = readVarInt();
+      int[] lineStarts = new int[readVarInt()];
+      int previous = 0;
+      for (int i = 0; i < lineStarts.length; i++) {
+        previous += readVarInt();
+        lineStarts[i] = previous;
+      }
+      LineNumberTable table = new LineNumberTable.Regular(lineStarts, path, bufferLength);
+      lineNumberTables.add(table);
+      return table;
+    }
+
+    @Nullable
+    Location readLocation() throws IOException {
+      int kind = readVarInt();
+      switch (kind) {
+        case NO_LOCATION:
+          return null;
+        case LEXER_LOCATION:
+          LineNumberTable table = readLineNumberTable();
+          int start = readVarInt();
+          return Lexer.createLocation(table, start, start + readVarInt());
+        case PATH_LOCATION:
+          return Location.fromPathFragment(readPath());
+        default:
+          throw new IOException("Malformed location kind " + kind);
+      }
+    }
+
+    <T extends ASTNode> T located(@Nullable Location location, T node) {
+      return ASTNode.setLocation(location, node);
+    }
+
+    ImmutableList<Statement> readStatements() throws IOException {
+      int size = readVarInt();
+      ImmutableList.Builder<Statement> statements = ImmutableList.builder();
+      for (int i = 0; i < size; i++) {
+        statements.add(readStatement());
+      }
+      return statements.build();
+    }
+
+    Statement readStatement() throws IOException {
+      int tag = readVarInt();
+      Location location = readLocation();
+      switch (tag) {
+        case ASSIGNMENT:
+          {
+            LValue lvalue = readLValue();
+            return located(location, new AssignmentStatement(lvalue, readExpression()));
+          }
+        case AUGMENTED_ASSIGNMENT:
+          {
+            Operator operator = readEnum(Operator.values());
+            LValue lvalue = readLValue();
+            return located(
+                location, new AugmentedAssignmentStatement(operator, lvalue, readExpression()));
+          }
+        case EXPRESSION_STATEMENT:
+          return located(location, new ExpressionStatement(readExpression()));
+        case IF:
+          {
+            ImmutableList<Statement> thenBlocks = readStatements();
+            List<ConditionalStatements> conditionals = new ArrayList<>(thenBlocks.size());
+            for (Statement thenBlock : thenBlocks) {
+              if (!(thenBlock instanceof ConditionalStatements)) {
+                throw new IOException("Malformed if statement");
+              }
+              conditionals.add((ConditionalStatements) thenBlock);
+            }
+            return located(location, new IfStatement(conditionals, readStatements()));
+          }
+        case CONDITIONAL_STATEMENTS:
+          {
+            Expression condition = readExpression();
+            return located(location, new ConditionalStatements(condition, readStatements()));
+          }
+        case FOR:
+          {
+            LValue variable = readLValue();
+            Expression collection = readExpression();
+            return located(location, new ForStatement(variable, collection, readStatements()));
+          }
+        case FLOW:
+          return located(location, new FlowStatement(readEnum(FlowStatement.Kind.values())));
+        case RETURN:
+          return located(location, new ReturnStatement(readExpression()));
+        case PASS:
+          return located(location, new PassStatement());
+        case LOAD:
+          {
+            StringLiteral imp = readExpression(StringLiteral.class);
+            int size = readVarInt();
+            Map<Identifier, String> symbols = new LinkedHashMap<>();
+            for (int i = 0; i < size; i++) {
+              Identifier symbol = readExpression(Identifier.class);
+              symbols.put(symbol, readNonNullString());
+            }
+            return located(location, new LoadStatement(imp, symbols));
+          }
+        case FUNCTION_DEF:
+          {
+            Identifier identifier = readExpression(Identifier.class);
+            int size = readVarInt();
+            List<Parameter<Expression, Expression>> parameters = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+              parameters.add(readParameter());
+            }
+            FunctionSignature.WithValues<Expression, Expression> signature;
+            try {
+              signature = FunctionSignature.WithValues.of(parameters);
+            } catch (FunctionSignature.SignatureException e) {
+              throw new IOException("Malformed function signature", e);
+            }
+            return located(
+                location,
+                new FunctionDefStatement(identifier, parameters, signature, readStatements()));
+          }
+        default:
+          throw new IOException("Malformed statement tag " + tag);
+      }
+    }
+
+    Parameter<Expression, Expression> readParameter() throws IOException {
+      int tag = readVarInt();
+      Location location = readLocation();
+      String name = readString();
+      switch (tag) {
+        case MANDATORY:
+          return located(location, new Parameter.Mandatory<>(name));
+        case OPTIONAL:
+          return located(location, new Parameter.Optional<>(name, readExpression()));
+        case STAR:
+          return located(location, new Parameter.Star<>(name));
+        case STAR_STAR:
+          return located(location, new Parameter.StarStar<>(name));
+        default:
+          throw new IOException("Malformed parameter tag " + tag);
+      }
+    }
+
+    LValue readLValue() throws IOException {
+      Location location = readLocation();
+      return located(location, new LValue(readExpression()));
+    }
+
+    ImmutableList<Expression> readExpressions() throws IOException {
+      int size = readVarInt();
+      ImmutableList.Builder<Expression> expressions = ImmutableList.builder();
+      for (int i = 0; i < size; i++) {
+        expressions.add(readExpression());
+      }
+      return expressions.build();
+    }
+
+    <T extends Expression> T readExpression(Class<T> type) throws IOException {
+      Expression expression = readExpression();
+      if (!type.isInstance(expression)) {
+        throw new IOException("Expected " + type.getSimpleName() + ", got " + expression);
+      }
+      return type.cast(expression);
+    }
+
+    @Nullable
+    Expression readExpression() throws IOException {
+      int tag = readVarInt();
+      if (tag == NULL) {
+        return null;
+      }
+      Location location = readLocation();
+      switch (tag) {
+        case IDENTIFIER:
+          return located(location, new Identifier(readNonNullString()));
+        case INTEGER_LITERAL:
+          {
+            int zigZag = readVarInt();
+            return located(location, new IntegerLiteral((zigZag >>> 1) ^ -(zigZag & 1)));
+          }
+        case STRING_LITERAL:
+          return located(location, new StringLiteral(readNonNullString()));
+        case LIST_LITERAL:
+          {
+            ListLiteral.Kind kind = readBoolean() ? ListLiteral.Kind.TUPLE : ListLiteral.Kind.LIST;
+            return located(location, new ListLiteral(kind, readExpressions()));
+          }
+        case DICTIONARY_LITERAL:
+          {
+            int size = readVarInt();
+            List<DictionaryEntryLiteral> entries = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+              Location entryLocation = readLocation();
+              Expression key = readExpression();
+              entries.add(
+                  located(entryLocation, new DictionaryEntryLiteral(key, readExpression())));
+            }
+            return located(location, new DictionaryLiteral(entries));
+          }
+        case BINARY_OPERATOR:
+          {
+            Operator operator = readEnum(Operator.values());
+            Expression lhs = readExpression();
+            return located(
+                location, new BinaryOperatorExpression(operator, lhs, readExpression()));
+          }
+        case UNARY_OPERATOR:
+          {
+            UnaryOperator operator = readEnum(UnaryOperator.values());
+            return located(location, new UnaryOperatorExpression(operator, readExpression()));
+          }
+        case CONDITIONAL:
+          {
+            Expression thenCase = readExpression();
+            Expression condition = readExpression();
+            return located(
+                location, new ConditionalExpression(thenCase, condition, readExpression()));
+          }
+        case DOT:
+          {
+            Expression object = readExpression();
+            return located(
+                location, new DotExpression(object, readExpression(Identifier.class)));
+          }
+        case FUNCALL:
+          {
+            Expression function = readExpression();
+            int size = readVarInt();
+            ImmutableList.Builder<Argument.Passed> arguments = ImmutableList.builder();
+            for (int i = 0; i < size; i++) {
+              arguments.add(readArgument());
+            }
+            return located(location, new FuncallExpression(function, arguments.build()));
+          }
+        case INDEX:
+          {
+            Expression object = readExpression();
+            return located(location, new IndexExpression(object, readExpression()));
+          }
+        case SLICE:
+          {
+            Expression object = readExpression();
+            Expression start = readExpression();
+            Expression end = readExpression();
+            return located(
+                location, new SliceExpression(object, start, end, readExpression()));
+          }
+        case LIST_COMPREHENSION:
+          {
+            ImmutableList<Expression> outputs = readExpressions();
+            if (outputs.size() != 1) {
+              throw new IOException("Malformed list comprehension");
+            }
+            return located(location, new ListComprehension(readClauses(), outputs.get(0)));
+          }
+        case DICT_COMPREHENSION:
+          {
+            ImmutableList<Expression> outputs = readExpressions();
+            if (outputs.size() != 2) {
+              throw new IOException("Malformed dict comprehension");
+            }
+            return located(
+                location, new DictComprehension(readClauses(), outputs.get(0), outputs.get(1)));
+          }
+        default:
+          throw new IOException("Malformed expression tag " + tag);
+      }
+    }
+
+    Argument.Passed readArgument() throws IOException {
+      int tag = readVarInt();
+      Location location = readLocation();
+      switch (tag) {
+        case POSITIONAL:
+          return located(location, new Argument.Positional(readExpression()));
+        case KEYWORD:
+          {
+            String name = readNonNullString();
+            return located(location, new Argument.Keyword(name, readExpression()));
+          }
+        case STAR:
+          return located(location, new Argument.Star(readExpression()));
+        case STAR_STAR:
+          return located(location, new Argument.StarStar(readExpression()));
+        default:
+          throw new IOException("Malformed argument tag " + tag);
+      }
+    }
+
+    List<AbstractComprehension.Clause> readClauses() throws IOException {
+      int size = readVarInt();
+      List<AbstractComprehension.Clause> clauses = new ArrayList<>(size);
+      for (int i = 0; i < size; i++) {
+        int tag = readVarInt();
+        switch (tag) {
+          case FOR_CLAUSE:
+            {
+              LValue lvalue = readLValue();
+              clauses.add(new AbstractComprehension.ForClause(lvalue, readExpression()));
+              break;
+            }
+          case IF_CLAUSE:
+            clauses.add(new AbstractComprehension.IfClause(readExpression()));
+            break;
+          default:
+            throw new IOException("Malformed comprehension clause tag " + tag);
+        }
+      }
+      return clauses;
+    }
+
+    <E extends Enum<E>> E readEnum(E[] values) throws IOException {
+      int ordinal = readVarInt();
+      if (ordinal < 0 || ordinal >= values.length) {
+        throw new IOException("Malformed enum ordinal " + ordinal);
+      }
+      return values[ordinal];
+    }
+  }
+}
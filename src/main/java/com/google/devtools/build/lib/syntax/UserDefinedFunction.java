@@ -19,6 +19,7 @@ import com.google.devtools.build.lib.events.Location;
 import com.google.devtools.build.lib.profiler.Profiler;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.skylarkinterface.SkylarkPrinter;
+import javax.annotation.Nullable;
 
 /**
  * The actual function registered in the environment. This function is defined in the
@@ -31,15 +32,29 @@ public class UserDefinedFunction extends BaseFunction {
   // we close over the globals at the time of definition
   private final Environment.Frame definitionGlobals;
 
+  // if the function was compiled, the slots its locals were resolved to
+  @Nullable private final LocalScope localScope;
+
   public UserDefinedFunction(
       String name,
       Location loc,
       FunctionSignature.WithValues<Object, SkylarkType> signature,
       ImmutableList<Statement> statements,
       Environment.Frame definitionGlobals) {
+    this(name, loc, signature, statements, definitionGlobals, /*localScope=*/ null);
+  }
+
+  UserDefinedFunction(
+      String name,
+      Location loc,
+      FunctionSignature.WithValues<Object, SkylarkType> signature,
+      ImmutableList<Statement> statements,
+      Environment.Frame definitionGlobals,
+      @Nullable LocalScope localScope) {
     super(name, signature, loc);
     this.statements = statements;
     this.definitionGlobals = definitionGlobals;
+    this.localScope = localScope;
   }
 
   public ImmutableList<Statement> getStatements() {
@@ -64,7 +79,7 @@ public class UserDefinedFunction extends BaseFunction {
 
     Profiler.instance().startTask(ProfilerTask.SKYLARK_USER_FN, getName());
     try {
-      env.enterScope(this, ast, definitionGlobals);
+      env.enterScope(this, ast, definitionGlobals, localScope);
       ImmutableList<String> names = signature.getSignature().getNames();
 
       // Registering the functions's arguments as variables in the local Environment
@@ -212,6 +212,51 @@ public final class NativePosixFiles {
    */
   public static native ErrnoFileStatus errnoLstat(String path);
 
+  // The number of ints and longs statBatch stores for each path.
+  private static final int STAT_BATCH_INTS = 9;
+  private static final int STAT_BATCH_LONGS = 2;
+
+  /**
+   * Like {@link #errnoStat} or {@link #errnoLstat} for each of the given paths, but in a single
+   * native call, which saves a JNI transition and an object created by JNI code for every path.
+   *
+   * @param paths the files to stat.
+   * @param followSymlinks whether to stat(2) or lstat(2) the files.
+   * @return an ErrnoFileStatus instance for each path, in the same order.
+   */
+  public static ErrnoFileStatus[] errnoStatBatch(String[] paths, boolean followSymlinks) {
+    int[] ints = new int[paths.length * STAT_BATCH_INTS];
+    long[] longs = new long[paths.length * STAT_BATCH_LONGS];
+    statBatch(paths, followSymlinks, ints, longs);
+    ErrnoFileStatus[] result = new ErrnoFileStatus[paths.length];
+    for (int i = 0; i < paths.length; i++) {
+      int j = i * STAT_BATCH_INTS;
+      int k = i * STAT_BATCH_LONGS;
+      result[i] =
+          ints[j] != 0
+              ? new ErrnoFileStatus(ints[j])
+              : new ErrnoFileStatus(
+                  ints[j + 1],
+                  ints[j + 2],
+                  ints[j + 3],
+                  ints[j + 4],
+                  ints[j + 5],
+                  ints[j + 6],
+                  ints[j + 7],
+                  longs[k],
+                  ints[j + 8],
+                  longs[k + 1]);
+    }
+    return result;
+  }
+
+  /**
+   * Stats every path, storing errno, st_mode, st_atime, st_atimensec, st_mtime, st_mtimensec,
+   * st_ctime, st_ctimensec and st_dev in {@code ints}, and st_size and st_ino in {@code longs}.
+   */
+  private static native void statBatch(
+      String[] paths, boolean followSymlinks, int[] ints, long[] longs);
+
   /**
    * Native wrapper around POSIX utime(2) syscall.
    *
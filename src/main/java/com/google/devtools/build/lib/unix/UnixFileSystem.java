@@ -22,8 +22,11 @@ import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.unix.NativePosixFiles.Dirents;
 import com.google.devtools.build.lib.unix.NativePosixFiles.ReadTypes;
 import com.google.devtools.build.lib.vfs.AbstractFileSystemWithCustomStat;
+import com.google.devtools.build.lib.vfs.BatchStat;
 import com.google.devtools.build.lib.vfs.Dirent;
 import com.google.devtools.build.lib.vfs.FileStatus;
+import com.google.devtools.build.lib.vfs.FileStatusWithDigest;
+import com.google.devtools.build.lib.vfs.FileStatusWithDigestAdapter;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import java.io.IOException;
@@ -228,6 +231,54 @@ public class UnixFileSystem extends AbstractFileSystemWithCustomStat {
     }
   }
 
+  /**
+   * Returns a {@link BatchStat} that stats all paths in one native call. Digests are never
+   * included; callers fall back on {@link Path#getFastDigest}. Subclasses that change how files
+   * are stat()ed should override this method too.
+   */
+  @Override
+  public BatchStat getBatchStat() {
+    return new BatchStat() {
+      @Override
+      public List<FileStatusWithDigest> batchStat(
+          boolean includeDigest, boolean includeLinks, Iterable<PathFragment> paths)
+          throws IOException {
+        List<Path> resolvedPaths = new ArrayList<>();
+        for (PathFragment path : paths) {
+          resolvedPaths.add(getRootDirectory().getRelative(path));
+        }
+        String[] names = new String[resolvedPaths.size()];
+        for (int i = 0; i < names.length; i++) {
+          names[i] = resolvedPaths.get(i).getPathString();
+        }
+        boolean followSymlinks = !includeLinks;
+        long startTime = Profiler.nanoTimeMaybe();
+        ErrnoFileStatus[] stats;
+        try {
+          stats = NativePosixFiles.errnoStatBatch(names, followSymlinks);
+        } finally {
+          profiler.logSimpleTask(
+              startTime, ProfilerTask.VFS_STAT, "batch of " + names.length + " paths");
+        }
+        List<FileStatusWithDigest> result = new ArrayList<>(stats.length);
+        for (int i = 0; i < stats.length; i++) {
+          ErrnoFileStatus stat = stats[i];
+          if (!stat.hasError()) {
+            result.add(FileStatusWithDigestAdapter.adapt(new UnixFileStatus(stat)));
+          } else if (stat.getErrno() == ErrnoFileStatus.ENOENT
+              || stat.getErrno() == ErrnoFileStatus.ENOTDIR) {
+            result.add(null);
+          } else {
+            // Throws the proper exception, like statIfFound.
+            result.add(
+                FileStatusWithDigestAdapter.adapt(stat(resolvedPaths.get(i), followSymlinks)));
+          }
+        }
+        return result;
+      }
+    };
+  }
+
   @Override
   protected boolean isReadable(Path path) throws IOException {
     return (statInternal(path, true).getPermissions() & 0400) != 0;
@@ -34,6 +34,7 @@ import java.io.OutputStream;
 import java.nio.file.FileAlreadyExistsException;
 import java.util.Collection;
 import java.util.List;
+import javax.annotation.Nullable;
 
 /**
  * This interface models a file system using UNIX the naming scheme.
@@ -562,6 +563,16 @@ public abstract class FileSystem {
     }
   }
 
+  /**
+   * Returns a {@link BatchStat} that stats many paths of this file system at once, or null if this
+   * file system cannot do that faster than {@link #statIfFound} for each path. The paths given to
+   * the {@link BatchStat} are resolved against the root directory, so absolute paths work too.
+   */
+  @Nullable
+  public BatchStat getBatchStat() {
+    return null;
+  }
+
   /**
    * Returns true iff {@code path} denotes an existing directory. See
    * {@link Path#isDirectory(Symlinks)} for specification.
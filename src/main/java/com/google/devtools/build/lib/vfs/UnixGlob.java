@@ -23,7 +23,6 @@ import com.google.common.base.Splitter;
 import com.google.common.base.Throwables;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
@@ -147,10 +146,18 @@ public final class UnixGlob {
   }
 
   /**
-   * Calls {@link #matches(String, String, Cache) matches(pattern, str, null)}
+   * The compiled forms of the wildcard patterns of all globs. Every package tends to use the same
+   * few patterns, so they are compiled once per server rather than once per glob.
+   */
+  private static final Cache<String, Pattern> PATTERN_CACHE =
+      CacheBuilder.newBuilder().maximumSize(10000).concurrencyLevel(4).build();
+
+  /**
+   * Calls {@link #matches(String, String, Cache) matches(pattern, str, cache)} with a cache shared
+   * by all globs.
    */
   public static boolean matches(String pattern, String str) {
-    return matches(pattern, str, null);
+    return matches(pattern, str, PATTERN_CACHE);
   }
 
   /**
@@ -476,13 +483,6 @@ public final class UnixGlob {
   private static final class GlobVisitor {
     // These collections are used across workers and must therefore be thread-safe.
     private final Collection<Path> results = Sets.newConcurrentHashSet();
-    private final Cache<String, Pattern> cache = CacheBuilder.newBuilder().build(
-        new CacheLoader<String, Pattern>() {
-            @Override
-            public Pattern load(String wildcard) {
-              return makePatternFromWildcard(wildcard);
-            }
-          });
 
     private final GlobFuture result;
     private final ThreadPoolExecutor executor;
@@ -806,7 +806,7 @@ public final class UnixGlob {
             context.queueGlob(child, childIsDir, idx);
           }
         }
-        if (matches(pattern, text, cache)) {
+        if (matches(pattern, text)) {
           // Recurse and consume one segment of the pattern.
           if (childIsDir) {
             context.queueGlob(child, childIsDir, idx + 1);
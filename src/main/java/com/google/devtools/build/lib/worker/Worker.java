@@ -146,6 +146,11 @@ class Worker {
     }
   }
 
+  /** Returns the operating system's id of the worker process, or -1 if it is not known. */
+  long getProcessId() {
+    return process.getProcessId();
+  }
+
   InputStream getInputStream() {
     return process.getInputStream();
   }
@@ -26,6 +26,7 @@ import com.google.devtools.build.lib.exec.local.LocalExecutionOptions;
 import com.google.devtools.build.lib.exec.local.LocalSpawnRunner;
 import com.google.devtools.build.lib.runtime.CommandEnvironment;
 import com.google.devtools.build.lib.util.OS;
+import javax.annotation.Nullable;
 
 /**
  * Factory for the Worker-based execution strategy.
@@ -33,7 +34,10 @@ import com.google.devtools.build.lib.util.OS;
 final class WorkerActionContextProvider extends ActionContextProvider {
   private final ImmutableList<ActionContext> strategies;
 
-  public WorkerActionContextProvider(CommandEnvironment env, WorkerPool workers) {
+  public WorkerActionContextProvider(
+      CommandEnvironment env,
+      WorkerPool workers,
+      @Nullable WorkerMultiplexerManager multiplexers) {
     ImmutableMultimap<String, String> extraFlags =
         ImmutableMultimap.copyOf(env.getOptions().getOptions(WorkerOptions.class).workerExtraFlags);
 
@@ -41,6 +45,7 @@ final class WorkerActionContextProvider extends ActionContextProvider {
         new WorkerSpawnRunner(
             env.getExecRoot(),
             workers,
+            multiplexers,
             extraFlags,
             env.getReporter(),
             createFallbackRunner(env));
@@ -58,7 +58,7 @@ final class WorkerFactory extends BaseKeyedPooledObjectFactory<WorkerKey, Worker
         workerBaseDir.getRelative("worker-" + workerId + "-" + key.getMnemonic() + ".log");
 
     Worker worker;
-    boolean sandboxed = workerOptions.workerSandboxing || key.mustBeSandboxed();
+    boolean sandboxed = isSandboxed(key);
     if (sandboxed) {
       Path workDir = getSandboxedWorkerPath(key, workerId);
       worker = new SandboxedWorker(key, workerId, workDir, logFile);
@@ -80,6 +80,11 @@ final class WorkerFactory extends BaseKeyedPooledObjectFactory<WorkerKey, Worker
     return worker;
   }
 
+  /** Whether workers for the given key run in a sandbox. */
+  boolean isSandboxed(WorkerKey key) {
+    return workerOptions.workerSandboxing || key.mustBeSandboxed();
+  }
+
   Path getSandboxedWorkerPath(WorkerKey key, int workerId) {
     String workspaceName = key.getExecRoot().getBaseName();
     return workerBaseDir
@@ -0,0 +1,249 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.worker;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+import com.google.devtools.build.lib.actions.ResourceManager;
+import com.google.devtools.build.lib.clock.Clock;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Keeps the memory used by the processes of a {@link WorkerPool} within a budget.
+ *
+ * <p>The manager periodically measures the resident set size of every worker process. While their
+ * sum exceeds the budget, it destroys the idle worker that has been unused for the longest time. A
+ * worker that is destroyed this way is still in the idle queue of the pool, so the pool must ask
+ * {@link #beginUse} before handing out a worker and discard it if that returns false.
+ *
+ * <p>The measured memory is also reported to the {@link ResourceManager}, so that fewer actions
+ * are scheduled while workers hold a lot of memory.
+ */
+@ThreadSafe
+final class WorkerMemoryManager {
+
+  /** Measures the resident set size of worker processes. */
+  interface RssReader {
+    /** Returns the resident set size of the worker's process in bytes, or -1 if it is unknown. */
+    long getRssBytes(Worker worker);
+  }
+
+  /** Reads the resident set size of worker processes from /proc on Linux. */
+  static final RssReader PROC_RSS_READER =
+      worker -> {
+        long pid = worker.getProcessId();
+        if (pid < 0) {
+          return -1;
+        }
+        try {
+          return parseRssBytes(
+              new String(Files.readAllBytes(Paths.get("/proc/" + pid + "/status")), US_ASCII));
+        } catch (IOException e) {
+          // The process has exited, or there is no /proc file system.
+          return -1;
+        }
+      };
+
+  private static final Pattern VM_RSS_PATTERN =
+      Pattern.compile("^VmRSS:\\s*(\\d+) kB$", Pattern.MULTILINE);
+
+  /** How often the worker processes are measured at most. */
+  private static final long MEASUREMENT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private static final class WorkerState {
+    boolean busy;
+    long lastUsedNanos;
+    long rssBytes;
+  }
+
+  private final RssReader rssReader;
+  private final ResourceManager resourceManager;
+  private final Clock clock;
+
+  @GuardedBy("this")
+  private final Map<Worker, WorkerState> workers = new IdentityHashMap<>();
+
+  /** Workers chosen for eviction whose processes have not been destroyed yet. */
+  @GuardedBy("this")
+  private final Set<Worker> beingDestroyed = Sets.newIdentityHashSet();
+
+  @GuardedBy("this")
+  private long budgetBytes;
+
+  @GuardedBy("this")
+  private long lastMeasurementNanos;
+
+  @GuardedBy("this")
+  private boolean measuredOnce;
+
+  WorkerMemoryManager(RssReader rssReader, ResourceManager resourceManager, Clock clock) {
+    this.rssReader = rssReader;
+    this.resourceManager = resourceManager;
+    this.clock = clock;
+  }
+
+  /**
+   * Sets the maximum number of bytes that all worker processes together may use. Zero disables
+   * measuring the workers.
+   */
+  synchronized void setBudgetBytes(long budgetBytes) {
+    Preconditions.checkArgument(budgetBytes >= 0, "budgetBytes must not be negative");
+    this.budgetBytes = budgetBytes;
+    if (budgetBytes == 0) {
+      for (WorkerState state : workers.values()) {
+        state.rssBytes = 0;
+      }
+      resourceManager.setReservedMemoryMb(0);
+    }
+    measuredOnce = false;
+  }
+
+  /**
+   * Marks the worker as busy. Returns false if the worker was destroyed because it used too much
+   * memory while it was idle, or is about to be, in which case it must not be used.
+   */
+  synchronized boolean beginUse(Worker worker) {
+    if (beingDestroyed.contains(worker) || !worker.isAlive()) {
+      workers.remove(worker);
+      return false;
+    }
+    workers.computeIfAbsent(worker, w -> new WorkerState()).busy = true;
+    return true;
+  }
+
+  /** Marks the worker as idle again. */
+  synchronized void endUse(Worker worker) {
+    WorkerState state = workers.get(worker);
+    if (state != null) {
+      state.busy = false;
+      state.lastUsedNanos = clock.nanoTime();
+    }
+  }
+
+  /** Stops tracking a worker that the pool has discarded. */
+  synchronized void forget(Worker worker) {
+    workers.remove(worker);
+  }
+
+  /**
+   * Measures the worker processes unless that happened recently, and destroys idle workers while
+   * they use more memory than the budget allows.
+   *
+   * <p>Destroying a worker waits for its process to exit, so it happens without holding the lock
+   * of the manager, and other threads may meanwhile borrow and return workers.
+   */
+  void update() {
+    List<Worker> victims = selectVictims();
+    if (victims.isEmpty()) {
+      return;
+    }
+    for (Worker victim : victims) {
+      try {
+        victim.destroy();
+      } catch (IOException e) {
+        // The pool discards the worker anyway.
+      }
+    }
+    synchronized (this) {
+      beingDestroyed.removeAll(victims);
+    }
+  }
+
+  /**
+   * Measures the worker processes unless that happened recently, and returns the idle workers
+   * that have to be destroyed to get within the budget. They are no longer tracked, and {@link
+   * #beginUse} refuses them from now on.
+   */
+  private synchronized List<Worker> selectVictims() {
+    if (budgetBytes == 0) {
+      return ImmutableList.of();
+    }
+    long now = clock.nanoTime();
+    if (measuredOnce && now - lastMeasurementNanos < MEASUREMENT_INTERVAL_NANOS) {
+      return ImmutableList.of();
+    }
+    measuredOnce = true;
+    lastMeasurementNanos = now;
+
+    long totalBytes = 0;
+    List<Map.Entry<Worker, WorkerState>> idle = new ArrayList<>();
+    for (Iterator<Map.Entry<Worker, WorkerState>> it = workers.entrySet().iterator();
+        it.hasNext(); ) {
+      Map.Entry<Worker, WorkerState> entry = it.next();
+      WorkerState state = entry.getValue();
+      if (!entry.getKey().isAlive()) {
+        it.remove();
+        continue;
+      }
+      state.rssBytes = Math.max(0, rssReader.getRssBytes(entry.getKey()));
+      totalBytes += state.rssBytes;
+      if (!state.busy) {
+        idle.add(entry);
+      }
+    }
+
+    idle.sort(Comparator.comparingLong(entry -> entry.getValue().lastUsedNanos));
+    List<Worker> victims = new ArrayList<>();
+    for (Map.Entry<Worker, WorkerState> entry : idle) {
+      if (totalBytes <= budgetBytes) {
+        break;
+      }
+      totalBytes -= entry.getValue().rssBytes;
+      victims.add(entry.getKey());
+    }
+    for (Worker victim : victims) {
+      workers.remove(victim);
+      beingDestroyed.add(victim);
+    }
+
+    resourceManager.setReservedMemoryMb(totalBytes / (1024.0 * 1024.0));
+    return victims;
+  }
+
+  /** Stops tracking all workers, which have been destroyed by the pool. */
+  synchronized void clear() {
+    workers.clear();
+    resourceManager.setReservedMemoryMb(0);
+  }
+
+  @VisibleForTesting
+  synchronized boolean isTracked(Worker worker) {
+    return workers.containsKey(worker) || beingDestroyed.contains(worker);
+  }
+
+  @VisibleForTesting
+  static long parseRssBytes(String procStatus) {
+    Matcher matcher = VM_RSS_PATTERN.matcher(procStatus);
+    return matcher.find() ? Long.parseLong(matcher.group(1)) * 1024 : -1;
+  }
+}
@@ -16,10 +16,12 @@ package com.google.devtools.build.lib.worker;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.eventbus.Subscribe;
+import com.google.devtools.build.lib.actions.ResourceManager;
 import com.google.devtools.build.lib.buildtool.BuildRequest;
 import com.google.devtools.build.lib.buildtool.buildevent.BuildCompleteEvent;
 import com.google.devtools.build.lib.buildtool.buildevent.BuildInterruptedEvent;
 import com.google.devtools.build.lib.buildtool.buildevent.BuildStartingEvent;
+import com.google.devtools.build.lib.clock.BlazeClock;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.exec.ExecutorBuilder;
 import com.google.devtools.build.lib.runtime.BlazeModule;
@@ -38,6 +40,8 @@ public class WorkerModule extends BlazeModule {
 
   private WorkerFactory workerFactory;
   private WorkerPool workerPool;
+  private WorkerMultiplexerManager workerMultiplexers;
+  private WorkerMemoryManager workerMemoryManager;
   private WorkerPoolConfig workerPoolConfig;
   private WorkerOptions options;
 
@@ -91,10 +95,16 @@ public class WorkerModule extends BlazeModule {
       }
 
       workerFactory = new WorkerFactory(options, workerDir);
+      workerMemoryManager =
+          new WorkerMemoryManager(
+              WorkerMemoryManager.PROC_RSS_READER,
+              ResourceManager.instance(),
+              BlazeClock.instance());
     }
 
     workerFactory.setReporter(env.getReporter());
     workerFactory.setOptions(options);
+    workerMemoryManager.setBudgetBytes(options.workerMemoryLimitMb * 1024L * 1024L);
 
     WorkerPoolConfig newConfig = createWorkerPoolConfig(options);
 
@@ -105,7 +115,14 @@ public class WorkerModule extends BlazeModule {
 
     if (workerPool == null) {
       workerPoolConfig = newConfig;
-      workerPool = new WorkerPool(workerFactory, workerPoolConfig);
+      workerPool = new WorkerPool(workerFactory, workerPoolConfig, workerMemoryManager);
+    }
+
+    if (!options.workerMultiplex && workerMultiplexers != null) {
+      workerMultiplexers.shutdown();
+      workerMultiplexers = null;
+    } else if (options.workerMultiplex && workerMultiplexers == null) {
+      workerMultiplexers = new WorkerMultiplexerManager(workerFactory);
     }
   }
 
@@ -143,7 +160,8 @@ public class WorkerModule extends BlazeModule {
   @Override
   public void executorInit(CommandEnvironment env, BuildRequest request, ExecutorBuilder builder) {
     Preconditions.checkNotNull(workerPool);
-    builder.addActionContextProvider(new WorkerActionContextProvider(env, workerPool));
+    builder.addActionContextProvider(
+        new WorkerActionContextProvider(env, workerPool, workerMultiplexers));
     builder.addActionContextConsumer(new WorkerActionContextConsumer());
   }
 
@@ -176,6 +194,10 @@ public class WorkerModule extends BlazeModule {
       workerPool.close();
       workerPool = null;
     }
+    if (workerMultiplexers != null) {
+      workerMultiplexers.shutdown();
+      workerMultiplexers = null;
+    }
   }
 
   @Override
@@ -0,0 +1,199 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.worker;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkRequest;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkResponse;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Sends the work requests of concurrently running spawns to a single worker process and dispatches
+ * the responses of the process back to them.
+ *
+ * <p>The worker process must support the multiplex extension of the worker protocol: it may work on
+ * several requests at the same time and must copy the {@code request_id} of each {@link
+ * WorkRequest} into its {@link WorkResponse}. Responses may arrive in any order.
+ *
+ * <p>Once the worker process exits or writes something that is not a valid response, all pending
+ * and future requests fail, and the multiplexer must be replaced.
+ */
+@ThreadSafe
+final class WorkerMultiplexer {
+  private final Worker worker;
+  private final AtomicInteger nextRequestId = new AtomicInteger(1);
+  private final ConcurrentMap<Integer, SettableFuture<WorkResponse>> pendingResponses =
+      new ConcurrentHashMap<>();
+  private final Object writeLock = new Object();
+
+  private volatile IOException failure;
+
+  @GuardedBy("this")
+  private boolean retired;
+
+  @GuardedBy("this")
+  private boolean destroyed;
+
+  /** Takes ownership of the given worker, whose process must already have been created. */
+  WorkerMultiplexer(Worker worker) {
+    this.worker = worker;
+    Thread reader = new Thread(this::readResponses, "worker-multiplexer-" + worker.getWorkerId());
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  Worker getWorker() {
+    return worker;
+  }
+
+  /** Whether requests can still be sent to the worker process. */
+  boolean isAlive() {
+    return failure == null && worker.isAlive();
+  }
+
+  /**
+   * Sends the given request to the worker process and waits for the response to it. Returns null
+   * without sending the request if the multiplexer was retired, in which case the request should be
+   * sent to a new one.
+   *
+   * @throws IOException if the request could not be sent, or if the worker process exited or
+   *     misbehaved before sending a response
+   * @throws InterruptedException if interrupted while waiting for the response, in which case the
+   *     worker process is destroyed
+   */
+  @Nullable
+  WorkResponse exec(WorkRequest request) throws IOException, InterruptedException {
+    int requestId = nextRequestId.getAndIncrement();
+    SettableFuture<WorkResponse> response = SettableFuture.create();
+    synchronized (this) {
+      // Another thread may have retired the multiplexer since it was handed out, and destroyed the
+      // worker process because no requests were pending yet.
+      if (retired) {
+        return null;
+      }
+      pendingResponses.put(requestId, response);
+    }
+    try {
+      // The reader thread sets the failure before it fails the pending responses, so a response
+      // that was registered too late to be failed by it is caught here.
+      throwIfFailed();
+      synchronized (writeLock) {
+        request.toBuilder().setRequestId(requestId).build().writeDelimitedTo(
+            worker.getOutputStream());
+        worker.getOutputStream().flush();
+      }
+      try {
+        return response.get();
+      } catch (ExecutionException e) {
+        Throwables.propagateIfPossible(e.getCause(), IOException.class);
+        throw new IOException(e.getCause());
+      } catch (InterruptedException e) {
+        // The protocol has no way to cancel a single request, and the worker process would keep
+        // writing the outputs of this one after we return. Kill it instead, which also fails the
+        // other pending requests, so the next request starts a new process.
+        destroy();
+        throw e;
+      }
+    } finally {
+      pendingResponses.remove(requestId);
+      maybeDestroyRetired();
+    }
+  }
+
+  /**
+   * Destroys the worker process as soon as no requests are pending anymore. New requests are not
+   * sent after this, see {@link #exec}.
+   */
+  synchronized void retire() {
+    retired = true;
+    maybeDestroyRetired();
+  }
+
+  /** Destroys the worker process right away, failing all pending requests. */
+  synchronized void destroy() {
+    if (!destroyed) {
+      destroyed = true;
+      try {
+        worker.destroy();
+      } catch (IOException e) {
+        // Nothing we can do here.
+      }
+    }
+  }
+
+  private synchronized void maybeDestroyRetired() {
+    if (retired && pendingResponses.isEmpty()) {
+      destroy();
+    }
+  }
+
+  private void throwIfFailed() throws IOException {
+    IOException e = failure;
+    if (e != null) {
+      throw new IOException(e.getMessage(), e);
+    }
+  }
+
+  private void readResponses() {
+    RecordingInputStream recordingStream = new RecordingInputStream(worker.getInputStream());
+    try {
+      while (true) {
+        recordingStream.startRecording(4096);
+        // The response is null when the worker has closed stdout and the stream is at EOF.
+        WorkResponse response = WorkResponse.parseDelimitedFrom(recordingStream);
+        if (response == null) {
+          fail(new IOException("Worker process did not return a WorkResponse"));
+          return;
+        }
+        int requestId = response.getRequestId();
+        if (requestId <= 0 || requestId >= nextRequestId.get()) {
+          fail(
+              new IOException(
+                  "Worker process returned a WorkResponse for unknown request id " + requestId
+                      + ", it probably does not support multiplexing"));
+          return;
+        }
+        SettableFuture<WorkResponse> future = pendingResponses.get(requestId);
+        if (future != null) {
+          future.set(response);
+        }
+      }
+    } catch (IOException e) {
+      // If protobuf couldn't parse the response, include whatever the failing worker wrote to
+      // stdout - it's probably a stack trace or some kind of error message.
+      recordingStream.readRemaining();
+      fail(
+          new IOException(
+              "Worker process returned an unparseable WorkResponse:\n"
+                  + recordingStream.getRecordedDataAsString(),
+              e));
+    }
+  }
+
+  private void fail(IOException e) {
+    failure = e;
+    for (SettableFuture<WorkResponse> future : pendingResponses.values()) {
+      future.setException(e);
+    }
+  }
+}
@@ -0,0 +1,93 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.worker;
+
+import com.google.common.base.Throwables;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Keeps one {@link WorkerMultiplexer} per {@link WorkerKey}, so that all spawns of a kind of
+ * multiplex worker share a single worker process, regardless of how many of them run in parallel.
+ */
+@ThreadSafe
+final class WorkerMultiplexerManager {
+  private final WorkerFactory factory;
+
+  @GuardedBy("this")
+  private final Map<WorkerKey, WorkerMultiplexer> multiplexers = new HashMap<>();
+
+  WorkerMultiplexerManager(WorkerFactory factory) {
+    this.factory = factory;
+  }
+
+  /**
+   * Whether spawns with the given key may share a worker process. Sandboxed workers may not,
+   * because each request needs its own sandbox.
+   */
+  boolean canMultiplex(WorkerKey key) {
+    return !factory.isSandboxed(key);
+  }
+
+  /**
+   * Returns the multiplexer for the given key, starting a new worker process if there is none yet
+   * or if the previous one exited or its files have changed on disk.
+   */
+  synchronized WorkerMultiplexer getMultiplexer(WorkerKey key)
+      throws IOException, InterruptedException {
+    WorkerMultiplexer multiplexer = multiplexers.get(key);
+    if (multiplexer != null
+        && (!multiplexer.isAlive()
+            || !factory.validateObject(key, factory.wrap(multiplexer.getWorker())))) {
+      // Let the requests that are already running in the old process finish.
+      multiplexer.retire();
+      multiplexer = null;
+    }
+    if (multiplexer == null) {
+      Worker worker;
+      try {
+        worker = factory.create(key);
+      } catch (Exception e) {
+        Throwables.propagateIfPossible(e, IOException.class, InterruptedException.class);
+        throw new IOException(e);
+      }
+      multiplexer = new WorkerMultiplexer(worker);
+      multiplexers.put(key, multiplexer);
+    }
+    return multiplexer;
+  }
+
+  /**
+   * Removes a multiplexer whose worker process misbehaved, so that the next request starts a new
+   * one.
+   */
+  synchronized void invalidate(WorkerKey key, WorkerMultiplexer multiplexer) {
+    if (multiplexers.get(key) == multiplexer) {
+      multiplexers.remove(key);
+    }
+    multiplexer.retire();
+  }
+
+  /** Destroys all worker processes. */
+  synchronized void shutdown() {
+    for (WorkerMultiplexer multiplexer : multiplexers.values()) {
+      multiplexer.destroy();
+    }
+    multiplexers.clear();
+  }
+}
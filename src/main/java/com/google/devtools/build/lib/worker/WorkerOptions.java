@@ -100,4 +100,31 @@ public class WorkerOptions extends OptionsBase {
     help = "If enabled, workers will be executed in a sandboxed environment."
   )
   public boolean workerSandboxing;
+
+  @Option(
+    name = "experimental_worker_multiplex",
+    defaultValue = "true",
+    category = "strategy",
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.UNKNOWN},
+    help =
+        "If enabled, actions whose execution info contains 'supports-multiplex-workers=1' send "
+            + "all their work requests to a single worker process per kind of worker, which "
+            + "handles them concurrently, instead of each occupying a worker process of its own."
+  )
+  public boolean workerMultiplex;
+
+  @Option(
+    name = "experimental_worker_memory_limit_mb",
+    defaultValue = "0",
+    category = "strategy",
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.UNKNOWN},
+    help =
+        "If set to a positive value, the resident memory of all worker processes is measured "
+            + "and idle workers that have not been used for the longest time are shut down while "
+            + "the workers together use more than this many megabytes. The measured memory is "
+            + "also taken into account when scheduling local actions. Only supported on Linux."
+  )
+  public int workerMemoryLimitMb;
 }
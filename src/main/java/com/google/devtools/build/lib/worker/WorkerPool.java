@@ -14,39 +14,75 @@
 package com.google.devtools.build.lib.worker;
 
 import com.google.common.base.Throwables;
-
-import org.apache.commons.pool2.impl.GenericKeyedObjectPool;
-import org.apache.commons.pool2.impl.GenericKeyedObjectPoolConfig;
-
 import java.io.IOException;
-
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
+import org.apache.commons.pool2.impl.GenericKeyedObjectPool;
+import org.apache.commons.pool2.impl.GenericKeyedObjectPoolConfig;
 
 /**
  * A worker pool that spawns multiple workers and delegates work to them.
  *
  * <p>This is useful when the worker cannot handle multiple parallel requests on its own and we need
  * to pre-fork a couple of them instead.
+ *
+ * <p>If a {@link WorkerMemoryManager} is given, it may destroy idle workers to keep the memory
+ * used by all workers within its budget.
  */
 @ThreadSafe
 final class WorkerPool extends GenericKeyedObjectPool<WorkerKey, Worker> {
+  @Nullable private final WorkerMemoryManager memoryManager;
 
   public WorkerPool(WorkerFactory factory, GenericKeyedObjectPoolConfig config) {
+    this(factory, config, null);
+  }
+
+  public WorkerPool(
+      WorkerFactory factory,
+      GenericKeyedObjectPoolConfig config,
+      @Nullable WorkerMemoryManager memoryManager) {
     super(factory, config);
+    this.memoryManager = memoryManager;
   }
 
   @Override
   public Worker borrowObject(WorkerKey key) throws IOException, InterruptedException {
-    try {
-      return super.borrowObject(key);
-    } catch (Throwable t) {
-      Throwables.propagateIfPossible(t, IOException.class, InterruptedException.class);
-      throw new RuntimeException("unexpected", t);
+    while (true) {
+      Worker worker;
+      try {
+        worker = super.borrowObject(key);
+      } catch (Throwable t) {
+        Throwables.propagateIfPossible(t, IOException.class, InterruptedException.class);
+        throw new RuntimeException("unexpected", t);
+      }
+      if (memoryManager == null) {
+        return worker;
+      }
+      if (memoryManager.beginUse(worker)) {
+        memoryManager.update();
+        return worker;
+      }
+      // The memory manager destroyed this worker while it was idle.
+      invalidateObject(key, worker);
+    }
+  }
+
+  @Override
+  public void returnObject(WorkerKey key, Worker obj) {
+    if (memoryManager != null) {
+      memoryManager.endUse(obj);
+    }
+    super.returnObject(key, obj);
+    if (memoryManager != null) {
+      memoryManager.update();
     }
   }
 
   @Override
   public void invalidateObject(WorkerKey key, Worker obj) throws IOException, InterruptedException {
+    if (memoryManager != null) {
+      memoryManager.forget(obj);
+    }
     try {
       super.invalidateObject(key, obj);
     } catch (Throwable t) {
@@ -54,4 +90,12 @@ final class WorkerPool extends GenericKeyedObjectPool<WorkerKey, Worker> {
       throw new RuntimeException("unexpected", t);
     }
   }
+
+  @Override
+  public void close() {
+    super.close();
+    if (memoryManager != null) {
+      memoryManager.clear();
+    }
+  }
 }
@@ -54,6 +54,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.regex.Pattern;
+import javax.annotation.Nullable;
 
 /**
  * A spawn runner that launches Spawns the first time they are used in a persistent mode and then
@@ -73,6 +74,7 @@ final class WorkerSpawnRunner implements SpawnRunner {
 
   private final Path execRoot;
   private final WorkerPool workers;
+  @Nullable private final WorkerMultiplexerManager multiplexers;
   private final Multimap<String, String> extraFlags;
   private final EventHandler reporter;
   private final SpawnRunner fallbackRunner;
@@ -80,11 +82,13 @@ final class WorkerSpawnRunner implements SpawnRunner {
   public WorkerSpawnRunner(
       Path execRoot,
       WorkerPool workers,
+      @Nullable WorkerMultiplexerManager multiplexers,
       Multimap<String, String> extraFlags,
       EventHandler reporter,
       SpawnRunner fallbackRunner) {
     this.execRoot = execRoot;
     this.workers = Preconditions.checkNotNull(workers);
+    this.multiplexers = multiplexers;
     this.extraFlags = extraFlags;
     this.reporter = reporter;
     this.fallbackRunner = fallbackRunner;
@@ -153,7 +157,10 @@ final class WorkerSpawnRunner implements SpawnRunner {
     WorkRequest workRequest = createWorkRequest(spawn, policy, flagFiles, inputFileCache);
 
     long startTime = System.currentTimeMillis();
-    WorkResponse response = execInWorker(key, workRequest, policy);
+    WorkResponse response =
+        supportsMultiplexing(spawn) && multiplexers != null && multiplexers.canMultiplex(key)
+            ? execInMultiplexer(key, workRequest, policy)
+            : execInWorker(key, workRequest, policy);
     Duration wallTime = Duration.ofMillis(System.currentTimeMillis() - startTime);
 
     FileOutErr outErr = policy.getFileOutErr();
@@ -166,6 +173,11 @@ final class WorkerSpawnRunner implements SpawnRunner {
         .build();
   }
 
+  private static boolean supportsMultiplexing(Spawn spawn) {
+    return "1".equals(
+        spawn.getExecutionInfo().get(ExecutionRequirements.SUPPORTS_MULTIPLEX_WORKERS));
+  }
+
   /**
    * Splits the command-line arguments of the {@code Spawn} into the part that is used to start the
    * persistent worker ({@code workerArgs}) and the part that goes into the {@code WorkRequest}
@@ -355,4 +367,43 @@ final class WorkerSpawnRunner implements SpawnRunner {
 
     return response;
   }
+
+  private WorkResponse execInMultiplexer(
+      WorkerKey key, WorkRequest request, SpawnExecutionPolicy policy)
+      throws InterruptedException, ExecException {
+    while (true) {
+      WorkerMultiplexer multiplexer;
+      try {
+        multiplexer = multiplexers.getMultiplexer(key);
+      } catch (IOException e) {
+        throw new UserExecException(
+            ErrorMessage.builder()
+                .message("IOException while starting a multiplex worker:")
+                .exception(e)
+                .build()
+                .toString());
+      }
+
+      WorkResponse response;
+      try {
+        response = multiplexer.exec(request);
+      } catch (IOException e) {
+        multiplexers.invalidate(key, multiplexer);
+        throw new UserExecException(
+            ErrorMessage.builder()
+                .message("Multiplex worker process failed while handling a WorkRequest:")
+                .logFile(multiplexer.getWorker().getLogFile())
+                .logSizeLimit(4096)
+                .exception(e)
+                .build()
+                .toString());
+      }
+      if (response != null) {
+        policy.lockOutputFiles();
+        return response;
+      }
+      // Another spawn retired the multiplexer before the request was sent, so the next call to
+      // getMultiplexer returns a new one.
+    }
+  }
 }
@@ -0,0 +1,173 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import java.util.Arrays;
+import java.util.BitSet;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * An {@link InMemoryGraphImpl} that keeps edges, but stores the edges of done nodes compactly.
+ *
+ * <p>Every node created in this graph is assigned a dense int id, and the graph keeps a table from
+ * id back to {@link SkyKey}. Once a node is done, its direct deps and reverse deps are stored as
+ * {@code int[]}s of ids instead of lists of keys (see {@link CompactInMemoryNodeEntry}), which
+ * removes the per-group list objects and the slack in reverse dep lists. Nodes that are evaluating
+ * or dirty keep the usual object form, so the evaluator's hot paths are unaffected.
+ *
+ * <p>The ids of deleted nodes are reused, lowest first, so that the table stays as small as the
+ * graph. Deleting a node also deletes its reverse deps and removes it from the reverse deps of its
+ * deps, so once a deletion is over, no node refers to the ids of the deleted nodes. Until then the
+ * nodes being deleted may still decode them, so ids are only reclaimed when the next node is
+ * created. Chunks of the table whose ids are all free are dropped.
+ */
+public class CompactInMemoryGraphImpl extends InMemoryGraphImpl {
+  private static final int CHUNK_BITS = 14;
+  private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+  private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+  /**
+   * Id to key table, grown a chunk at a time so that existing chunks never move. Keys are written
+   * before the id is published through {@link #nodeMap}, and ids only reach other threads through
+   * node entries, so plain reads of a chunk slot see the key.
+   */
+  private volatile SkyKey[][] chunks = new SkyKey[16][];
+
+  /** Number of ids in use in each chunk. */
+  @GuardedBy("this")
+  private int[] usedIdsPerChunk = new int[16];
+
+  /** Ids below this bound have been handed out at least once. */
+  @GuardedBy("this")
+  private int nextId = 0;
+
+  /** Ids below {@link #nextId} that are free to reuse. */
+  @GuardedBy("this")
+  private final BitSet freeIds = new BitSet();
+
+  /** No id below this one is in {@link #freeIds}. */
+  @GuardedBy("this")
+  private int lowestFreeIdBound = 0;
+
+  /** Ids of deleted nodes, which are reclaimed when the next node is created. */
+  @GuardedBy("this")
+  private final BitSet releasedIds = new BitSet();
+
+  public CompactInMemoryGraphImpl() {
+    super(/*keepEdges=*/ true);
+  }
+
+  @Override
+  protected InMemoryNodeEntry createIfAbsent(SkyKey key) {
+    InMemoryNodeEntry oldval = nodeMap.get(key);
+    if (oldval != null) {
+      return oldval;
+    }
+    CompactInMemoryNodeEntry newval = new CompactInMemoryNodeEntry(this, allocateId(key));
+    oldval = nodeMap.putIfAbsent(key, newval);
+    if (oldval != null) {
+      // We lost the race, so the id allocated above is not referenced anywhere.
+      releaseId(newval.id);
+      return oldval;
+    }
+    return newval;
+  }
+
+  @Override
+  public void remove(SkyKey skyKey) {
+    InMemoryNodeEntry entry = nodeMap.remove(skyKey);
+    if (entry instanceof CompactInMemoryNodeEntry) {
+      releaseId(((CompactInMemoryNodeEntry) entry).id);
+    }
+  }
+
+  private synchronized int allocateId(SkyKey key) {
+    if (!releasedIds.isEmpty()) {
+      reclaimReleasedIds();
+    }
+    int id = freeIds.nextSetBit(lowestFreeIdBound);
+    if (id >= 0) {
+      freeIds.clear(id);
+      lowestFreeIdBound = id + 1;
+    } else {
+      id = nextId++;
+      Preconditions.checkState(id >= 0, "Too many nodes in graph: %s", key);
+    }
+    int chunkIndex = id >>> CHUNK_BITS;
+    getOrCreateChunk(chunkIndex)[id & CHUNK_MASK] = key;
+    usedIdsPerChunk[chunkIndex]++;
+    return id;
+  }
+
+  private synchronized void releaseId(int id) {
+    releasedIds.set(id);
+  }
+
+  @GuardedBy("this")
+  private void reclaimReleasedIds() {
+    SkyKey[][] current = chunks;
+    for (int id = releasedIds.nextSetBit(0); id >= 0; id = releasedIds.nextSetBit(id + 1)) {
+      int chunkIndex = id >>> CHUNK_BITS;
+      current[chunkIndex][id & CHUNK_MASK] = null;
+      if (--usedIdsPerChunk[chunkIndex] == 0) {
+        current[chunkIndex] = null;
+      }
+      freeIds.set(id);
+      lowestFreeIdBound = Math.min(lowestFreeIdBound, id);
+    }
+    releasedIds.clear();
+  }
+
+  @GuardedBy("this")
+  private SkyKey[] getOrCreateChunk(int chunkIndex) {
+    SkyKey[][] current = chunks;
+    if (chunkIndex >= current.length) {
+      int newLength = Math.max(current.length * 2, chunkIndex + 1);
+      current = Arrays.copyOf(current, newLength);
+      usedIdsPerChunk = Arrays.copyOf(usedIdsPerChunk, newLength);
+    }
+    if (current[chunkIndex] == null) {
+      current[chunkIndex] = new SkyKey[CHUNK_SIZE];
+    }
+    chunks = current;
+    return current[chunkIndex];
+  }
+
+  /**
+   * Returns the id of {@code key}, or -1 if the key has no node in this graph, in which case edges
+   * referring to it cannot be stored compactly.
+   */
+  int getId(SkyKey key) {
+    InMemoryNodeEntry entry = nodeMap.get(key);
+    return entry instanceof CompactInMemoryNodeEntry ? ((CompactInMemoryNodeEntry) entry).id : -1;
+  }
+
+  SkyKey getKey(int id) {
+    return Preconditions.checkNotNull(chunks[id >>> CHUNK_BITS][id & CHUNK_MASK], id);
+  }
+
+  /** Returns the number of chunks of the id table that are allocated. */
+  @VisibleForTesting
+  synchronized int getAllocatedChunkCount() {
+    int count = 0;
+    for (SkyKey[] chunk : chunks) {
+      if (chunk != null) {
+        count++;
+      }
+    }
+    return count;
+  }
+}
@@ -0,0 +1,162 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import javax.annotation.Nullable;
+
+/**
+ * NodeEntry for a {@link CompactInMemoryGraphImpl} that stores its edges as ids once it is done.
+ *
+ * <p>When the node is done, {@link #directDeps} holds an {@code int[]} in which a dep that is
+ * alone in its group is stored as its id, and a group of {@code n > 1} deps is stored as {@code
+ * -n} followed by the ids of its members. {@link #reverseDeps} holds an {@code int[]} of ids if
+ * there is more than one reverse dep and no pending reverse dep operations. Empty and singleton
+ * edge sets are left in their usual form, which is already as small as an array.
+ *
+ * <p>Reading the reverse deps of a done node decodes them into a new set and leaves the ids in
+ * place. They are only expanded back to a list when {@link ReverseDepsUtility} changes them, and
+ * compacted again the next time the node is done. Direct deps are only read as a whole, so they
+ * are decoded on each access and never expanded in place.
+ */
+class CompactInMemoryNodeEntry extends InMemoryNodeEntry {
+  private final CompactInMemoryGraphImpl graph;
+  final int id;
+
+  CompactInMemoryNodeEntry(CompactInMemoryGraphImpl graph, int id) {
+    this.graph = graph;
+    this.id = id;
+  }
+
+  @Override
+  protected void postProcessAfterDone() {
+    if (directDeps instanceof Object[]) {
+      int[] encoded = encodeDirectDeps((Object[]) directDeps);
+      if (encoded != null) {
+        directDeps = encoded;
+      }
+    }
+    if (reverseDeps instanceof List
+        && ((List<?>) reverseDeps).size() > 1
+        && getReverseDepsDataToConsolidateForReverseDepsUtil() == null) {
+      @SuppressWarnings("unchecked")
+      int[] encoded = encodeKeys((List<SkyKey>) reverseDeps);
+      if (encoded != null) {
+        reverseDeps = encoded;
+      }
+    }
+  }
+
+  @Override
+  protected Object getCompressedDirectDeps() {
+    return directDeps instanceof int[] ? decodeDirectDeps((int[]) directDeps) : directDeps;
+  }
+
+  @Override
+  public synchronized Set<SkyKey> getReverseDepsForDoneEntry() {
+    if (!(reverseDeps instanceof int[])) {
+      return super.getReverseDepsForDoneEntry();
+    }
+    Preconditions.checkState(isDone(), "Called on not done %s", this);
+    // Ids are only stored when there are no pending operations, so there is nothing to
+    // consolidate.
+    ImmutableSet.Builder<SkyKey> result = ImmutableSet.builder();
+    for (int reverseDepId : (int[]) reverseDeps) {
+      result.add(graph.getKey(reverseDepId));
+    }
+    return result.build();
+  }
+
+  @Override
+  synchronized Object getReverseDepsRawForReverseDepsUtil() {
+    if (reverseDeps instanceof int[]) {
+      int[] ids = (int[]) reverseDeps;
+      List<SkyKey> expanded = new ArrayList<>(ids.length);
+      for (int reverseDepId : ids) {
+        expanded.add(graph.getKey(reverseDepId));
+      }
+      reverseDeps = expanded;
+    }
+    return reverseDeps;
+  }
+
+  @Nullable
+  private int[] encodeDirectDeps(Object[] compressed) {
+    int size = compressed.length;
+    for (Object item : compressed) {
+      if (item instanceof List) {
+        size += ((List<?>) item).size();
+      }
+    }
+    int[] result = new int[size];
+    int i = 0;
+    for (Object item : compressed) {
+      if (item instanceof List) {
+        @SuppressWarnings("unchecked")
+        List<SkyKey> group = (List<SkyKey>) item;
+        result[i++] = -group.size();
+        for (SkyKey dep : group) {
+          int depId = graph.getId(dep);
+          if (depId < 0) {
+            return null;
+          }
+          result[i++] = depId;
+        }
+      } else {
+        int depId = graph.getId((SkyKey) item);
+        if (depId < 0) {
+          return null;
+        }
+        result[i++] = depId;
+      }
+    }
+    return result;
+  }
+
+  private Object[] decodeDirectDeps(int[] ids) {
+    List<Object> result = new ArrayList<>();
+    int i = 0;
+    while (i < ids.length) {
+      if (ids[i] >= 0) {
+        result.add(graph.getKey(ids[i++]));
+      } else {
+        int groupSize = -ids[i++];
+        ImmutableList.Builder<SkyKey> group = ImmutableList.builder();
+        for (int j = 0; j < groupSize; j++) {
+          group.add(graph.getKey(ids[i++]));
+        }
+        result.add(group.build());
+      }
+    }
+    return result.toArray();
+  }
+
+  @Nullable
+  private int[] encodeKeys(List<SkyKey> keys) {
+    int[] result = new int[keys.size()];
+    for (int i = 0; i < result.length; i++) {
+      int keyId = graph.getId(keys.get(i));
+      if (keyId < 0) {
+        return null;
+      }
+      result[i] = keyId;
+    }
+    return result;
+  }
+}
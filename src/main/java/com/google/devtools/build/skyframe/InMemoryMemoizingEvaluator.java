@@ -92,12 +92,26 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
       @Nullable EvaluationProgressReceiver progressReceiver,
       EmittedEventState emittedEventState,
       boolean keepEdges) {
+    this(
+        skyFunctions,
+        differencer,
+        progressReceiver,
+        emittedEventState,
+        new InMemoryGraphImpl(keepEdges));
+  }
+
+  public InMemoryMemoizingEvaluator(
+      Map<SkyFunctionName, ? extends SkyFunction> skyFunctions,
+      Differencer differencer,
+      @Nullable EvaluationProgressReceiver progressReceiver,
+      EmittedEventState emittedEventState,
+      InMemoryGraphImpl graph) {
     this.skyFunctions = ImmutableMap.copyOf(skyFunctions);
     this.differencer = Preconditions.checkNotNull(differencer);
     this.progressReceiver = new DirtyTrackingProgressReceiver(progressReceiver);
-    this.graph = new InMemoryGraphImpl(keepEdges);
+    this.graph = graph;
     this.emittedEventState = emittedEventState;
-    this.keepEdges = keepEdges;
+    this.keepEdges = graph.keepsEdges();
   }
 
   private void invalidate(Iterable<SkyKey> diff) {
@@ -399,4 +413,26 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
               skyFunctions, differencer, progressReceiver, emittedEventState, keepEdges);
         }
       };
+
+  /**
+   * Supplies evaluators whose graph stores the edges of done nodes compactly, trading some CPU on
+   * incremental invalidation for memory. See {@link CompactInMemoryGraphImpl}.
+   */
+  public static final EvaluatorSupplier COMPACT_EDGES_SUPPLIER =
+      new EvaluatorSupplier() {
+        @Override
+        public MemoizingEvaluator create(
+            ImmutableMap<SkyFunctionName, ? extends SkyFunction> skyFunctions,
+            Differencer differencer,
+            @Nullable EvaluationProgressReceiver progressReceiver,
+            EmittedEventState emittedEventState,
+            boolean keepEdges) {
+          return new InMemoryMemoizingEvaluator(
+              skyFunctions,
+              differencer,
+              progressReceiver,
+              emittedEventState,
+              keepEdges ? new CompactInMemoryGraphImpl() : new InMemoryGraphImpl(false));
+        }
+      };
 }
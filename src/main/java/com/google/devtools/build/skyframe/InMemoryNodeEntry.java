@@ -230,7 +230,15 @@ public class InMemoryNodeEntry implements NodeEntry {
   public synchronized GroupedList<SkyKey> getGroupedDirectDeps() {
     assertKeepDeps();
     Preconditions.checkState(isDone(), "no deps until done. NodeEntry: %s", this);
-    return GroupedList.create(directDeps);
+    return GroupedList.create(getCompressedDirectDeps());
+  }
+
+  /**
+   * Returns the direct deps of a done node in the form produced by {@link GroupedList#compress}.
+   * Subclasses that store {@link #directDeps} in a different form once done must override this.
+   */
+  protected Object getCompressedDirectDeps() {
+    return directDeps;
   }
 
   @Override
@@ -452,7 +460,8 @@ public class InMemoryNodeEntry implements NodeEntry {
     assertKeepDeps();
     if (isDone()) {
       dirtyBuildingState =
-          DirtyBuildingState.create(isChanged, GroupedList.<SkyKey>create(directDeps), value);
+          DirtyBuildingState.create(
+              isChanged, GroupedList.<SkyKey>create(getCompressedDirectDeps()), value);
       value = null;
       directDeps = null;
       return new MarkedDirtyResult(ReverseDepsUtility.getReverseDeps(this));
@@ -608,7 +617,7 @@ public class InMemoryNodeEntry implements NodeEntry {
         .add("value", value)
         .add("lastChangedVersion", lastChangedVersion)
         .add("lastEvaluatedVersion", lastEvaluatedVersion)
-        .add("directDeps", isDone() ? GroupedList.create(directDeps) : directDeps)
+        .add("directDeps", isDone() ? GroupedList.create(getCompressedDirectDeps()) : directDeps)
         .add("signaledDeps", signaledDeps)
         .add("reverseDeps", ReverseDepsUtility.toString(this))
         .add("dirtyBuildingState", dirtyBuildingState)
@@ -622,7 +631,7 @@ public class InMemoryNodeEntry implements NodeEntry {
     newEntry.lastChangedVersion = this.lastChangedVersion;
     newEntry.lastEvaluatedVersion = this.lastEvaluatedVersion;
     ReverseDepsUtility.addReverseDeps(newEntry, ReverseDepsUtility.getReverseDeps(this));
-    newEntry.directDeps = directDeps;
+    newEntry.directDeps = getCompressedDirectDeps();
     newEntry.dirtyBuildingState = null;
     return newEntry;
   }
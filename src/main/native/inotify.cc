@@ -0,0 +1,604 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+// JNI code of LinuxInotifyDiffAwareness: watches a directory tree with
+// inotify, one watch per directory, and collects the paths that changed.
+//
+// Directories are registered here rather than through java.nio's
+// WatchService, which hands every registration over to its own thread.
+// Events are read on a Java thread calling run(), so that the kernel queue
+// is drained while Blaze is idle, and by poll() itself, so that it reports
+// every change made before it was called. If the queue overflows anyway, the
+// tree is rescanned by comparing each directory with its entries as of the
+// last poll and by the ctime of each entry, instead of giving up on the watch.
+
+#include <dirent.h>
+#include <errno.h>
+#include <fcntl.h>
+#include <jni.h>
+#include <poll.h>
+#include <pthread.h>
+#include <stdint.h>
+#include <string.h>
+#include <sys/inotify.h>
+#include <sys/stat.h>
+#include <time.h>
+#include <unistd.h>
+
+#include <algorithm>
+#include <iterator>
+#include <map>
+#include <string>
+#include <unordered_map>
+#include <unordered_set>
+#include <vector>
+
+#include "unix_jni.h"
+
+namespace {
+
+// The events watched for in every directory. IN_ATTRIB is included because
+// changing the executable bit of a file changes its FileStateValue.
+const uint32_t kWatchMask = IN_ATTRIB | IN_CREATE | IN_DELETE | IN_MODIFY |
+                            IN_MOVED_FROM | IN_MOVED_TO | IN_ONLYDIR |
+                            IN_DONT_FOLLOW | IN_EXCL_UNLINK;
+
+// A rescan reports every entry whose ctime is at most this long before the
+// last poll, to allow for coarse file system timestamps.
+const int64_t kRescanMarginNanos = 1000000000LL;
+
+// A watched directory.
+struct WatchedDirectory {
+  int wd;
+  // The names of the entries of the directory, sorted and each followed by a
+  // '\0'. Used to find the entries that were removed while events were lost.
+  std::string entries;
+};
+
+// The state shared between the Java thread in run(), which handles events,
+// and the Java threads calling poll() and the other methods.
+struct JNIInotifyDiffAwareness {
+  int inotify_fd;
+  // doClose() writes to stop_pipe[1] to stop the thread in run().
+  int stop_pipe[2];
+  std::string root;
+  // Protects everything below.
+  pthread_mutex_t mutex;
+  // The events are read into this buffer.
+  std::vector<char> buffer;
+  std::unordered_map<int, std::string> wd_to_path;
+  // Ordered, so that the subdirectories of a directory form a contiguous
+  // range.
+  std::map<std::string, WatchedDirectory> directories;
+  // Directories whose entries changed since they were last read.
+  std::unordered_set<std::string> stale_directories;
+  // Paths that have been changed since the last poll.
+  std::unordered_set<std::string> paths;
+  // The time of the last poll, in nanoseconds since the epoch.
+  int64_t last_poll_nanos;
+  // If true, events are discarded as if they had been lost in an overflow.
+  bool dropping_events;
+  // If not empty, changes can no longer be reported and poll() fails.
+  std::string error;
+
+  JNIInotifyDiffAwareness()
+      : inotify_fd(-1),
+        buffer(64 * 1024),
+        last_poll_nanos(0),
+        dropping_events(false) {
+    stop_pipe[0] = stop_pipe[1] = -1;
+    pthread_mutex_init(&mutex, nullptr);
+  }
+
+  ~JNIInotifyDiffAwareness() {
+    if (inotify_fd >= 0) {
+      close(inotify_fd);
+    }
+    if (stop_pipe[0] >= 0) {
+      close(stop_pipe[0]);
+      close(stop_pipe[1]);
+    }
+    pthread_mutex_destroy(&mutex);
+  }
+};
+
+int64_t Now() {
+  struct timespec now;
+  clock_gettime(CLOCK_REALTIME, &now);
+  return now.tv_sec * 1000000000LL + now.tv_nsec;
+}
+
+int64_t ChangeTime(const struct stat &statbuf) {
+  return statbuf.st_ctim.tv_sec * 1000000000LL + statbuf.st_ctim.tv_nsec;
+}
+
+std::string Child(const std::string &directory, const char *name) {
+  return directory + "/" + name;
+}
+
+bool StartsWith(const std::string &s, const std::string &prefix) {
+  return s.compare(0, prefix.size(), prefix) == 0;
+}
+
+// Reads the sorted names of the entries of an open directory, and closes it.
+// Returns 0 or an errno value.
+int ReadNames(DIR *dir, std::vector<std::string> *names) {
+  names->clear();
+  errno = 0;
+  struct dirent *entry;
+  while ((entry = readdir(dir)) != nullptr) {
+    if (strcmp(entry->d_name, ".") != 0 && strcmp(entry->d_name, "..") != 0) {
+      names->push_back(entry->d_name);
+    }
+    errno = 0;
+  }
+  int error = errno;
+  closedir(dir);
+  std::sort(names->begin(), names->end());
+  return error;
+}
+
+std::string JoinNames(const std::vector<std::string> &names) {
+  std::string entries;
+  for (const std::string &name : names) {
+    entries.append(name);
+    entries.push_back('\0');
+  }
+  return entries;
+}
+
+std::vector<const char *> SplitNames(const std::string &entries) {
+  std::vector<const char *> names;
+  for (size_t i = 0; i < entries.size(); i += strlen(&entries[i]) + 1) {
+    names.push_back(&entries[i]);
+  }
+  return names;
+}
+
+void SetError(JNIInotifyDiffAwareness *info, int error_number,
+              const std::string &path) {
+  if (!info->error.empty()) {
+    return;
+  }
+  info->error = "Cannot watch " + path + ": " + ErrorMessage(error_number);
+  if (error_number == ENOSPC) {
+    info->error += " (increase fs.inotify.max_user_watches)";
+  }
+}
+
+// Watches a directory and, recursively, its subdirectories, and optionally
+// reports all of them and their entries as changed. Directories are watched
+// before they are read, so that entries created concurrently are either
+// listed or reported by an event. Returns false on failure.
+bool WatchTree(JNIInotifyDiffAwareness *info, const std::string &root,
+               bool report) {
+  std::vector<std::string> pending(1, root);
+  std::vector<std::string> names;
+  while (!pending.empty()) {
+    std::string directory = pending.back();
+    pending.pop_back();
+    int wd = inotify_add_watch(info->inotify_fd, directory.c_str(), kWatchMask);
+    if (wd < 0) {
+      if (errno == ENOENT || errno == ENOTDIR) {
+        // Deleted or replaced concurrently; reported by an event.
+        continue;
+      }
+      SetError(info, errno, directory);
+      return false;
+    }
+    int fd = open(directory.c_str(),
+                  O_RDONLY | O_DIRECTORY | O_NOFOLLOW | O_CLOEXEC);
+    DIR *dir = fd < 0 ? nullptr : fdopendir(fd);
+    if (dir == nullptr) {
+      if (fd >= 0) {
+        close(fd);
+      }
+      if (errno == ENOENT || errno == ENOTDIR || errno == ELOOP) {
+        inotify_rm_watch(info->inotify_fd, wd);
+        continue;
+      }
+      // Unreadable, so watched without entries.
+    }
+    int dir_fd = dir == nullptr ? -1 : dirfd(dir);
+    std::vector<std::string> subdirectories;
+    for (struct dirent *entry;
+         dir != nullptr && (entry = readdir(dir)) != nullptr;) {
+      if (strcmp(entry->d_name, ".") == 0 || strcmp(entry->d_name, "..") == 0) {
+        continue;
+      }
+      names.push_back(entry->d_name);
+      bool is_directory = entry->d_type == DT_DIR;
+      if (entry->d_type == DT_UNKNOWN) {
+        struct stat statbuf;
+        is_directory =
+            fstatat(dir_fd, entry->d_name, &statbuf, AT_SYMLINK_NOFOLLOW) == 0 &&
+            S_ISDIR(statbuf.st_mode);
+      }
+      if (is_directory) {
+        subdirectories.push_back(Child(directory, entry->d_name));
+      }
+    }
+    if (dir != nullptr) {
+      closedir(dir);
+    }
+    std::sort(names.begin(), names.end());
+    if (report) {
+      info->paths.insert(directory);
+      for (const std::string &name : names) {
+        info->paths.insert(Child(directory, name.c_str()));
+      }
+    }
+    auto previous = info->wd_to_path.find(wd);
+    if (previous != info->wd_to_path.end() && previous->second != directory) {
+      // The same directory under a new name, which it was renamed to while we
+      // were not looking.
+      info->directories.erase(previous->second);
+    }
+    info->wd_to_path[wd] = directory;
+    WatchedDirectory &watched = info->directories[directory];
+    watched.wd = wd;
+    watched.entries = JoinNames(names);
+    info->stale_directories.erase(directory);
+    names.clear();
+    pending.insert(pending.end(), subdirectories.begin(), subdirectories.end());
+  }
+  return true;
+}
+
+void Forget(JNIInotifyDiffAwareness *info,
+            std::map<std::string, WatchedDirectory>::iterator it, bool report) {
+  if (report) {
+    info->paths.insert(it->first);
+    for (const char *name : SplitNames(it->second.entries)) {
+      info->paths.insert(Child(it->first, name));
+    }
+  }
+  // Fails harmlessly if the directory was deleted.
+  inotify_rm_watch(info->inotify_fd, it->second.wd);
+  info->wd_to_path.erase(it->second.wd);
+  info->stale_directories.erase(it->first);
+  info->directories.erase(it);
+}
+
+// Stops watching a directory that was removed from the tree, if it was
+// watched, and its subdirectories, and optionally reports all of them and
+// their entries as of the last poll as changed.
+void ForgetTree(JNIInotifyDiffAwareness *info, const std::string &root,
+                bool report) {
+  auto it = info->directories.find(root);
+  if (it == info->directories.end()) {
+    return;
+  }
+  Forget(info, it, report);
+  std::string prefix = root + "/";
+  it = info->directories.lower_bound(prefix);
+  while (it != info->directories.end() && StartsWith(it->first, prefix)) {
+    auto next = std::next(it);
+    Forget(info, it, report);
+    it = next;
+  }
+}
+
+// Recovers from lost events. Every watched directory is compared with its
+// entries as of the last poll: added entries are reported (and watched, if
+// they are directories), as are removed ones, together with everything that
+// was below them. Entries present in both are stat()ed and reported if their
+// ctime is not older than the last poll, which covers files modified in place.
+// Watches are kept, so that later changes are reported by events again.
+void Rescan(JNIInotifyDiffAwareness *info) {
+  int64_t threshold = info->last_poll_nanos - kRescanMarginNanos;
+  std::vector<std::string> directories;
+  for (const auto &entry : info->directories) {
+    directories.push_back(entry.first);
+  }
+  std::vector<std::string> names;
+  for (const std::string &directory : directories) {
+    auto watched = info->directories.find(directory);
+    if (watched == info->directories.end()) {
+      // Removed together with an ancestor.
+      continue;
+    }
+    int fd = open(directory.c_str(),
+                  O_RDONLY | O_DIRECTORY | O_NOFOLLOW | O_CLOEXEC);
+    DIR *dir = fd < 0 ? nullptr : fdopendir(fd);
+    if (dir == nullptr) {
+      if (fd >= 0) {
+        close(fd);
+      }
+      if (directory == info->root) {
+        SetError(info, errno, directory);
+        return;
+      }
+      ForgetTree(info, directory, true);
+      continue;
+    }
+    int dir_fd = dup(dirfd(dir));
+    struct stat statbuf;
+    if (fstat(dir_fd, &statbuf) != 0 || ChangeTime(statbuf) >= threshold) {
+      info->paths.insert(directory);
+    }
+    if (ReadNames(dir, &names) != 0) {
+      close(dir_fd);
+      ForgetTree(info, directory, true);
+      continue;
+    }
+    std::string old_entries = watched->second.entries;
+    std::vector<const char *> old_names = SplitNames(old_entries);
+    auto old_name = old_names.begin();
+    for (const std::string &name : names) {
+      while (old_name != old_names.end() && name.compare(*old_name) > 0) {
+        std::string removed = Child(directory, *old_name++);
+        info->paths.insert(removed);
+        ForgetTree(info, removed, true);
+      }
+      bool existed = old_name != old_names.end() && name.compare(*old_name) == 0;
+      if (existed) {
+        old_name++;
+      }
+      std::string path = Child(directory, name.c_str());
+      if (fstatat(dir_fd, name.c_str(), &statbuf, AT_SYMLINK_NOFOLLOW) != 0) {
+        // Deleted concurrently; reported by an event.
+        info->paths.insert(path);
+        continue;
+      }
+      if (!existed || ChangeTime(statbuf) >= threshold) {
+        info->paths.insert(path);
+      }
+      bool watched_directory = info->directories.count(path) > 0;
+      if (S_ISDIR(statbuf.st_mode) && !watched_directory) {
+        WatchTree(info, path, true);
+      } else if (!S_ISDIR(statbuf.st_mode) && watched_directory) {
+        ForgetTree(info, path, true);
+      }
+    }
+    while (old_name != old_names.end()) {
+      std::string removed = Child(directory, *old_name++);
+      info->paths.insert(removed);
+      ForgetTree(info, removed, true);
+    }
+    close(dir_fd);
+    watched = info->directories.find(directory);
+    if (watched != info->directories.end()) {
+      watched->second.entries = JoinNames(names);
+    }
+  }
+}
+
+void HandleEvent(JNIInotifyDiffAwareness *info,
+                 const struct inotify_event *event) {
+  if (event->mask & IN_Q_OVERFLOW) {
+    Rescan(info);
+    return;
+  }
+  auto it = info->wd_to_path.find(event->wd);
+  if (it == info->wd_to_path.end()) {
+    // A watch we already removed.
+    return;
+  }
+  std::string directory = it->second;
+  if (event->mask & IN_IGNORED) {
+    // The directory was deleted, or its file system unmounted.
+    if (directory == info->root) {
+      info->error = "Root directory " + info->root + " became inaccessible";
+    }
+    auto watched = info->directories.find(directory);
+    if (watched != info->directories.end() && watched->second.wd == event->wd) {
+      info->stale_directories.erase(directory);
+      info->directories.erase(watched);
+    }
+    info->wd_to_path.erase(it);
+    return;
+  }
+  if (event->len == 0) {
+    // An event about the directory itself.
+    info->paths.insert(directory);
+    return;
+  }
+  std::string path = Child(directory, event->name);
+  info->paths.insert(path);
+  if (event->mask & (IN_CREATE | IN_DELETE | IN_MOVED_FROM | IN_MOVED_TO)) {
+    info->stale_directories.insert(directory);
+  }
+  if (event->mask & IN_ISDIR) {
+    if (event->mask & (IN_CREATE | IN_MOVED_TO)) {
+      // Entries may have been added before the directory was watched.
+      WatchTree(info, path, true);
+    } else if (event->mask & IN_MOVED_FROM) {
+      // Nothing below the directory gets an event, and its watches would keep
+      // reporting changes under its old path.
+      ForgetTree(info, path, true);
+    }
+  }
+}
+
+// Reads and handles the events queued on the non-blocking inotify fd until
+// there are none left. Called with the mutex held, so that events that have
+// been read are always handled before the mutex is released. Returns false,
+// after setting the error, if reading failed.
+bool DrainEvents(JNIInotifyDiffAwareness *info) {
+  while (true) {
+    ssize_t length =
+        read(info->inotify_fd, info->buffer.data(), info->buffer.size());
+    if (length < 0) {
+      if (errno == EAGAIN) {
+        return true;
+      }
+      if (errno == EINTR) {
+        continue;
+      }
+      SetError(info, errno, info->root);
+      return false;
+    }
+    for (ssize_t offset = 0; offset < length;) {
+      const struct inotify_event *event =
+          reinterpret_cast<const struct inotify_event *>(&info->buffer[offset]);
+      if (!info->dropping_events) {
+        HandleEvent(info, event);
+      }
+      offset += sizeof(struct inotify_event) + event->len;
+    }
+  }
+}
+
+JNIInotifyDiffAwareness *GetInfo(JNIEnv *env, jobject inotifyDiffAwareness) {
+  jclass clazz = env->GetObjectClass(inotifyDiffAwareness);
+  jfieldID fid = env->GetFieldID(clazz, "nativePointer", "J");
+  jlong field = env->GetLongField(inotifyDiffAwareness, fid);
+  return reinterpret_cast<JNIInotifyDiffAwareness *>(field);
+}
+
+}  // namespace
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_google_devtools_build_lib_skyframe_LinuxInotifyDiffAwareness_create(
+    JNIEnv *env, jobject inotifyDiffAwareness, jstring root) {
+  JNIInotifyDiffAwareness *info = new JNIInotifyDiffAwareness();
+  const char *root_chars = env->GetStringUTFChars(root, nullptr);
+  info->root = root_chars;
+  env->ReleaseStringUTFChars(root, root_chars);
+
+  info->inotify_fd = inotify_init1(IN_NONBLOCK | IN_CLOEXEC);
+  if (info->inotify_fd < 0) {
+    PostException(env, errno, "inotify_init1: " + ErrorMessage(errno));
+    delete info;
+    return;
+  }
+  if (pipe2(info->stop_pipe, O_CLOEXEC) != 0) {
+    PostException(env, errno, "pipe2: " + ErrorMessage(errno));
+    delete info;
+    return;
+  }
+  info->last_poll_nanos = Now();
+  if (WatchTree(info, info->root, false) && info->directories.empty()) {
+    SetError(info, ENOENT, info->root);
+  }
+  if (!info->error.empty()) {
+    PostException(env, EIO, info->error);
+    delete info;
+    return;
+  }
+
+  // Save the info pointer to LinuxInotifyDiffAwareness#nativePointer
+  jclass clazz = env->GetObjectClass(inotifyDiffAwareness);
+  jfieldID fid = env->GetFieldID(clazz, "nativePointer", "J");
+  env->SetLongField(inotifyDiffAwareness, fid, reinterpret_cast<jlong>(info));
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_google_devtools_build_lib_skyframe_LinuxInotifyDiffAwareness_run(
+    JNIEnv *env, jobject inotifyDiffAwareness) {
+  JNIInotifyDiffAwareness *info = GetInfo(env, inotifyDiffAwareness);
+  struct pollfd fds[2];
+  fds[0].fd = info->inotify_fd;
+  fds[0].events = POLLIN;
+  fds[1].fd = info->stop_pipe[0];
+  fds[1].events = POLLIN;
+  while (true) {
+    if (poll(fds, 2, -1) < 0) {
+      if (errno == EINTR) {
+        continue;
+      }
+      pthread_mutex_lock(&info->mutex);
+      SetError(info, errno, info->root);
+      pthread_mutex_unlock(&info->mutex);
+      fds[0].fd = -1;
+      continue;
+    }
+    if (fds[1].revents != 0) {
+      break;
+    }
+    if (fds[0].revents == 0) {
+      continue;
+    }
+    pthread_mutex_lock(&info->mutex);
+    bool ok = DrainEvents(info);
+    pthread_mutex_unlock(&info->mutex);
+    if (!ok) {
+      // Stop reading, but keep waiting for doClose().
+      fds[0].fd = -1;
+    }
+  }
+  delete info;
+}
+
+extern "C" JNIEXPORT jobjectArray JNICALL
+Java_com_google_devtools_build_lib_skyframe_LinuxInotifyDiffAwareness_poll(
+    JNIEnv *env, jobject inotifyDiffAwareness) {
+  JNIInotifyDiffAwareness *info = GetInfo(env, inotifyDiffAwareness);
+  pthread_mutex_lock(&info->mutex);
+  // The thread in run() may not have read the latest events yet.
+  if (info->error.empty()) {
+    DrainEvents(info);
+  }
+  if (!info->error.empty()) {
+    std::string error = info->error;
+    pthread_mutex_unlock(&info->mutex);
+    PostException(env, EIO, error);
+    return nullptr;
+  }
+  // Entries are re-read after the time is taken, so that a rescan reports
+  // every change made after they were read.
+  info->last_poll_nanos = Now();
+  std::vector<std::string> names;
+  for (const std::string &directory : info->stale_directories) {
+    auto watched = info->directories.find(directory);
+    DIR *dir = opendir(directory.c_str());
+    if (watched != info->directories.end() && dir != nullptr &&
+        ReadNames(dir, &names) == 0) {
+      watched->second.entries = JoinNames(names);
+    } else if (dir != nullptr) {
+      closedir(dir);
+    }
+  }
+  info->stale_directories.clear();
+
+  jclass classString = env->FindClass("java/lang/String");
+  jobjectArray result =
+      env->NewObjectArray(info->paths.size(), classString, nullptr);
+  int i = 0;
+  for (auto it = info->paths.begin(); it != info->paths.end(); it++, i++) {
+    jstring path = env->NewStringUTF(it->c_str());
+    env->SetObjectArrayElement(result, i, path);
+    env->DeleteLocalRef(path);
+  }
+  info->paths.clear();
+  pthread_mutex_unlock(&info->mutex);
+  return result;
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_google_devtools_build_lib_skyframe_LinuxInotifyDiffAwareness_setDroppingEventsForTesting(
+    JNIEnv *env, jobject inotifyDiffAwareness, jboolean dropping) {
+  JNIInotifyDiffAwareness *info = GetInfo(env, inotifyDiffAwareness);
+  pthread_mutex_lock(&info->mutex);
+  if (!dropping && info->error.empty()) {
+    // Drop the events that are still queued, too.
+    DrainEvents(info);
+  }
+  info->dropping_events = dropping;
+  if (!dropping) {
+    Rescan(info);
+  }
+  pthread_mutex_unlock(&info->mutex);
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_google_devtools_build_lib_skyframe_LinuxInotifyDiffAwareness_doClose(
+    JNIEnv *env, jobject inotifyDiffAwareness) {
+  JNIInotifyDiffAwareness *info = GetInfo(env, inotifyDiffAwareness);
+  // The thread in run() deletes info once it has stopped.
+  char stop = 0;
+  while (write(info->stop_pipe[1], &stop, 1) < 0 && errno == EINTR) {
+  }
+}
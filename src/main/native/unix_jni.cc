@@ -464,6 +464,68 @@ Java_com_google_devtools_build_lib_unix_NativePosixFiles_errnoLstat(JNIEnv *env,
   return ::StatCommon(env, path, portable_lstat, false);
 }
 
+// The number of ints and longs statBatch stores for each path; keep in sync
+// with NativePosixFiles.
+static const int kStatBatchInts = 9;
+static const int kStatBatchLongs = 2;
+
+/*
+ * Class:     com.google.devtools.build.lib.unix.NativePosixFiles
+ * Method:    statBatch
+ * Signature: ([Ljava/lang/String;Z[I[J)V
+ *
+ * Stats every path and stores, for each of them, errno, st_mode, the atime,
+ * mtime and ctime seconds and nanoseconds and st_dev in ints, and st_size and
+ * st_ino in longs. The other fields are undefined if errno is not 0.
+ */
+extern "C" JNIEXPORT void JNICALL
+Java_com_google_devtools_build_lib_unix_NativePosixFiles_statBatch(
+    JNIEnv *env, jclass clazz, jobjectArray paths, jboolean follow_symlinks,
+    jintArray ints, jlongArray longs) {
+  jsize count = env->GetArrayLength(paths);
+  std::vector<jint> int_fields(count * kStatBatchInts);
+  std::vector<jlong> long_fields(count * kStatBatchLongs);
+  for (jsize i = 0; i < count; i++) {
+    jstring path = static_cast<jstring>(env->GetObjectArrayElement(paths, i));
+    const char *path_chars = GetStringLatin1Chars(env, path);
+    env->DeleteLocalRef(path);
+    if (path_chars == NULL) {
+      return;
+    }
+    portable_stat_struct statbuf;
+    int r;
+    while ((r = follow_symlinks ? portable_stat(path_chars, &statbuf)
+                                : portable_lstat(path_chars, &statbuf)) == -1 &&
+           errno == EINTR) {
+    }
+    // Saved before anything else can overwrite errno.
+    int saved_errno = r == -1 ? errno : 0;
+    if (r == -1 && PostRuntimeException(env, saved_errno, path_chars)) {
+      ::ReleaseStringLatin1Chars(path_chars);
+      return;
+    }
+    ::ReleaseStringLatin1Chars(path_chars);
+    jint *int_field = &int_fields[i * kStatBatchInts];
+    if (r == -1) {
+      int_field[0] = saved_errno;
+      continue;
+    }
+    int_field[0] = 0;
+    int_field[1] = statbuf.st_mode;
+    int_field[2] = StatSeconds(statbuf, STAT_ATIME);
+    int_field[3] = StatNanoSeconds(statbuf, STAT_ATIME);
+    int_field[4] = StatSeconds(statbuf, STAT_MTIME);
+    int_field[5] = StatNanoSeconds(statbuf, STAT_MTIME);
+    int_field[6] = StatSeconds(statbuf, STAT_CTIME);
+    int_field[7] = StatNanoSeconds(statbuf, STAT_CTIME);
+    int_field[8] = static_cast<int>(statbuf.st_dev);
+    long_fields[i * kStatBatchLongs] = static_cast<jlong>(statbuf.st_size);
+    long_fields[i * kStatBatchLongs + 1] = static_cast<jlong>(statbuf.st_ino);
+  }
+  env->SetIntArrayRegion(ints, 0, int_fields.size(), int_fields.data());
+  env->SetLongArrayRegion(longs, 0, long_fields.size(), long_fields.data());
+}
+
 /*
  * Class:     com.google.devtools.build.lib.unix.NativePosixFiles
  * Method:    utime
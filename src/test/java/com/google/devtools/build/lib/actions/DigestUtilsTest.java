@@ -19,6 +19,7 @@ import static org.junit.Assert.fail;
 import com.google.common.base.Strings;
 import com.google.common.cache.CacheStats;
 import com.google.devtools.build.lib.actions.cache.DigestUtils;
+import com.google.devtools.build.lib.actions.cache.PersistentDigestCache;
 import com.google.devtools.build.lib.clock.BlazeClock;
 import com.google.devtools.build.lib.testutil.TestThread;
 import com.google.devtools.build.lib.testutil.TestUtils;
@@ -27,6 +28,7 @@ import com.google.devtools.build.lib.vfs.FileSystem.HashFunction;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import com.google.devtools.build.lib.vfs.util.FileSystems;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.concurrent.CountDownLatch;
@@ -47,6 +49,7 @@ public class DigestUtilsTest {
   @After
   public void tearDown() {
     DigestUtils.configureCache(0);
+    DigestUtils.configurePersistentCache(null);
   }
 
   private static void assertDigestCalculationConcurrency(boolean expectConcurrent,
@@ -264,4 +267,67 @@ public class DigestUtilsTest {
 
     assertThat(digest3).isEqualTo(digest1);
   }
+
+  @Test
+  public void testPersistentCacheSurvivesRestart() throws Exception {
+    final AtomicInteger getDigestCounter = new AtomicInteger(0);
+    FileSystem tracingFileSystem =
+        new InMemoryFileSystem(BlazeClock.instance()) {
+          @Override
+          protected byte[] getFastDigest(Path path, HashFunction hashFunction) throws IOException {
+            return null;
+          }
+
+          @Override
+          protected byte[] getDigest(Path path, HashFunction hashFunction) throws IOException {
+            getDigestCounter.incrementAndGet();
+            return super.getDigest(path, hashFunction);
+          }
+        };
+    int digestLength = FileSystem.getDigestFunction().getHash().bits() / 8;
+    Path cacheFile =
+        FileSystems.getNativeFileSystem()
+            .getPath(TestUtils.makeTempDir().getAbsolutePath())
+            .getChild("digest_cache");
+    final Path file1 = tracingFileSystem.getPath("/1.txt");
+    final Path file2 = tracingFileSystem.getPath("/2.txt");
+    FileSystemUtils.writeContentAsLatin1(file1, "some contents");
+    FileSystemUtils.writeContentAsLatin1(file2, "some other contents");
+
+    DigestUtils.configureCache(10);
+    DigestUtils.configurePersistentCache(new PersistentDigestCache(cacheFile, 10, digestLength));
+    byte[] digest1 = DigestUtils.getDigestOrFail(file1, file1.getFileSize());
+    DigestUtils.getDigestOrFail(file2, file2.getFileSize());
+    assertThat(getDigestCounter.get()).isEqualTo(2);
+    DigestUtils.getPersistentCache().close();
+
+    // A new server starts with an empty in-memory cache but reopens the same file.
+    DigestUtils.configureCache(10);
+    PersistentDigestCache reopened = new PersistentDigestCache(cacheFile, 10, digestLength);
+    DigestUtils.configurePersistentCache(reopened);
+    assertThat(DigestUtils.getDigestOrFail(file1, file1.getFileSize())).isEqualTo(digest1);
+    assertThat(getDigestCounter.get()).isEqualTo(2);
+    assertThat(reopened.getStats().hitCount()).isEqualTo(1);
+    assertThat(reopened.getStats().missCount()).isEqualTo(0);
+
+    // The second lookup is served from memory.
+    DigestUtils.getDigestOrFail(file1, file1.getFileSize());
+    assertThat(reopened.getStats().hitCount()).isEqualTo(1);
+
+    // A file that changed is digested again.
+    FileSystemUtils.writeContentAsLatin1(file2, "changed contents");
+    DigestUtils.configureCache(10);
+    byte[] digest2 = DigestUtils.getDigestOrFail(file2, file2.getFileSize());
+    assertThat(getDigestCounter.get()).isEqualTo(3);
+    assertThat(reopened.getStats().missCount()).isEqualTo(1);
+    assertThat(digest2).isEqualTo(file2.getDigest());
+
+    // A cache created for another digest length is discarded.
+    PersistentDigestCache otherFunction =
+        new PersistentDigestCache(cacheFile, 10, digestLength == 32 ? 16 : 32);
+    DigestUtils.configureCache(0);
+    DigestUtils.configurePersistentCache(otherFunction);
+    DigestUtils.getDigestOrFail(file1, file1.getFileSize());
+    assertThat(otherFunction.getStats().missCount()).isEqualTo(1);
+  }
 }
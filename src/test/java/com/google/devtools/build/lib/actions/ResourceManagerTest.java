@@ -130,6 +130,40 @@ public class ResourceManagerTest {
     thread1.joinAndAssertState(10000);
   }
 
+  @Test
+  public void testThatReservedRamIsNotAvailable() throws Exception {
+    assertThat(rm.inUse()).isFalse();
+
+    // Given RAM is partially reserved and partially acquired:
+    rm.setReservedMemoryMb(600);
+    acquire(300, 0, 0, 0);
+
+    // When a request for RAM is made that would exceed the unreserved RAM,
+    // Then the request fails:
+    TestThread thread1 =
+        new TestThread() {
+          @Override
+          public void runTest() throws Exception {
+            assertThat(acquireNonblocking(300, 0, 0, 0)).isNull();
+          }
+        };
+    thread1.start();
+    thread1.joinAndAssertState(10000);
+
+    // When the reservation is lifted,
+    // Then the request succeeds:
+    rm.setReservedMemoryMb(0);
+    TestThread thread2 =
+        new TestThread() {
+          @Override
+          public void runTest() throws Exception {
+            assertThat(acquireNonblocking(300, 0, 0, 0)).isNotNull();
+          }
+        };
+    thread2.start();
+    thread2.joinAndAssertState(10000);
+  }
+
   @Test
   public void testThatCpuAllocationIsNoncommutative() throws Exception {
     assertThat(rm.inUse()).isFalse();
@@ -0,0 +1,204 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions.cache;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.skyframe.FileArtifactValue;
+import com.google.devtools.build.lib.testutil.ManualClock;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.util.FileSystems;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Test for the MappedActionCache class. */
+@RunWith(JUnit4.class)
+public class MappedActionCacheTest {
+  // Small enough to exercise segment rollover and compaction.
+  private static final int SEGMENT_SIZE = 4096;
+
+  private final ManualClock clock = new ManualClock();
+  private Path dataRoot;
+  private MappedActionCache cache;
+
+  @Before
+  public final void createCache() throws Exception {
+    dataRoot =
+        FileSystems.getNativeFileSystem().getPath(TestUtils.makeTempDir().getAbsolutePath());
+    cache = newCache();
+  }
+
+  @After
+  public final void deleteCache() throws Exception {
+    FileSystemUtils.deleteTree(dataRoot);
+  }
+
+  private MappedActionCache newCache() throws Exception {
+    return new MappedActionCache(dataRoot, clock, SEGMENT_SIZE);
+  }
+
+  @Test
+  public void testGetInvalidKey() {
+    assertThat(cache.get("key")).isNull();
+  }
+
+  @Test
+  public void testPutAndGet() {
+    putKey("key", cache, true);
+    ActionCache.Entry entry = cache.get("key");
+    assertThat(entry).isNotNull();
+    assertThat(entry.getActionKey()).isEqualTo("key");
+    assertThat(entry.getPaths()).containsExactly("foo/key");
+  }
+
+  @Test
+  public void testPutAndRemove() {
+    putKey("key", cache, false);
+    cache.remove("key");
+    assertThat(cache.get("key")).isNull();
+    cache.remove("key");
+    assertThat(cache.get("key")).isNull();
+  }
+
+  @Test
+  public void testSaveAndReload() throws Exception {
+    for (int i = 0; i < 500; i++) {
+      putKey(Integer.toString(i), cache, i % 2 == 0);
+    }
+    cache.remove("7");
+    cache.save();
+
+    MappedActionCache newCache = newCache();
+    for (int i = 0; i < 500; i++) {
+      String key = Integer.toString(i);
+      if (i == 7) {
+        assertThat(newCache.get(key)).isNull();
+      } else {
+        assertThat(newCache.get(key).toString()).isEqualTo(cache.get(key).toString());
+      }
+    }
+  }
+
+  @Test
+  public void testUncommittedRecordsAreDiscarded() throws Exception {
+    putKey("committed", cache, false);
+    cache.save();
+    for (int i = 0; i < 200; i++) {
+      putKey("uncommitted" + i, cache, false);
+    }
+
+    MappedActionCache newCache = newCache();
+    assertThat(newCache.get("committed")).isNotNull();
+    assertThat(newCache.get("uncommitted0")).isNull();
+    assertThat(newCache.get("uncommitted199")).isNull();
+  }
+
+  @Test
+  public void testUncommittedRecordsAreNotLoadedWithSealedSegments() throws Exception {
+    putKey("key", cache, false);
+    cache.save();
+    // Not committed; as if the server crashed right after the removal.
+    cache.remove("key");
+
+    MappedActionCache newCache = newCache();
+    assertThat(newCache.get("key")).isNotNull();
+    // Does not fit into the rest of the segment, which is sealed with the removal still in it.
+    putKey(Strings.repeat("x", SEGMENT_SIZE - 60), newCache, false);
+    newCache.save();
+
+    assertThat(newCache().get("key")).isNotNull();
+  }
+
+  @Test
+  public void testCompactionKeepsLatestEntries() throws Exception {
+    // Overwrite the same keys many times so that old segments become mostly garbage.
+    for (int round = 0; round < 20; round++) {
+      for (int i = 0; i < 20; i++) {
+        putKey("key" + i, cache, round % 2 == 0);
+      }
+      cache.remove("key3");
+      cache.save();
+    }
+    int segmentFiles = 0;
+    for (Path path : dataRoot.getDirectoryEntries()) {
+      if (path.getBaseName().startsWith("mapped_action_cache_v1.")
+          && !path.equals(MappedActionCache.headerFile(dataRoot))) {
+        segmentFiles++;
+      }
+    }
+    assertThat(segmentFiles).isAtMost(2);
+
+    MappedActionCache newCache = newCache();
+    for (int i = 0; i < 20; i++) {
+      String key = "key" + i;
+      if (i == 3) {
+        assertThat(newCache.get(key)).isNull();
+      } else {
+        // The last round did not discover inputs.
+        assertThat(newCache.get(key).discoversInputs()).isFalse();
+      }
+    }
+  }
+
+  @Test
+  public void testConcurrentPutAndGet() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int t = 0; t < 8; t++) {
+      final int thread = t;
+      futures.add(
+          executor.submit(
+              () -> {
+                for (int i = 0; i < 200; i++) {
+                  String key = thread + "/" + i;
+                  putKey(key, cache, true);
+                  assertThat(cache.get(key).getActionKey()).isEqualTo(key);
+                }
+              }));
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+    executor.shutdown();
+    cache.save();
+
+    MappedActionCache newCache = newCache();
+    for (int t = 0; t < 8; t++) {
+      for (int i = 0; i < 200; i++) {
+        assertThat(newCache.get(t + "/" + i)).isNotNull();
+      }
+    }
+  }
+
+  private static void putKey(String key, ActionCache ac, boolean discoversInputs) {
+    ActionCache.Entry entry =
+        new ActionCache.Entry(key, ImmutableMap.<String, String>of(), discoversInputs);
+    entry.addFile(PathFragment.create("foo/" + key), FileArtifactValue.createDirectory(1234));
+    entry.getFileDigest();
+    ac.put(key, entry);
+  }
+}
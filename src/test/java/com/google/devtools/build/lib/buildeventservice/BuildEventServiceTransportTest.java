@@ -0,0 +1,238 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.buildeventservice;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.buildeventservice.client.BuildEventServiceGrpcClient;
+import com.google.devtools.build.lib.buildeventstream.ArtifactGroupNamer;
+import com.google.devtools.build.lib.buildeventstream.BuildEvent;
+import com.google.devtools.build.lib.buildeventstream.BuildEventConverters;
+import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos;
+import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.Progress;
+import com.google.devtools.build.lib.buildeventstream.PathConverter;
+import com.google.devtools.build.lib.events.EventHandler;
+import com.google.devtools.build.lib.runtime.BlazeModule.ModuleEnvironment;
+import com.google.devtools.build.lib.testutil.ManualClock;
+import com.google.devtools.build.v1.PublishBuildEventGrpc.PublishBuildEventImplBase;
+import com.google.devtools.build.v1.PublishBuildToolEventStreamRequest;
+import com.google.devtools.build.v1.PublishBuildToolEventStreamResponse;
+import com.google.devtools.build.v1.PublishLifecycleEventRequest;
+import com.google.protobuf.Any;
+import com.google.protobuf.Empty;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Matchers;
+
+/** Tests for {@link BuildEventServiceTransport} against a fake build event service. */
+@RunWith(JUnit4.class)
+public class BuildEventServiceTransportTest {
+
+  /**
+   * A build event service that acknowledges each event after a delay, and optionally fails the
+   * first stream after a number of events.
+   */
+  private static class FakeBuildEventService extends PublishBuildEventImplBase {
+    private final long ackDelayMillis;
+    private int eventsBeforeFailure;
+    /** The bazel events received, by sequence number. */
+    final Map<Long, Any> events = new TreeMap<>();
+    int streams;
+
+    FakeBuildEventService(long ackDelayMillis, int eventsBeforeFailure) {
+      this.ackDelayMillis = ackDelayMillis;
+      this.eventsBeforeFailure = eventsBeforeFailure;
+    }
+
+    @Override
+    public void publishLifecycleEvent(
+        PublishLifecycleEventRequest request, StreamObserver<Empty> response) {
+      response.onNext(Empty.getDefaultInstance());
+      response.onCompleted();
+    }
+
+    @Override
+    public StreamObserver<PublishBuildToolEventStreamRequest> publishBuildToolEventStream(
+        StreamObserver<PublishBuildToolEventStreamResponse> response) {
+      synchronized (this) {
+        streams++;
+      }
+      return new StreamObserver<PublishBuildToolEventStreamRequest>() {
+        private boolean failed;
+
+        @Override
+        public void onNext(PublishBuildToolEventStreamRequest request) {
+          synchronized (FakeBuildEventService.this) {
+            if (failed) {
+              return;
+            }
+            if (eventsBeforeFailure-- == 0) {
+              failed = true;
+              response.onError(Status.UNAVAILABLE.asException());
+              return;
+            }
+            long sequenceNumber = request.getOrderedBuildEvent().getSequenceNumber();
+            events.put(sequenceNumber, request.getOrderedBuildEvent().getEvent().getBazelEvent());
+          }
+          try {
+            Thread.sleep(ackDelayMillis);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          response.onNext(
+              PublishBuildToolEventStreamResponse.newBuilder()
+                  .setSequenceNumber(request.getOrderedBuildEvent().getSequenceNumber())
+                  .build());
+          if (BuildEventServiceTransport.isLastEvent(request)) {
+            response.onCompleted();
+          }
+        }
+
+        @Override
+        public void onError(Throwable t) {}
+
+        @Override
+        public void onCompleted() {}
+      };
+    }
+  }
+
+  @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+  private final String serverName = "Fake BES for " + getClass();
+  private Server server;
+  private ManagedChannel channel;
+
+  private void startServer(FakeBuildEventService service) throws Exception {
+    server = InProcessServerBuilder.forName(serverName).addService(service).build().start();
+    channel = InProcessChannelBuilder.forName(serverName).build();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (channel != null) {
+      channel.shutdownNow();
+    }
+    if (server != null) {
+      server.shutdownNow();
+      server.awaitTermination();
+    }
+  }
+
+  private BuildEventServiceTransport createTransport(long maxBufferedBytes, long maxSpilledBytes) {
+    return new BuildEventServiceTransport(
+        new BuildEventServiceGrpcClient(channel, null),
+        Duration.ofSeconds(60),
+        /*bestEffortUpload=*/ false,
+        /*publishLifecycleEvents=*/ true,
+        "build-request-id",
+        "invocation-id",
+        "build",
+        mock(ModuleEnvironment.class),
+        new ManualClock(),
+        mock(PathConverter.class),
+        mock(EventHandler.class),
+        /*projectId=*/ null,
+        ImmutableSet.of(),
+        maxBufferedBytes,
+        maxSpilledBytes,
+        tmp.getRoot().toPath(),
+        millis -> {});
+  }
+
+  /** Sends progress events of about 1 KB and returns their protos. */
+  private static List<BuildEventStreamProtos.BuildEvent> sendEvents(
+      BuildEventServiceTransport transport, int count) {
+    List<BuildEventStreamProtos.BuildEvent> sent = new ArrayList<>();
+    BuildEvent event = mock(BuildEvent.class);
+    for (int i = 0; i < count; i++) {
+      BuildEventStreamProtos.BuildEvent proto =
+          BuildEventStreamProtos.BuildEvent.newBuilder()
+              .setProgress(Progress.newBuilder().setStdout(i + Strings.repeat("x", 1000)))
+              .build();
+      when(event.asStreamProto(Matchers.<BuildEventConverters>any())).thenReturn(proto);
+      transport.sendBuildEvent(event, mock(ArtifactGroupNamer.class));
+      sent.add(proto);
+    }
+    return sent;
+  }
+
+  private static void assertReceivedInOrder(
+      FakeBuildEventService service, List<BuildEventStreamProtos.BuildEvent> sent)
+      throws Exception {
+    synchronized (service) {
+      // All events plus the one that finishes the stream, without gaps.
+      assertThat(service.events.keySet()).hasSize(sent.size() + 1);
+      assertThat(service.events.keySet().iterator().next()).isEqualTo(1L);
+      long previous = 0;
+      for (long sequenceNumber : service.events.keySet()) {
+        assertThat(sequenceNumber).isEqualTo(previous + 1);
+        previous = sequenceNumber;
+      }
+      for (int i = 0; i < sent.size(); i++) {
+        assertThat(service.events.get(i + 1L).unpack(BuildEventStreamProtos.BuildEvent.class))
+            .isEqualTo(sent.get(i));
+      }
+    }
+  }
+
+  @Test
+  public void slowServerReceivesAllEventsThroughSmallBuffer() throws Exception {
+    FakeBuildEventService service = new FakeBuildEventService(1, -1);
+    startServer(service);
+    BuildEventServiceTransport transport = createTransport(8 * 1024, 64 * 1024);
+
+    List<BuildEventStreamProtos.BuildEvent> sent = sendEvents(transport, 300);
+    transport.close().get(60, TimeUnit.SECONDS);
+
+    assertReceivedInOrder(service, sent);
+  }
+
+  @Test
+  public void unacknowledgedEventsAreSentAgainAfterStreamFailure() throws Exception {
+    FakeBuildEventService service = new FakeBuildEventService(0, 50);
+    startServer(service);
+    BuildEventServiceTransport transport = createTransport(8 * 1024, 64 * 1024);
+
+    List<BuildEventStreamProtos.BuildEvent> sent = sendEvents(transport, 100);
+    transport.close().get(60, TimeUnit.SECONDS);
+
+    assertReceivedInOrder(service, sent);
+    synchronized (service) {
+      assertThat(service.streams).isEqualTo(2);
+    }
+  }
+}
@@ -0,0 +1,204 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.buildeventservice;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.base.Strings;
+import com.google.devtools.build.lib.buildeventservice.BuildEventServiceUploadQueue.Acknowledgement;
+import com.google.devtools.build.v1.BuildEvent;
+import com.google.devtools.build.v1.BuildEvent.BuildComponentStreamFinished;
+import com.google.devtools.build.v1.OrderedBuildEvent;
+import com.google.devtools.build.v1.PublishBuildToolEventStreamRequest;
+import com.google.protobuf.Any;
+import com.google.protobuf.StringValue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link BuildEventServiceUploadQueue}. */
+@RunWith(JUnit4.class)
+public class BuildEventServiceUploadQueueTest {
+
+  @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+  private static PublishBuildToolEventStreamRequest event(int sequenceNumber, int payloadSize) {
+    return PublishBuildToolEventStreamRequest.newBuilder()
+        .setOrderedBuildEvent(
+            OrderedBuildEvent.newBuilder()
+                .setSequenceNumber(sequenceNumber)
+                .setEvent(
+                    BuildEvent.newBuilder()
+                        .setBazelEvent(
+                            Any.pack(
+                                StringValue.newBuilder()
+                                    .setValue(Strings.repeat("x", payloadSize))
+                                    .build()))))
+        .build();
+  }
+
+  private static PublishBuildToolEventStreamRequest lastEvent(int sequenceNumber) {
+    return PublishBuildToolEventStreamRequest.newBuilder()
+        .setOrderedBuildEvent(
+            OrderedBuildEvent.newBuilder()
+                .setSequenceNumber(sequenceNumber)
+                .setEvent(
+                    BuildEvent.newBuilder()
+                        .setComponentStreamFinished(BuildComponentStreamFinished.newBuilder())))
+        .build();
+  }
+
+  private List<PublishBuildToolEventStreamRequest> takeAll(BuildEventServiceUploadQueue queue)
+      throws Exception {
+    List<PublishBuildToolEventStreamRequest> taken = new ArrayList<>();
+    List<PublishBuildToolEventStreamRequest> batch;
+    while (!(batch = queue.takeUnsent(10, 0, TimeUnit.SECONDS)).isEmpty()) {
+      taken.addAll(batch);
+    }
+    return taken;
+  }
+
+  /** Acknowledges the first unacknowledged event on a stream of the given generation. */
+  private static Acknowledgement acknowledgeNext(
+      BuildEventServiceUploadQueue queue, int generation) {
+    return queue.acknowledge(generation, queue.firstUnacknowledgedSequenceNumber());
+  }
+
+  @Test
+  public void eventsBeyondMemoryLimitAreSpilledAndReadBackInOrder() throws Exception {
+    BuildEventServiceUploadQueue queue =
+        new BuildEventServiceUploadQueue(2500, 1024 * 1024, tmp.getRoot().toPath());
+    List<PublishBuildToolEventStreamRequest> events = new ArrayList<>();
+    for (int i = 1; i <= 10; i++) {
+      events.add(event(i, 1000));
+      queue.add(events.get(i - 1));
+    }
+    assertThat(queue.getMemoryBytes()).isAtMost(2500L);
+    assertThat(queue.getDiskBytes()).isGreaterThan(0L);
+
+    // Everything that is in flight counts against the memory limit, too.
+    List<PublishBuildToolEventStreamRequest> taken = takeAll(queue);
+    assertThat(taken).containsExactlyElementsIn(events.subList(0, 2)).inOrder();
+    for (int i = 0; i < events.size(); i++) {
+      assertThat(queue.firstUnacknowledgedSequenceNumber()).isEqualTo(i + 1);
+      assertThat(acknowledgeNext(queue, 0)).isEqualTo(Acknowledgement.ACKNOWLEDGED);
+      taken.addAll(takeAll(queue));
+    }
+
+    assertThat(taken).containsExactlyElementsIn(events).inOrder();
+    assertThat(queue.firstUnacknowledgedSequenceNumber()).isEqualTo(-1);
+    assertThat(queue.getMemoryBytes()).isEqualTo(0);
+    assertThat(queue.getDiskBytes()).isEqualTo(0);
+  }
+
+  @Test
+  public void acknowledgedSegmentsAreDeleted() throws Exception {
+    // Segments of a quarter of the disk limit, each holding three events.
+    BuildEventServiceUploadQueue queue =
+        new BuildEventServiceUploadQueue(1, 16 * 1024, tmp.getRoot().toPath());
+    for (int i = 1; i <= 12; i++) {
+      queue.add(event(i, 1000));
+    }
+    long segmentSize = 3L * event(1, 1000).getSerializedSize();
+    assertThat(queue.getDiskBytes()).isEqualTo(4 * segmentSize);
+
+    for (int i = 1; i <= 12; i++) {
+      assertThat(queue.takeUnsent(1, 0, TimeUnit.SECONDS)).hasSize(1);
+      acknowledgeNext(queue, 0);
+      assertThat(queue.getDiskBytes()).isEqualTo((4 - i / 3) * segmentSize);
+    }
+  }
+
+  @Test
+  public void rewindSendsUnacknowledgedEventsAgain() throws Exception {
+    BuildEventServiceUploadQueue queue =
+        new BuildEventServiceUploadQueue(1024 * 1024, 0, tmp.getRoot().toPath());
+    queue.add(event(1, 10));
+    queue.add(event(2, 10));
+    queue.add(lastEvent(3));
+
+    assertThat(queue.takeUnsent(1, 0, TimeUnit.SECONDS)).containsExactly(event(1, 10));
+    assertThat(queue.takeUnsent(1, 0, TimeUnit.SECONDS)).containsExactly(event(2, 10));
+    assertThat(acknowledgeNext(queue, 0)).isEqualTo(Acknowledgement.ACKNOWLEDGED);
+
+    int generation = queue.rewind();
+    assertThat(takeAll(queue)).containsExactly(event(2, 10), lastEvent(3)).inOrder();
+    assertThat(acknowledgeNext(queue, generation)).isEqualTo(Acknowledgement.ACKNOWLEDGED);
+    assertThat(acknowledgeNext(queue, generation)).isEqualTo(Acknowledgement.LAST);
+  }
+
+  @Test
+  public void acknowledgementsOfReplacedStreamsAreIgnored() throws Exception {
+    BuildEventServiceUploadQueue queue =
+        new BuildEventServiceUploadQueue(1024 * 1024, 0, tmp.getRoot().toPath());
+    queue.add(event(1, 10));
+    queue.add(event(2, 10));
+    int oldGeneration = queue.rewind();
+    assertThat(takeAll(queue)).hasSize(2);
+
+    int generation = queue.rewind();
+    assertThat(queue.acknowledge(oldGeneration, 1)).isEqualTo(Acknowledgement.STALE);
+    assertThat(queue.acknowledge(generation, 2)).isEqualTo(Acknowledgement.UNEXPECTED);
+    assertThat(takeAll(queue)).containsExactly(event(1, 10), event(2, 10)).inOrder();
+    assertThat(queue.acknowledge(generation, 1)).isEqualTo(Acknowledgement.ACKNOWLEDGED);
+    assertThat(queue.firstUnacknowledgedSequenceNumber()).isEqualTo(2);
+  }
+
+  @Test
+  public void addBlocksWhileFullUntilAcknowledged() throws Exception {
+    BuildEventServiceUploadQueue queue =
+        new BuildEventServiceUploadQueue(1500, 0, tmp.getRoot().toPath());
+    queue.add(event(1, 1000));
+    assertThat(queue.takeUnsent(1, 0, TimeUnit.SECONDS)).hasSize(1);
+
+    CountDownLatch added = new CountDownLatch(1);
+    Thread adder =
+        new Thread(
+            () -> {
+              queue.add(event(2, 1000));
+              added.countDown();
+            });
+    adder.start();
+    assertThat(added.await(100, TimeUnit.MILLISECONDS)).isFalse();
+
+    acknowledgeNext(queue, 0);
+    assertThat(added.await(10, TimeUnit.SECONDS)).isTrue();
+    assertThat(queue.takeUnsent(1, 0, TimeUnit.SECONDS)).containsExactly(event(2, 1000));
+    adder.join();
+  }
+
+  @Test
+  public void closeReleasesBlockedAddersAndDeletesSpillFiles() throws Exception {
+    BuildEventServiceUploadQueue queue =
+        new BuildEventServiceUploadQueue(1, 1500, tmp.getRoot().toPath());
+    queue.add(event(1, 1000));
+    assertThat(queue.getDiskBytes()).isGreaterThan(0L);
+
+    Thread adder = new Thread(() -> queue.add(event(2, 1000)));
+    adder.start();
+    queue.close();
+    adder.join(10000);
+
+    assertThat(adder.isAlive()).isFalse();
+    assertThat(queue.getDiskBytes()).isEqualTo(0);
+    assertThat(queue.takeUnsent(1, 0, TimeUnit.SECONDS)).isEmpty();
+  }
+}
@@ -0,0 +1,164 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.buildeventstream.transports;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.buildeventstream.ArtifactGroupNamer;
+import com.google.devtools.build.lib.buildeventstream.BuildEvent;
+import com.google.devtools.build.lib.buildeventstream.BuildEventConverters;
+import com.google.devtools.build.lib.buildeventstream.BuildEventId;
+import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos;
+import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.File;
+import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.TargetComplete;
+import com.google.devtools.build.lib.buildeventstream.GenericBuildEvent;
+import com.google.devtools.build.lib.buildeventstream.PathConverter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Benchmark for the build event file transports.
+ *
+ * <p>Sends a stream of synthetic target completion events to each file transport, once with the
+ * events serialized on the calling thread, as the transports used to do, and once with the events
+ * serialized on a pool of threads. For each run it reports the time the sending thread spent in
+ * {@link FileTransport#sendBuildEvent}, which is what a build pays for on its critical path, and
+ * the time until the file was completely written.
+ *
+ * <p>Runs standalone:
+ *
+ * <pre>
+ *   bazel run //src/test/java/com/google/devtools/build/lib/buildeventstream/transports:\
+ *       file_transport_benchmark -- --events=200000 --threads=8
+ * </pre>
+ */
+public class FileTransportBenchmark {
+
+  /** The file formats to benchmark. */
+  enum Format {
+    BINARY,
+    JSON,
+    TEXT
+  }
+
+  private static final PathConverter PATH_CONVERTER = path -> path.toURI().toString();
+  private static final ArtifactGroupNamer NAMER = set -> null;
+
+  /** A target completion event with some outputs, about the size of a typical one. */
+  @SuppressWarnings("deprecation") // important_output
+  private static final class SyntheticEvent extends GenericBuildEvent {
+    private final int index;
+
+    SyntheticEvent(int index) {
+      super(BuildEventId.unknownBuildEventId("//pkg" + index + ":target"), ImmutableList.of());
+      this.index = index;
+    }
+
+    @Override
+    public BuildEventStreamProtos.BuildEvent asStreamProto(BuildEventConverters converters) {
+      TargetComplete.Builder complete = TargetComplete.newBuilder().setSuccess(true);
+      for (int i = 0; i < 10; i++) {
+        complete.addImportantOutput(
+            File.newBuilder()
+                .setName("pkg" + index + "/target_" + i + ".out")
+                .setUri("file:///home/user/.cache/bazel/execroot/bin/pkg" + index + "/out" + i));
+      }
+      complete.addTag("manual").addTag("requires-network");
+      return GenericBuildEvent.protoChaining(this).setCompleted(complete).build();
+    }
+  }
+
+  private static FileTransport create(Format format, String path, int threads) {
+    switch (format) {
+      case BINARY:
+        return new BinaryFormatFileTransport(path, PATH_CONVERTER, threads);
+      case JSON:
+        return new JsonFormatFileTransport(path, PATH_CONVERTER, threads);
+      case TEXT:
+        return new TextFormatFileTransport(path, PATH_CONVERTER, threads);
+    }
+    throw new IllegalStateException(format.toString());
+  }
+
+  private static void run(Format format, List<BuildEvent> events, int threads, boolean report)
+      throws Exception {
+    Path output = Files.createTempFile("bep", "." + format.name().toLowerCase(Locale.US));
+    try {
+      FileTransport transport = create(format, output.toString(), threads);
+      long start = System.nanoTime();
+      for (BuildEvent event : events) {
+        transport.sendBuildEvent(event, NAMER);
+      }
+      long sent = System.nanoTime();
+      transport.close().get();
+      long closed = System.nanoTime();
+      if (report) {
+        System.out.printf(
+            "%-6s threads=%-3d send: %7.1f ms  total: %7.1f ms  size: %6.1f MB%n",
+            format,
+            threads,
+            (sent - start) / 1e6,
+            (closed - start) / 1e6,
+            Files.size(output) / 1e6);
+      }
+    } finally {
+      Files.delete(output);
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int numEvents = 100000;
+    int threads = Runtime.getRuntime().availableProcessors();
+    int warmupIterations = 2;
+    for (String arg : args) {
+      int eq = arg.indexOf('=');
+      if (!arg.startsWith("--") || eq < 0) {
+        throw new IllegalArgumentException("Expected --name=value, got " + arg);
+      }
+      String name = arg.substring(2, eq);
+      String value = arg.substring(eq + 1);
+      switch (name) {
+        case "events":
+          numEvents = Integer.parseInt(value);
+          break;
+        case "threads":
+          threads = Integer.parseInt(value);
+          break;
+        case "warmup":
+          warmupIterations = Integer.parseInt(value);
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown flag --" + name);
+      }
+    }
+    Preconditions.checkArgument(numEvents > 0 && threads > 0);
+
+    List<BuildEvent> events = new ArrayList<>(numEvents);
+    for (int i = 0; i < numEvents; i++) {
+      events.add(new SyntheticEvent(i));
+    }
+    for (Format format : Format.values()) {
+      for (int i = 0; i < warmupIterations; i++) {
+        run(format, events, 0, false);
+        run(format, events, threads, false);
+      }
+      run(format, events, 0, true);
+      run(format, events, threads, true);
+    }
+  }
+}
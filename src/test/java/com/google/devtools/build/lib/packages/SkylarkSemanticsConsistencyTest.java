@@ -105,6 +105,7 @@ public class SkylarkSemanticsConsistencyTest {
   private static SkylarkSemanticsOptions buildRandomOptions(Random rand) throws Exception {
     return parseOptions(
         // <== Add new options here in alphabetic order ==>
+        "--experimental_skylark_local_slots=" + rand.nextBoolean(),
         "--incompatible_bzl_disallow_load_after_statement=" + rand.nextBoolean(),
         "--incompatible_checked_arithmetic=" + rand.nextBoolean(),
         "--incompatible_comprehension_variables_do_not_leak=" + rand.nextBoolean(),
@@ -129,6 +130,7 @@ public class SkylarkSemanticsConsistencyTest {
   private static SkylarkSemantics buildRandomSemantics(Random rand) {
     return SkylarkSemantics.builder()
         // <== Add new options here in alphabetic order ==>
+        .experimentalSkylarkLocalSlots(rand.nextBoolean())
         .incompatibleBzlDisallowLoadAfterStatement(rand.nextBoolean())
         .incompatibleCheckedArithmetic(rand.nextBoolean())
         .incompatibleComprehensionVariablesDoNotLeak(rand.nextBoolean())
@@ -94,15 +94,26 @@ public abstract class PackageLoadingTestCase extends FoundationTestCase {
             new ServerDirectories(outputBase, outputBase),
             rootDirectory,
             loadingMock.getProductName());
-    packageFactory =
+    PackageFactory.BuilderForTesting packageFactoryBuilder =
         loadingMock
             .getPackageFactoryBuilderForTesting(directories)
-            .setEnvironmentExtensions(getEnvironmentExtensions())
-            .build(ruleClassProvider, scratch.getFileSystem());
+            .setEnvironmentExtensions(getEnvironmentExtensions());
+    if (!doPackageLoadingChecks()) {
+      packageFactoryBuilder.disableChecks();
+    }
+    packageFactory = packageFactoryBuilder.build(ruleClassProvider, scratch.getFileSystem());
     skyframeExecutor = createSkyframeExecutor();
     setUpSkyframe();
   }
 
+  /**
+   * Allows subclasses to turn off the checks made on each loaded package, which only support a
+   * single package path entry.
+   */
+  protected boolean doPackageLoadingChecks() {
+    return true;
+  }
+
   /** Allows subclasses to augment the {@link RuleDefinition}s available in this test. */
   protected List<RuleDefinition> getExtraRules() {
     return ImmutableList.of();
@@ -15,8 +15,10 @@ package com.google.devtools.build.lib.profiler;
 
 import static com.google.common.truth.Truth.assertThat;
 import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.Assert.fail;
 
+import com.google.common.io.ByteStreams;
 import com.google.devtools.build.lib.clock.BlazeClock;
 import com.google.devtools.build.lib.clock.Clock;
 import com.google.devtools.build.lib.profiler.Profiler.ProfiledTaskKinds;
@@ -33,6 +35,7 @@ import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
 import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
 import org.junit.Before;
@@ -178,6 +181,84 @@ public class ProfilerTest extends FoundationTestCase {
     assertThat(task.durationNanos).isLessThan(ProfilerTask.VFS_STAT.minDuration);
   }
 
+  @Test
+  public void testTasksBeyondBufferCapacityAreAllWritten() throws Exception {
+    Path cacheFile = cacheDir.getRelative("profile1.dat");
+    profiler.start(ProfiledTaskKinds.ALL, cacheFile.getOutputStream(), "basic test", true,
+        BlazeClock.instance(), BlazeClock.instance().nanoTime());
+    // Far more than fit in one thread's buffer, so the thread has to write them out itself.
+    int numTasks = 20000;
+    for (int i = 0; i < numTasks; i++) {
+      profiler.logSimpleTask(BlazeClock.instance().nanoTime(), ProfilerTask.VFS_STAT, "stat" + i);
+    }
+    profiler.stop();
+    ProfileInfo info = ProfileInfo.loadProfile(cacheFile);
+    info.calculateStats();
+    assertThat(info.allTasksById).hasSize(numTasks + 1); // plus finalization
+    assertThat(info.allTasksById.get(numTasks - 1).getDescription())
+        .isEqualTo("stat" + (numTasks - 1));
+  }
+
+  @Test
+  public void testObjectKeepsDescriptionIndexWhileAlive() throws Exception {
+    Path cacheFile = cacheDir.getRelative("profile1.dat");
+    profiler.start(ProfiledTaskKinds.ALL, cacheFile.getOutputStream(), "basic test", true,
+        BlazeClock.instance(), BlazeClock.instance().nanoTime());
+    Object action = new String("action");
+    profiler.logSimpleTask(BlazeClock.instance().nanoTime(), ProfilerTask.ACTION_GRAPH, action);
+    // Many more described objects than the profiler used to remember, over many flushes.
+    int numTasks = 150000;
+    for (int i = 0; i < numTasks; i++) {
+      profiler.logSimpleTask(BlazeClock.instance().nanoTime(), ProfilerTask.VFS_STAT, "stat" + i);
+    }
+    profiler.logSimpleTask(BlazeClock.instance().nanoTime(), ProfilerTask.ACTION, action);
+    profiler.stop();
+    ProfileInfo info = ProfileInfo.loadProfile(cacheFile);
+    info.calculateStats();
+    assertThat(info.allTasksById).hasSize(numTasks + 3); // plus finalization
+    ProfileInfo.Task first = info.allTasksById.get(0);
+    ProfileInfo.Task last = info.allTasksById.get(numTasks + 1);
+    assertThat(last.type).isEqualTo(ProfilerTask.ACTION);
+    // Both tasks refer to a single description, which was only written once.
+    assertThat(last.getDescription()).isSameAs(first.getDescription());
+    assertThat(info.allTasksById.get(numTasks).getDescription())
+        .isEqualTo("stat" + (numTasks - 1));
+  }
+
+  @Test
+  public void testJsonTraceFileFormat() throws Exception {
+    Path traceFile = cacheDir.getRelative("profile.json.gz");
+    profiler.start(
+        ProfiledTaskKinds.ALL,
+        traceFile.getOutputStream(),
+        Profiler.Format.JSON_TRACE_FILE_FORMAT,
+        "json test",
+        false,
+        BlazeClock.instance(),
+        BlazeClock.instance().nanoTime());
+    profiler.startTask(ProfilerTask.ACTION, "action \"task\"");
+    clock.advanceMillis(100);
+    profiler.logSimpleTask(BlazeClock.instance().nanoTime(), ProfilerTask.VFS_STAT, "stat1");
+    clock.advanceMillis(100);
+    profiler.completeTask(ProfilerTask.ACTION);
+    profiler.stop();
+
+    String json;
+    try (InputStream in = new GZIPInputStream(traceFile.getInputStream())) {
+      json = new String(ByteStreams.toByteArray(in), UTF_8);
+    }
+    assertThat(json).startsWith("[");
+    assertThat(json).endsWith("]");
+    assertThat(json).contains("\"name\":\"process_name\"");
+    assertThat(json).contains("\"args\":{\"name\":\"json test\"}");
+    assertThat(json).contains("\"name\":\"thread_name\"");
+    assertThat(json)
+        .contains(
+            "{\"name\":\"action \\\"task\\\"\",\"cat\":\"action processing\",\"ph\":\"X\","
+                + "\"ts\":0,\"dur\":200000,");
+    assertThat(json).contains("\"args\":{\"VFS_STAT count\":1,\"VFS_STAT us\":0}");
+  }
+
   @Test
   public void testProfilerRecordingOnlySlowestEvents() throws Exception {
     Path profileData = cacheDir.getRelative("foo");
@@ -0,0 +1,187 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.profiler;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.profiler.Profiler.ProfiledTaskKinds;
+import com.google.devtools.build.lib.profiler.analysis.ProfileInfo;
+import com.google.devtools.build.lib.profiler.analysis.ProfileInfo.CriticalPathEntry;
+import com.google.devtools.build.lib.profiler.analysis.ProfileInfo.InfoListener;
+import com.google.devtools.build.lib.profiler.statistics.MultiProfileStatistics;
+import com.google.devtools.build.lib.profiler.statistics.PhaseSummaryStatistics;
+import com.google.devtools.build.lib.profiler.statistics.StreamingProfileStatistics;
+import com.google.devtools.build.lib.profiler.statistics.StreamingProfileStatistics.CriticalPathComponent;
+import com.google.devtools.build.lib.profiler.statistics.StreamingProfileStatistics.TaskHistogram;
+import com.google.devtools.build.lib.testutil.FoundationTestCase;
+import com.google.devtools.build.lib.testutil.ManualClock;
+import com.google.devtools.build.lib.vfs.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link StreamingProfileStatistics} and the parallel {@link MultiProfileStatistics}. */
+@RunWith(JUnit4.class)
+public class StreamingProfileStatisticsTest extends FoundationTestCase {
+
+  private static final InfoListener SILENT_LISTENER =
+      new InfoListener() {
+        @Override
+        public void info(String text) {}
+
+        @Override
+        public void warn(String text) {}
+      };
+
+  private final Profiler profiler = Profiler.instance();
+  private final ManualClock clock = new ManualClock();
+  private Path profileDir;
+
+  @Before
+  public final void createProfileDirectory() throws Exception {
+    profileDir = scratch.dir("/profiles");
+  }
+
+  /** Writes a profile of a build that executes {@code actionCount} actions of increasing length. */
+  private Path writeProfile(String name, int actionCount) throws Exception {
+    Path profileFile = profileDir.getRelative(name);
+    profiler.start(
+        ProfiledTaskKinds.ALL,
+        profileFile.getOutputStream(),
+        "streaming test",
+        true,
+        clock,
+        clock.nanoTime());
+    profiler.markPhase(ProfilePhase.INIT);
+    clock.advanceMillis(10);
+    profiler.markPhase(ProfilePhase.LOAD);
+    clock.advanceMillis(20);
+    profiler.markPhase(ProfilePhase.EXECUTE);
+    for (int i = 1; i <= actionCount; i++) {
+      profiler.startTask(ProfilerTask.ACTION, "action " + i);
+      profiler.logEvent(ProfilerTask.INFO, "event " + i);
+      clock.advanceMillis(i);
+      profiler.completeTask(ProfilerTask.ACTION);
+    }
+    profiler.startTask(ProfilerTask.CRITICAL_PATH, "Critical path");
+    long start = clock.nanoTime();
+    profiler.logSimpleTaskDuration(
+        start, TimeUnit.MILLISECONDS.toNanos(3), ProfilerTask.CRITICAL_PATH_COMPONENT, "action 1");
+    profiler.logSimpleTaskDuration(
+        start, TimeUnit.MILLISECONDS.toNanos(7), ProfilerTask.CRITICAL_PATH_COMPONENT, "action 2");
+    profiler.completeTask(ProfilerTask.CRITICAL_PATH);
+    profiler.markPhase(ProfilePhase.FINISH);
+    clock.advanceMillis(5);
+    profiler.logEvent(ProfilerTask.INFO, "done");
+    profiler.stop();
+    return profileFile;
+  }
+
+  @Test
+  public void testPhaseSummaryMatchesLoadedProfile() throws Exception {
+    Path profileFile = writeProfile("profile.dat", 100);
+
+    ProfileInfo info = ProfileInfo.loadProfile(profileFile);
+    info.calculateStats();
+    PhaseSummaryStatistics expected = new PhaseSummaryStatistics(info);
+    StreamingProfileStatistics statistics = StreamingProfileStatistics.analyze(profileFile);
+    PhaseSummaryStatistics actual = statistics.getPhaseSummaryStatistics();
+
+    assertThat(statistics.isComplete()).isTrue();
+    assertThat(statistics.getComment()).isEqualTo("streaming test");
+    assertThat(ImmutableList.copyOf(actual)).containsExactlyElementsIn(expected).inOrder();
+    for (ProfilePhase phase : expected) {
+      assertThat(actual.getDurationNanos(phase)).isEqualTo(expected.getDurationNanos(phase));
+    }
+    assertThat(actual.getTotalDuration()).isEqualTo(expected.getTotalDuration());
+    assertThat(actual.getDurationNanos(ProfilePhase.LOAD))
+        .isEqualTo(TimeUnit.MILLISECONDS.toNanos(20));
+  }
+
+  @Test
+  public void testCriticalPathMatchesLoadedProfile() throws Exception {
+    Path profileFile = writeProfile("profile.dat", 10);
+
+    ProfileInfo info = ProfileInfo.loadProfile(profileFile);
+    info.calculateStats();
+    List<String> expected = new ArrayList<>();
+    for (CriticalPathEntry entry = info.getCriticalPathNewVersion();
+        entry != null;
+        entry = entry.next) {
+      expected.add(0, entry.task.getDescription());
+    }
+    List<String> actual = new ArrayList<>();
+    long totalNanos = 0;
+    for (CriticalPathComponent component :
+        StreamingProfileStatistics.analyze(profileFile).getCriticalPath()) {
+      actual.add(component.description);
+      totalNanos += component.durationNanos;
+    }
+
+    assertThat(actual).containsExactly("action 1", "action 2").inOrder();
+    assertThat(actual).isEqualTo(expected);
+    assertThat(totalNanos).isEqualTo(TimeUnit.MILLISECONDS.toNanos(10));
+  }
+
+  @Test
+  public void testTaskHistograms() throws Exception {
+    Path profileFile = writeProfile("profile.dat", 100);
+
+    TaskHistogram actions =
+        StreamingProfileStatistics.analyze(profileFile)
+            .getTaskHistograms()
+            .get(ProfilerTask.ACTION);
+
+    assertThat(actions.getCount()).isEqualTo(100);
+    assertThat(actions.getTotalNanos()).isEqualTo(TimeUnit.MILLISECONDS.toNanos(5050));
+    assertThat(actions.getMaxNanos()).isEqualTo(TimeUnit.MILLISECONDS.toNanos(100));
+    // Percentiles are upper bounds within a factor of two.
+    long median = actions.getPercentileNanos(50);
+    assertThat(median).isAtLeast(TimeUnit.MILLISECONDS.toNanos(50));
+    assertThat(median).isAtMost(TimeUnit.MILLISECONDS.toNanos(100));
+    assertThat(actions.getPercentileNanos(100)).isEqualTo(actions.getMaxNanos());
+  }
+
+  @Test
+  public void testParallelMultiProfileStatisticsMatchSequential() throws Exception {
+    List<String> files = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      files.add(writeProfile("profile" + i + ".dat", 10 * (i + 1)).getPathString());
+    }
+    files.add("missing.dat");
+
+    MultiProfileStatistics sequential =
+        new MultiProfileStatistics(profileDir, "workspace", files, SILENT_LISTENER, false, 1);
+    MultiProfileStatistics parallel =
+        new MultiProfileStatistics(profileDir, "workspace", files, SILENT_LISTENER, false, 3);
+
+    assertThat(parallel).containsExactlyElementsIn(sequential);
+    PhaseSummaryStatistics expected = sequential.getSummaryStatistics();
+    PhaseSummaryStatistics actual = parallel.getSummaryStatistics();
+    assertThat(ImmutableList.copyOf(actual)).containsExactlyElementsIn(expected).inOrder();
+    for (ProfilePhase phase : expected) {
+      assertThat(actual.getDurationNanos(phase)).isEqualTo(expected.getDurationNanos(phase));
+    }
+    assertThat(actual.getTotalDuration()).isEqualTo(expected.getTotalDuration());
+    assertThat(parallel.getSummaryPhaseStatistics(ProfilePhase.EXECUTE).getPhaseDurationNanos())
+        .isEqualTo(
+            sequential.getSummaryPhaseStatistics(ProfilePhase.EXECUTE).getPhaseDurationNanos());
+    assertThat(parallel.getMissingActionsCount()).isEqualTo(sequential.getMissingActionsCount());
+  }
+}
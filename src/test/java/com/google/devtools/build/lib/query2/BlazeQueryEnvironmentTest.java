@@ -0,0 +1,299 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.packages.Rule;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.packages.util.PackageLoadingTestCase;
+import com.google.devtools.build.lib.pkgcache.PathPackageLocator;
+import com.google.devtools.build.lib.query2.engine.Callback;
+import com.google.devtools.build.lib.query2.engine.QueryEnvironment;
+import com.google.devtools.build.lib.query2.engine.QueryEnvironment.Argument;
+import com.google.devtools.build.lib.query2.engine.QueryEnvironment.ArgumentType;
+import com.google.devtools.build.lib.query2.engine.QueryEnvironment.QueryFunction;
+import com.google.devtools.build.lib.query2.engine.QueryEnvironment.QueryTaskFuture;
+import com.google.devtools.build.lib.query2.engine.QueryEvalResult;
+import com.google.devtools.build.lib.query2.engine.QueryException;
+import com.google.devtools.build.lib.query2.engine.QueryExpression;
+import com.google.devtools.build.lib.query2.engine.QueryUtil;
+import com.google.devtools.build.lib.query2.engine.QueryUtil.AggregateAllOutputFormatterCallback;
+import com.google.devtools.build.lib.query2.engine.SkyframeRestartQueryException;
+import com.google.devtools.build.lib.query2.engine.VariableContext;
+import com.google.devtools.build.lib.query2.output.AspectResolver;
+import com.google.devtools.build.lib.query2.output.OutputFormatter;
+import com.google.devtools.build.lib.query2.output.QueryOptions;
+import com.google.devtools.build.lib.query2.output.QueryOptions.OrderOutput;
+import com.google.devtools.build.lib.query2.output.QueryOutputUtils;
+import com.google.devtools.common.options.Options;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link BlazeQueryEnvironment}, in particular that evaluating a query on more than one
+ * thread gives the same result as evaluating it sequentially.
+ */
+@RunWith(JUnit4.class)
+public class BlazeQueryEnvironmentTest extends PackageLoadingTestCase {
+  private static final ImmutableList<String> QUERIES =
+      ImmutableList.of(
+          "deps(//p:top)",
+          "deps(//p:top, 2)",
+          "rdeps(//p/..., //p/leaf)",
+          "//p/... - deps(//p:mid1)",
+          "deps(//p:top) + rdeps(//p/..., //p/leaf)",
+          "deps(//p:top) ^ rdeps(//p/..., //p/leaf)",
+          "//p/... ^ deps(//p:mid2) ^ rdeps(//p/..., //p/leaf:leaf2)",
+          "somepath(//p:top, //p/leaf:leaf2)",
+          "allpaths(//p:top, //p/leaf)",
+          "kind(sh_library, deps(//p:top))",
+          "labels(deps, //p:top)",
+          "let x = deps(//p:mid1) in $x ^ deps(//p:mid2)",
+          "siblings(//p/leaf) ^ deps(//p:top)",
+          "deps(//p:files) - kind('source file', //p/...)");
+
+  @Before
+  public final void createPackages() throws Exception {
+    scratch.file(
+        "p/BUILD",
+        "sh_library(name = 'top', srcs = ['top.sh'], deps = [':mid1', ':mid2'])",
+        "sh_library(name = 'mid1', deps = ['//p/leaf', ':mid3'])",
+        "sh_library(name = 'mid2', deps = ['//p/leaf:leaf2', ':mid3'])",
+        "sh_library(name = 'mid3', deps = ['//p/leaf'])",
+        "sh_library(name = 'other', deps = ['//p/leaf:leaf2'])",
+        "filegroup(name = 'files', srcs = ['top.sh', ':mid3'])");
+    scratch.file(
+        "p/leaf/BUILD",
+        "sh_library(name = 'leaf', srcs = ['leaf.sh'])",
+        "sh_library(name = 'leaf2', deps = [':leaf'])",
+        "sh_library(name = 'unused')");
+  }
+
+  private BlazeQueryEnvironment newEnvironment(int threads, QueryFunction... extraFunctions) {
+    return new BlazeQueryEnvironment(
+        getPackageManager().newTransitiveLoader(),
+        getPackageManager(),
+        getPackageManager().newTargetPatternEvaluator(),
+        /*keepGoing=*/ false,
+        /*strictScope=*/ true,
+        /*loadingPhaseThreads=*/ 4,
+        threads,
+        Rule.ALL_LABELS,
+        reporter,
+        ImmutableSet.of(),
+        ImmutableList.copyOf(extraFunctions));
+  }
+
+  private SkyQueryEnvironment newSkyQueryEnvironment() {
+    return new SkyQueryEnvironment(
+        /*keepGoing=*/ false,
+        /*loadingPhaseThreads=*/ 4,
+        reporter,
+        ImmutableSet.of(),
+        QueryEnvironment.DEFAULT_QUERY_FUNCTIONS,
+        /*parserPrefix=*/ "",
+        skyframeExecutor,
+        ImmutableList.of("//p/..."),
+        new PathPackageLocator(outputBase, ImmutableList.of(rootDirectory)),
+        /*blockUniverseEvaluationErrors=*/ false);
+  }
+
+  /** Evaluates the query and returns its output with the label output formatter. */
+  private String evaluate(String query, int threads, OrderOutput orderOutput) throws Exception {
+    BlazeQueryEnvironment env = newEnvironment(threads);
+    QueryOptions options = Options.getDefaults(QueryOptions.class);
+    options.orderOutput = orderOutput;
+    OutputFormatter formatter =
+        OutputFormatter.getFormatter(OutputFormatter.getDefaultFormatters(), "label");
+    AggregateAllOutputFormatterCallback<Target, Set<Target>> targets =
+        QueryUtil.newOrderedAggregateAllOutputFormatterCallback(env);
+    QueryEvalResult result = env.evaluateQuery(QueryExpression.parse(query, env), targets);
+    assertThat(result.getSuccess()).isTrue();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    QueryOutputUtils.output(
+        options,
+        result,
+        targets.getResult(),
+        formatter,
+        out,
+        AspectResolver.Mode.OFF.createResolver(getPackageManager(), reporter));
+    return out.toString("UTF-8");
+  }
+
+  private static List<String> sortedLines(String output) {
+    List<String> lines = new ArrayList<>(ImmutableList.copyOf(output.split("\n")));
+    Collections.sort(lines);
+    return lines;
+  }
+
+  private static Set<String> labels(Iterable<Target> targets) {
+    ImmutableSet.Builder<String> result = ImmutableSet.builder();
+    for (Target target : targets) {
+      result.add(target.getLabel().toString());
+    }
+    return result.build();
+  }
+
+  private static Set<String> evaluateLabels(AbstractBlazeQueryEnvironment<Target> env, String query)
+      throws Exception {
+    AggregateAllOutputFormatterCallback<Target, Set<Target>> callback =
+        QueryUtil.newOrderedAggregateAllOutputFormatterCallback(env);
+    env.evaluateQuery(query, callback);
+    return labels(callback.getResult());
+  }
+
+  @Test
+  public void orderedOutputDoesNotDependOnThreads() throws Exception {
+    for (String query : QUERIES) {
+      for (OrderOutput orderOutput : ImmutableList.of(OrderOutput.FULL, OrderOutput.AUTO)) {
+        String expected = evaluate(query, 1, orderOutput);
+        for (int threads : new int[] {2, 4, 8}) {
+          assertThat(evaluate(query, threads, orderOutput)).isEqualTo(expected);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void unorderedOutputDoesNotDependOnThreads() throws Exception {
+    for (String query : QUERIES) {
+      List<String> expected = sortedLines(evaluate(query, 1, OrderOutput.NO));
+      for (int threads : new int[] {2, 4, 8}) {
+        assertThat(sortedLines(evaluate(query, threads, OrderOutput.NO))).isEqualTo(expected);
+      }
+    }
+  }
+
+  @Test
+  public void intersectionOfTwoOperands() throws Exception {
+    String query = "(//p:mid1 + //p:mid2 + //p:mid3) ^ (//p:mid3 + //p:other + //p:mid1)";
+    for (int threads : new int[] {1, 4}) {
+      assertThat(evaluateLabels(newEnvironment(threads), query))
+          .containsExactly("//p:mid1", "//p:mid3");
+    }
+    assertThat(evaluateLabels(newSkyQueryEnvironment(), query))
+        .containsExactly("//p:mid1", "//p:mid3");
+  }
+
+  @Test
+  public void intersectionOfManyOperands() throws Exception {
+    String query =
+        "//p/... ^ deps(//p:top) ^ rdeps(//p/..., //p/leaf:leaf2) ^ kind(sh_library, //p:*)";
+    for (int threads : new int[] {1, 4}) {
+      assertThat(evaluateLabels(newEnvironment(threads), query))
+          .containsExactly("//p:top", "//p:mid2");
+    }
+    assertThat(evaluateLabels(newSkyQueryEnvironment(), query))
+        .containsExactly("//p:top", "//p:mid2");
+  }
+
+  @Test
+  public void intersectionWithEmptyOperand() throws Exception {
+    for (String query :
+        ImmutableList.of(
+            "//p:mid1 ^ //p:mid2 ^ //p/...",
+            "//p/... ^ //p:mid1 ^ //p:mid2",
+            "deps(//p:top) ^ //p:other")) {
+      for (int threads : new int[] {1, 4}) {
+        assertThat(evaluateLabels(newEnvironment(threads), query)).isEmpty();
+      }
+      assertThat(evaluateLabels(newSkyQueryEnvironment(), query)).isEmpty();
+    }
+  }
+
+  @Test
+  public void intersectionKeepsOrderOfLeftHandSide() throws Exception {
+    String query = "deps(//p:top) ^ //p/... ^ //p/leaf/...";
+    for (int threads : new int[] {1, 4}) {
+      assertThat(evaluate(query, threads, OrderOutput.FULL))
+          .isEqualTo(evaluate("deps(//p:top) intersect //p/leaf/...", 1, OrderOutput.FULL));
+    }
+  }
+
+  @Test
+  public void intersectionFailsWhenRightHandSideFails() throws Exception {
+    String query = "//p/... ^ //p:mid1 ^ //p:nonexistent";
+    for (int threads : new int[] {1, 4}) {
+      try {
+        evaluateLabels(newEnvironment(threads), query);
+        fail();
+      } catch (QueryException e) {
+        assertThat(e).hasMessageThat().contains("//p:nonexistent");
+      }
+    }
+    try {
+      evaluateLabels(newSkyQueryEnvironment(), query);
+      fail();
+    } catch (QueryException e) {
+      assertThat(e).hasMessageThat().contains("//p:nonexistent");
+    }
+  }
+
+  /** A function that throws a {@link SkyframeRestartQueryException} while it is evaluated. */
+  private static class RestartFunction implements QueryFunction {
+    @Override
+    public String getName() {
+      return "restart";
+    }
+
+    @Override
+    public int getMandatoryArguments() {
+      return 1;
+    }
+
+    @Override
+    public Iterable<ArgumentType> getArgumentTypes() {
+      return ImmutableList.of(ArgumentType.EXPRESSION);
+    }
+
+    @Override
+    public <T> QueryTaskFuture<Void> eval(
+        QueryEnvironment<T> env,
+        VariableContext<T> context,
+        QueryExpression expression,
+        List<Argument> args,
+        Callback<T> callback) {
+      return env.eval(
+          args.get(0).getExpression(),
+          context,
+          partialResult -> {
+            throw new SkyframeRestartQueryException();
+          });
+    }
+  }
+
+  @Test
+  public void uncheckedExceptionsOfTasksArePropagated() throws Exception {
+    for (int threads : new int[] {1, 4}) {
+      BlazeQueryEnvironment env = newEnvironment(threads, new RestartFunction());
+      try {
+        evaluateLabels(env, "//p:mid1 + restart(deps(//p:mid2)) ^ //p/...");
+        fail();
+      } catch (SkyframeRestartQueryException expected) {
+        // Expected.
+      }
+    }
+  }
+}
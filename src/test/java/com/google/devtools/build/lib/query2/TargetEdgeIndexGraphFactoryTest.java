@@ -0,0 +1,266 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.clock.BlazeClock;
+import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.cmdline.PackageIdentifier;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.packages.util.PackageLoadingTestCase;
+import com.google.devtools.build.lib.pkgcache.PathPackageLocator;
+import com.google.devtools.build.lib.query2.engine.QueryEnvironment;
+import com.google.devtools.build.lib.query2.engine.QueryUtil;
+import com.google.devtools.build.lib.query2.engine.QueryUtil.AggregateAllOutputFormatterCallback;
+import com.google.devtools.build.lib.skyframe.PackageLookupValue;
+import com.google.devtools.build.lib.skyframe.PackageLookupValue.BuildFileName;
+import com.google.devtools.build.lib.skyframe.TargetEdgeIndex;
+import com.google.devtools.build.lib.skyframe.TransitiveTraversalValue;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.skyframe.EvaluationResult;
+import com.google.devtools.build.skyframe.SkyKey;
+import com.google.devtools.build.skyframe.SkyValue;
+import com.google.devtools.build.skyframe.WalkableGraph;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link TargetEdgeIndexGraphFactory}. */
+@RunWith(JUnit4.class)
+public class TargetEdgeIndexGraphFactoryTest extends PackageLoadingTestCase {
+  private static final ImmutableList<String> UNIVERSE = ImmutableList.of("//x/...");
+
+  private Path indexFile;
+  private TargetEdgeIndex index;
+
+  @Before
+  public final void createPackagesAndIndex() throws Exception {
+    scratch.file("x/a/BUILD", "sh_library(name = 'a')");
+    scratch.file("x/b/BUILD", "sh_library(name = 'b', deps = ['//x/a'])");
+    indexFile = outputBase.getRelative("query_index/target_edges");
+    FileSystemUtils.createDirectoryAndParents(indexFile.getParentDirectory());
+    index = TargetEdgeIndex.load(indexFile, BlazeClock.instance());
+  }
+
+  @Override
+  protected boolean doPackageLoadingChecks() {
+    // changedSkylarkFileInOtherPackageRootIsDetected uses more than one package path entry.
+    return false;
+  }
+
+  private SkyKey universeKey() {
+    return skyframeExecutor.getUniverseKey(UNIVERSE, "");
+  }
+
+  private WalkableGraph prepare() throws Exception {
+    EvaluationResult<SkyValue> result =
+        new TargetEdgeIndexGraphFactory(skyframeExecutor, index)
+            .prepareAndGet(ImmutableSet.of(universeKey()), 1, reporter);
+    assertThat(result.hasError()).isFalse();
+    return result.getWalkableGraph();
+  }
+
+  /** Returns whether the universe was evaluated by Skyframe since the last server restart. */
+  private boolean universeWasLoaded() throws InterruptedException {
+    return skyframeExecutor.getEvaluatorForTesting().getExistingValue(universeKey()) != null;
+  }
+
+  private static Set<Label> getReverseDeps(WalkableGraph graph, String label) throws Exception {
+    SkyKey key = TransitiveTraversalValue.key(Label.parseAbsolute(label));
+    Set<Label> result = new HashSet<>();
+    for (SkyKey rdep : graph.getReverseDeps(ImmutableList.of(key)).get(key)) {
+      if (rdep.functionName().equals(Label.TRANSITIVE_TRAVERSAL)) {
+        result.add((Label) rdep.argument());
+      }
+    }
+    return result;
+  }
+
+  /** Records the edges of the given package, and nothing else. */
+  private void indexPackage(String name) throws Exception {
+    index.update(
+        getPackageManager().getPackage(reporter, PackageIdentifier.createInMainRepo(name)),
+        packageId -> PackageLookupValue.success(rootDirectory, BuildFileName.BUILD));
+  }
+
+  /** Replaces the server with a new one, which shares nothing but the saved index with it. */
+  private void restartServer() throws Exception {
+    index.save();
+    initializeSkyframeExecutor();
+    index = TargetEdgeIndex.load(indexFile, BlazeClock.instance());
+  }
+
+  private Set<Target> evaluateSkyQuery(String query) throws Exception {
+    SkyQueryEnvironment env =
+        new SkyQueryEnvironment(
+            /*keepGoing=*/ false,
+            /*loadingPhaseThreads=*/ 1,
+            reporter,
+            ImmutableSet.of(),
+            QueryEnvironment.DEFAULT_QUERY_FUNCTIONS,
+            /*parserPrefix=*/ "",
+            new TargetEdgeIndexGraphFactory(skyframeExecutor, index),
+            UNIVERSE,
+            new PathPackageLocator(outputBase, ImmutableList.of(rootDirectory)),
+            /*blockUniverseEvaluationErrors=*/ false);
+    AggregateAllOutputFormatterCallback<Target, Set<Target>> callback =
+        QueryUtil.newOrderedAggregateAllOutputFormatterCallback(env);
+    env.evaluateQuery(query, callback);
+    return callback.getResult();
+  }
+
+  private static Set<String> labels(Set<Target> targets) {
+    Set<String> result = new HashSet<>();
+    for (Target target : targets) {
+      result.add(target.getLabel().toString());
+    }
+    return result;
+  }
+
+  @Test
+  public void emptyIndexLoadsUniverse() throws Exception {
+    WalkableGraph graph = prepare();
+
+    assertThat(getReverseDeps(graph, "//x/a:a")).containsExactly(Label.parseAbsolute("//x/b:b"));
+    assertThat(universeWasLoaded()).isTrue();
+    assertThat(index.contains(PackageIdentifier.createInMainRepo("x/a"))).isTrue();
+    assertThat(index.contains(PackageIdentifier.createInMainRepo("x/b"))).isTrue();
+  }
+
+  @Test
+  public void partialIndexLoadsUniverse() throws Exception {
+    indexPackage("x/a");
+    restartServer();
+
+    assertThat(getReverseDeps(prepare(), "//x/a:a"))
+        .containsExactly(Label.parseAbsolute("//x/b:b"));
+    assertThat(universeWasLoaded()).isTrue();
+  }
+
+  @Test
+  public void universeWithForgottenPackageIsLoadedAgain() throws Exception {
+    prepare();
+    index.remove(PackageIdentifier.createInMainRepo("x/b"));
+    restartServer();
+
+    assertThat(getReverseDeps(prepare(), "//x/a:a"))
+        .containsExactly(Label.parseAbsolute("//x/b:b"));
+    assertThat(universeWasLoaded()).isTrue();
+  }
+
+  @Test
+  public void coveredUniverseIsTakenFromIndex() throws Exception {
+    prepare();
+    restartServer();
+    scratch.overwriteFile(
+        "x/b/BUILD",
+        "sh_library(name = 'b', deps = ['//x/a'])",
+        "sh_library(name = 'c', deps = ['//x/a'])");
+
+    // The changed package is loaded again, but the universe is not.
+    assertThat(getReverseDeps(prepare(), "//x/a:a"))
+        .containsExactly(Label.parseAbsolute("//x/b:b"), Label.parseAbsolute("//x/b:c"));
+    assertThat(universeWasLoaded()).isFalse();
+  }
+
+  @Test
+  public void changedSkylarkFileInOtherPackageRootIsDetected() throws Exception {
+    scratch.file("/otherroot/y/BUILD");
+    scratch.file(
+        "/otherroot/y/defs.bzl",
+        "def lib(name):",
+        "  native.sh_library(name = name, deps = ['//x/a'])");
+    setPackageCacheOptions("--package_path=/workspace:/otherroot");
+    scratch.overwriteFile("x/b/BUILD", "load('//y:defs.bzl', 'lib')", "lib(name = 'b')");
+    invalidatePackages();
+    assertThat(getReverseDeps(prepare(), "//x/a:a"))
+        .containsExactly(Label.parseAbsolute("//x/b:b"));
+    restartServer();
+    setPackageCacheOptions("--package_path=/workspace:/otherroot");
+
+    scratch.overwriteFile(
+        "/otherroot/y/defs.bzl", "def lib(name):", "  native.sh_library(name = name)");
+    assertThat(getReverseDeps(prepare(), "//x/a:a")).isEmpty();
+    assertThat(universeWasLoaded()).isFalse();
+  }
+
+  @Test
+  public void packagesLoadedBySkyframeAreRecorded() throws Exception {
+    skyframeExecutor.setTargetEdgeIndex(index);
+    getPackageManager().getPackage(reporter, PackageIdentifier.createInMainRepo("x/b"));
+    index.awaitPendingUpdates();
+
+    assertThat(index.getDirectDeps(Label.parseAbsolute("//x/b:b")))
+        .containsExactly(Label.parseAbsolute("//x/a:a"));
+    assertThat(index.contains(PackageIdentifier.createInMainRepo("x/a"))).isFalse();
+  }
+
+  @Test
+  public void directoriesListedByGlobsAreStamped() throws Exception {
+    scratch.file("x/g/BUILD", "sh_library(name = 'g', srcs = glob(['src/**/*.sh']))");
+    scratch.dir("x/g/src/empty").setLastModifiedTime(0);
+    skyframeExecutor.setTargetEdgeIndex(index);
+    PackageIdentifier g = PackageIdentifier.createInMainRepo("x/g");
+    getPackageManager().getPackage(reporter, g);
+    index.awaitPendingUpdates();
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      assertThat(index.getStalePackages(executor)).doesNotContain(g);
+
+      // The directory contains no sources of the package, but a new file in it matches the glob.
+      scratch.file("x/g/src/empty/new.sh");
+      assertThat(index.getStalePackages(executor)).contains(g);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void skyQueryWithEmptyIndex() throws Exception {
+    restartServer();
+
+    assertThat(labels(evaluateSkyQuery("rdeps(//x/..., //x/a)")))
+        .containsExactly("//x/a:a", "//x/b:b");
+    assertThat(labels(evaluateSkyQuery("allrdeps(//x/a)"))).containsExactly("//x/a:a", "//x/b:b");
+  }
+
+  @Test
+  public void skyQueryWithPartialIndex() throws Exception {
+    indexPackage("x/a");
+    restartServer();
+
+    assertThat(labels(evaluateSkyQuery("rdeps(//x/..., //x/a)")))
+        .containsExactly("//x/a:a", "//x/b:b");
+    assertThat(labels(evaluateSkyQuery("allrdeps(//x/a)"))).containsExactly("//x/a:a", "//x/b:b");
+  }
+
+  @Test
+  public void skyQueryWithCoveredUniverse() throws Exception {
+    evaluateSkyQuery("rdeps(//x/..., //x/a)");
+    restartServer();
+
+    assertThat(labels(evaluateSkyQuery("rdeps(//x/..., //x/a)")))
+        .containsExactly("//x/a:a", "//x/b:b");
+    assertThat(universeWasLoaded()).isFalse();
+  }
+}
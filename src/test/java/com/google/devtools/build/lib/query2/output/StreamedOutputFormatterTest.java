@@ -0,0 +1,210 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2.output;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.devtools.build.lib.cmdline.PackageIdentifier;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.packages.util.PackageLoadingTestCase;
+import com.google.devtools.build.lib.query2.engine.ThreadSafeOutputFormatterCallback;
+import com.google.devtools.build.lib.query2.proto.proto2api.Build;
+import com.google.devtools.common.options.Options;
+import com.google.protobuf.InvalidProtocolBufferException;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Tests that the proto and XML formatters, which format and write targets in chunks of {@link
+ * ParallelFormattingOutputFormatterCallback#CHUNK_SIZE}, write the same bytes as a single {@link
+ * Build.QueryResult} or DOM document containing all the targets.
+ */
+@RunWith(JUnit4.class)
+public class StreamedOutputFormatterTest extends PackageLoadingTestCase {
+  private static final int MANY = 2 * ParallelFormattingOutputFormatterCallback.CHUNK_SIZE + 37;
+
+  private ProtoOutputFormatter protoFormatter;
+  private XmlOutputFormatter xmlFormatter;
+
+  @Before
+  public final void createPackagesAndFormatters() throws Exception {
+    scratch.file(
+        "few/BUILD",
+        "sh_library(name = 'lib', srcs = ['lib.sh'], deps = [':data'])",
+        "filegroup(",
+        "    name = 'data',",
+        "    srcs = ['a.txt', 'b.txt'],",
+        "    visibility = ['//visibility:public'],",
+        ")");
+    List<String> lines = new ArrayList<>();
+    for (int i = 0; i < MANY; i++) {
+      lines.add(
+          String.format(
+              "sh_library(name = 'lib%d', srcs = ['lib%d.sh'], deps = ['//few:data'%s])",
+              i, i, i > 0 ? String.format(", ':lib%d'", i - 1) : ""));
+    }
+    scratch.file("many/BUILD", lines.toArray(new String[0]));
+
+    QueryOptions options = Options.getDefaults(QueryOptions.class);
+    AspectResolver aspectResolver = new PreciseAspectResolver(getPackageManager(), reporter);
+    protoFormatter = new ProtoOutputFormatter();
+    protoFormatter.setOptions(options, aspectResolver);
+    xmlFormatter = new XmlOutputFormatter();
+    xmlFormatter.setOptions(options, aspectResolver);
+  }
+
+  private List<Target> getTargets(String packageName) throws Exception {
+    return ImmutableList.copyOf(
+        getPackageManager()
+            .getPackage(reporter, PackageIdentifier.createInMainRepo(packageName))
+            .getTargets()
+            .values());
+  }
+
+  /** Returns the serialization of a single {@link Build.QueryResult} with the given targets. */
+  private byte[] protoAsOneMessage(List<Target> targets) throws Exception {
+    Build.QueryResult.Builder queryResult = Build.QueryResult.newBuilder();
+    for (Target target : targets) {
+      queryResult.addTarget(protoFormatter.toTargetProtoBuffer(target));
+    }
+    return queryResult.build().toByteArray();
+  }
+
+  /** Returns the serialization of a single DOM document with the given targets. */
+  private byte[] xmlAsOneDocument(List<Target> targets) throws Exception {
+    Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+    doc.setXmlVersion("1.1");
+    Element queryElem = doc.createElement("query");
+    queryElem.setAttribute("version", "2");
+    doc.appendChild(queryElem);
+    for (Target target : targets) {
+      queryElem.appendChild(xmlFormatter.createTargetElement(doc, target));
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Transformer transformer = TransformerFactory.newInstance().newTransformer();
+    transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+    transformer.transform(new DOMSource(doc), new StreamResult(out));
+    return out.toByteArray();
+  }
+
+  /** Passes the targets to the callback in batches of the given size, then closes it. */
+  private static void stream(
+      ThreadSafeOutputFormatterCallback<Target> callback,
+      List<Target> targets,
+      int batchSize,
+      boolean failFast)
+      throws Exception {
+    callback.start();
+    for (List<Target> batch : Iterables.partition(targets, batchSize)) {
+      callback.processOutput(batch);
+    }
+    callback.close(failFast);
+  }
+
+  private void assertProtoIsOneMessage(List<Target> targets) throws Exception {
+    byte[] expected = protoAsOneMessage(targets);
+    for (int threads : new int[] {1, 4}) {
+      for (int batchSize : new int[] {7, Math.max(targets.size(), 1)}) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        stream(protoFormatter.createStreamCallback(out, threads), targets, batchSize, false);
+        assertThat(out.toByteArray()).isEqualTo(expected);
+      }
+    }
+  }
+
+  private void assertXmlIsOneDocument(List<Target> targets) throws Exception {
+    String expected = new String(xmlAsOneDocument(targets), UTF_8);
+    for (int threads : new int[] {1, 4}) {
+      for (int batchSize : new int[] {7, Math.max(targets.size(), 1)}) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        stream(xmlFormatter.createStreamCallback(out, threads), targets, batchSize, false);
+        assertThat(new String(out.toByteArray(), UTF_8)).isEqualTo(expected);
+      }
+    }
+  }
+
+  @Test
+  public void protoWithFewerTargetsThanAChunk() throws Exception {
+    List<Target> targets = getTargets("few");
+    assertThat(targets.size()).isLessThan(ParallelFormattingOutputFormatterCallback.CHUNK_SIZE);
+    assertProtoIsOneMessage(targets);
+  }
+
+  @Test
+  public void protoWithMoreTargetsThanAChunk() throws Exception {
+    List<Target> targets = getTargets("many");
+    assertThat(targets.size()).isGreaterThan(ParallelFormattingOutputFormatterCallback.CHUNK_SIZE);
+    assertProtoIsOneMessage(targets);
+  }
+
+  @Test
+  public void protoWithoutTargets() throws Exception {
+    assertProtoIsOneMessage(ImmutableList.<Target>of());
+  }
+
+  @Test
+  public void xmlWithFewerTargetsThanAChunk() throws Exception {
+    assertXmlIsOneDocument(getTargets("few"));
+  }
+
+  @Test
+  public void xmlWithMoreTargetsThanAChunk() throws Exception {
+    assertXmlIsOneDocument(getTargets("many"));
+  }
+
+  @Test
+  public void xmlWithoutTargets() throws Exception {
+    assertXmlIsOneDocument(ImmutableList.<Target>of());
+  }
+
+  @Test
+  public void failedQueryWritesUnparseableProto() throws Exception {
+    List<Target> targets = getTargets("many");
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    stream(protoFormatter.createStreamCallback(out, 4), targets, 7, true);
+    byte[] complete = protoAsOneMessage(targets);
+    // Written as the targets were formatted, not held back until the end.
+    assertThat(out.size()).isEqualTo(complete.length + 1);
+    try {
+      Build.QueryResult.parseFrom(out.toByteArray());
+      fail("expected InvalidProtocolBufferException");
+    } catch (InvalidProtocolBufferException e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void failedQueryWritesNoXmlEndTag() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    stream(xmlFormatter.createStreamCallback(out, 4), getTargets("many"), 7, true);
+    assertThat(new String(out.toByteArray(), UTF_8)).doesNotContain("</query>");
+  }
+}
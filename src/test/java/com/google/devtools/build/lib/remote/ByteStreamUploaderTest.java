@@ -30,9 +30,12 @@ import com.google.devtools.remoteexecution.v1test.Digest;
 import com.google.devtools.remoteexecution.v1test.RequestMetadata;
 import com.google.protobuf.ByteString;
 import io.grpc.BindableService;
+import io.grpc.CallOptions;
 import io.grpc.Channel;
+import io.grpc.ClientCall;
 import io.grpc.Context;
 import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
 import io.grpc.Server;
 import io.grpc.ServerCall;
 import io.grpc.ServerCall.Listener;
@@ -595,6 +598,97 @@ public class ByteStreamUploaderTest {
     }
   }
 
+  @Test(timeout = 20000)
+  public void concurrentUploadsShouldBeBounded() throws Exception {
+    withEmptyMetadata.attach();
+    Retrier retrier = new Retrier(() -> mockBackoff, (Status s) -> true);
+    int maxConcurrentUploads = 2;
+    ByteStreamUploader uploader =
+        new ByteStreamUploader(
+            INSTANCE_NAME, channel, null, 3, retrier, retryService, maxConcurrentUploads);
+
+    AtomicInteger inFlight = new AtomicInteger();
+    AtomicInteger maxInFlight = new AtomicInteger();
+    serviceRegistry.addService(
+        new ByteStreamImplBase() {
+          @Override
+          public StreamObserver<WriteRequest> write(StreamObserver<WriteResponse> response) {
+            int current = inFlight.incrementAndGet();
+            maxInFlight.accumulateAndGet(current, Math::max);
+            return new StreamObserver<WriteRequest>() {
+              private long size;
+
+              @Override
+              public void onNext(WriteRequest request) {
+                size += request.getData().size();
+              }
+
+              @Override
+              public void onError(Throwable t) {
+                fail("onError should never be called.");
+              }
+
+              @Override
+              public void onCompleted() {
+                try {
+                  // Keep the call open for a while, so that other uploads overlap with it.
+                  Thread.sleep(10);
+                } catch (InterruptedException e) {
+                  throw new AssertionError(e);
+                }
+                inFlight.decrementAndGet();
+                response.onNext(WriteResponse.newBuilder().setCommittedSize(size).build());
+                response.onCompleted();
+              }
+            };
+          }
+        });
+
+    List<Chunker> chunkers = new ArrayList<>();
+    Random rand = new Random();
+    for (int i = 0; i < 20; i++) {
+      byte[] blob = new byte[CHUNK_SIZE * 2];
+      rand.nextBytes(blob);
+      chunkers.add(new Chunker(blob, CHUNK_SIZE));
+    }
+    uploader.uploadBlobs(chunkers);
+
+    assertThat(maxInFlight.get()).isAtMost(maxConcurrentUploads);
+    blockUntilInternalStateConsistent(uploader);
+  }
+
+  @Test(timeout = 10000)
+  public void uploadFailingToStartShouldReleaseItsPermit() throws Exception {
+    withEmptyMetadata.attach();
+    Retrier retrier = new Retrier(() -> mockBackoff, (Status s) -> true);
+    Channel brokenChannel =
+        new Channel() {
+          @Override
+          public <ReqT, RespT> ClientCall<ReqT, RespT> newCall(
+              MethodDescriptor<ReqT, RespT> method, CallOptions callOptions) {
+            throw new IllegalStateException("broken channel");
+          }
+
+          @Override
+          public String authority() {
+            return channel.authority();
+          }
+        };
+    ByteStreamUploader uploader =
+        new ByteStreamUploader(INSTANCE_NAME, brokenChannel, null, 3, retrier, retryService, 1);
+
+    // The second upload would wait forever if the first one kept the only permit.
+    for (byte i = 0; i < 2; i++) {
+      try {
+        uploader.uploadBlob(new Chunker(new byte[] {i}, CHUNK_SIZE));
+        fail("Should have thrown an exception.");
+      } catch (IllegalStateException e) {
+        assertThat(e).hasMessageThat().isEqualTo("broken channel");
+      }
+    }
+    assertThat(uploader.uploadsInProgress()).isFalse();
+  }
+
   private static class NoopStreamObserver implements StreamObserver<WriteRequest> {
     @Override
     public void onNext(WriteRequest writeRequest) {
@@ -0,0 +1,145 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.remote;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.remote.ContentDefinedChunker.Segment;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.FileSystem.HashFunction;
+import com.google.devtools.remoteexecution.v1test.Digest;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ContentDefinedChunker}. */
+@RunWith(JUnit4.class)
+public class ContentDefinedChunkerTest {
+
+  private final ContentDefinedChunker chunker = new ContentDefinedChunker(1024);
+
+  @Before
+  public final void setUp() {
+    FileSystem.setDigestFunctionForTesting(HashFunction.SHA1);
+  }
+
+  private static byte[] randomBytes(int size) {
+    byte[] data = new byte[size];
+    new Random(17).nextBytes(data);
+    return data;
+  }
+
+  private List<Segment> split(byte[] data) throws IOException {
+    return chunker.split(new ByteArrayInputStream(data));
+  }
+
+  private static Set<Digest> digests(List<Segment> segments) {
+    Set<Digest> digests = new HashSet<>();
+    for (Segment segment : segments) {
+      digests.add(segment.getDigest());
+    }
+    return digests;
+  }
+
+  @Test
+  public void chunksCoverTheData() throws Exception {
+    byte[] data = randomBytes(100 * 1024 + 17);
+    List<Segment> segments = split(data);
+
+    long offset = 0;
+    for (int i = 0; i < segments.size(); i++) {
+      Segment segment = segments.get(i);
+      long size = segment.getDigest().getSizeBytes();
+      assertThat(segment.getOffset()).isEqualTo(offset);
+      assertThat(size).isAtMost(4 * 1024L);
+      if (i < segments.size() - 1) {
+        assertThat(size).isAtLeast(256L);
+      }
+      byte[] chunk = Arrays.copyOfRange(data, (int) offset, (int) (offset + size));
+      assertThat(segment.getDigest()).isEqualTo(Digests.computeDigest(chunk));
+      offset += size;
+    }
+    assertThat(offset).isEqualTo(data.length);
+    assertThat(segments.size()).isGreaterThan(100 * 1024 / (4 * 1024));
+  }
+
+  @Test
+  public void emptyInputHasNoChunks() throws Exception {
+    assertThat(split(new byte[0])).isEmpty();
+  }
+
+  @Test
+  public void insertionOnlyChangesNearbyChunks() throws Exception {
+    byte[] data = randomBytes(256 * 1024);
+    byte[] edited = new byte[data.length + 10];
+    int insertAt = data.length / 3;
+    System.arraycopy(data, 0, edited, 0, insertAt);
+    System.arraycopy(data, insertAt, edited, insertAt + 10, data.length - insertAt);
+
+    Set<Digest> before = digests(split(data));
+    List<Segment> after = split(edited);
+    int changed = 0;
+    for (Segment segment : after) {
+      if (!before.contains(segment.getDigest())) {
+        changed++;
+      }
+    }
+    assertThat(changed).isAtLeast(1);
+    assertThat(changed).isAtMost(3);
+  }
+
+  @Test
+  public void manifestRoundTrip() throws Exception {
+    ImmutableList<Digest> chunks =
+        ImmutableList.of(
+            Digests.computeDigestUtf8("a"),
+            Digests.computeDigestUtf8("bc"),
+            Digests.computeDigestUtf8("a"));
+    assertThat(ContentDefinedChunker.decodeManifest(ContentDefinedChunker.encodeManifest(chunks)))
+        .containsExactlyElementsIn(chunks)
+        .inOrder();
+    try {
+      ContentDefinedChunker.decodeManifest("abc\n".getBytes("UTF-8"));
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+
+  @Test
+  public void chunkedBlobResourceName() throws Exception {
+    Digest blob = Digests.computeDigestUtf8("blob");
+    Digest manifest = Digests.computeDigestUtf8("manifest");
+    String resourceName =
+        "instance/uploads/uuid/" + ContentDefinedChunker.chunkedBlobPath(blob, manifest);
+    assertThat(ContentDefinedChunker.parseChunkedBlobDigest(resourceName)).isEqualTo(blob);
+    // Servers that do not know about chunked blobs see the manifest digest at the end.
+    assertThat(resourceName)
+        .endsWith("/blobs/" + manifest.getHash() + "/" + manifest.getSizeBytes());
+    assertThat(
+            ContentDefinedChunker.parseChunkedBlobDigest(
+                "instance/uploads/uuid/blobs/" + blob.getHash() + "/" + blob.getSizeBytes()))
+        .isNull();
+  }
+}
@@ -26,10 +26,12 @@ import com.google.bytestream.ByteStreamProto.ReadResponse;
 import com.google.bytestream.ByteStreamProto.WriteRequest;
 import com.google.bytestream.ByteStreamProto.WriteResponse;
 import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.actions.ActionInput;
 import com.google.devtools.build.lib.actions.ActionInputHelper;
 import com.google.devtools.build.lib.authandtls.AuthAndTLSOptions;
 import com.google.devtools.build.lib.authandtls.GrpcUtils;
 import com.google.devtools.build.lib.remote.Digests.ActionKey;
+import com.google.devtools.build.lib.remote.TreeNodeRepository.TreeNode;
 import com.google.devtools.build.lib.testutil.Scratch;
 import com.google.devtools.build.lib.util.io.FileOutErr;
 import com.google.devtools.build.lib.vfs.FileSystem;
@@ -41,6 +43,7 @@ import com.google.devtools.common.options.Options;
 import com.google.devtools.remoteexecution.v1test.Action;
 import com.google.devtools.remoteexecution.v1test.ActionCacheGrpc.ActionCacheImplBase;
 import com.google.devtools.remoteexecution.v1test.ActionResult;
+import com.google.devtools.remoteexecution.v1test.Command;
 import com.google.devtools.remoteexecution.v1test.ContentAddressableStorageGrpc.ContentAddressableStorageImplBase;
 import com.google.devtools.remoteexecution.v1test.Digest;
 import com.google.devtools.remoteexecution.v1test.FindMissingBlobsRequest;
@@ -63,6 +66,10 @@ import io.grpc.inprocess.InProcessServerBuilder;
 import io.grpc.stub.StreamObserver;
 import io.grpc.util.MutableHandlerRegistry;
 import java.io.IOException;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -132,6 +139,10 @@ public class GrpcRemoteCacheTest {
   }
 
   private GrpcRemoteCache newClient() throws IOException {
+    return newClient(Options.getDefaults(RemoteOptions.class));
+  }
+
+  private GrpcRemoteCache newClient(RemoteOptions remoteOptions) throws IOException {
     AuthAndTLSOptions authTlsOptions = Options.getDefaults(AuthAndTLSOptions.class);
     authTlsOptions.authEnabled = true;
     authTlsOptions.authCredentials = "/exec/root/creds.json";
@@ -148,7 +159,6 @@ public class GrpcRemoteCacheTest {
     CallCredentials creds = GrpcUtils.newCallCredentials(
         scratch.resolve(authTlsOptions.authCredentials).getInputStream(),
         authTlsOptions.authScope);
-    RemoteOptions remoteOptions = Options.getDefaults(RemoteOptions.class);
     Retrier retrier = new Retrier(remoteOptions);
     return new GrpcRemoteCache(
         ClientInterceptors.intercept(
@@ -590,4 +600,211 @@ public class GrpcRemoteCacheTest {
         });
     assertThat(client.getCachedActionResult(actionKey)).isNull();
   }
+
+  /** An in-memory CAS that can optionally reassemble blobs from chunk manifests. */
+  private static class FakeChunkingCas {
+    private final Map<Digest, ByteString> blobs = new ConcurrentHashMap<>();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final boolean supportsChunkedBlobs;
+
+    FakeChunkingCas(boolean supportsChunkedBlobs) {
+      this.supportsChunkedBlobs = supportsChunkedBlobs;
+    }
+
+    void register(MutableHandlerRegistry registry) {
+      registry.addService(
+          new ContentAddressableStorageImplBase() {
+            @Override
+            public void findMissingBlobs(
+                FindMissingBlobsRequest request,
+                StreamObserver<FindMissingBlobsResponse> responseObserver) {
+              FindMissingBlobsResponse.Builder response = FindMissingBlobsResponse.newBuilder();
+              for (Digest digest : request.getBlobDigestsList()) {
+                if (!blobs.containsKey(digest)) {
+                  response.addMissingBlobDigests(digest);
+                }
+              }
+              responseObserver.onNext(response.build());
+              responseObserver.onCompleted();
+            }
+          });
+      registry.addService(
+          new ByteStreamImplBase() {
+            @Override
+            public StreamObserver<WriteRequest> write(
+                StreamObserver<WriteResponse> responseObserver) {
+              return new StreamObserver<WriteRequest>() {
+                private String resourceName;
+                private ByteString data = ByteString.EMPTY;
+
+                @Override
+                public void onNext(WriteRequest request) {
+                  if (resourceName == null) {
+                    resourceName = request.getResourceName();
+                  }
+                  data = data.concat(request.getData());
+                }
+
+                @Override
+                public void onCompleted() {
+                  bytesWritten.addAndGet(data.size());
+                  blobs.put(Digests.computeDigest(data.toByteArray()), data);
+                  Digest chunkedBlob =
+                      supportsChunkedBlobs
+                          ? ContentDefinedChunker.parseChunkedBlobDigest(resourceName)
+                          : null;
+                  if (chunkedBlob != null) {
+                    ByteString blob = ByteString.EMPTY;
+                    try {
+                      for (Digest chunk :
+                          ContentDefinedChunker.decodeManifest(data.toByteArray())) {
+                        blob = blob.concat(blobs.get(chunk));
+                      }
+                    } catch (IOException e) {
+                      responseObserver.onError(e);
+                      return;
+                    }
+                    assertThat(Digests.computeDigest(blob.toByteArray())).isEqualTo(chunkedBlob);
+                    blobs.put(chunkedBlob, blob);
+                  }
+                  responseObserver.onNext(
+                      WriteResponse.newBuilder().setCommittedSize(data.size()).build());
+                  responseObserver.onCompleted();
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                  fail("An error occurred: " + t);
+                }
+              };
+            }
+          });
+    }
+  }
+
+  private static byte[] randomBytes(int size) {
+    byte[] data = new byte[size];
+    new Random(42).nextBytes(data);
+    return data;
+  }
+
+  @Test
+  public void testEnsureInputsPresentUploadsEvictedSubtreesAgain() throws Exception {
+    GrpcRemoteCache client = newClient();
+    FakeChunkingCas cas = new FakeChunkingCas(false);
+    cas.register(serviceRegistry);
+    ActionInput foo = ActionInputHelper.fromPath("a/foo");
+    Digest fooDigest = fakeFileCache.createScratchInput(foo, "xyz");
+    TreeNodeRepository repository = new TreeNodeRepository(execRoot, fakeFileCache);
+    TreeNode root = repository.buildFromActionInputs(ImmutableList.of(foo));
+    Command command = Command.newBuilder().addArguments("echo").build();
+
+    client.ensureInputsPresent(repository, execRoot, root, command);
+    assertThat(cas.blobs).containsKey(fooDigest);
+    assertThat(repository.isUploaded(root)).isTrue();
+
+    // The remote cache evicts everything, and remote execution reports the inputs missing.
+    cas.blobs.clear();
+    client.invalidateUploadedInputs(repository);
+    client.ensureInputsPresent(repository, execRoot, root, command);
+    assertTreeUploaded(cas, repository, root, fooDigest);
+
+    // The remote cache evicts everything again, and a new client finds the root missing.
+    cas.blobs.clear();
+    newClient().ensureInputsPresent(repository, execRoot, root, command);
+    assertTreeUploaded(cas, repository, root, fooDigest);
+  }
+
+  @Test
+  public void testEnsureInputsPresentUploadsEvictedSharedSubtreeAgain() throws Exception {
+    GrpcRemoteCache client = newClient();
+    FakeChunkingCas cas = new FakeChunkingCas(false);
+    cas.register(serviceRegistry);
+    ActionInput foo = ActionInputHelper.fromPath("a/foo");
+    ActionInput bar = ActionInputHelper.fromPath("b/bar");
+    Digest fooDigest = fakeFileCache.createScratchInput(foo, "xyz");
+    Digest barDigest = fakeFileCache.createScratchInput(bar, "abc");
+    TreeNodeRepository repository = new TreeNodeRepository(execRoot, fakeFileCache);
+    TreeNode root1 = repository.buildFromActionInputs(ImmutableList.of(foo));
+    TreeNode root2 = repository.buildFromActionInputs(ImmutableList.of(foo, bar));
+    TreeNode shared = root1.getChildEntries().get(0).getChild();
+    assertThat(root2.getChildEntries().get(0).getChild()).isEqualTo(shared);
+    Command command = Command.newBuilder().addArguments("echo").build();
+
+    client.ensureInputsPresent(repository, execRoot, root1, command);
+    assertTreeUploaded(cas, repository, root1, fooDigest);
+
+    // The remote cache evicts the shared subtree only. The second action's root was never
+    // uploaded, so the subtree is still skipped as uploaded.
+    cas.blobs.remove(fooDigest);
+    cas.blobs.remove(repository.getMerkleDigest(shared));
+    client.ensureInputsPresent(repository, execRoot, root2, command);
+    assertThat(cas.blobs).containsKey(barDigest);
+    assertThat(cas.blobs).doesNotContainKey(fooDigest);
+
+    // Remote execution reports the inputs missing, after which the whole tree is checked again.
+    client.invalidateUploadedInputs(repository);
+    client.ensureInputsPresent(repository, execRoot, root2, command);
+    assertTreeUploaded(cas, repository, root2, fooDigest);
+    assertThat(cas.blobs).containsKey(repository.getMerkleDigest(shared));
+  }
+
+  private static void assertTreeUploaded(
+      FakeChunkingCas cas, TreeNodeRepository repository, TreeNode root, Digest fileDigest)
+      throws IOException {
+    assertThat(cas.blobs).containsKey(fileDigest);
+    assertThat(cas.blobs).containsKey(repository.getMerkleDigest(root));
+    assertThat(cas.blobs)
+        .containsKey(repository.getMerkleDigest(root.getChildEntries().get(0).getChild()));
+  }
+
+  @Test
+  public void testChunkedUploadOnlyUploadsChangedChunks() throws Exception {
+    RemoteOptions options = Options.getDefaults(RemoteOptions.class);
+    options.experimentalRemoteChunkedUploadThreshold = 1024;
+    GrpcRemoteCache client = newClient(options);
+    FakeChunkingCas cas = new FakeChunkingCas(true);
+    cas.register(serviceRegistry);
+
+    byte[] content = randomBytes(1024 * 1024);
+    Path file = execRoot.getRelative("large.jar");
+    FileSystemUtils.writeContent(file, content);
+    client.upload(execRoot, ImmutableList.of(file), outErr, ActionResult.newBuilder());
+    assertThat(cas.blobs).containsKey(Digests.computeDigest(content));
+    long firstUpload = cas.bytesWritten.get();
+    assertThat(firstUpload).isAtLeast((long) content.length);
+
+    // Change a few bytes in the middle of the file.
+    content[content.length / 2] ^= 1;
+    content[content.length / 2 + 100] ^= 1;
+    FileSystemUtils.writeContent(file, content);
+    client.upload(execRoot, ImmutableList.of(file), outErr, ActionResult.newBuilder());
+    assertThat(cas.blobs).containsKey(Digests.computeDigest(content));
+    assertThat(cas.bytesWritten.get() - firstUpload).isLessThan(content.length / 8L);
+  }
+
+  @Test
+  public void testChunkedUploadFallsBackIfServerDoesNotReassemble() throws Exception {
+    RemoteOptions options = Options.getDefaults(RemoteOptions.class);
+    options.experimentalRemoteChunkedUploadThreshold = 1024;
+    GrpcRemoteCache client = newClient(options);
+    FakeChunkingCas cas = new FakeChunkingCas(false);
+    cas.register(serviceRegistry);
+
+    byte[] content = randomBytes(256 * 1024);
+    Path file = execRoot.getRelative("large.so");
+    FileSystemUtils.writeContent(file, content);
+    client.upload(execRoot, ImmutableList.of(file), outErr, ActionResult.newBuilder());
+    assertThat(cas.blobs).containsKey(Digests.computeDigest(content));
+
+    // Once the server has shown that it ignores manifests, files are uploaded in full.
+    long bytesWritten = cas.bytesWritten.get();
+    byte[] other = randomBytes(128 * 1024);
+    other[0] ^= 1;
+    Path otherFile = execRoot.getRelative("other.so");
+    FileSystemUtils.writeContent(otherFile, other);
+    client.upload(execRoot, ImmutableList.of(otherFile), outErr, ActionResult.newBuilder());
+    assertThat(cas.blobs).containsKey(Digests.computeDigest(other));
+    assertThat(cas.bytesWritten.get() - bytesWritten).isEqualTo((long) other.length);
+  }
 }
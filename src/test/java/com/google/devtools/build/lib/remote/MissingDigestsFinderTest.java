@@ -0,0 +1,191 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.remote;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.FileSystem.HashFunction;
+import com.google.devtools.remoteexecution.v1test.Digest;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link MissingDigestsFinder}. */
+@RunWith(JUnit4.class)
+public class MissingDigestsFinderTest {
+
+  /** A fake cache that records the requests it receives. */
+  private static class FakeFindMissingBlobs implements MissingDigestsFinder.FindMissingBlobs {
+    private final Set<Digest> present;
+    private final List<ImmutableList<Digest>> requests =
+        Collections.synchronizedList(new ArrayList<>());
+
+    FakeFindMissingBlobs(Set<Digest> present) {
+      this.present = present;
+    }
+
+    @Override
+    public ImmutableSet<Digest> findMissing(Iterable<Digest> digests) {
+      requests.add(ImmutableList.copyOf(digests));
+      ImmutableSet.Builder<Digest> missing = ImmutableSet.builder();
+      for (Digest digest : digests) {
+        if (!present.contains(digest)) {
+          missing.add(digest);
+        }
+      }
+      return missing.build();
+    }
+  }
+
+  private Digest a;
+  private Digest b;
+  private Digest c;
+
+  @Before
+  public final void setUp() {
+    FileSystem.setDigestFunctionForTesting(HashFunction.SHA1);
+    a = Digests.computeDigestUtf8("a");
+    b = Digests.computeDigestUtf8("b");
+    c = Digests.computeDigestUtf8("c");
+  }
+
+  @Test
+  public void presentDigestsAreNotQueriedAgain() throws Exception {
+    FakeFindMissingBlobs cache = new FakeFindMissingBlobs(ImmutableSet.of(a));
+    MissingDigestsFinder finder = new MissingDigestsFinder(cache, 0);
+
+    assertThat(finder.getMissingDigests(ImmutableList.of(a, b))).containsExactly(b);
+    assertThat(finder.getMissingDigests(ImmutableList.of(a, b))).containsExactly(b);
+    finder.markPresent(ImmutableList.of(b));
+    assertThat(finder.getMissingDigests(ImmutableList.of(a, b))).isEmpty();
+
+    assertThat(cache.requests)
+        .containsExactly(ImmutableList.of(a, b), ImmutableList.of(b))
+        .inOrder();
+  }
+
+  @Test
+  public void concurrentQueriesAreBatched() throws Exception {
+    FakeFindMissingBlobs cache = new FakeFindMissingBlobs(ImmutableSet.of(b));
+    // A window long enough for all callers to join the first batch.
+    MissingDigestsFinder finder = new MissingDigestsFinder(cache, 1000);
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      List<Future<ImmutableSet<Digest>>> results = new ArrayList<>();
+      for (Digest digest : ImmutableList.of(a, b, c)) {
+        results.add(executor.submit(() -> finder.getMissingDigests(ImmutableList.of(digest))));
+      }
+
+      assertThat(results.get(0).get()).containsExactly(a);
+      assertThat(results.get(1).get()).isEmpty();
+      assertThat(results.get(2).get()).containsExactly(c);
+    } finally {
+      executor.shutdownNow();
+    }
+    assertThat(cache.requests).hasSize(1);
+    assertThat(Iterables.getOnlyElement(cache.requests)).containsExactly(a, b, c);
+  }
+
+  @Test
+  public void largeQueriesAreSplit() throws Exception {
+    FakeFindMissingBlobs cache = new FakeFindMissingBlobs(ImmutableSet.of());
+    MissingDigestsFinder finder = new MissingDigestsFinder(cache, 0);
+    List<Digest> digests = new ArrayList<>();
+    for (int i = 0; i < MissingDigestsFinder.MAX_DIGESTS_PER_BATCH + 1; i++) {
+      digests.add(Digests.computeDigestUtf8(Integer.toString(i)));
+    }
+
+    assertThat(finder.getMissingDigests(digests)).hasSize(digests.size());
+    assertThat(cache.requests).hasSize(2);
+  }
+
+  @Test
+  public void errorsArePropagated() throws Exception {
+    MissingDigestsFinder finder =
+        new MissingDigestsFinder(
+            digests -> {
+              throw new IOException("cache unavailable");
+            },
+            0);
+    try {
+      finder.getMissingDigests(ImmutableList.of(a));
+      fail("Expected IOException");
+    } catch (IOException e) {
+      assertThat(e).hasMessageThat().isEqualTo("cache unavailable");
+    }
+  }
+
+  @Test
+  public void interruptedLeaderLetsOtherCallersQueryAgain() throws Exception {
+    CountDownLatch firstCallStarted = new CountDownLatch(1);
+    List<ImmutableList<Digest>> requests = Collections.synchronizedList(new ArrayList<>());
+    MissingDigestsFinder finder =
+        new MissingDigestsFinder(
+            digests -> {
+              requests.add(ImmutableList.copyOf(digests));
+              if (requests.size() == 1) {
+                firstCallStarted.countDown();
+                new CountDownLatch(1).await();
+              }
+              return ImmutableSet.copyOf(digests);
+            },
+            1000);
+    AtomicReference<Throwable> leaderFailure = new AtomicReference<>();
+    Thread leader =
+        new Thread(
+            () -> {
+              try {
+                finder.getMissingDigests(ImmutableList.of(a));
+              } catch (Throwable t) {
+                leaderFailure.set(t);
+              }
+            });
+    leader.start();
+    // Wait until the leader has opened a batch and waits for other callers to join it.
+    while (leader.getState() != Thread.State.TIMED_WAITING) {
+      Thread.yield();
+    }
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<ImmutableSet<Digest>> follower =
+          executor.submit(() -> finder.getMissingDigests(ImmutableList.of(b)));
+      firstCallStarted.await();
+      leader.interrupt();
+      leader.join();
+
+      assertThat(leaderFailure.get()).isInstanceOf(InterruptedException.class);
+      assertThat(follower.get()).containsExactly(b);
+    } finally {
+      executor.shutdownNow();
+    }
+    assertThat(Iterables.getLast(requests)).contains(b);
+  }
+}
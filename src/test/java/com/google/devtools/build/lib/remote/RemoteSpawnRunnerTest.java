@@ -19,8 +19,10 @@ import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
@@ -69,6 +71,7 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
@@ -461,6 +464,86 @@ public class RemoteSpawnRunnerTest {
     verify(localRunner).exec(eq(spawn), eq(policy));
   }
 
+  @Test
+  public void missingInputsAreUploadedAgainAndExecutionRetried() throws Exception {
+    RemoteOptions options = Options.getDefaults(RemoteOptions.class);
+
+    RemoteSpawnRunner runner =
+        new RemoteSpawnRunner(
+            execRoot,
+            options,
+            localRunner,
+            true,
+            /*cmdlineReporter=*/ null,
+            "build-req-id",
+            "command-id",
+            cache,
+            executor);
+
+    ActionResult succeeded = ActionResult.newBuilder().setExitCode(0).build();
+    when(cache.getCachedActionResult(any(ActionKey.class))).thenReturn(null);
+    when(executor.executeRemotely(any(ExecuteRequest.class)))
+        .thenThrow(
+            new RetryException(
+                io.grpc.Status.FAILED_PRECONDITION.asRuntimeException(), /*retryAttempts=*/ 0))
+        .thenReturn(ExecuteResponse.newBuilder().setResult(succeeded).build());
+
+    Spawn spawn = newSimpleSpawn();
+    SpawnExecutionPolicy policy = new FakeSpawnExecutionPolicy(spawn);
+
+    SpawnResult result = runner.exec(spawn, policy);
+    assertThat(result.exitCode()).isEqualTo(0);
+
+    InOrder inOrder = inOrder(cache, executor);
+    inOrder.verify(cache).ensureInputsPresent(any(), any(), any(), any());
+    inOrder.verify(executor).executeRemotely(any(ExecuteRequest.class));
+    inOrder.verify(cache).invalidateUploadedInputs(any(TreeNodeRepository.class));
+    inOrder.verify(cache).ensureInputsPresent(any(), any(), any(), any());
+    inOrder.verify(executor).executeRemotely(any(ExecuteRequest.class));
+    verify(localRunner, never()).exec(any(Spawn.class), any(SpawnExecutionPolicy.class));
+  }
+
+  @Test
+  public void missingInputsTwiceFallBackToLocal() throws Exception {
+    RemoteOptions options = Options.getDefaults(RemoteOptions.class);
+    options.remoteLocalFallback = true;
+
+    RemoteSpawnRunner runner =
+        new RemoteSpawnRunner(
+            execRoot,
+            options,
+            localRunner,
+            true,
+            /*cmdlineReporter=*/ null,
+            "build-req-id",
+            "command-id",
+            cache,
+            executor);
+
+    when(cache.getCachedActionResult(any(ActionKey.class))).thenReturn(null);
+    when(executor.executeRemotely(any(ExecuteRequest.class)))
+        .thenThrow(
+            new RetryException(
+                io.grpc.Status.FAILED_PRECONDITION.asRuntimeException(), /*retryAttempts=*/ 0));
+
+    Spawn spawn = newSimpleSpawn();
+    SpawnExecutionPolicy policy = new FakeSpawnExecutionPolicy(spawn);
+
+    IOException err = new IOException("local execution error");
+    when(localRunner.exec(eq(spawn), eq(policy))).thenThrow(err);
+
+    try {
+      runner.exec(spawn, policy);
+      fail("expected IOException to be raised");
+    } catch (IOException e) {
+      assertThat(e).isSameAs(err);
+    }
+
+    verify(cache).invalidateUploadedInputs(any(TreeNodeRepository.class));
+    verify(executor, times(2)).executeRemotely(any(ExecuteRequest.class));
+    verify(localRunner).exec(eq(spawn), eq(policy));
+  }
+
   @Test
   public void cacheDownloadFailureTriggersRemoteExecution() throws Exception {
     // If downloading a cached action fails, remote execution should be tried.
@@ -95,7 +95,7 @@ public class TreeNodeRepositoryTest {
 
     ArrayList<Directory> directories = new ArrayList<>();
     ArrayList<ActionInput> actionInputs = new ArrayList<>();
-    repo.getDataFromDigests(digests, actionInputs, directories);
+    repo.getDataFromDigests(root, digests, actionInputs, directories);
     assertThat(actionInputs).containsExactly(bar, foo);
     assertThat(directories).hasSize(2);
     Directory rootDirectory = directories.get(0);
@@ -150,4 +150,68 @@ public class TreeNodeRepositoryTest {
 
     assertThat(root.getChildEntries()).isEmpty();
   }
+
+  @Test
+  @SuppressWarnings("ReferenceEquality")
+  public void testSharedCacheReusesSubtreesAcrossRepositories() throws Exception {
+    Artifact tool = new Artifact(scratch.file("/exec/root/tools/compiler", "x"), rootDir);
+    Artifact lib = new Artifact(scratch.file("/exec/root/tools/lib.so", "y"), rootDir);
+    Artifact src1 = new Artifact(scratch.file("/exec/root/src/one.cc", "1"), rootDir);
+    Artifact src2 = new Artifact(scratch.file("/exec/root/src/two.cc", "2"), rootDir);
+    TreeNodeRepository.SharedCache cache = new TreeNodeRepository.SharedCache();
+    TreeNodeRepository repo1 =
+        new TreeNodeRepository(
+            rootPath,
+            new SingleBuildFileCache(rootPath.getPathString(), scratch.getFileSystem()),
+            cache);
+    TreeNodeRepository repo2 =
+        new TreeNodeRepository(
+            rootPath,
+            new SingleBuildFileCache(rootPath.getPathString(), scratch.getFileSystem()),
+            cache);
+
+    TreeNode root1 = repo1.buildFromActionInputs(ImmutableList.<ActionInput>of(src1, tool, lib));
+    TreeNode root2 = repo2.buildFromActionInputs(ImmutableList.<ActionInput>of(src2, tool, lib));
+    repo1.computeMerkleDigests(root1);
+    repo2.computeMerkleDigests(root2);
+
+    TreeNode tools1 = root1.getChildEntries().get(1).getChild();
+    TreeNode tools2 = root2.getChildEntries().get(1).getChild();
+    assertThat(tools1 == tools2).isTrue();
+    // The directory of the shared subtree was computed once, by the first repository.
+    assertThat(repo2.treeToDirectories(tools2).get(0) == repo1.treeToDirectories(tools1).get(0))
+        .isTrue();
+    assertThat(repo2.getMerkleDigest(root2)).isNotEqualTo(repo1.getMerkleDigest(root1));
+  }
+
+  @Test
+  public void testDigestsNotUploadedSkipsUploadedSubtrees() throws Exception {
+    Artifact tool = new Artifact(scratch.file("/exec/root/tools/compiler", "x"), rootDir);
+    Artifact src1 = new Artifact(scratch.file("/exec/root/src/one.cc", "1"), rootDir);
+    Artifact src2 = new Artifact(scratch.file("/exec/root/src/two.cc", "2"), rootDir);
+    TreeNodeRepository repo = createTestTreeNodeRepository();
+    TreeNode root1 = repo.buildFromActionInputs(ImmutableList.<ActionInput>of(src1, tool));
+    repo.computeMerkleDigests(root1);
+    assertThat(repo.getDigestsNotUploaded(root1))
+        .containsExactlyElementsIn(repo.getAllDigests(root1));
+    repo.markUploaded(root1);
+
+    TreeNode root2 = repo.buildFromActionInputs(ImmutableList.<ActionInput>of(src2, tool));
+    repo.computeMerkleDigests(root2);
+    TreeNode src2Node = root2.getChildEntries().get(0).getChild();
+    TreeNode tools = root2.getChildEntries().get(1).getChild();
+    // The tools subtree was uploaded as part of the first tree.
+    assertThat(repo.getDigestsNotUploaded(root2))
+        .containsExactly(
+            repo.getMerkleDigest(root2),
+            repo.getMerkleDigest(src2Node),
+            repo.getMerkleDigest(src2Node.getChildEntries().get(0).getChild()));
+    assertThat(repo.getDigestsNotUploaded(root2)).doesNotContain(repo.getMerkleDigest(tools));
+
+    // The remote side reported blobs missing, so nothing is known to be uploaded any more.
+    repo.invalidateUploaded();
+    assertThat(repo.isUploaded(tools)).isFalse();
+    assertThat(repo.getDigestsNotUploaded(root2))
+        .containsExactlyElementsIn(repo.getAllDigests(root2));
+  }
 }
@@ -0,0 +1,200 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote.blobstore;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.devtools.build.lib.testutil.ManualClock;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link LruOnDiskBlobStore}. */
+@RunWith(JUnit4.class)
+public class LruOnDiskBlobStoreTest {
+  /** Called before a file is renamed, to interleave other operations with the store's. */
+  private interface RenameHook {
+    void beforeRename(Path source) throws IOException;
+  }
+
+  private ManualClock clock;
+  private Path root;
+  private RenameHook renameHook = source -> {};
+
+  @Before
+  public final void setUp() throws Exception {
+    clock = new ManualClock();
+    clock.advanceMillis(1000000);
+    root =
+        new InMemoryFileSystem(clock) {
+          @Override
+          protected void renameTo(Path sourcePath, Path targetPath) throws IOException {
+            renameHook.beforeRename(sourcePath);
+            super.renameTo(sourcePath, targetPath);
+          }
+        }.getPath("/cache");
+  }
+
+  private LruOnDiskBlobStore newStore(long maxSizeBytes) throws IOException {
+    return new LruOnDiskBlobStore(
+        root, maxSizeBytes, clock, MoreExecutors.newDirectExecutorService());
+  }
+
+  private static void put(SimpleBlobStore store, String key, int size) throws Exception {
+    store.put(key, size, new ByteArrayInputStream(new byte[size]));
+  }
+
+  private static boolean get(SimpleBlobStore store, String key) throws Exception {
+    return store.get(key, new ByteArrayOutputStream());
+  }
+
+  @Test
+  public void entriesAreShardedByKeyPrefix() throws Exception {
+    LruOnDiskBlobStore store = newStore(1000);
+    store.put("abcdef", 3, new ByteArrayInputStream(new byte[] {1, 2, 3}));
+    store.putActionResult("abcdef", new byte[] {4});
+
+    assertThat(root.getRelative("cas/ab/abcdef").getFileSize()).isEqualTo(3);
+    assertThat(root.getRelative("ac/ab/abcdef").getFileSize()).isEqualTo(1);
+    assertThat(root.getChild("tmp").getDirectoryEntries()).isEmpty();
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertThat(store.get("abcdef", out)).isTrue();
+    assertThat(out.toByteArray()).isEqualTo(new byte[] {1, 2, 3});
+    out.reset();
+    assertThat(store.getActionResult("abcdef", out)).isTrue();
+    assertThat(out.toByteArray()).isEqualTo(new byte[] {4});
+    assertThat(store.containsKey("abcdef")).isTrue();
+    assertThat(store.containsKey("abcdee")).isFalse();
+    assertThat(get(store, "abcdee")).isFalse();
+    assertThat(store.getSizeBytes()).isEqualTo(4);
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsedEntries() throws Exception {
+    LruOnDiskBlobStore store = newStore(100);
+    put(store, "aa01", 40);
+    clock.advanceMillis(1000);
+    put(store, "aa02", 40);
+    clock.advanceMillis(1000);
+    assertThat(get(store, "aa01")).isTrue();
+    clock.advanceMillis(1000);
+    // Exceeds the maximum size; aa02 is the least recently used entry.
+    put(store, "aa03", 40);
+
+    assertThat(store.getSizeBytes()).isEqualTo(80);
+    assertThat(store.containsKey("aa01")).isTrue();
+    assertThat(store.containsKey("aa02")).isFalse();
+    assertThat(store.containsKey("aa03")).isTrue();
+  }
+
+  @Test
+  public void indexIsRebuiltOnStartup() throws Exception {
+    LruOnDiskBlobStore store = newStore(1000);
+    put(store, "aa01", 10);
+    clock.advanceMillis(1000);
+    put(store, "bb01", 20);
+    store.close();
+
+    store = newStore(1000);
+    assertThat(store.getSizeBytes()).isEqualTo(30);
+    assertThat(get(store, "aa01")).isTrue();
+    assertThat(get(store, "bb01")).isTrue();
+  }
+
+  @Test
+  public void accessTimeSurvivesRestart() throws Exception {
+    LruOnDiskBlobStore store = newStore(100);
+    put(store, "aa01", 40);
+    clock.advanceMillis(1000);
+    put(store, "aa02", 40);
+    clock.advanceMillis(3600 * 1000);
+    assertThat(get(store, "aa01")).isTrue();
+    store.close();
+
+    clock.advanceMillis(1000);
+    store = newStore(100);
+    put(store, "aa03", 40);
+    assertThat(store.containsKey("aa01")).isTrue();
+    assertThat(store.containsKey("aa02")).isFalse();
+  }
+
+  @Test
+  public void seesEntriesWrittenBySharingStore() throws Exception {
+    LruOnDiskBlobStore first = newStore(1000);
+    LruOnDiskBlobStore second = newStore(1000);
+    put(second, "aa01", 10);
+
+    assertThat(first.containsKey("aa01")).isTrue();
+    assertThat(first.getSizeBytes()).isEqualTo(10);
+
+    root.getRelative("cas/aa/aa01").delete();
+    assertThat(get(first, "aa01")).isFalse();
+    assertThat(first.getSizeBytes()).isEqualTo(0);
+  }
+
+  @Test
+  public void entriesEvictedBySharingStoreAreMisses() throws Exception {
+    LruOnDiskBlobStore first = newStore(100);
+    LruOnDiskBlobStore second = newStore(100);
+    put(first, "aa01", 40);
+    assertThat(second.containsKey("aa01")).isTrue();
+    clock.advanceMillis(1000);
+    put(second, "aa02", 40);
+    clock.advanceMillis(1000);
+    // Exceeds the maximum size of the second store, which evicts aa01.
+    put(second, "aa03", 40);
+    assertThat(root.getRelative("cas/aa/aa01").exists()).isFalse();
+
+    assertThat(first.containsKey("aa01")).isFalse();
+    assertThat(first.getSizeBytes()).isEqualTo(0);
+    put(first, "aa01", 40);
+    assertThat(root.getRelative("cas/aa/aa01").getFileSize()).isEqualTo(40);
+    assertThat(first.getSizeBytes()).isEqualTo(40);
+  }
+
+  @Test
+  public void entryWrittenDuringEvictionIsKept() throws Exception {
+    LruOnDiskBlobStore store = newStore(100);
+    store.putActionResult("aa01", new byte[40]);
+    clock.advanceMillis(1000);
+    put(store, "aa02", 40);
+    clock.advanceMillis(1000);
+    Path evicting = root.getRelative("ac/aa/aa01");
+    renameHook =
+        source -> {
+          if (source.equals(evicting)) {
+            renameHook = unused -> {};
+            store.putActionResult("aa01", new byte[30]);
+          }
+        };
+    // Exceeds the maximum size; aa01 is rewritten right before it would be deleted.
+    put(store, "aa03", 40);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertThat(store.getActionResult("aa01", out)).isTrue();
+    assertThat(out.size()).isEqualTo(30);
+    assertThat(store.containsKey("aa02")).isFalse();
+    assertThat(store.containsKey("aa03")).isTrue();
+    assertThat(store.getSizeBytes()).isEqualTo(70);
+    assertThat(root.getChild("tmp").getDirectoryEntries()).isEmpty();
+  }
+}
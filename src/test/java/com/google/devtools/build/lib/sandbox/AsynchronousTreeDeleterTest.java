@@ -0,0 +1,54 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.sandbox;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.Symlinks;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link AsynchronousTreeDeleter}. */
+@RunWith(JUnit4.class)
+public class AsynchronousTreeDeleterTest extends SandboxTestCase {
+
+  @Test
+  public void allTreesAreDeletedAfterShutdown() throws Exception {
+    List<Path> trees = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      Path tree = testRoot.getRelative("tree" + i);
+      FileSystemUtils.createDirectoryAndParents(tree.getRelative("a/b"));
+      FileSystemUtils.createEmptyFile(tree.getRelative("a/b/file"));
+      tree.getRelative("link").createSymbolicLink(tree.getRelative("a"));
+      trees.add(tree);
+    }
+
+    // Only a few deletions may be pending, so most of them run in the calling thread.
+    AsynchronousTreeDeleter deleter = new AsynchronousTreeDeleter(2, 3);
+    for (Path tree : trees) {
+      deleter.deleteTree(tree);
+    }
+    deleter.shutdown();
+
+    for (Path tree : trees) {
+      assertThat(tree.exists(Symlinks.NOFOLLOW)).isFalse();
+    }
+  }
+}
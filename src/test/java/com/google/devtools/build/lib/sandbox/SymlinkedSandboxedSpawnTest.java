@@ -101,6 +101,77 @@ public class SymlinkedSandboxedSpawnTest extends SandboxTestCase {
     assertThat(execRoot.getRelative("wow/writable/temp.txt").exists()).isFalse();
   }
 
+  @Test
+  public void reusedSandboxOnlyUpdatesChangedInputs() throws Exception {
+    Path helloTxt = workspaceDir.getRelative("hello.txt");
+    Path worldTxt = workspaceDir.getRelative("world.txt");
+    FileSystemUtils.createEmptyFile(helloTxt);
+    FileSystemUtils.createEmptyFile(worldTxt);
+
+    new SymlinkedSandboxedSpawn(
+            sandboxDir,
+            execRoot,
+            ImmutableList.of("/bin/true"),
+            ImmutableMap.<String, String>of(),
+            ImmutableMap.of(
+                PathFragment.create("kept.txt"), helloTxt,
+                PathFragment.create("changed.txt"), helloTxt,
+                PathFragment.create("removed/input.txt"), helloTxt),
+            ImmutableSet.<PathFragment>of(),
+            ImmutableSet.<Path>of())
+        .createFileSystem();
+    // Pretend that the previous spawn left a directory where the next one has an input.
+    FileSystemUtils.createDirectoryAndParents(execRoot.getRelative("dir/sub"));
+    long keptLinkNodeId = execRoot.getRelative("kept.txt").stat(Symlinks.NOFOLLOW).getNodeId();
+
+    new SymlinkedSandboxedSpawn(
+            sandboxDir,
+            execRoot,
+            ImmutableList.of("/bin/true"),
+            ImmutableMap.<String, String>of(),
+            ImmutableMap.of(
+                PathFragment.create("kept.txt"), helloTxt,
+                PathFragment.create("changed.txt"), worldTxt,
+                PathFragment.create("dir"), worldTxt),
+            ImmutableSet.<PathFragment>of(),
+            ImmutableSet.<Path>of())
+        .createFileSystem();
+
+    assertThat(execRoot.getRelative("kept.txt").stat(Symlinks.NOFOLLOW).getNodeId())
+        .isEqualTo(keptLinkNodeId);
+    assertThat(execRoot.getRelative("changed.txt").readSymbolicLink())
+        .isEqualTo(worldTxt.asFragment());
+    assertThat(execRoot.getRelative("dir").readSymbolicLink()).isEqualTo(worldTxt.asFragment());
+    assertThat(execRoot.getRelative("removed").exists(Symlinks.NOFOLLOW)).isFalse();
+  }
+
+  @Test
+  public void pooledSandboxIsReleasedInsteadOfDeleted() throws Exception {
+    SandboxPool pool = new SandboxPool(testRoot);
+    Path pooledSandboxDir = pool.acquire("Mnemonic");
+    Path pooledExecRoot = pooledSandboxDir.getRelative("execroot");
+
+    SymlinkedSandboxedSpawn spawn =
+        new SymlinkedSandboxedSpawn(
+            pooledSandboxDir,
+            pooledExecRoot,
+            ImmutableList.of("/bin/true"),
+            ImmutableMap.<String, String>of(),
+            ImmutableMap.<PathFragment, Path>of(),
+            ImmutableSet.of(PathFragment.create("very/output.txt")),
+            ImmutableSet.<Path>of(),
+            new SynchronousTreeDeleter(),
+            pool,
+            "Mnemonic");
+    spawn.createFileSystem();
+    spawn.delete();
+
+    assertThat(pooledExecRoot.getRelative("very").isDirectory()).isTrue();
+    assertThat(pool.acquire("Other")).isNotEqualTo(pooledSandboxDir);
+    assertThat(pool.acquire("Mnemonic")).isEqualTo(pooledSandboxDir);
+    assertThat(pool.acquire("Mnemonic")).isNotEqualTo(pooledSandboxDir);
+  }
+
   @Test
   public void copyOutputs() throws Exception {
     Path outputFile = execRoot.getRelative("very/output.txt");
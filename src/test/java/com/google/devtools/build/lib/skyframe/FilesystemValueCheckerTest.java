@@ -38,11 +38,14 @@ import com.google.devtools.build.lib.cmdline.PackageIdentifier;
 import com.google.devtools.build.lib.events.NullEventHandler;
 import com.google.devtools.build.lib.pkgcache.PathPackageLocator;
 import com.google.devtools.build.lib.skyframe.DirtinessCheckerUtils.BasicFilesystemDirtinessChecker;
+import com.google.devtools.build.lib.skyframe.DirtinessCheckerUtils.FileDirtinessChecker;
 import com.google.devtools.build.lib.skyframe.ExternalFilesHelper.ExternalFileAction;
 import com.google.devtools.build.lib.skyframe.PackageLookupFunction.CrossRepositoryLabelViolationStrategy;
 import com.google.devtools.build.lib.skyframe.PackageLookupValue.BuildFileName;
+import com.google.devtools.build.lib.skyframe.SkyValueDirtinessChecker.DirtyResult;
 import com.google.devtools.build.lib.testutil.TestConstants;
 import com.google.devtools.build.lib.testutil.TestRuleClassProvider;
+import com.google.devtools.build.lib.util.Pair;
 import com.google.devtools.build.lib.util.io.TimestampGranularityMonitor;
 import com.google.devtools.build.lib.vfs.BatchStat;
 import com.google.devtools.build.lib.vfs.FileStatus;
@@ -784,6 +787,75 @@ public class FilesystemValueCheckerTest {
     }
   }
 
+  @Test
+  public void testFileDirtinessCheckerUsesBatchStat() throws Exception {
+    Path file = fs.getPath("/file");
+    Path missing = fs.getPath("/missing");
+    Path link = fs.getPath("/link");
+    FileSystemUtils.writeContentAsLatin1(file, "old");
+    link.createSymbolicLink(PathFragment.create("file"));
+    List<SkyKey> keys = new ArrayList<>();
+    for (Path path : ImmutableList.of(file, missing, link)) {
+      keys.add(FileStateValue.key(RootedPath.toRootedPath(fs.getRootDirectory(), path)));
+    }
+    List<Pair<SkyKey, SkyValue>> oldValues = currentFileStates(keys);
+    List<List<PathFragment>> batches = new ArrayList<>();
+    fs.batchStat =
+        (useDigest, includeLinks, paths) -> {
+          batches.add(ImmutableList.copyOf(paths));
+          List<FileStatusWithDigest> stats = new ArrayList<>();
+          for (PathFragment path : paths) {
+            stats.add(
+                FileStatusWithDigestAdapter.adapt(
+                    fs.getRootDirectory().getRelative(path).statIfFound(Symlinks.NOFOLLOW)));
+          }
+          return stats;
+        };
+    FileDirtinessChecker checker = new FileDirtinessChecker();
+
+    for (DirtyResult result : checker.checkBatch(oldValues, null)) {
+      assertThat(result.isDirty()).isFalse();
+    }
+    assertThat(batches)
+        .containsExactly(
+            ImmutableList.of(file.asFragment(), missing.asFragment(), link.asFragment()));
+
+    FileSystemUtils.writeContentAsLatin1(file, "new content");
+    FileSystemUtils.createEmptyFile(missing);
+    link.delete();
+    link.createSymbolicLink(PathFragment.create("missing"));
+    List<Pair<SkyKey, SkyValue>> newValues = currentFileStates(keys);
+    List<DirtyResult> results = checker.checkBatch(oldValues, null);
+    assertThat(batches).hasSize(2);
+    for (int i = 0; i < keys.size(); i++) {
+      assertThat(results.get(i).isDirty()).isTrue();
+      assertThat(results.get(i).getNewValue()).isEqualTo(newValues.get(i).getSecond());
+    }
+
+    // If the batch fails, the files are checked one by one.
+    fs.batchStat =
+        (useDigest, includeLinks, paths) -> {
+          throw new IOException("batch failed");
+        };
+    results = checker.checkBatch(oldValues, null);
+    for (int i = 0; i < keys.size(); i++) {
+      assertThat(results.get(i).isDirty()).isTrue();
+      assertThat(results.get(i).getNewValue()).isEqualTo(newValues.get(i).getSecond());
+    }
+    for (DirtyResult result : checker.checkBatch(newValues, null)) {
+      assertThat(result.isDirty()).isFalse();
+    }
+  }
+
+  private static List<Pair<SkyKey, SkyValue>> currentFileStates(List<SkyKey> keys)
+      throws Exception {
+    List<Pair<SkyKey, SkyValue>> keysAndValues = new ArrayList<>();
+    for (SkyKey key : keys) {
+      keysAndValues.add(Pair.of(key, FileStateValue.create((RootedPath) key.argument(), null)));
+    }
+    return keysAndValues;
+  }
+
   private static void assertEmptyDiff(Diff diff) {
     assertDiffWithNewValues(diff);
   }
@@ -798,11 +870,18 @@ public class FilesystemValueCheckerTest {
 
     boolean statThrowsRuntimeException;
     boolean readlinkThrowsIoException;
+    @Nullable BatchStat batchStat;
 
     MockFileSystem() {
       super();
     }
 
+    @Override
+    @Nullable
+    public BatchStat getBatchStat() {
+      return batchStat;
+    }
+
     @Override
     public FileStatus stat(Path path, boolean followSymlinks) throws IOException {
       if (statThrowsRuntimeException) {
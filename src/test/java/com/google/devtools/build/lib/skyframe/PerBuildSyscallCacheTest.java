@@ -0,0 +1,96 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.devtools.build.lib.testutil.Scratch;
+import com.google.devtools.build.lib.vfs.Dirent;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.Symlinks;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link PerBuildSyscallCache}. */
+@RunWith(JUnit4.class)
+public class PerBuildSyscallCacheTest {
+
+  private final AtomicInteger readdirs = new AtomicInteger();
+  private final Scratch scratch =
+      new Scratch(
+          new InMemoryFileSystem() {
+            @Override
+            protected Collection<Dirent> readdir(Path path, boolean followSymlinks)
+                throws IOException {
+              readdirs.incrementAndGet();
+              return super.readdir(path, followSymlinks);
+            }
+          });
+  private final PerBuildSyscallCache cache = PerBuildSyscallCache.newBuilder().build();
+  private Path dir;
+
+  @Before
+  public final void createDirectory() throws Exception {
+    dir = scratch.dir("/pkg");
+    scratch.file("/pkg/file");
+    scratch.dir("/pkg/subdir");
+    dir.getChild("to_file").createSymbolicLink(PathFragment.create("file"));
+    dir.getChild("to_subdir").createSymbolicLink(PathFragment.create("subdir"));
+    dir.getChild("dangling").createSymbolicLink(PathFragment.create("nothing"));
+  }
+
+  @Test
+  public void followingListingMatchesFileSystem() throws Exception {
+    assertThat(cache.readdir(dir, Symlinks.FOLLOW))
+        .containsExactlyElementsIn(dir.readdir(Symlinks.FOLLOW));
+    assertThat(cache.readdir(dir, Symlinks.NOFOLLOW))
+        .containsExactlyElementsIn(dir.readdir(Symlinks.NOFOLLOW));
+    assertThat(cache.readdir(dir, Symlinks.FOLLOW))
+        .containsAllOf(
+            new Dirent("to_file", Dirent.Type.FILE),
+            new Dirent("to_subdir", Dirent.Type.DIRECTORY),
+            new Dirent("dangling", Dirent.Type.UNKNOWN));
+  }
+
+  @Test
+  public void bothListingsShareOneRead() throws Exception {
+    readdirs.set(0);
+    cache.readdir(dir, Symlinks.NOFOLLOW);
+    cache.readdir(dir, Symlinks.FOLLOW);
+    cache.readdir(dir, Symlinks.FOLLOW);
+    assertThat(readdirs.get()).isEqualTo(1);
+
+    cache.clear();
+    cache.readdir(dir, Symlinks.FOLLOW);
+    assertThat(readdirs.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void listingOfMissingDirectoryThrows() throws Exception {
+    try {
+      cache.readdir(dir.getChild("missing"), Symlinks.FOLLOW);
+      fail();
+    } catch (IOException expected) {
+      // Expected.
+    }
+  }
+}
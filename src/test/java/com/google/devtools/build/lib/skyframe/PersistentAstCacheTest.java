@@ -0,0 +1,102 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.devtools.build.lib.events.NullEventHandler;
+import com.google.devtools.build.lib.syntax.BuildFileAST;
+import com.google.devtools.build.lib.syntax.SkylarkSemantics;
+import com.google.devtools.build.lib.testutil.Scratch;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link PersistentAstCache}. */
+@RunWith(JUnit4.class)
+public class PersistentAstCacheTest {
+
+  private static final PathFragment PATH = PathFragment.create("/workspace/foo/BUILD");
+  private static final byte[] DIGEST = {1, 2, 3};
+
+  private final Scratch scratch = new Scratch("/workspace");
+  private Path directory;
+  private BuildFileAST ast;
+
+  @Before
+  public final void parseFile() throws Exception {
+    directory = scratch.resolve("/output_base/ast_cache");
+    ast = BuildFileAST.parseBuildString(NullEventHandler.INSTANCE, "x = [1, 2]", "y = x[0]");
+  }
+
+  private static String key(PersistentAstCache cache, byte[] digest, String context) {
+    return cache.key(PATH, digest, SkylarkSemantics.DEFAULT_SEMANTICS, context);
+  }
+
+  @Test
+  public void storedAstIsFoundAfterRestart() throws Exception {
+    PersistentAstCache cache = new PersistentAstCache(directory, "binary");
+    cache.put(key(cache, DIGEST, "BUILD"), ast);
+
+    PersistentAstCache reopened = new PersistentAstCache(directory, "binary");
+    BuildFileAST cached = reopened.get(key(reopened, DIGEST, "BUILD"));
+
+    assertThat(cached).isNotNull();
+    assertThat(cached.toString()).isEqualTo(ast.toString());
+    assertThat(reopened.getHitCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void keyCoversDigestContextAndBinary() throws Exception {
+    PersistentAstCache cache = new PersistentAstCache(directory, "binary");
+    cache.put(key(cache, DIGEST, "BUILD"), ast);
+
+    assertThat(cache.get(key(cache, new byte[] {1, 2, 4}, "BUILD"))).isNull();
+    assertThat(cache.get(key(cache, DIGEST, "bzl"))).isNull();
+    PersistentAstCache otherBinary = new PersistentAstCache(directory, "other");
+    assertThat(otherBinary.get(key(otherBinary, DIGEST, "BUILD"))).isNull();
+    assertThat(cache.getMissCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void entriesOfOtherBinaryAreDeleted() throws Exception {
+    PersistentAstCache cache = new PersistentAstCache(directory, "binary");
+    String key = key(cache, DIGEST, "BUILD");
+    cache.put(key, ast);
+    new PersistentAstCache(directory, "other");
+
+    assertThat(cache.entryPath(key).exists()).isFalse();
+    PersistentAstCache reopened = new PersistentAstCache(directory, "binary");
+    assertThat(reopened.get(key(reopened, DIGEST, "BUILD"))).isNull();
+  }
+
+  @Test
+  public void corruptEntryIsDiscarded() throws Exception {
+    PersistentAstCache cache = new PersistentAstCache(directory, "binary");
+    String key = key(cache, DIGEST, "BUILD");
+    cache.put(key, ast);
+    Path entry = cache.entryPath(key);
+    byte[] content = FileSystemUtils.readContent(entry);
+    content[content.length - 1] ^= 1;
+    FileSystemUtils.writeContent(entry, content);
+
+    assertThat(cache.get(key)).isNull();
+    assertThat(entry.exists()).isFalse();
+    assertThat(cache.getMissCount()).isEqualTo(1);
+  }
+}
@@ -0,0 +1,206 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.cmdline.PackageIdentifier;
+import com.google.devtools.build.lib.events.util.EventCollectionApparatus;
+import com.google.devtools.build.lib.packages.Package;
+import com.google.devtools.build.lib.packages.util.PackageFactoryApparatus;
+import com.google.devtools.build.lib.skyframe.PackageLookupValue.BuildFileName;
+import com.google.devtools.build.lib.testutil.ManualClock;
+import com.google.devtools.build.lib.testutil.Scratch;
+import com.google.devtools.build.lib.vfs.Path;
+import java.util.Collection;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link TargetEdgeIndex}. */
+@RunWith(JUnit4.class)
+public class TargetEdgeIndexTest {
+
+  private final EventCollectionApparatus events = new EventCollectionApparatus();
+  private final Scratch scratch = new Scratch("/workspace");
+  private final PackageFactoryApparatus packages = new PackageFactoryApparatus(events.reporter());
+  private final ManualClock clock = new ManualClock();
+  private final ExecutorService executor = Executors.newFixedThreadPool(2);
+  private final TargetEdgeIndex.PackageLookups lookups =
+      packageId -> PackageLookupValue.success(scratch.resolve("/workspace"), BuildFileName.BUILD);
+  private Path indexFile;
+
+  @Before
+  public final void createIndexDirectory() throws Exception {
+    indexFile = scratch.dir("/output_base/query_index").getChild("target_edges");
+  }
+
+  @After
+  public final void shutDownExecutor() {
+    executor.shutdownNow();
+  }
+
+  private Package createPackage(String name, String... lines) throws Exception {
+    Package pkg = packages.createPackage(name, scratch.file(name + "/BUILD", lines));
+    events.assertNoWarningsOrErrors();
+    return pkg;
+  }
+
+  @Test
+  public void reverseDepsFollowUpdates() throws Exception {
+    TargetEdgeIndex index = TargetEdgeIndex.load(indexFile, clock);
+    index.update(createPackage("a", "sh_library(name = 'a', srcs = ['a.sh'])"), lookups);
+    index.update(
+        createPackage(
+            "b",
+            "sh_library(name = 'b', deps = ['//a'])",
+            "sh_library(name = 'c', deps = [':b', '//a'])"),
+        lookups);
+
+    assertThat(index.getDirectDeps(Label.parseAbsolute("//b:c")))
+        .containsExactly(Label.parseAbsolute("//b:b"), Label.parseAbsolute("//a:a"));
+    assertThat(index.getReverseDeps(Label.parseAbsolute("//a:a")))
+        .containsExactly(Label.parseAbsolute("//b:b"), Label.parseAbsolute("//b:c"));
+    assertThat(index.getReverseDeps(Label.parseAbsolute("//a:a.sh")))
+        .containsExactly(Label.parseAbsolute("//a:a"));
+
+    scratch.overwriteFile("b/BUILD", "sh_library(name = 'b')");
+    index.update(packages.createPackage("b", scratch.resolve("b/BUILD")), lookups);
+    assertThat(index.getReverseDeps(Label.parseAbsolute("//a:a"))).isEmpty();
+
+    index.remove(PackageIdentifier.createInMainRepo("a"));
+    assertThat(index.contains(PackageIdentifier.createInMainRepo("a"))).isFalse();
+    assertThat(index.getDirectDeps(Label.parseAbsolute("//a:a"))).isNull();
+    assertThat(index.getReverseDeps(Label.parseAbsolute("//a:a.sh"))).isEmpty();
+  }
+
+  @Test
+  public void savedIndexIsLoadedAgain() throws Exception {
+    TargetEdgeIndex index = TargetEdgeIndex.load(indexFile, clock);
+    index.update(createPackage("a", "sh_library(name = 'a')"), lookups);
+    index.update(createPackage("b", "sh_library(name = 'b', deps = ['//a'])"), lookups);
+    index.save();
+
+    TargetEdgeIndex loaded = TargetEdgeIndex.load(indexFile, clock);
+    assertThat(loaded.contains(PackageIdentifier.createInMainRepo("b"))).isTrue();
+    assertThat(loaded.getDirectDeps(Label.parseAbsolute("//b:b")))
+        .containsExactly(Label.parseAbsolute("//a:a"));
+    assertThat(loaded.getReverseDeps(Label.parseAbsolute("//a:a")))
+        .containsExactly(Label.parseAbsolute("//b:b"));
+    assertThat(loaded.getStalePackages(executor)).isEmpty();
+  }
+
+  @Test
+  public void corruptIndexIsEmpty() throws Exception {
+    scratch.overwriteFile(indexFile.getPathString(), "not an index");
+    TargetEdgeIndex index = TargetEdgeIndex.load(indexFile, clock);
+    assertThat(index.contains(PackageIdentifier.createInMainRepo("a"))).isFalse();
+  }
+
+  @Test
+  public void changedFilesMakePackagesStale() throws Exception {
+    TargetEdgeIndex index = TargetEdgeIndex.load(indexFile, clock);
+    scratch.file("a/src/a.sh").getParentDirectory().setLastModifiedTime(0);
+    index.update(createPackage("a", "sh_library(name = 'a', srcs = ['src/a.sh'])"), lookups);
+    index.update(createPackage("b", "sh_library(name = 'b')"), lookups);
+    index.update(createPackage("c", "sh_library(name = 'c')"), lookups);
+    assertThat(index.getStalePackages(executor)).isEmpty();
+
+    // A new file in a directory that contains sources may match a glob.
+    scratch.file("a/src/new.sh");
+    scratch.overwriteFile("b/BUILD", "sh_library(name = 'b', srcs = ['b.sh'])");
+    scratch.resolve("c/BUILD").delete();
+
+    assertThat(index.getStalePackages(executor))
+        .containsExactly(
+            PackageIdentifier.createInMainRepo("a"),
+            PackageIdentifier.createInMainRepo("b"),
+            PackageIdentifier.createInMainRepo("c"));
+  }
+
+  @Test
+  public void filesAddedToGlobbedDirectoriesMakePackagesStale() throws Exception {
+    TargetEdgeIndex index = TargetEdgeIndex.load(indexFile, clock);
+    Path globbed = scratch.dir("a/lib/empty");
+    globbed.setLastModifiedTime(0);
+    TargetEdgeIndex.PackageLookups globLookups =
+        new TargetEdgeIndex.PackageLookups() {
+          @Override
+          public PackageLookupValue get(PackageIdentifier packageId)
+              throws InterruptedException {
+            return lookups.get(packageId);
+          }
+
+          @Override
+          public Collection<Path> getGlobbedDirectories(PackageIdentifier packageId) {
+            return ImmutableList.of(globbed);
+          }
+        };
+    index.update(
+        createPackage("a", "sh_library(name = 'a', srcs = glob(['lib/**']))"), globLookups);
+    assertThat(index.getStalePackages(executor)).isEmpty();
+
+    // The directory contains no sources of the package, but a new file in it matches the glob.
+    scratch.file("a/lib/empty/new.sh");
+    assertThat(index.getStalePackages(executor))
+        .containsExactly(PackageIdentifier.createInMainRepo("a"));
+  }
+
+  @Test
+  public void universesAreCoveredWhileTheirPackagesAreRecorded() throws Exception {
+    TargetEdgeIndex index = TargetEdgeIndex.load(indexFile, clock);
+    PackageIdentifier a = PackageIdentifier.createInMainRepo("a");
+    PackageIdentifier b = PackageIdentifier.createInMainRepo("b");
+    index.update(createPackage("a", "sh_library(name = 'a')"), lookups);
+    index.update(createPackage("b", "sh_library(name = 'b', deps = ['//a'])"), lookups);
+    assertThat(index.coversUniverse("//...")).isFalse();
+
+    index.recordUniverse("//...", ImmutableSet.of(a, b));
+    index.recordUniverse("//a/...", ImmutableSet.of(a));
+    index.save();
+    TargetEdgeIndex loaded = TargetEdgeIndex.load(indexFile, clock);
+    assertThat(loaded.coversUniverse("//...")).isTrue();
+    assertThat(loaded.coversUniverse("//a/...")).isTrue();
+    assertThat(loaded.coversUniverse("//b/...")).isFalse();
+
+    loaded.remove(b);
+    assertThat(loaded.coversUniverse("//...")).isFalse();
+    assertThat(loaded.coversUniverse("//a/...")).isTrue();
+  }
+
+  @Test
+  public void laterUpdatesAreMadeInOrder() throws Exception {
+    TargetEdgeIndex index = TargetEdgeIndex.load(indexFile, clock);
+    PackageIdentifier a = PackageIdentifier.createInMainRepo("a");
+    Package pkg = createPackage("a", "sh_library(name = 'a', srcs = ['a.sh'])");
+    index.updateLater(pkg, lookups);
+    index.removeLater(a);
+    index.updateLater(pkg, lookups);
+    index.awaitPendingUpdates();
+    assertThat(index.getReverseDeps(Label.parseAbsolute("//a:a.sh")))
+        .containsExactly(Label.parseAbsolute("//a:a"));
+
+    index.removeLater(a);
+    index.save();
+    assertThat(index.contains(a)).isFalse();
+    assertThat(TargetEdgeIndex.load(indexFile, clock).contains(a)).isFalse();
+  }
+}
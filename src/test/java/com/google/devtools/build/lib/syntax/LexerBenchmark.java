@@ -0,0 +1,145 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.syntax;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.testutil.BenchmarkHarness;
+import com.google.devtools.build.lib.testutil.BenchmarkHarness.Flags;
+import com.google.devtools.build.lib.testutil.BenchmarkHarness.Stats;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Microbenchmark for the {@link Lexer} and {@link Parser}, reading either the Latin-1 bytes of a
+ * file, as BUILD and .bzl files are loaded, or a String.
+ *
+ * <p>The input is a generated BUILD file of {@code rules} rules with typical attributes (names,
+ * source lists, labels and a glob). The benchmark reports wall time, throughput and bytes
+ * allocated per token. See {@link BenchmarkHarness} for how it runs and measures:
+ *
+ * <pre>
+ *   bazel run //src/test/java/com/google/devtools/build/lib:lexer_benchmark -- \
+ *       --input=bytes --rules=2000
+ * </pre>
+ */
+public class LexerBenchmark {
+
+  private static final PathFragment PATH = PathFragment.create("/workspace/pkg/BUILD");
+
+  private final String input;
+  private final boolean parse;
+  private final String content;
+  private final byte[] bytes;
+
+  LexerBenchmark(String input, boolean parse, int rules) {
+    this.input = input;
+    this.parse = parse;
+    this.content = generateBuildFile(rules);
+    this.bytes = content.getBytes(StandardCharsets.ISO_8859_1);
+  }
+
+  private static String generateBuildFile(int rules) {
+    StringBuilder buf = new StringBuilder();
+    buf.append("load('//tools/build_rules:defs.bzl', 'custom_library')\n\n");
+    buf.append("package(default_visibility = ['//visibility:public'])\n\n");
+    for (int i = 0; i < rules; i++) {
+      buf.append("# Rule number ").append(i).append(".\n");
+      buf.append("java_library(\n");
+      buf.append("    name = 'lib").append(i).append("',\n");
+      buf.append("    srcs = glob(['lib")
+          .append(i)
+          .append("/*.java'], exclude = ['*Test.java']),\n");
+      buf.append("    deps = [\n");
+      for (int j = Math.max(0, i - 3); j < i; j++) {
+        buf.append("        ':lib").append(j).append("',\n");
+      }
+      buf.append("        '//third_party:guava',\n");
+      buf.append("        '//third_party:jsr305',\n");
+      buf.append("    ],\n");
+      buf.append("    javacopts = ['-Xlint:all', \"-Werror\"],\n");
+      buf.append("    tags = ['manual'] if ").append(i % 7).append(" == 0 else [],\n");
+      buf.append(")\n\n");
+    }
+    return buf.toString();
+  }
+
+  private ParserInputSource newInput() {
+    switch (input) {
+      case "bytes":
+        return ParserInputSource.create(bytes, PATH);
+      case "string":
+        return ParserInputSource.create(content, PATH);
+      default:
+        throw new IllegalArgumentException("Unknown input " + input);
+    }
+  }
+
+  /** Lexes or parses the input once and returns the number of tokens or statements. */
+  private long execute() {
+    ParserInputSource source = newInput();
+    if (parse) {
+      BuildFileAST ast = BuildFileAST.parseBuildFile(source, Environment.FAIL_FAST_HANDLER);
+      Preconditions.checkState(!ast.containsErrors());
+      return ast.getStatements().size();
+    } else {
+      Lexer lexer = new Lexer(source, Environment.FAIL_FAST_HANDLER);
+      Preconditions.checkState(!lexer.containsErrors());
+      return lexer.getTokens().size();
+    }
+  }
+
+  void run(int warmupIterations, int iterations) throws Exception {
+    Stats stats = BenchmarkHarness.measure(warmupIterations, iterations, this::execute);
+    System.out.printf(
+        Locale.US,
+        "%-6s %-5s %8d bytes  mean %8.3f ms  min %8.3f ms  %8.1f MB/s  %10.1f bytes/%s%n",
+        input,
+        parse ? "parse" : "lex",
+        bytes.length,
+        stats.meanMillis,
+        stats.minMillis,
+        bytes.length / (stats.meanMillis / 1e3) / 1e6,
+        stats.bytesPerUnit,
+        parse ? "statement" : "token");
+  }
+
+  public static void main(String[] args) throws Exception {
+    Flags flags = new Flags(args);
+    List<String> inputs = ImmutableList.of("string", "bytes");
+    String input = flags.getString("input");
+    if (input != null) {
+      Preconditions.checkArgument(
+          input.equals("bytes") || input.equals("string"), "Unknown input %s", input);
+      inputs = ImmutableList.of(input);
+    }
+    List<Boolean> parseModes = ImmutableList.of(false, true);
+    String parse = flags.getString("parse");
+    if (parse != null) {
+      parseModes = ImmutableList.of(Boolean.parseBoolean(parse));
+    }
+    int rules = flags.getInt("rules", 2000);
+    int warmupIterations = flags.getWarmupIterations(20);
+    int iterations = flags.getIterations(50);
+    flags.checkAllRead();
+    Preconditions.checkArgument(rules > 0);
+    for (boolean parseMode : parseModes) {
+      for (String inputMode : inputs) {
+        new LexerBenchmark(inputMode, parseMode, rules).run(warmupIterations, iterations);
+      }
+    }
+  }
+}
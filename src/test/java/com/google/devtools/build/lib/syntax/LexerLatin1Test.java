@@ -0,0 +1,57 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.syntax;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.devtools.build.lib.vfs.PathFragment;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Runs the lexer tests on input read in place from Latin-1 bytes, as BUILD and .bzl files are, and
+ * checks that names are shared between tokens.
+ */
+@RunWith(JUnit4.class)
+public class LexerLatin1Test extends LexerTest {
+
+  @Override
+  protected ParserInputSource createInputSource(String input, PathFragment path) {
+    return ParserInputSource.create(input.getBytes(StandardCharsets.ISO_8859_1), path);
+  }
+
+  @Test
+  public void testRepeatedNamesShareStrings() throws Exception {
+    Token[] tokens = tokens("foo = 'bar'\nfoo = 'bar' + 'foo'\nr'bar'");
+    assertThat(tokens[0].value).isEqualTo("foo");
+    assertThat(tokens[4].value).isSameAs(tokens[0].value);
+    assertThat(tokens[6].value).isSameAs(tokens[2].value);
+    assertThat(tokens[8].value).isSameAs(tokens[0].value);
+    assertThat(tokens[10].value).isSameAs(tokens[2].value);
+  }
+
+  @Test
+  public void testKeywordsAreRecognizedAfterEqualNames() throws Exception {
+    assertThat(names(tokens("'if' if 'in' in"))).isEqualTo("STRING IF STRING IN NEWLINE EOF");
+  }
+
+  @Test
+  public void testLiteralsWithEscapesAreDecoded() throws Exception {
+    Token[] tokens = tokens("'a\\\\b' 'a\\\\b'");
+    assertThat(tokens[0].value).isEqualTo("a\\b");
+    assertThat(tokens[1].value).isEqualTo("a\\b");
+  }
+}
@@ -40,7 +40,7 @@ public class LexerTest {
    */
   private Lexer createLexer(String input) {
     PathFragment somePath = PathFragment.create("/some/path.txt");
-    ParserInputSource inputSource = ParserInputSource.create(input, somePath);
+    ParserInputSource inputSource = createInputSource(input, somePath);
     Reporter reporter = new Reporter(new EventBus());
     reporter.addHandler(new EventHandler() {
       @Override
@@ -56,6 +56,11 @@ public class LexerTest {
     return new Lexer(inputSource, reporter);
   }
 
+  /** Returns the input source the lexer reads the given input from. */
+  protected ParserInputSource createInputSource(String input, PathFragment path) {
+    return ParserInputSource.create(input, path);
+  }
+
   public Token[] tokens(String input) {
     return createLexer(input).getTokens().toArray(new Token[0]);
   }
@@ -99,7 +104,7 @@ public class LexerTest {
   /**
    * Returns a string containing just the names of the tokens.
    */
-  private static String names(Token[] tokens) {
+  static String names(Token[] tokens) {
     StringBuilder buf = new StringBuilder();
     for (Token tok : tokens) {
       if (buf.length() > 0) {
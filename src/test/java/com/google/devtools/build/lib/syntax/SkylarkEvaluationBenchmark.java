@@ -0,0 +1,171 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.syntax;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.packages.SkylarkSemanticsOptions;
+import com.google.devtools.build.lib.testutil.BenchmarkHarness;
+import com.google.devtools.build.lib.testutil.BenchmarkHarness.Flags;
+import com.google.devtools.build.lib.testutil.BenchmarkHarness.Stats;
+import com.google.devtools.common.options.OptionsParser;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Microbenchmarks for the evaluation of Skylark functions, with and without
+ * --experimental_skylark_local_slots.
+ *
+ * <p>Each workload is a Skylark file whose top level calls a function {@code size} times; the
+ * functions are written like typical rule implementation helpers (loops over lists, string
+ * building, dict updates, comprehensions and calls to other functions). The file is parsed once
+ * and executed in a fresh {@link Environment} for every iteration. The benchmark reports wall
+ * time, function calls per second and bytes allocated per call. See {@link BenchmarkHarness} for
+ * how it runs and measures:
+ *
+ * <pre>
+ *   bazel run //src/test/java/com/google/devtools/build/lib:skylark_benchmark -- \
+ *       --workload=loops --size=10000
+ * </pre>
+ */
+public class SkylarkEvaluationBenchmark {
+
+  private static final ImmutableMap<String, ImmutableList<String>> WORKLOADS =
+      ImmutableMap.of(
+          "loops",
+          ImmutableList.of(
+              "def work(n):",
+              "  total = 0",
+              "  for i in range(n):",
+              "    if i % 3 == 0:",
+              "      total += i",
+              "    else:",
+              "      total -= 1",
+              "  return total",
+              "def main(size):",
+              "  result = 0",
+              "  for i in range(size):",
+              "    result += work(20)",
+              "  return result"),
+          "strings",
+          ImmutableList.of(
+              "def label(pkg, name):",
+              "  if name.startswith(':'):",
+              "    name = name[1:]",
+              "  return '//' + pkg + ':' + name",
+              "def work(pkg, names):",
+              "  labels = [label(pkg, name) for name in names]",
+              "  by_name = {}",
+              "  for l in labels:",
+              "    by_name[l.split(':')[1]] = l",
+              "  return by_name",
+              "def main(size):",
+              "  names = [':a', 'b', ':c', 'd', 'e']",
+              "  count = 0",
+              "  for i in range(size):",
+              "    count += len(work('foo/bar', names))",
+              "  return count"),
+          "calls",
+          ImmutableList.of(
+              "def leaf(a, b, c = 1):",
+              "  x = a + b",
+              "  y = x * c",
+              "  return y",
+              "def middle(a, b):",
+              "  return leaf(a, b) + leaf(b, a, c = 2)",
+              "def main(size):",
+              "  total = 0",
+              "  for i in range(size):",
+              "    total += middle(i, 1)",
+              "  return total"));
+
+  private final String workload;
+  private final int size;
+  private final boolean localSlots;
+  private final SkylarkSemantics semantics;
+  private final BuildFileAST ast;
+
+  SkylarkEvaluationBenchmark(String workload, int size, boolean localSlots) throws Exception {
+    this.workload = workload;
+    this.size = size;
+    this.localSlots = localSlots;
+    OptionsParser parser = OptionsParser.newOptionsParser(SkylarkSemanticsOptions.class);
+    parser.parse("--experimental_skylark_local_slots=" + localSlots);
+    this.semantics = parser.getOptions(SkylarkSemanticsOptions.class).toSkylarkSemantics();
+    String[] lines =
+        ImmutableList.<String>builder()
+            .addAll(WORKLOADS.get(workload))
+            .add("result = main(" + size + ")")
+            .build()
+            .toArray(new String[0]);
+    this.ast = BuildFileAST.parseString(Environment.FAIL_FAST_HANDLER, lines);
+  }
+
+  /** Executes the workload once and returns the number of calls it made, i.e. its size. */
+  private long execute() throws InterruptedException {
+    try (Mutability mutability = Mutability.create("benchmark")) {
+      Environment env =
+          Environment.builder(mutability)
+              .setSemantics(semantics)
+              .setGlobals(BazelLibrary.GLOBALS)
+              .setEventHandler(Environment.FAIL_FAST_HANDLER)
+              .build();
+      Preconditions.checkState(
+          ast.exec(env, Environment.FAIL_FAST_HANDLER), "%s failed", workload);
+    }
+    return size;
+  }
+
+  void run(int warmupIterations, int iterations) throws Exception {
+    Stats stats = BenchmarkHarness.measure(warmupIterations, iterations, this::execute);
+    System.out.printf(
+        Locale.US,
+        "%-8s size=%d local_slots=%-5s mean %10.3f ms  min %10.3f ms  %12.0f calls/s  "
+            + "%10.1f bytes/call%n",
+        workload,
+        size,
+        localSlots,
+        stats.meanMillis,
+        stats.minMillis,
+        stats.unitsPerSecond,
+        stats.bytesPerUnit);
+  }
+
+  public static void main(String[] args) throws Exception {
+    Flags flags = new Flags(args);
+    List<String> workloads = WORKLOADS.keySet().asList();
+    String workload = flags.getString("workload");
+    if (workload != null) {
+      Preconditions.checkArgument(WORKLOADS.containsKey(workload), "Unknown workload %s", workload);
+      workloads = ImmutableList.of(workload);
+    }
+    List<Boolean> localSlotsModes = ImmutableList.of(false, true);
+    String localSlots = flags.getString("local_slots");
+    if (localSlots != null) {
+      localSlotsModes = ImmutableList.of(Boolean.parseBoolean(localSlots));
+    }
+    int size = flags.getInt("size", 10000);
+    int warmupIterations = flags.getWarmupIterations(10);
+    int iterations = flags.getIterations(20);
+    flags.checkAllRead();
+    Preconditions.checkArgument(size > 0);
+    for (String workloadName : workloads) {
+      for (boolean localSlotsMode : localSlotsModes) {
+        new SkylarkEvaluationBenchmark(workloadName, size, localSlotsMode)
+            .run(warmupIterations, iterations);
+      }
+    }
+  }
+}
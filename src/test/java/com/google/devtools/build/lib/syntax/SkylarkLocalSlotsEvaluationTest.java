@@ -0,0 +1,106 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.syntax;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ObjectArrays;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Runs the Skylark evaluation tests with the local variables of functions resolved to slots, and
+ * checks the cases where slots and name lookups interact.
+ */
+@RunWith(JUnit4.class)
+public class SkylarkLocalSlotsEvaluationTest extends SkylarkEvaluationTest {
+
+  @Override
+  protected Environment newEnvironmentWithSkylarkOptions(String... skylarkOptions)
+      throws Exception {
+    // Options given by a test come last, so that they take precedence.
+    return super.newEnvironmentWithSkylarkOptions(
+        ObjectArrays.concat("--experimental_skylark_local_slots=true", skylarkOptions));
+  }
+
+  @Test
+  public void testLocalShadowsGlobal() throws Exception {
+    eval("a = 1", "def f(a):", "  b = a + 1", "  return b", "x = f(10)", "y = a");
+    assertThat(lookup("x")).isEqualTo(11);
+    assertThat(lookup("y")).isEqualTo(1);
+  }
+
+  @Test
+  public void testUnassignedLocalFallsBackToGlobal() throws Exception {
+    eval(
+        "a = 1",
+        "def f(cond):",
+        "  if cond:",
+        "    a = 2",
+        "    return a",
+        "  return 0",
+        "x = f(True)",
+        "y = f(False)");
+    assertThat(lookup("x")).isEqualTo(2);
+    assertThat(lookup("y")).isEqualTo(0);
+  }
+
+  @Test
+  public void testGlobalReadBeforeLocalAssignment() throws Exception {
+    checkEvalErrorContains(
+        "Variable 'a' is referenced before assignment.",
+        "a = 1",
+        "def f():",
+        "  b = a",
+        "  a = 2",
+        "  return b",
+        "c = f()");
+  }
+
+  @Test
+  public void testLocalsAreNotSharedBetweenCalls() throws Exception {
+    checkEvalErrorContains(
+        "name 'seen' is not defined",
+        "def f(n):",
+        "  if n > 0:",
+        "    seen = n",
+        "  return seen",
+        "x = f(1)",
+        "y = f(0)");
+  }
+
+  @Test
+  public void testForAndComprehensionVariablesAreLocals() throws Exception {
+    eval(
+        "def f(items):",
+        "  total = 0",
+        "  for i, j in items:",
+        "    total += i * j",
+        "  squares = [k * k for k in range(3)]",
+        "  return total, i, j, squares",
+        "x = f([(1, 2), (3, 4)])");
+    assertThat(Printer.repr(lookup("x"))).isEqualTo("(14, 3, 4, [0, 1, 4])");
+  }
+
+  @Test
+  public void testErrorListsLocalsAmongDefinedNames() throws Exception {
+    checkEvalErrorContains(
+        "name 'totl' is not defined (did you mean 'total'?)",
+        "def f():",
+        "  total = 1",
+        "  return totl",
+        "f()");
+  }
+}
@@ -0,0 +1,203 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.syntax;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+import static org.junit.Assert.fail;
+
+import com.google.common.base.Joiner;
+import com.google.devtools.build.lib.events.Event;
+import com.google.devtools.build.lib.events.Location;
+import com.google.devtools.build.lib.syntax.util.EvaluationTestCase;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link BuildFileAST#serialize} and {@link BuildFileAST#deserialize}. */
+@RunWith(JUnit4.class)
+public class SyntaxTreeSerializerTest extends EvaluationTestCase {
+
+  private static final String[] SKYLARK_FILE = {
+    "load('//foo:bar.bzl', 'a', b = 'c')",
+    "# A comment",
+    "def f(x, y = [1, 2], *args, **kwargs):",
+    "  \"\"\"Docstring.\"\"\"",
+    "  z = {'k': x, 'l': -y[0]}",
+    "  z['m'] += 3",
+    "  for i, j in [(1, 2)]:",
+    "    if i > 1 and not j:",
+    "      continue",
+    "    elif i:",
+    "      pass",
+    "    else:",
+    "      break",
+    "  return [k for k in z if k != 'k'], {v: 1 for v in 'ab'[::-1]}",
+    "def g():",
+    "  return f(1, y = 2, *[], **{}).__class__ if True else None",
+  };
+
+  private BuildFileAST parseSkylarkFile(String... lines) throws IOException {
+    byte[] bytes = Joiner.on("\n").join(lines).getBytes(StandardCharsets.ISO_8859_1);
+    return BuildFileAST.parseSkylarkFile(
+        bytes, new byte[16], PathFragment.create("/foo/bar.bzl"), getEventHandler());
+  }
+
+  private static BuildFileAST roundTrip(BuildFileAST ast) throws IOException {
+    return BuildFileAST.deserialize(ast.serialize());
+  }
+
+  @Test
+  public void testRoundTripPreservesTree() throws Exception {
+    BuildFileAST ast = parseSkylarkFile(SKYLARK_FILE);
+    assertThat(ast.containsErrors()).isFalse();
+
+    BuildFileAST copy = roundTrip(ast);
+
+    assertSameTree(ast, copy, "ast");
+    assertThat(copy.toString()).isEqualTo(ast.toString());
+    assertThat(copy.getContentHashCode()).isEqualTo(ast.getContentHashCode());
+    assertThat(copy.getImports().get(0).getImportString()).isEqualTo("//foo:bar.bzl");
+    assertThat(copy.getComments().get(0).getValue()).isEqualTo("# A comment");
+  }
+
+  @Test
+  public void testLocationsAreEqualToParsedOnes() throws Exception {
+    BuildFileAST ast = parseSkylarkFile(SKYLARK_FILE);
+    BuildFileAST copy = roundTrip(ast);
+
+    Location original = ast.getStatements().get(1).getLocation();
+    Location location = copy.getStatements().get(1).getLocation();
+    assertThat(location).isEqualTo(original);
+    assertThat(location.getPath()).isEqualTo(PathFragment.create("/foo/bar.bzl"));
+    assertThat(location.getStartLineAndColumn()).isEqualTo(original.getStartLineAndColumn());
+    assertThat(location.getEndLineAndColumn()).isEqualTo(original.getEndLineAndColumn());
+  }
+
+  @Test
+  public void testEmptyFile() throws Exception {
+    BuildFileAST ast = parseSkylarkFile("");
+    BuildFileAST copy = roundTrip(ast);
+
+    assertThat(copy.getStatements()).isEmpty();
+    assertThat(copy.getLocation()).isEqualTo(ast.getLocation());
+  }
+
+  @Test
+  public void testDeserializedTreeEvaluates() throws Exception {
+    setFailFast(false);
+    BuildFileAST ast =
+        roundTrip(
+            parseSkylarkFile(
+                "def f(n):",
+                "  total = 0",
+                "  for i in range(n):",
+                "    total += i",
+                "  return total",
+                "x = f(5)",
+                "y = x + 'a'"));
+
+    assertThat(ast.exec(env, getEventHandler())).isFalse();
+    assertThat(lookup("x")).isEqualTo(10);
+    Event error = assertContainsError("unsupported operand type(s) for +: 'int' and 'string'");
+    assertThat(error.getLocation().getStartLineAndColumn().getLine()).isEqualTo(7);
+  }
+
+  @Test
+  public void testHashLineTablesAreNotSerializable() throws Exception {
+    BuildFileAST ast =
+        BuildFileAST.parseBuildFile(
+            ParserInputSource.create("\n#line 1 \"foo\"\nx = 1\n", PathFragment.create("/BUILD")),
+            getEventHandler());
+    try {
+      ast.serialize();
+      fail();
+    } catch (NotSerializableException expected) {
+      assertThat(expected).hasMessageThat().contains("HashLine");
+    }
+  }
+
+  @Test
+  public void testMalformedInputIsRejected() throws Exception {
+    byte[] bytes = parseSkylarkFile(SKYLARK_FILE).serialize();
+    for (int length : new int[] {0, 1, bytes.length / 2, bytes.length - 1}) {
+      try {
+        BuildFileAST.deserialize(Arrays.copyOf(bytes, length));
+        fail("Accepted a prefix of length " + length);
+      } catch (IOException expected) {
+        // Expected.
+      }
+    }
+  }
+
+  /**
+   * Compares two ASTs field by field. Lists and maps are compared by their elements, and locations
+   * with {@link Location#equals}.
+   */
+  private static void assertSameTree(Object expected, Object actual, String path)
+      throws IllegalAccessException {
+    if (expected == null || actual == null) {
+      assertWithMessage(path).that(actual).isSameAs(expected);
+      return;
+    }
+    if (expected instanceof List) {
+      List<?> expectedList = (List<?>) expected;
+      List<?> actualList = (List<?>) actual;
+      assertWithMessage(path).that(actualList).hasSize(expectedList.size());
+      for (int i = 0; i < expectedList.size(); i++) {
+        assertSameTree(expectedList.get(i), actualList.get(i), path + "[" + i + "]");
+      }
+      return;
+    }
+    if (expected instanceof Map) {
+      assertSameTree(
+          new ArrayList<>(((Map<?, ?>) expected).keySet()),
+          new ArrayList<>(((Map<?, ?>) actual).keySet()),
+          path + ".keys");
+      assertSameTree(
+          new ArrayList<>(((Map<?, ?>) expected).values()),
+          new ArrayList<>(((Map<?, ?>) actual).values()),
+          path + ".values");
+      return;
+    }
+    assertWithMessage(path).that(actual.getClass()).isEqualTo(expected.getClass());
+    if (expected instanceof String
+        || expected instanceof Number
+        || expected instanceof Boolean
+        || expected instanceof Enum
+        || expected instanceof Location
+        || expected instanceof PathFragment) {
+      assertWithMessage(path).that(actual).isEqualTo(expected);
+      return;
+    }
+    for (Class<?> c = expected.getClass(); c != Object.class; c = c.getSuperclass()) {
+      for (Field field : c.getDeclaredFields()) {
+        if (!Modifier.isStatic(field.getModifiers())) {
+          field.setAccessible(true);
+          assertSameTree(field.get(expected), field.get(actual), path + "." + field.getName());
+        }
+      }
+    }
+  }
+}
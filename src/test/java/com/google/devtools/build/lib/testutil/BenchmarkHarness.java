@@ -0,0 +1,184 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.testutil;
+
+import com.google.common.base.Preconditions;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shared parts of the microbenchmarks that are run as plain binaries, without network access or a
+ * benchmarking framework: flag parsing, warmup and measured iterations, and the wall time and
+ * allocation of a run.
+ *
+ * <p>Benchmarks take flags of the form {@code --name=value}, including {@code --warmup} and {@code
+ * --iterations}, and print one summary line per configuration they run. {@link Sample#measure}
+ * reads the allocation counter of the current thread, so it includes everything the benchmark
+ * allocates on that thread, but nothing other threads do.
+ */
+public final class BenchmarkHarness {
+
+  private static final com.sun.management.ThreadMXBean threadBean =
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+  private BenchmarkHarness() {}
+
+  /** Returns the number of bytes allocated by the current thread so far. */
+  public static long currentThreadAllocatedBytes() {
+    return threadBean.getCurrentThreadAllocatedBytes();
+  }
+
+  /** The work a benchmark measures in one run. */
+  public interface Run {
+    /** Runs the benchmark once and returns the number of units of work it did. */
+    long run() throws Exception;
+  }
+
+  /** One iteration of a benchmark, which may take several samples. */
+  public interface Iteration<T> {
+    T run() throws Exception;
+  }
+
+  /** Wall time, allocation and units of work of one measured run. */
+  public static final class Sample {
+    public final long nanos;
+    public final long allocatedBytes;
+    public final long units;
+
+    public Sample(long nanos, long allocatedBytes, long units) {
+      this.nanos = nanos;
+      this.allocatedBytes = allocatedBytes;
+      this.units = units;
+    }
+
+    /** Runs the given work once on the current thread and measures it. */
+    public static Sample measure(Run run) throws Exception {
+      long startBytes = currentThreadAllocatedBytes();
+      long start = System.nanoTime();
+      long units = run.run();
+      return new Sample(
+          System.nanoTime() - start, currentThreadAllocatedBytes() - startBytes, units);
+    }
+  }
+
+  /** Summary of the samples of one configuration. */
+  public static final class Stats {
+    public final int count;
+    public final double meanMillis;
+    public final double minMillis;
+    /** Units of work per second over all samples, or 0 if no work was done. */
+    public final double unitsPerSecond;
+    /** Bytes allocated per unit of work over all samples, or 0 if no work was done. */
+    public final double bytesPerUnit;
+
+    public Stats(Collection<Sample> samples) {
+      Preconditions.checkArgument(!samples.isEmpty());
+      long totalNanos = 0;
+      long minNanos = Long.MAX_VALUE;
+      long totalUnits = 0;
+      long totalBytes = 0;
+      for (Sample sample : samples) {
+        totalNanos += sample.nanos;
+        minNanos = Math.min(minNanos, sample.nanos);
+        totalUnits += sample.units;
+        totalBytes += sample.allocatedBytes;
+      }
+      this.count = samples.size();
+      this.meanMillis = totalNanos / 1e6 / count;
+      this.minMillis = minNanos / 1e6;
+      this.unitsPerSecond = totalUnits == 0 ? 0 : totalUnits / (totalNanos / 1e9);
+      this.bytesPerUnit = totalUnits == 0 ? 0 : (double) totalBytes / totalUnits;
+    }
+  }
+
+  /**
+   * Runs the given iteration {@code warmupIterations} times without keeping the results, then
+   * {@code iterations} times, and returns the results of the latter in order.
+   */
+  public static <T> List<T> repeat(int warmupIterations, int iterations, Iteration<T> iteration)
+      throws Exception {
+    for (int i = 0; i < warmupIterations; i++) {
+      iteration.run();
+    }
+    List<T> results = new ArrayList<>(iterations);
+    for (int i = 0; i < iterations; i++) {
+      results.add(iteration.run());
+    }
+    return results;
+  }
+
+  /** Runs the given work with warmup, measures every measured run and summarizes them. */
+  public static Stats measure(int warmupIterations, int iterations, Run run) throws Exception {
+    return new Stats(repeat(warmupIterations, iterations, () -> Sample.measure(run)));
+  }
+
+  /**
+   * The {@code --name=value} flags of a benchmark. Every flag must be read by one of the getters
+   * before {@link #checkAllRead}, which rejects unknown flags.
+   */
+  public static final class Flags {
+    private final Map<String, String> values = new LinkedHashMap<>();
+
+    public Flags(String[] args) {
+      for (String arg : args) {
+        int eq = arg.indexOf('=');
+        if (!arg.startsWith("--") || eq < 0) {
+          throw new IllegalArgumentException("Expected --name=value, got " + arg);
+        }
+        values.put(arg.substring(2, eq), arg.substring(eq + 1));
+      }
+    }
+
+    /** Returns the value of the given flag, or null if it was not given. */
+    public String getString(String name) {
+      return values.remove(name);
+    }
+
+    public String getString(String name, String defaultValue) {
+      String value = getString(name);
+      return value != null ? value : defaultValue;
+    }
+
+    public int getInt(String name, int defaultValue) {
+      String value = getString(name);
+      return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
+    /** Returns the number of warmup iterations, and checks that it is not negative. */
+    public int getWarmupIterations(int defaultValue) {
+      int warmupIterations = getInt("warmup", defaultValue);
+      Preconditions.checkArgument(warmupIterations >= 0, "--warmup must not be negative");
+      return warmupIterations;
+    }
+
+    /** Returns the number of measured iterations, and checks that it is positive. */
+    public int getIterations(int defaultValue) {
+      int iterations = getInt("iterations", defaultValue);
+      Preconditions.checkArgument(iterations > 0, "--iterations must be positive");
+      return iterations;
+    }
+
+    /** Fails if any flag was not read. */
+    public void checkAllRead() {
+      if (!values.isEmpty()) {
+        throw new IllegalArgumentException(
+            "Unknown flag --" + values.keySet().iterator().next());
+      }
+    }
+  }
+}
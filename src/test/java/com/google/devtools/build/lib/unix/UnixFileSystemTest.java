@@ -16,12 +16,17 @@ package com.google.devtools.build.lib.unix;
 import static com.google.common.truth.Truth.assertThat;
 import static org.junit.Assert.fail;
 
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.vfs.BatchStat;
+import com.google.devtools.build.lib.vfs.FileStatus;
+import com.google.devtools.build.lib.vfs.FileStatusWithDigest;
 import com.google.devtools.build.lib.vfs.FileSystem;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.SymlinkAwareFileSystemTest;
 import com.google.devtools.build.lib.vfs.Symlinks;
 import java.io.IOException;
+import java.util.List;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
@@ -77,4 +82,69 @@ public class UnixFileSystemTest extends SymlinkAwareFileSystemTest {
     assertThat(fifo.stat().isFile()).isTrue();
     assertThat(fifo.stat().isSpecialFile()).isTrue();
   }
+
+  @Test
+  public void testBatchStat() throws Exception {
+    Path file = absolutize("file");
+    Path link = absolutize("link");
+    Path missing = absolutize("missing");
+    Path underFile = file.getRelative("child");
+    FileSystemUtils.writeContentAsLatin1(file, "contents");
+    link.createSymbolicLink(file);
+    BatchStat batchStat = testFS.getBatchStat();
+    assertThat(batchStat).isNotNull();
+
+    List<FileStatusWithDigest> stats =
+        batchStat.batchStat(
+            /*includeDigest=*/ false,
+            /*includeLinks=*/ true,
+            ImmutableList.of(
+                file.asFragment(),
+                link.asFragment(),
+                missing.asFragment(),
+                underFile.asFragment()));
+    assertThat(stats).hasSize(4);
+    assertSameStat(stats.get(0), file.stat(Symlinks.NOFOLLOW));
+    assertThat(stats.get(0).getDigest()).isNull();
+    assertSameStat(stats.get(1), link.stat(Symlinks.NOFOLLOW));
+    assertThat(stats.get(1).isSymbolicLink()).isTrue();
+    assertThat(stats.get(2)).isNull();
+    assertThat(stats.get(3)).isNull();
+
+    stats =
+        batchStat.batchStat(
+            /*includeDigest=*/ false,
+            /*includeLinks=*/ false,
+            ImmutableList.of(link.asFragment()));
+    assertSameStat(stats.get(0), file.stat(Symlinks.FOLLOW));
+    assertThat(stats.get(0).isFile()).isTrue();
+  }
+
+  @Test
+  public void testBatchStatCircularSymlink() throws Exception {
+    Path linkA = absolutize("link-a");
+    Path linkB = absolutize("link-b");
+    linkA.createSymbolicLink(linkB);
+    linkB.createSymbolicLink(linkA);
+    try {
+      testFS
+          .getBatchStat()
+          .batchStat(
+              /*includeDigest=*/ false,
+              /*includeLinks=*/ false,
+              ImmutableList.of(linkA.asFragment()));
+      fail();
+    } catch (IOException expected) {
+      // Expected.
+    }
+  }
+
+  private static void assertSameStat(FileStatus actual, FileStatus expected) throws IOException {
+    assertThat(actual.getSize()).isEqualTo(expected.getSize());
+    assertThat(actual.getLastModifiedTime()).isEqualTo(expected.getLastModifiedTime());
+    assertThat(actual.getLastChangeTime()).isEqualTo(expected.getLastChangeTime());
+    assertThat(actual.getNodeId()).isEqualTo(expected.getNodeId());
+    assertThat(actual.isFile()).isEqualTo(expected.isFile());
+    assertThat(actual.isSymbolicLink()).isEqualTo(expected.isSymbolicLink());
+  }
 }
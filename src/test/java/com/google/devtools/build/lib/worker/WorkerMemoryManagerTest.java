@@ -0,0 +1,192 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.worker;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.hash.HashCode;
+import com.google.devtools.build.lib.actions.ResourceManager;
+import com.google.devtools.build.lib.actions.ResourceSet;
+import com.google.devtools.build.lib.testutil.ManualClock;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link WorkerMemoryManager}. */
+@RunWith(JUnit4.class)
+public class WorkerMemoryManagerTest {
+  private static final long MB = 1024 * 1024;
+
+  /** A worker without a process. */
+  private static class FakeWorker extends Worker {
+    private boolean alive = true;
+
+    FakeWorker(WorkerKey key, int workerId) {
+      super(key, workerId, key.getExecRoot(), key.getExecRoot().getRelative("worker.log"));
+    }
+
+    @Override
+    boolean isAlive() {
+      return alive;
+    }
+
+    @Override
+    void destroy() {
+      alive = false;
+    }
+  }
+
+  private final FileSystem fs = new InMemoryFileSystem();
+  private final ManualClock clock = new ManualClock();
+  private final Map<Worker, Long> rss = new IdentityHashMap<>();
+  private final ResourceManager resourceManager = ResourceManager.instanceForTestingOnly();
+  private WorkerMemoryManager manager;
+  private WorkerKey key;
+
+  @Before
+  public final void setUp() {
+    resourceManager.setRamUtilizationPercentage(100);
+    resourceManager.setAvailableResources(ResourceSet.create(1000, 1, 1, 1));
+    manager = new WorkerMemoryManager(worker -> rss.get(worker), resourceManager, clock);
+    manager.setBudgetBytes(100 * MB);
+    key =
+        new WorkerKey(
+            ImmutableList.of(),
+            ImmutableMap.of(),
+            fs.getPath("/execroot/workspace"),
+            "dummy",
+            HashCode.fromInt(0),
+            ImmutableSortedMap.of(),
+            ImmutableMap.of(),
+            ImmutableSet.of(),
+            false);
+  }
+
+  /** Creates a worker of the given size that was last used at the current time. */
+  private FakeWorker usedWorker(int workerId, long rssBytes) {
+    FakeWorker worker = new FakeWorker(key, workerId);
+    rss.put(worker, rssBytes);
+    assertThat(manager.beginUse(worker)).isTrue();
+    manager.endUse(worker);
+    clock.advanceMillis(10000);
+    return worker;
+  }
+
+  @Test
+  public void coldestIdleWorkersAreEvictedUntilWithinBudget() throws Exception {
+    FakeWorker coldest = usedWorker(1, 40 * MB);
+    FakeWorker colder = usedWorker(2, 40 * MB);
+    FakeWorker busy = usedWorker(3, 40 * MB);
+    FakeWorker hottest = usedWorker(4, 40 * MB);
+    assertThat(manager.beginUse(busy)).isTrue();
+
+    manager.update();
+
+    assertThat(coldest.isAlive()).isFalse();
+    assertThat(colder.isAlive()).isFalse();
+    assertThat(busy.isAlive()).isTrue();
+    assertThat(hottest.isAlive()).isTrue();
+    // An evicted worker that is still in the idle queue of the pool must not be used.
+    assertThat(manager.beginUse(coldest)).isFalse();
+    assertThat(manager.beginUse(hottest)).isTrue();
+  }
+
+  @Test
+  public void evictedWorkersAreNoLongerTracked() throws Exception {
+    FakeWorker evicted = usedWorker(1, 80 * MB);
+    FakeWorker kept = usedWorker(2, 40 * MB);
+
+    manager.update();
+
+    assertThat(evicted.isAlive()).isFalse();
+    assertThat(manager.isTracked(evicted)).isFalse();
+    assertThat(manager.isTracked(kept)).isTrue();
+  }
+
+  @Test
+  public void workersAreDestroyedWithoutHoldingTheLock() throws Exception {
+    FakeWorker other = new FakeWorker(key, 2);
+    AtomicBoolean otherWasBorrowed = new AtomicBoolean();
+    FakeWorker slow =
+        new FakeWorker(key, 1) {
+          @Override
+          void destroy() {
+            // Another thread borrows a worker while this one is being destroyed.
+            Thread borrower = new Thread(() -> otherWasBorrowed.set(manager.beginUse(other)));
+            borrower.start();
+            try {
+              borrower.join(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+            // Until it has been destroyed, it must not be handed out again.
+            assertThat(manager.beginUse(this)).isFalse();
+            super.destroy();
+          }
+        };
+    rss.put(slow, 200 * MB);
+    assertThat(manager.beginUse(slow)).isTrue();
+    manager.endUse(slow);
+
+    manager.update();
+
+    assertThat(otherWasBorrowed.get()).isTrue();
+    assertThat(slow.isAlive()).isFalse();
+    assertThat(manager.isTracked(slow)).isFalse();
+  }
+
+  @Test
+  public void workersWithinBudgetAreKept() throws Exception {
+    FakeWorker first = usedWorker(1, 40 * MB);
+    FakeWorker second = usedWorker(2, 40 * MB);
+
+    manager.update();
+
+    assertThat(first.isAlive()).isTrue();
+    assertThat(second.isAlive()).isTrue();
+  }
+
+  @Test
+  public void workerMemoryIsReservedInResourceManager() throws Exception {
+    usedWorker(1, 600 * MB);
+    manager.setBudgetBytes(1000 * MB);
+
+    manager.update();
+    assertThat(resourceManager.getReservedMemoryMb()).isEqualTo(600.0);
+
+    manager.clear();
+    assertThat(resourceManager.getReservedMemoryMb()).isEqualTo(0.0);
+  }
+
+  @Test
+  public void parseRssBytes() throws Exception {
+    assertThat(
+            WorkerMemoryManager.parseRssBytes(
+                "Name:\tjava\nVmPeak:\t  900 kB\nVmRSS:\t  1234 kB\nThreads:\t12\n"))
+        .isEqualTo(1234 * 1024L);
+    assertThat(WorkerMemoryManager.parseRssBytes("Name:\tjava\n")).isEqualTo(-1);
+  }
+}
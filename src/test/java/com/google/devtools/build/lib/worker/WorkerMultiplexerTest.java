@@ -0,0 +1,230 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.worker;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.hash.HashCode;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkRequest;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link WorkerMultiplexer}. */
+@RunWith(JUnit4.class)
+public class WorkerMultiplexerTest {
+
+  /** A worker whose process is simulated by a thread talking to it through pipes. */
+  private static class FakeWorker extends Worker {
+    private final PipedOutputStream stdin = new PipedOutputStream();
+    private final PipedInputStream stdout = new PipedInputStream();
+    final InputStream processStdin;
+    final OutputStream processStdout;
+    private volatile boolean alive = true;
+
+    FakeWorker(WorkerKey key) throws IOException {
+      super(key, 1, key.getExecRoot(), key.getExecRoot().getRelative("worker.log"));
+      processStdin = new PipedInputStream(stdin);
+      processStdout = new PipedOutputStream(stdout);
+    }
+
+    @Override
+    InputStream getInputStream() {
+      return stdout;
+    }
+
+    @Override
+    OutputStream getOutputStream() {
+      return stdin;
+    }
+
+    @Override
+    boolean isAlive() {
+      return alive;
+    }
+
+    @Override
+    void destroy() throws IOException {
+      alive = false;
+      processStdout.close();
+    }
+  }
+
+  private final FileSystem fs = new InMemoryFileSystem();
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+
+  @After
+  public final void shutdownExecutor() {
+    executor.shutdownNow();
+  }
+
+  private FakeWorker createWorker() throws IOException {
+    WorkerKey key =
+        new WorkerKey(
+            ImmutableList.of(),
+            ImmutableMap.of(),
+            fs.getPath("/execroot/workspace"),
+            "dummy",
+            HashCode.fromInt(0),
+            ImmutableSortedMap.of(),
+            ImmutableMap.of(),
+            ImmutableSet.of(),
+            false);
+    return new FakeWorker(key);
+  }
+
+  private static WorkRequest request(String argument) {
+    return WorkRequest.newBuilder().addArguments(argument).build();
+  }
+
+  @Test
+  public void concurrentRequestsGetTheirOwnResponses() throws Exception {
+    FakeWorker worker = createWorker();
+    // Answers the two requests in reverse order.
+    executor.submit(
+        () -> {
+          WorkRequest first = WorkRequest.parseDelimitedFrom(worker.processStdin);
+          WorkRequest second = WorkRequest.parseDelimitedFrom(worker.processStdin);
+          for (WorkRequest request : ImmutableList.of(second, first)) {
+            WorkResponse.newBuilder()
+                .setRequestId(request.getRequestId())
+                .setOutput(request.getArguments(0))
+                .build()
+                .writeDelimitedTo(worker.processStdout);
+          }
+          worker.processStdout.flush();
+          return null;
+        });
+    WorkerMultiplexer multiplexer = new WorkerMultiplexer(worker);
+
+    List<Future<WorkResponse>> responses = new ArrayList<>();
+    for (String argument : ImmutableList.of("a", "b")) {
+      responses.add(executor.submit(() -> multiplexer.exec(request(argument))));
+    }
+
+    assertThat(responses.get(0).get().getOutput()).isEqualTo("a");
+    assertThat(responses.get(1).get().getOutput()).isEqualTo("b");
+    assertThat(responses.get(0).get().getRequestId())
+        .isNotEqualTo(responses.get(1).get().getRequestId());
+  }
+
+  @Test
+  public void pendingRequestsFailWhenWorkerExits() throws Exception {
+    FakeWorker worker = createWorker();
+    executor.submit(
+        () -> {
+          WorkRequest.parseDelimitedFrom(worker.processStdin);
+          worker.processStdout.close();
+          return null;
+        });
+    WorkerMultiplexer multiplexer = new WorkerMultiplexer(worker);
+
+    try {
+      multiplexer.exec(request("a"));
+      fail("Expected IOException");
+    } catch (IOException e) {
+      assertThat(e).hasMessageThat().contains("did not return a WorkResponse");
+    }
+    assertThat(multiplexer.isAlive()).isFalse();
+  }
+
+  @Test
+  public void responsesWithoutRequestIdAreRejected() throws Exception {
+    FakeWorker worker = createWorker();
+    executor.submit(
+        () -> {
+          WorkRequest.parseDelimitedFrom(worker.processStdin);
+          WorkResponse.newBuilder().setOutput("a").build().writeDelimitedTo(worker.processStdout);
+          worker.processStdout.flush();
+          return null;
+        });
+    WorkerMultiplexer multiplexer = new WorkerMultiplexer(worker);
+
+    try {
+      multiplexer.exec(request("a"));
+      fail("Expected IOException");
+    } catch (IOException e) {
+      assertThat(e).hasMessageThat().contains("unknown request id 0");
+    }
+  }
+
+  @Test
+  public void retiredMultiplexerSendsNoRequests() throws Exception {
+    FakeWorker worker = createWorker();
+    WorkerMultiplexer multiplexer = new WorkerMultiplexer(worker);
+    // Retired by another thread before this one sends its request.
+    multiplexer.retire();
+    assertThat(worker.isAlive()).isFalse();
+
+    assertThat(multiplexer.exec(request("a"))).isNull();
+    assertThat(worker.processStdin.available()).isEqualTo(0);
+  }
+
+  @Test
+  public void interruptedRequestDestroysWorker() throws Exception {
+    FakeWorker worker = createWorker();
+    CountDownLatch requestReceived = new CountDownLatch(1);
+    // Reads the requests but never answers them.
+    executor.submit(
+        () -> {
+          while (WorkRequest.parseDelimitedFrom(worker.processStdin) != null) {
+            requestReceived.countDown();
+          }
+          return null;
+        });
+    WorkerMultiplexer multiplexer = new WorkerMultiplexer(worker);
+    Future<WorkResponse> other = executor.submit(() -> multiplexer.exec(request("b")));
+    assertThat(requestReceived.await(1, TimeUnit.MINUTES)).isTrue();
+
+    Thread.currentThread().interrupt();
+    try {
+      multiplexer.exec(request("a"));
+      fail("Expected InterruptedException");
+    } catch (InterruptedException e) {
+      // Expected.
+    }
+
+    assertThat(worker.isAlive()).isFalse();
+    assertThat(multiplexer.isAlive()).isFalse();
+    try {
+      other.get();
+      fail("Expected ExecutionException");
+    } catch (ExecutionException e) {
+      assertThat(e).hasCauseThat().isInstanceOf(IOException.class);
+    }
+  }
+}
@@ -0,0 +1,126 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.devtools.build.lib.util.GroupedList;
+import com.google.devtools.build.lib.util.GroupedList.GroupedListHelper;
+import com.google.devtools.build.skyframe.GraphTester.StringValue;
+import com.google.devtools.build.skyframe.QueryableGraph.Reason;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link CompactInMemoryGraphImpl}. */
+@RunWith(JUnit4.class)
+public class CompactInMemoryGraphTest extends GraphTest {
+  private ProcessableGraph graph;
+
+  @Override
+  protected Version getStartingVersion() {
+    return IntVersion.of(0);
+  }
+
+  @Override
+  protected Version getNextVersion(Version v) {
+    Preconditions.checkState(v instanceof IntVersion);
+    return ((IntVersion) v).next();
+  }
+
+  @Override
+  protected void makeGraph() {
+    graph = new CompactInMemoryGraphImpl();
+  }
+
+  @Override
+  protected ProcessableGraph getGraph(Version version) {
+    return graph;
+  }
+
+  @Test
+  public void doneEdgesAreStoredAsIds() throws Exception {
+    SkyKey parent = key("parent");
+    SkyKey otherParent = key("otherParent");
+    SkyKey alone = key("alone");
+    SkyKey grouped1 = key("grouped1");
+    SkyKey grouped2 = key("grouped2");
+    InMemoryNodeEntry entry = (InMemoryNodeEntry) createEntry(parent);
+    createEntry(otherParent);
+    for (SkyKey dep : ImmutableList.of(alone, grouped1, grouped2)) {
+      NodeEntry depEntry = createEntry(dep);
+      depEntry.addReverseDepAndCheckIfDone(null);
+      depEntry.addReverseDepAndCheckIfDone(parent);
+      depEntry.addReverseDepAndCheckIfDone(otherParent);
+      depEntry.setValue(new StringValue(dep.argument().toString()), getStartingVersion());
+    }
+    entry.addReverseDepAndCheckIfDone(null);
+    GroupedListHelper<SkyKey> helper = new GroupedListHelper<>();
+    helper.add(alone);
+    helper.startGroup();
+    helper.add(grouped1);
+    helper.add(grouped2);
+    helper.endGroup();
+    entry.addTemporaryDirectDeps(helper);
+    entry.signalDep();
+    entry.signalDep();
+    entry.signalDep();
+    entry.setValue(new StringValue("parent"), getStartingVersion());
+
+    assertThat(entry.directDeps).isInstanceOf(int[].class);
+    GroupedList<SkyKey> deps = entry.getGroupedDirectDeps();
+    assertThat(deps.listSize()).isEqualTo(2);
+    assertThat(deps.get(0)).containsExactly(alone);
+    assertThat(deps.get(1)).containsExactly(grouped1, grouped2).inOrder();
+
+    InMemoryNodeEntry child = (InMemoryNodeEntry) graph.get(null, Reason.OTHER, grouped1);
+    assertThat(child.reverseDeps).isInstanceOf(int[].class);
+    assertThat(child.getReverseDepsForDoneEntry()).containsExactly(parent, otherParent);
+    // Reading the reverse deps does not expand them.
+    assertThat(child.reverseDeps).isInstanceOf(int[].class);
+
+    NodeEntry.MarkedDirtyResult result = entry.markDirty(/*isChanged=*/ false);
+    assertThat(result.getReverseDepsUnsafe()).isEmpty();
+    entry.addReverseDepAndCheckIfDone(null);
+    assertThat(Iterables.concat(entry.getNextDirtyDirectDeps())).containsExactly(alone);
+  }
+
+  @Test
+  public void idsOfDeletedNodesAreReused() throws Exception {
+    CompactInMemoryGraphImpl compactGraph = (CompactInMemoryGraphImpl) graph;
+    // More than two chunks of the id table.
+    int count = 40000;
+    for (int i = 0; i < count; i++) {
+      createEntry(key("node" + i));
+    }
+    assertThat(compactGraph.getAllocatedChunkCount()).isEqualTo(3);
+    for (int i = 0; i < count; i++) {
+      compactGraph.remove(key("node" + i));
+    }
+
+    CompactInMemoryNodeEntry entry = (CompactInMemoryNodeEntry) createEntry(key("new"));
+    assertThat(entry.id).isEqualTo(0);
+    assertThat(compactGraph.getKey(entry.id)).isEqualTo(key("new"));
+    assertThat(compactGraph.getAllocatedChunkCount()).isEqualTo(1);
+    CompactInMemoryNodeEntry next = (CompactInMemoryNodeEntry) createEntry(key("next"));
+    assertThat(next.id).isEqualTo(1);
+  }
+
+  private NodeEntry createEntry(SkyKey key) throws InterruptedException {
+    return graph.createIfAbsentBatch(null, Reason.OTHER, ImmutableList.of(key)).get(key);
+  }
+}
@@ -0,0 +1,332 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.events.NullEventHandler;
+import com.google.devtools.build.lib.testutil.BenchmarkHarness;
+import com.google.devtools.build.lib.testutil.BenchmarkHarness.Flags;
+import com.google.devtools.build.lib.testutil.BenchmarkHarness.Sample;
+import com.google.devtools.build.lib.testutil.BenchmarkHarness.Stats;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.Nullable;
+
+/**
+ * Microbenchmarks for Skyframe evaluation and invalidation on synthetic graphs.
+ *
+ * <p>Each graph shape is evaluated in three modes: a fresh build into an empty graph, a null build
+ * with nothing changed, and an incremental build after changing a single leaf. For every mode the
+ * benchmark reports wall time, nodes computed per second and bytes allocated per computed node; for
+ * incremental builds it also reports how long invalidation alone took. See {@link
+ * BenchmarkHarness} for how it runs:
+ *
+ * <pre>
+ *   bazel run //src/test/java/com/google/devtools/build/skyframe:skyframe_benchmark -- \
+ *       --shape=diamond --size=100000 --threads=200 --graph=compact
+ * </pre>
+ *
+ * <p>Allocation is read from each evaluator thread's allocation counter when it finishes a node,
+ * so it covers everything the thread did up to its last node, including evaluator bookkeeping.
+ */
+public class SkyframeBenchmark {
+  private static final SkyFunctionName NODE = SkyFunctionName.create("BENCHMARK_NODE");
+
+  /** Shape of the synthetic graph. */
+  enum Shape {
+    /** Each node depends on the next one; {@code size} nodes deep. */
+    CHAIN,
+    /** A single root depending on {@code size} leaves requested in one batch. */
+    FANOUT,
+    /** Layers of {@link #DIAMOND_WIDTH} nodes, each depending on two nodes of the next layer. */
+    DIAMOND
+  }
+
+  private static final int DIAMOND_WIDTH = 100;
+
+  /** Which {@link InMemoryGraph} implementation to evaluate into. */
+  enum GraphKind {
+    DEFAULT,
+    COMPACT
+  }
+
+  /** A node of the synthetic graph: a position in a shape. Leaves have no deps. */
+  private static final class Node {
+    private final int layer;
+    private final int index;
+
+    Node(int layer, int index) {
+      this.layer = layer;
+      this.index = index;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Node)) {
+        return false;
+      }
+      Node other = (Node) obj;
+      return layer == other.layer && index == other.index;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * layer + index;
+    }
+
+    @Override
+    public String toString() {
+      return layer + ":" + index;
+    }
+  }
+
+  /** Value of a node: a hash of its deps' values, so that a leaf change propagates to the root. */
+  private static final class NodeValue implements SkyValue {
+    private final int hash;
+
+    NodeValue(int hash) {
+      this.hash = hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj instanceof NodeValue && ((NodeValue) obj).hash == hash;
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+
+  private final Shape shape;
+  private final int size;
+  private final int threads;
+  private final GraphKind graphKind;
+
+  private final Map<SkyKey, Integer> leafVersions = new ConcurrentHashMap<>();
+  private final LongAdder nodesComputed = new LongAdder();
+  private final Map<Long, Long> allocatedBytesByThread = new ConcurrentHashMap<>();
+
+  private RecordingDifferencer differencer;
+  private BuildDriver driver;
+
+  SkyframeBenchmark(Shape shape, int size, int threads, GraphKind graphKind) {
+    this.shape = shape;
+    this.size = size;
+    this.threads = threads;
+    this.graphKind = graphKind;
+  }
+
+  private static SkyKey key(int layer, int index) {
+    return LegacySkyKey.create(NODE, new Node(layer, index));
+  }
+
+  private SkyKey root() {
+    return key(0, 0);
+  }
+
+  /** Returns the deps of {@code node}, or the empty list if it is a leaf. */
+  private List<SkyKey> depsOf(Node node) {
+    switch (shape) {
+      case CHAIN:
+        return node.layer + 1 < size
+            ? ImmutableList.of(key(node.layer + 1, 0))
+            : ImmutableList.<SkyKey>of();
+      case FANOUT:
+        if (node.layer > 0) {
+          return ImmutableList.of();
+        }
+        List<SkyKey> leaves = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+          leaves.add(key(1, i));
+        }
+        return leaves;
+      case DIAMOND:
+        if (node.layer == 0) {
+          List<SkyKey> firstLayer = new ArrayList<>(DIAMOND_WIDTH);
+          for (int i = 0; i < DIAMOND_WIDTH; i++) {
+            firstLayer.add(key(1, i));
+          }
+          return firstLayer;
+        }
+        if (node.layer >= Math.max(1, size / DIAMOND_WIDTH)) {
+          return ImmutableList.of();
+        }
+        return ImmutableList.of(
+            key(node.layer + 1, node.index), key(node.layer + 1, (node.index + 1) % DIAMOND_WIDTH));
+    }
+    throw new IllegalStateException(shape.toString());
+  }
+
+  /** Returns a leaf whose change invalidates the longest path to the root. */
+  private SkyKey deepestLeaf() {
+    switch (shape) {
+      case CHAIN:
+        return key(size - 1, 0);
+      case FANOUT:
+        return key(1, 0);
+      case DIAMOND:
+        return key(Math.max(1, size / DIAMOND_WIDTH), 0);
+    }
+    throw new IllegalStateException(shape.toString());
+  }
+
+  private final SkyFunction nodeFunction =
+      new SkyFunction() {
+        @Nullable
+        @Override
+        public SkyValue compute(SkyKey skyKey, Environment env) throws InterruptedException {
+          List<SkyKey> deps = depsOf((Node) skyKey.argument());
+          int hash;
+          if (deps.isEmpty()) {
+            hash = skyKey.hashCode() + leafVersions.getOrDefault(skyKey, 0);
+          } else {
+            Map<SkyKey, SkyValue> values = env.getValues(deps);
+            if (env.valuesMissing()) {
+              return null;
+            }
+            hash = 1;
+            for (SkyKey dep : deps) {
+              hash = 31 * hash + values.get(dep).hashCode();
+            }
+          }
+          nodesComputed.increment();
+          allocatedBytesByThread.put(
+              Thread.currentThread().getId(), BenchmarkHarness.currentThreadAllocatedBytes());
+          return new NodeValue(hash);
+        }
+
+        @Nullable
+        @Override
+        public String extractTag(SkyKey skyKey) {
+          return null;
+        }
+      };
+
+  private void resetEvaluator() {
+    differencer = new SequencedRecordingDifferencer();
+    InMemoryGraphImpl graph =
+        graphKind == GraphKind.COMPACT ? new CompactInMemoryGraphImpl() : new InMemoryGraphImpl();
+    driver =
+        new SequentialBuildDriver(
+            new InMemoryMemoizingEvaluator(
+                ImmutableMap.of(NODE, nodeFunction),
+                differencer,
+                /*progressReceiver=*/ null,
+                new MemoizingEvaluator.EmittedEventState(),
+                graph));
+  }
+
+  private Sample evaluate(Iterable<SkyKey> roots) throws InterruptedException {
+    nodesComputed.reset();
+    allocatedBytesByThread.clear();
+    long mainThreadStart = BenchmarkHarness.currentThreadAllocatedBytes();
+    long start = System.nanoTime();
+    EvaluationResult<SkyValue> result =
+        driver.evaluate(roots, /*keepGoing=*/ false, threads, NullEventHandler.INSTANCE);
+    long nanos = System.nanoTime() - start;
+    Preconditions.checkState(!result.hasError(), result);
+    long allocated = BenchmarkHarness.currentThreadAllocatedBytes() - mainThreadStart;
+    for (long bytes : allocatedBytesByThread.values()) {
+      allocated += bytes;
+    }
+    return new Sample(nanos, allocated, nodesComputed.sum());
+  }
+
+  Sample freshBuild() throws InterruptedException {
+    resetEvaluator();
+    return evaluate(ImmutableList.of(root()));
+  }
+
+  Sample nullBuild() throws InterruptedException {
+    return evaluate(ImmutableList.of(root()));
+  }
+
+  /** Changes the deepest leaf and returns the invalidation sample followed by the build sample. */
+  Sample[] incrementalBuild() throws InterruptedException {
+    SkyKey leaf = deepestLeaf();
+    leafVersions.merge(leaf, 1, Integer::sum);
+    differencer.invalidate(ImmutableList.of(leaf));
+    // Evaluating no roots only processes the pending invalidation.
+    Sample invalidation = evaluate(ImmutableList.<SkyKey>of());
+    return new Sample[] {invalidation, evaluate(ImmutableList.of(root()))};
+  }
+
+  private static void print(String mode, List<Sample[]> samples, int index) {
+    List<Sample> modeSamples = new ArrayList<>(samples.size());
+    for (Sample[] iterationSamples : samples) {
+      modeSamples.add(iterationSamples[index]);
+    }
+    Stats stats = new Stats(modeSamples);
+    System.out.printf(
+        Locale.US,
+        "  %-24s mean %10.3f ms  min %10.3f ms  %12.0f nodes/s  %10.1f bytes/node%n",
+        mode,
+        stats.meanMillis,
+        stats.minMillis,
+        stats.unitsPerSecond,
+        stats.bytesPerUnit);
+  }
+
+  void run(int warmupIterations, int iterations) throws Exception {
+    // Each iteration takes a fresh, a null, and an incremental build, the latter in two samples.
+    List<Sample[]> samples =
+        BenchmarkHarness.repeat(
+            warmupIterations,
+            iterations,
+            () -> {
+              Sample fresh = freshBuild();
+              Sample nullBuild = nullBuild();
+              Sample[] incremental = incrementalBuild();
+              return new Sample[] {fresh, nullBuild, incremental[0], incremental[1]};
+            });
+    System.out.printf(
+        "%s size=%d threads=%d graph=%s%n",
+        shape.name().toLowerCase(Locale.US),
+        size,
+        threads,
+        graphKind.name().toLowerCase(Locale.US));
+    print("fresh build", samples, 0);
+    print("null build", samples, 1);
+    print("incremental invalidation", samples, 2);
+    print("incremental build", samples, 3);
+  }
+
+  public static void main(String[] args) throws Exception {
+    Flags flags = new Flags(args);
+    List<Shape> shapes = ImmutableList.copyOf(Shape.values());
+    String shape = flags.getString("shape");
+    if (shape != null) {
+      shapes = ImmutableList.of(Shape.valueOf(shape.toUpperCase(Locale.US)));
+    }
+    int size = flags.getInt("size", 10000);
+    int threads = flags.getInt("threads", 200);
+    GraphKind graphKind =
+        GraphKind.valueOf(flags.getString("graph", "default").toUpperCase(Locale.US));
+    int warmupIterations = flags.getWarmupIterations(5);
+    int iterations = flags.getIterations(10);
+    flags.checkAllRead();
+    Preconditions.checkArgument(size > 0 && threads > 0);
+    for (Shape shapeToRun : shapes) {
+      new SkyframeBenchmark(shapeToRun, size, threads, graphKind).run(warmupIterations, iterations);
+    }
+  }
+}
@@ -21,7 +21,13 @@ CURRENT_DIR="$(cd "$(dirname "${BASH_SOURCE[0]}")" && pwd)"
 source "${CURRENT_DIR}/../integration_test_setup.sh" \
   || { echo "integration_test_setup.sh not found!" >&2; exit 1; }
 
+# Extra query flags for every query of the suite, e.g. to run it with parallel evaluation.
+QUERY_FLAGS="${1:-}"
+
 add_to_bazelrc "build --package_path=%workspace%"
+if [ -n "$QUERY_FLAGS" ]; then
+  add_to_bazelrc "query $QUERY_FLAGS"
+fi
 
 #### TESTS #############################################################
 
@@ -414,6 +420,54 @@ EOF
   expect_log "//foo/bar:t2"
 }
 
+# The output of a query must not depend on the number of threads it is
+# evaluated on. Unordered output is only compared as a set.
+function test_output_does_not_depend_on_evaluation_threads() {
+  make_depth_tests
+  for query in 'deps(//depth:one)' 'rdeps(//depth/..., //depth:five)' \
+      'deps(//depth:one) ^ rdeps(//depth:*, //depth:div2) ^ //depth:*' \
+      'deps(//depth:one) - deps(//depth:three)' 'somepath(//depth:one, //depth:five)' \
+      'allpaths(//depth:one, //depth:div2) intersect kind(sh_library, //depth:*)'; do
+    for order in full auto no; do
+      for threads in 1 4; do
+        bazel query --order_output=$order --experimental_query_evaluation_threads=$threads \
+            "$query" > "output_$threads" || fail "Expected success for $query"
+      done
+      if [ "$order" = no ]; then
+        diff <(sort output_1) <(sort output_4) \
+            || fail "Lines differed between results of $query (--order_output=no)"
+      else
+        diff output_1 output_4 \
+            || fail "Results of $query (--order_output=$order) differed"
+      fi
+    done
+  done
+}
+
+# genquery forces ordered output, and must produce the same file for any number
+# of evaluation threads.
+function test_genquery_output_does_not_depend_on_evaluation_threads() {
+  make_depth_tests
+  mkdir -p gq
+  cat > gq/BUILD <<EOF
+[genquery(
+    name = "q%d_%d" % (i, threads),
+    expression = expression,
+    scope = ["//depth:one"],
+    opts = ["--experimental_query_evaluation_threads=%d" % threads],
+) for i, expression in enumerate([
+    "deps(//depth:one)",
+    "deps(//depth:one) ^ deps(//depth:two) ^ deps(//depth:four)",
+    "deps(//depth:one) - deps(//depth:three)",
+]) for threads in [1, 4]]
+EOF
+  bazel build //gq:all >& $TEST_log || fail "Expected success"
+  for i in 0 1 2; do
+    cmp bazel-genfiles/gq/q${i}_1 bazel-genfiles/gq/q${i}_4 \
+        || fail "genquery output $i differed between thread counts"
+  done
+}
+
 function tear_down() {
   bazel shutdown
 }
@@ -24,6 +24,7 @@ import com.google.bytestream.ByteStreamProto.WriteRequest;
 import com.google.bytestream.ByteStreamProto.WriteResponse;
 import com.google.devtools.build.lib.remote.CacheNotFoundException;
 import com.google.devtools.build.lib.remote.Chunker;
+import com.google.devtools.build.lib.remote.ContentDefinedChunker;
 import com.google.devtools.build.lib.remote.Digests;
 import com.google.devtools.build.lib.remote.SimpleBlobStoreActionCache;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
@@ -107,6 +108,8 @@ final class ByteStreamServer extends ByteStreamImplBase {
     }
     return new StreamObserver<WriteRequest>() {
       private Digest digest;
+      // The digest of the blob to reassemble, if this is the upload of a chunk manifest.
+      private Digest chunkedBlobDigest;
       private long offset;
       private String resourceName;
       private boolean closed;
@@ -120,6 +123,7 @@ final class ByteStreamServer extends ByteStreamImplBase {
         if (digest == null) {
           resourceName = request.getResourceName();
           digest = parseDigestFromResourceName(resourceName);
+          chunkedBlobDigest = ContentDefinedChunker.parseChunkedBlobDigest(resourceName);
         }
 
         if (digest == null) {
@@ -133,7 +137,7 @@ final class ByteStreamServer extends ByteStreamImplBase {
 
         if (offset == 0) {
           try {
-            if (cache.containsKey(digest)) {
+            if (cache.containsKey(chunkedBlobDigest != null ? chunkedBlobDigest : digest)) {
               responseObserver.onNext(
                   WriteResponse.newBuilder().setCommittedSize(digest.getSizeBytes()).build());
               responseObserver.onCompleted();
@@ -228,6 +232,10 @@ final class ByteStreamServer extends ByteStreamImplBase {
 
         try {
           Digest d = Digests.computeDigest(temp);
+          byte[] manifest = null;
+          if (chunkedBlobDigest != null && d.equals(digest)) {
+            manifest = FileSystemUtils.readContent(temp);
+          }
           try (InputStream in = temp.getInputStream()) {
             cache.uploadStream(d, in);
           }
@@ -246,6 +254,15 @@ final class ByteStreamServer extends ByteStreamImplBase {
             return;
           }
 
+          if (manifest != null) {
+            Digest missingChunk = reassemble(chunkedBlobDigest, manifest);
+            if (missingChunk != null) {
+              responseObserver.onError(StatusUtils.notFoundError(missingChunk));
+              closed = true;
+              return;
+            }
+          }
+
           responseObserver.onNext(WriteResponse.newBuilder().setCommittedSize(offset).build());
           responseObserver.onCompleted();
         } catch (Exception e) {
@@ -257,6 +274,44 @@ final class ByteStreamServer extends ByteStreamImplBase {
     };
   }
 
+  /**
+   * Stores the blob with the given digest, concatenated from the chunks listed in the manifest.
+   *
+   * @return the digest of a chunk that is not in the cache, or null if the blob was stored
+   * @throws IOException if the manifest is malformed or the chunks do not make up the blob
+   */
+  @Nullable
+  private Digest reassemble(Digest blobDigest, byte[] manifest)
+      throws IOException, InterruptedException {
+    Path temp = workPath.getRelative("upload").getRelative(UUID.randomUUID().toString());
+    try {
+      try (OutputStream out = temp.getOutputStream()) {
+        for (Digest chunk : ContentDefinedChunker.decodeManifest(manifest)) {
+          try {
+            out.write(cache.downloadBlob(chunk));
+          } catch (CacheNotFoundException e) {
+            return chunk;
+          }
+        }
+      }
+      Digest d = Digests.computeDigest(temp);
+      if (!d.equals(blobDigest)) {
+        throw new IOException(
+            "Reassembled digest " + d + " does not match expected digest " + blobDigest);
+      }
+      try (InputStream in = temp.getInputStream()) {
+        cache.uploadStream(d, in);
+      }
+      return null;
+    } finally {
+      try {
+        temp.delete();
+      } catch (IOException e) {
+        logger.log(WARNING, "Could not delete temp file.", e);
+      }
+    }
+  }
+
   private static class NoOpStreamObserver<T> implements StreamObserver<T> {
     @Override
     public void onNext(T value) {
@@ -0,0 +1 @@
+FAIL COMMAND js_embed